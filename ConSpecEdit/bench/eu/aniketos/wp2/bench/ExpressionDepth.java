@@ -0,0 +1,252 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.bench;
+
+import java.util.ArrayList;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.wp2.ExprNode;
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionCache;
+import eu.aniketos.wp2.ExpressionInterner;
+import eu.aniketos.wp2.ExpressionPrinter;
+import eu.aniketos.wp2.ExpressionSimplifier;
+
+/**
+ * Times parsing, printing and the other expression tree walks on very deep expressions,
+ * at depths of 10, 1,000 and 100,000.
+ * Three shapes are used: a left-leaning chain of <code>&&</code> terms, a right-leaning chain of
+ * bracketed <code>|</code> terms, and a chain of <code>!</code> operators.
+ * Run using the bench-depth target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionDepth {
+	/**
+	 * The expression depths to measure.
+	 */
+	private static final int[] DEPTHS = {10, 1000, 100000};
+	/**
+	 * Roughly how many nodes to process for each measurement, so that shallow expressions are repeated more often.
+	 */
+	private static final int NODES_PER_MEASUREMENT = 2000000;
+
+	/**
+	 * Run the benchmark for each shape and depth.
+	 * @param args Command line arguments; any present are used as the depths in place of the defaults.
+	 */
+	public static void main (String[] args) {
+		int[] depths = DEPTHS;
+		if (args.length > 0) {
+			depths = new int[args.length];
+			for (int index = 0; index < args.length; index++) {
+				depths[index] = Integer.parseInt(args[index]);
+			}
+		}
+
+		System.out.println("Shape     Depth  Operation     Time/op (us)   Time/node (ns)");
+		for (int depth : depths) {
+			measure("and", createAndChain(depth), depth);
+			measure("append", createAppendChain(depth), depth);
+			measure("not", createNotChain(depth), depth);
+		}
+	}
+
+	/**
+	 * Create a chain of and operations, which parses into a tree leaning to the left.
+	 * @param depth The number of operations.
+	 * @return The expression in human-readable form.
+	 */
+	static String createAndChain (int depth) {
+		StringBuilder text = new StringBuilder();
+		text.append("x0");
+		for (int index = 1; index <= depth; index++) {
+			text.append(" && x").append(index % 100).append(" > ").append(index);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Create a chain of nested append operations, which parses into a tree leaning to the right.
+	 * @param depth The number of operations.
+	 * @return The expression in human-readable form.
+	 */
+	static String createAppendChain (int depth) {
+		StringBuilder text = new StringBuilder();
+		for (int index = 0; index < depth; index++) {
+			text.append("s").append(index % 100).append(" | (");
+		}
+		text.append("\"end\"");
+		for (int index = 0; index < depth; index++) {
+			text.append(')');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Create a chain of not operations.
+	 * @param depth The number of operations.
+	 * @return The expression in human-readable form.
+	 */
+	static String createNotChain (int depth) {
+		StringBuilder text = new StringBuilder();
+		for (int index = 0; index < depth; index++) {
+			text.append('!');
+		}
+		text.append("flag");
+		return text.toString();
+	}
+
+	/**
+	 * Time each operation on an expression and print the results.
+	 * @param shape The name of the expression's shape.
+	 * @param text The expression in human-readable form.
+	 * @param depth The depth of the expression.
+	 */
+	private static void measure (String shape, final String text, int depth) {
+		final ExpressionCache cache = new ExpressionCache(1);
+		final JAXBElement<?> value = cache.parse(text);
+		final ExprNode node = ExprNode.fromElement(value);
+		final ExprNode other = ExprNode.fromElement(value);
+		final ExpressionSimplifier simplifier = new ExpressionSimplifier(255, 255);
+		int nodes = countNodes(node);
+		int repeats = Math.max(1, NODES_PER_MEASUREMENT / nodes);
+
+		// Check that the expression survives the round trip before timing anything
+		if (!ExpressionPrinter.toString(cache.parse(ExpressionPrinter.toString(value))).equals(ExpressionPrinter.toString(value))) {
+			throw new IllegalStateException("Round trip failed for " + shape + " at depth " + depth);
+		}
+
+		Operation[] operations = {
+			new Operation("parse") {
+				Object run () {
+					cache.clear();
+					return cache.parse(text);
+				}
+			},
+			new Operation("print") {
+				Object run () {
+					return ExpressionPrinter.toString(value);
+				}
+			},
+			new Operation("copy") {
+				Object run () {
+					return Expression.copy(value);
+				}
+			},
+			new Operation("fromElement") {
+				Object run () {
+					return ExprNode.fromElement(value);
+				}
+			},
+			new Operation("toElement") {
+				Object run () {
+					return node.toElement();
+				}
+			},
+			new Operation("equals") {
+				Object run () {
+					return Boolean.valueOf(node.equals(other));
+				}
+			},
+			new Operation("simplify") {
+				Object run () {
+					return simplifier.simplify(node);
+				}
+			},
+			new Operation("intern") {
+				Object run () {
+					return new ExpressionInterner().intern(node);
+				}
+			}
+		};
+
+		for (Operation operation : operations) {
+			// Warm up, then time
+			operation.repeat(repeats);
+			long start = System.nanoTime();
+			operation.repeat(repeats);
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("%-8s %6d  %-12s %13.2f %16.2f", shape, depth, operation.name,
+					elapsed / (repeats * 1000.0), elapsed / ((double)repeats * nodes)));
+		}
+	}
+
+	/**
+	 * Count the nodes in a compact expression.
+	 * @param root The root of the expression.
+	 * @return The number of nodes.
+	 */
+	static int countNodes (ExprNode root) {
+		int count = 0;
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		pending.add(root);
+		while (!pending.isEmpty()) {
+			ExprNode node = pending.remove(pending.size() - 1);
+			count++;
+			if (node != null) {
+				for (int index = 0; index < node.getChildCount(); index++) {
+					pending.add(node.getChild(index));
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * A named operation to be timed.
+	 */
+	private static abstract class Operation {
+		/**
+		 * The name of the operation, used in the results.
+		 */
+		final String name;
+		/**
+		 * Somewhere to keep results, so that the work can't be optimised away.
+		 */
+		Object sink;
+
+		/**
+		 * Create an operation.
+		 * @param name The name of the operation.
+		 */
+		Operation (String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Perform the operation once.
+		 * @return The result of the operation.
+		 */
+		abstract Object run ();
+
+		/**
+		 * Perform the operation a number of times.
+		 * @param repeats The number of times to perform the operation.
+		 */
+		void repeat (int repeats) {
+			for (int count = 0; count < repeats; count++) {
+				sink = run();
+			}
+		}
+	}
+}
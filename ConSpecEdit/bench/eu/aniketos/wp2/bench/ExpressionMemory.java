@@ -0,0 +1,189 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.AssignType;
+import eu.aniketos.PerformType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.UpdateType;
+import eu.aniketos.wp2.ExprNode;
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionCache;
+import eu.aniketos.wp2.ExpressionInterner;
+
+/**
+ * Compares the heap used by the JAXBElement and compact (ExprNode) expression representations
+ * for a synthetic policy containing 10,000 rules, and the heap saved by sharing identical compact subexpressions.
+ * Run using the bench-memory target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionMemory {
+	/**
+	 * The number of rules in the synthetic policy.
+	 */
+	private static final int RULES = 10000;
+
+	/**
+	 * Build the policy in both forms and report the heap used by each.
+	 * @param args Command line arguments; the first, if present, is the number of rules.
+	 */
+	public static void main (String[] args) {
+		int rules = (args.length > 0) ? Integer.parseInt(args[0]) : RULES;
+
+		long baseline = usedMemory();
+		Specification spec = createPolicy(rules);
+		// Don't count the parsed copies held by the expression cache
+		ExpressionCache.getDefault().clear();
+		long jaxbBytes = usedMemory() - baseline;
+
+		// Convert every expression into its compact form
+		baseline = usedMemory();
+		List<ExprNode> nodes = new ArrayList<ExprNode>(rules * 2);
+		for (RuleType rule : spec.getRule()) {
+			for (ReactionType reaction : rule.getPerform().getReaction()) {
+				nodes.add(ExprNode.fromElement(reaction.getGuard().getExpType()));
+				for (AssignType assign : reaction.getUpdate().getAssign()) {
+					nodes.add(ExprNode.fromElement(assign.getValue().getExpType()));
+				}
+			}
+		}
+		long compactBytes = usedMemory() - baseline;
+
+		// Check the conversion is lossless before reporting
+		int index = 0;
+		int count = 0;
+		for (RuleType rule : spec.getRule()) {
+			for (ReactionType reaction : rule.getPerform().getReaction()) {
+				count += check(reaction.getGuard().getExpType(), nodes.get(index++));
+				for (AssignType assign : reaction.getUpdate().getAssign()) {
+					count += check(assign.getValue().getExpType(), nodes.get(index++));
+				}
+			}
+		}
+
+		// Share identical subexpressions and measure how much the compact expressions shrink; the
+		// interner's table is cleared first, since the expressions stay shared without it
+		baseline = usedMemory();
+		ExpressionInterner interner = new ExpressionInterner();
+		for (index = 0; index < nodes.size(); index++) {
+			nodes.set(index, interner.intern(nodes.get(index)));
+		}
+		int distinct = interner.getSize();
+		interner.clear();
+		long freedBytes = baseline - usedMemory();
+		long internedBytes = compactBytes - freedBytes;
+		index = 0;
+		for (RuleType rule : spec.getRule()) {
+			for (ReactionType reaction : rule.getPerform().getReaction()) {
+				check(reaction.getGuard().getExpType(), nodes.get(index++));
+				for (AssignType assign : reaction.getUpdate().getAssign()) {
+					check(assign.getValue().getExpType(), nodes.get(index++));
+				}
+			}
+		}
+
+		System.out.println("Rules:                 " + rules);
+		System.out.println("Expression nodes:      " + count);
+		System.out.println("JAXBElement policy:    " + jaxbBytes + " bytes (" + (jaxbBytes / count) + " bytes/node, including rule structure)");
+		System.out.println("Compact expressions:   " + compactBytes + " bytes (" + (compactBytes / count) + " bytes/node)");
+		System.out.println("Interned compact:      " + internedBytes + " bytes (" + interner.getShared() + " subexpressions shared, " + distinct + " distinct)");
+		if (compactBytes > 0) {
+			System.out.println("Ratio:                 " + ((double)jaxbBytes / compactBytes));
+		}
+	}
+
+	/**
+	 * Create a synthetic policy with one reaction per rule, each with a guard and an assignment.
+	 * The constants vary between rules so that no subexpressions can be shared.
+	 * @param rules The number of rules to create.
+	 * @return The synthetic policy.
+	 */
+	static Specification createPolicy (int rules) {
+		Specification spec = new Specification();
+		for (int index = 0; index < rules; index++) {
+			ReactionType reaction = new ReactionType();
+			reaction.setGuard(new ReactionType.Guard());
+			reaction.getGuard().setExpType(new Expression("((buffer_size + len) > " + index + ") && !(flag) || (host == last) && (count % 7 != " + index + ")").getValue());
+			reaction.setUpdate(new UpdateType());
+			AssignType assign = new AssignType();
+			assign.setIdentifier("buffer_size");
+			assign.setValue(new AssignType.Value());
+			assign.getValue().setExpType(new Expression("buffer_size + (len * " + index + ") - 1").getValue());
+			reaction.getUpdate().getAssign().add(assign);
+
+			RuleType rule = new RuleType();
+			rule.setPerform(new PerformType());
+			rule.getPerform().getReaction().add(reaction);
+			spec.getRule().add(rule);
+		}
+		return spec;
+	}
+
+	/**
+	 * Check that converting a compact expression back gives the original expression.
+	 * @param original The original JAXBElement hierarchy.
+	 * @param node The compact form of the hierarchy.
+	 * @return The number of nodes in the expression.
+	 */
+	private static int check (JAXBElement<?> original, ExprNode node) {
+		String expected = new Expression(original).toString();
+		String actual = new Expression(node).toString();
+		if (!expected.equals(actual)) {
+			throw new IllegalStateException("Conversion mismatch: " + expected + " != " + actual);
+		}
+		return countNodes(node);
+	}
+
+	/**
+	 * Count the nodes in a compact expression.
+	 * @param node The root of the expression.
+	 * @return The number of nodes.
+	 */
+	private static int countNodes (ExprNode node) {
+		return ExpressionDepth.countNodes(node);
+	}
+
+	/**
+	 * Return the heap in use after encouraging a full garbage collection.
+	 * @return The number of bytes in use.
+	 */
+	private static long usedMemory () {
+		Runtime runtime = Runtime.getRuntime();
+		for (int count = 0; count < 4; count++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
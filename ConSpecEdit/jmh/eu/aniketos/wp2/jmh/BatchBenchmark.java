@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.jmh;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.aniketos.DeclType;
+import eu.aniketos.Specification;
+import eu.aniketos.StateType;
+import eu.aniketos.wp2.BatchEvaluator;
+import eu.aniketos.wp2.CompiledExpression;
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionCompiler;
+import eu.aniketos.wp2.ExpressionMachine;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateBlock;
+import eu.aniketos.wp2.StateLayout;
+
+/**
+ * JMH benchmarks comparing an audit-style guard run over many stored session states one session at a
+ * time on the stack machine, with the same guard run a column at a time by BatchEvaluator, both on a
+ * single thread and split across a ForkJoinPool.
+ * Build and run using the bench-jmh target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+	/**
+	 * The guard run over every session.
+	 */
+	private static final String GUARD = "buffer_size > 512 && (sent + received) * 2 < 100000 || trusted";
+
+	/**
+	 * The number of session states.
+	 */
+	@Param({"1024", "65536", "262144"})
+	public int sessions;
+
+	/**
+	 * The session states, a row each.
+	 */
+	private StateBlock block;
+	/**
+	 * The same session states, held separately.
+	 */
+	private SlotState[] states;
+	/**
+	 * The guard, compiled against the layout of the states.
+	 */
+	private CompiledExpression guard;
+	/**
+	 * Runs the guard one session at a time.
+	 */
+	private ExpressionMachine machine;
+	/**
+	 * Runs the guard over the block on the calling thread.
+	 */
+	private BatchEvaluator serial;
+	/**
+	 * Runs the guard over the block, split between threads.
+	 */
+	private BatchEvaluator parallel;
+	/**
+	 * The pool used by the parallel evaluator.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Generate the session states for the current parameters.
+	 */
+	@Setup
+	public void setup () {
+		Specification spec = new Specification();
+		spec.setSecuritystate(new StateType());
+		declare(spec, "int", "buffer_size");
+		declare(spec, "int", "sent");
+		declare(spec, "int", "received");
+		declare(spec, "bool", "trusted");
+		declare(spec, "string", "host");
+		StateLayout layout = StateLayout.forSpecification(spec);
+
+		// A fixed seed, so that every run sees the same states
+		Random random = new Random(42);
+		block = new StateBlock(layout, sessions);
+		states = new SlotState[sessions];
+		for (int index = 0; index < sessions; index++) {
+			SlotState state = layout.createState();
+			state.setInt("buffer_size", random.nextInt(1024));
+			state.setInt("sent", random.nextInt(50000));
+			state.setInt("received", random.nextInt(50000));
+			state.setBool("trusted", random.nextInt(10) == 0);
+			state.setString("host", "host" + random.nextInt(100));
+			block.add(state);
+			states[index] = state;
+		}
+
+		guard = new ExpressionCompiler(null, layout).compile(new Expression(GUARD).getValue());
+		machine = new ExpressionMachine();
+		serial = new BatchEvaluator(new ForkJoinPool(1), Integer.MAX_VALUE);
+		pool = new ForkJoinPool();
+		parallel = new BatchEvaluator(pool, BatchEvaluator.DEFAULT_SPLIT);
+	}
+
+	/**
+	 * Stop the threads of the pool.
+	 */
+	@TearDown
+	public void tearDown () {
+		pool.shutdown();
+	}
+
+	/**
+	 * Add a variable declaration to the security state of a policy.
+	 * @param spec The policy.
+	 * @param type The type of the variable.
+	 * @param identifier The name of the variable.
+	 */
+	private static void declare (Specification spec, String type, String identifier) {
+		DeclType declaration = new DeclType();
+		declaration.setType(type);
+		declaration.setIdentifier(identifier);
+		spec.getSecuritystate().getDeclaration().add(declaration);
+	}
+
+	/**
+	 * Run the guard over each session in turn using the stack machine.
+	 * @return The sessions the guard holds for.
+	 */
+	@Benchmark
+	public BitSet rowByRow () {
+		BitSet result = new BitSet(sessions);
+		for (int index = 0; index < sessions; index++) {
+			if (machine.evaluateGuard(guard, states[index], null)) {
+				result.set(index);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Run the guard over the block a column at a time, on the calling thread.
+	 * @return The sessions the guard holds for.
+	 */
+	@Benchmark
+	public BitSet columnar () {
+		return serial.evaluateGuard(guard, block, null);
+	}
+
+	/**
+	 * Run the guard over the block a column at a time, split between threads.
+	 * @return The sessions the guard holds for.
+	 */
+	@Benchmark
+	public BitSet columnarParallel () {
+		return parallel.evaluateGuard(guard, block, null);
+	}
+}
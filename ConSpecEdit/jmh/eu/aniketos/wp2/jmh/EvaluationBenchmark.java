@@ -0,0 +1,246 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.aniketos.DeclType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.Specification;
+import eu.aniketos.StateType;
+import eu.aniketos.wp2.Bindings;
+import eu.aniketos.wp2.CompiledExpression;
+import eu.aniketos.wp2.ExprNode;
+import eu.aniketos.wp2.ExpressionCache;
+import eu.aniketos.wp2.ExpressionCompiler;
+import eu.aniketos.wp2.ExpressionEvaluator;
+import eu.aniketos.wp2.ExpressionMachine;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+import eu.aniketos.wp2.TieredExpression;
+
+/**
+ * JMH benchmarks comparing guard evaluation by walking the compact expression tree with
+ * evaluation of the same guards compiled to postfix code for the stack machine, either looking
+ * variables up by name or reading them from slots, and compiled further into method handle trees.
+ * Each benchmark cycles through a set of generated guards with the given number of comparisons,
+ * over a state of integer, string and boolean variables.
+ * Build and run using the bench-jmh target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluationBenchmark {
+	/**
+	 * The number of different guards to cycle through; must be a power of two.
+	 */
+	private static final int GUARDS = 16;
+	/**
+	 * The number of variables of each type in the state.
+	 */
+	private static final int VARIABLES = 10;
+
+	/**
+	 * The number of comparisons in each guard.
+	 */
+	@Param({"1", "4", "16", "64"})
+	public int comparisons;
+
+	/**
+	 * The guards prepared for tree walking.
+	 */
+	private ExprNode[] nodes;
+	/**
+	 * The guards compiled for the stack machine, via the compiler's per-reaction cache.
+	 */
+	private CompiledExpression[] programs;
+	/**
+	 * The guards compiled for the stack machine, loading variables from slots.
+	 */
+	private CompiledExpression[] slotPrograms;
+	/**
+	 * Reactions with the guards, used to look up the compiled programs.
+	 */
+	private ReactionType[] reactions;
+	/**
+	 * The guards compiled into method handle trees on first use.
+	 */
+	private TieredExpression[] tiers;
+	/**
+	 * Evaluates guards by walking the tree.
+	 */
+	private ExpressionEvaluator evaluator;
+	/**
+	 * Compiles guards to postfix code.
+	 */
+	private ExpressionCompiler compiler;
+	/**
+	 * Executes compiled guards.
+	 */
+	private ExpressionMachine machine;
+	/**
+	 * The security state the guards refer to.
+	 */
+	private Bindings state;
+	/**
+	 * The same security state, held in slots.
+	 */
+	private SlotState slots;
+	/**
+	 * The parameters of the event; the guards don't use any.
+	 */
+	private Bindings parameters;
+	/**
+	 * The index of the next guard to use.
+	 */
+	private int next;
+
+	/**
+	 * Generate and prepare the guards and state for the current parameters.
+	 */
+	@Setup
+	public void setup () {
+		ExpressionGenerator generator = new ExpressionGenerator("logical", 1);
+		ExpressionCache cache = new ExpressionCache(1);
+
+		// Declare the variables with a spread of values, so that both sides of each operator get evaluated
+		Specification spec = new Specification();
+		spec.setSecuritystate(new StateType());
+		for (int index = 0; index < VARIABLES; index++) {
+			declare(spec, cache, "int", "count" + index, Integer.toString(index * 111));
+			declare(spec, cache, "string", "name" + index, "\"s" + ((index * 3) % VARIABLES) + "\"");
+			declare(spec, cache, "bool", "flag" + index, ((index % 3) == 0) ? "true" : "false");
+		}
+		evaluator = new ExpressionEvaluator();
+		state = evaluator.createState(spec);
+		StateLayout layout = new StateLayout(spec, evaluator);
+		slots = layout.createState();
+		parameters = new Bindings();
+
+		compiler = new ExpressionCompiler();
+		ExpressionCompiler slotCompiler = new ExpressionCompiler(null, layout);
+		machine = new ExpressionMachine();
+		nodes = new ExprNode[GUARDS];
+		programs = new CompiledExpression[GUARDS];
+		slotPrograms = new CompiledExpression[GUARDS];
+		reactions = new ReactionType[GUARDS];
+		tiers = new TieredExpression[GUARDS];
+		for (int index = 0; index < GUARDS; index++) {
+			reactions[index] = new ReactionType();
+			reactions[index].setGuard(new ReactionType.Guard());
+			reactions[index].getGuard().setExpType(cache.parse(generator.generateGuard(comparisons)));
+			nodes[index] = evaluator.prepare(reactions[index].getGuard().getExpType());
+			programs[index] = compiler.compileGuard(reactions[index]);
+			slotPrograms[index] = slotCompiler.compile(reactions[index].getGuard().getExpType());
+			tiers[index] = new TieredExpression(programs[index], 0);
+		}
+		next = 0;
+	}
+
+	/**
+	 * Add a variable declaration to the security state of a policy.
+	 * @param spec The policy.
+	 * @param cache Used to parse the initial value.
+	 * @param type The type of the variable.
+	 * @param identifier The name of the variable.
+	 * @param value The initial value of the variable.
+	 */
+	private static void declare (Specification spec, ExpressionCache cache, String type, String identifier, String value) {
+		DeclType declaration = new DeclType();
+		declaration.setType(type);
+		declaration.setIdentifier(identifier);
+		declaration.setValue(new DeclType.Value());
+		declaration.getValue().setExpType(cache.parse(value));
+		spec.getSecuritystate().getDeclaration().add(declaration);
+	}
+
+	/**
+	 * Move on to the next guard.
+	 * @return The index of the guard to use.
+	 */
+	private int advance () {
+		next = (next + 1) & (GUARDS - 1);
+		return next;
+	}
+
+	/**
+	 * Evaluate a guard by walking its tree.
+	 * @return The value of the guard.
+	 */
+	@Benchmark
+	public boolean treeWalk () {
+		return evaluator.evaluateGuard(nodes[advance()], state, parameters);
+	}
+
+	/**
+	 * Evaluate a guard that's already been compiled, using the stack machine.
+	 * @return The value of the guard.
+	 */
+	@Benchmark
+	public boolean stackMachine () {
+		return machine.evaluateGuard(programs[advance()], state, parameters);
+	}
+
+	/**
+	 * Evaluate a guard that's already been compiled to read variables from slots, using the stack machine.
+	 * @return The value of the guard.
+	 */
+	@Benchmark
+	public boolean stackMachineSlots () {
+		return machine.evaluateGuard(slotPrograms[advance()], slots, parameters);
+	}
+
+	/**
+	 * Look up the compiled guard for a reaction and evaluate it using the stack machine, as a
+	 * monitor would when the guard isn't held anywhere else.
+	 * @return The value of the guard.
+	 */
+	@Benchmark
+	public boolean stackMachineCached () {
+		return machine.evaluateGuard(compiler.compileGuard(reactions[advance()]), state, parameters);
+	}
+
+	/**
+	 * Evaluate a guard compiled into a method handle tree.
+	 * @return The value of the guard.
+	 */
+	@Benchmark
+	public boolean methodHandles () {
+		return tiers[advance()].evaluateGuard(machine, state, parameters);
+	}
+}
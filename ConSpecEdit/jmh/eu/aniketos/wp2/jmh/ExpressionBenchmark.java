@@ -0,0 +1,183 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2.jmh;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXB;
+import javax.xml.bind.JAXBElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.aniketos.ReactionType;
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionCache;
+
+/**
+ * JMH benchmarks for converting expressions between their human-readable and JAXBElement forms,
+ * and for copying them in the way the rule and reaction dialogues do.
+ * Each benchmark cycles through a set of generated expressions of the given size, bracket depth
+ * and operator mix, so that the results aren't skewed by a single expression.
+ * Build and run using the bench-jmh target of the ant build file; the gc profiler is enabled
+ * by default so that the allocation rate is reported alongside the throughput and latency.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+	/**
+	 * The number of different expressions to cycle through; must be a power of two.
+	 */
+	private static final int EXPRESSIONS = 16;
+
+	/**
+	 * The number of binary operators in each expression.
+	 */
+	@Param({"10", "100", "1000"})
+	public int size;
+	/**
+	 * The greatest depth to which brackets are nested in each expression.
+	 */
+	@Param({"2", "16"})
+	public int depth;
+	/**
+	 * The mix of operators used: arithmetic, logical, string or mixed.
+	 */
+	@Param({"arithmetic", "logical", "string", "mixed"})
+	public String mix;
+
+	/**
+	 * The expressions in human-readable form.
+	 */
+	private String[] texts;
+	/**
+	 * The expressions as JAXBElement hierarchies.
+	 */
+	private JAXBElement<?>[] values;
+	/**
+	 * Reactions with the expressions as their guards.
+	 */
+	private ReactionType[] reactions;
+	/**
+	 * A private cache, emptied before each parse so that the full cost of parsing is measured.
+	 */
+	private ExpressionCache cache;
+	/**
+	 * The index of the next expression to use.
+	 */
+	private int next;
+
+	/**
+	 * Generate the expressions for the current parameters.
+	 */
+	@Setup
+	public void setup () {
+		ExpressionGenerator generator = new ExpressionGenerator(mix, 1);
+		texts = new String[EXPRESSIONS];
+		values = new JAXBElement<?>[EXPRESSIONS];
+		reactions = new ReactionType[EXPRESSIONS];
+		cache = new ExpressionCache(1);
+		for (int index = 0; index < EXPRESSIONS; index++) {
+			texts[index] = generator.generate(size, depth);
+			values[index] = cache.parse(texts[index]);
+			reactions[index] = new ReactionType();
+			reactions[index].setGuard(new ReactionType.Guard());
+			reactions[index].getGuard().setExpType(values[index]);
+		}
+		next = 0;
+	}
+
+	/**
+	 * Move on to the next expression.
+	 * @return The index of the expression to use.
+	 */
+	private int advance () {
+		next = (next + 1) & (EXPRESSIONS - 1);
+		return next;
+	}
+
+	/**
+	 * Parse an expression that hasn't been seen before.
+	 * @return The root of the parsed hierarchy.
+	 */
+	@Benchmark
+	public JAXBElement<?> parse () {
+		cache.clear();
+		return cache.parse(texts[advance()]);
+	}
+
+	/**
+	 * Parse an expression using Expression(String), as the editor does; repeated expressions come from the shared cache.
+	 * @return The parsed expression.
+	 */
+	@Benchmark
+	public Expression parseCached () {
+		return new Expression(texts[advance()]);
+	}
+
+	/**
+	 * Convert an expression to human-readable form using Expression.toString().
+	 * @return The expression in human-readable form.
+	 */
+	@Benchmark
+	public String print () {
+		return new Expression(values[advance()]).toString();
+	}
+
+	/**
+	 * Copy an expression hierarchy directly.
+	 * @return The root of the copy.
+	 */
+	@Benchmark
+	public JAXBElement<?> copy () {
+		return Expression.copy(values[advance()]);
+	}
+
+	/**
+	 * Copy a reaction by marshalling it to XML and back again, as the rule and reaction dialogues do.
+	 * @return The copy of the reaction.
+	 */
+	@Benchmark
+	public ReactionType jaxbRoundTrip () {
+		ReactionType reaction = reactions[advance()];
+		StringWriter xml = new StringWriter();
+		JAXB.marshal(reaction, xml);
+		return JAXB.unmarshal(new StringReader(xml.toString()), ReactionType.class);
+	}
+}
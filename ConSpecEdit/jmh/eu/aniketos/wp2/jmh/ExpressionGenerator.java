@@ -0,0 +1,225 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2.jmh;
+
+import java.util.Random;
+
+/**
+ * Generates random human-readable expressions for benchmarking.
+ * The size of an expression is the number of binary operators it contains, and its depth is the
+ * greatest number of brackets nested inside one another; beyond this depth operators are chained
+ * without brackets, leaving the parser's precedence rules to determine the shape of the tree.
+ * The same seed always generates the same expressions, so results can be compared between runs.
+ * As well as expressions that are only syntactically valid, well-typed guards can be generated for
+ * evaluation; these refer to the integer variables count0 to count9, the string variables name0 to
+ * name9 and the boolean variables flag0 to flag9.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionGenerator {
+	/**
+	 * Operators used by the arithmetic mix.
+	 */
+	private static final String[] ARITHMETIC = {"+", "-", "*", "%"};
+	/**
+	 * Operators used by the logical mix.
+	 */
+	private static final String[] LOGICAL = {"&&", "||", ">", "<", ">=", "<=", "==", "!="};
+	/**
+	 * Operators used by the string mix.
+	 */
+	private static final String[] STRING = {"|", "|", "|", "==", "!="};
+	/**
+	 * Operators used by the mixed mix: every operator in the language.
+	 */
+	private static final String[] MIXED = {"+", "-", "*", "%", "&&", "||", ">", "<", ">=", "<=", "==", "!=", "|"};
+
+	/**
+	 * The operators to choose from.
+	 */
+	private final String[] operators;
+	/**
+	 * Whether leaves should be strings rather than integers.
+	 */
+	private final boolean strings;
+	/**
+	 * Whether leaves may be negated.
+	 */
+	private final boolean negation;
+	/**
+	 * The source of randomness.
+	 */
+	private final Random random;
+
+	/**
+	 * Set up a generator.
+	 * @param mix The mix of operators to use: "arithmetic", "logical", "string" or "mixed".
+	 * @param seed The seed for the random choices.
+	 */
+	public ExpressionGenerator (String mix, long seed) {
+		switch (mix) {
+		case "arithmetic":
+			operators = ARITHMETIC;
+			strings = false;
+			negation = false;
+			break;
+		case "logical":
+			operators = LOGICAL;
+			strings = false;
+			negation = true;
+			break;
+		case "string":
+			operators = STRING;
+			strings = true;
+			negation = false;
+			break;
+		case "mixed":
+			operators = MIXED;
+			strings = false;
+			negation = true;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown operator mix: " + mix);
+		}
+		random = new Random(seed);
+	}
+
+	/**
+	 * Generate an expression.
+	 * @param size The number of binary operators.
+	 * @param depth The greatest depth to which brackets may be nested.
+	 * @return The expression in human-readable form.
+	 */
+	public String generate (int size, int depth) {
+		StringBuilder text = new StringBuilder();
+		append(text, size, depth);
+		return text.toString();
+	}
+
+	/**
+	 * Generate a well-typed guard made up of comparisons joined by <code>&&</code> and <code>||</code>.
+	 * @param comparisons The number of comparisons.
+	 * @return The guard in human-readable form.
+	 */
+	public String generateGuard (int comparisons) {
+		StringBuilder text = new StringBuilder();
+		for (int count = 0; count < comparisons; count++) {
+			if (count > 0) {
+				text.append(random.nextBoolean() ? " && " : " || ");
+			}
+			switch (random.nextInt(5)) {
+			case 0:
+				text.append("(count").append(random.nextInt(10)).append(" + ").append(random.nextInt(100)).append(") > count").append(random.nextInt(10));
+				break;
+			case 1:
+				text.append("count").append(random.nextInt(10)).append(" % 7 != ").append(random.nextInt(7));
+				break;
+			case 2:
+				text.append("name").append(random.nextInt(10)).append(" == \"s").append(random.nextInt(10)).append('"');
+				break;
+			case 3:
+				text.append("!(flag").append(random.nextInt(10)).append(" && count").append(random.nextInt(10)).append(" <= ").append(random.nextInt(1000)).append(')');
+				break;
+			default:
+				text.append("flag").append(random.nextInt(10));
+				break;
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Add an expression to the end of some text.
+	 * The recursion is limited by the depth, rather than the size, of the expression.
+	 * @param text The text to add to.
+	 * @param size The number of binary operators.
+	 * @param depth The greatest depth to which brackets may be nested.
+	 */
+	private void append (StringBuilder text, int size, int depth) {
+		if (depth <= 0) {
+			// Chain the operators without brackets
+			appendLeaf(text);
+			for (int count = 0; count < size; count++) {
+				text.append(' ').append(operator()).append(' ');
+				appendLeaf(text);
+			}
+		}
+		else if (size <= 0) {
+			appendLeaf(text);
+		}
+		else {
+			// Split the remaining operators between two bracketed subexpressions
+			int left = random.nextInt(size);
+			appendBracketed(text, left, depth - 1);
+			text.append(' ').append(operator()).append(' ');
+			appendBracketed(text, size - 1 - left, depth - 1);
+		}
+	}
+
+	/**
+	 * Add a subexpression to the end of some text, in brackets if it has any operators.
+	 * @param text The text to add to.
+	 * @param size The number of binary operators.
+	 * @param depth The greatest depth to which brackets may be nested.
+	 */
+	private void appendBracketed (StringBuilder text, int size, int depth) {
+		if (size > 0) {
+			if (negation && random.nextInt(4) == 0) {
+				text.append('!');
+			}
+			text.append('(');
+			append(text, size, depth);
+			text.append(')');
+		}
+		else {
+			appendLeaf(text);
+		}
+	}
+
+	/**
+	 * Add a constant or identifier to the end of some text.
+	 * @param text The text to add to.
+	 */
+	private void appendLeaf (StringBuilder text) {
+		int choice = random.nextInt(8);
+		if (negation && (choice == 0)) {
+			text.append("!flag").append(random.nextInt(10));
+		}
+		else if (choice < 4) {
+			text.append(strings ? "name" : "count").append(random.nextInt(10));
+		}
+		else if (strings) {
+			text.append("\"s").append(random.nextInt(1000)).append('"');
+		}
+		else {
+			text.append(random.nextInt(1000));
+		}
+	}
+
+	/**
+	 * Choose an operator at random.
+	 * @return The operator's symbol.
+	 */
+	private String operator () {
+		return operators[random.nextInt(operators.length)];
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.aniketos.AfterType;
+import eu.aniketos.AssignType;
+import eu.aniketos.DeclType;
+import eu.aniketos.ObjectFactory;
+import eu.aniketos.ParameterType;
+import eu.aniketos.PerformType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.StateType;
+import eu.aniketos.UpdateType;
+import eu.aniketos.WhenType;
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.monitor.Decision;
+import eu.aniketos.wp2.monitor.Monitor;
+
+/**
+ * JMH benchmarks measuring how many method call events a Monitor can check each microsecond, for
+ * calls that fire a rule before the method is called, after it returns, and calls that no rule
+ * applies to, with each method passed by name or by the id the monitor gave it. The policy is padded
+ * out with rules for other methods, to show that the number of rules doesn't affect the cost of
+ * finding those that apply.
+ * Build and run using the bench-jmh target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorBenchmark {
+	/**
+	 * The method whose calls are checked before they're made.
+	 */
+	private static final String WRITE = "java.io.OutputStream.write";
+	/**
+	 * The method whose calls are checked after they return.
+	 */
+	private static final String FLUSH = "java.io.OutputStream.flush";
+	/**
+	 * The method whose calls are checked against a guard comparing strings.
+	 */
+	private static final String CONNECT = "java.net.Socket.<init>";
+
+	/**
+	 * The number of rules for other methods added to the policy.
+	 */
+	@Param({"0", "64", "1024"})
+	public int padding;
+
+	/**
+	 * The monitor enforcing the policy.
+	 */
+	private Monitor monitor;
+	/**
+	 * The id of the write method.
+	 */
+	private int writeId;
+	/**
+	 * The arguments of a call to write.
+	 */
+	private Object[] writeArguments;
+	/**
+	 * The arguments of a call to flush.
+	 */
+	private Object[] flushArguments;
+	/**
+	 * The arguments of a call to connect.
+	 */
+	private Object[] connectArguments;
+	/**
+	 * The value returned by flush.
+	 */
+	private Object flushResult;
+
+	/**
+	 * Build the policy for the current parameters.
+	 */
+	@Setup
+	public void setup () {
+		Specification spec = new Specification();
+		spec.setSecuritystate(new StateType());
+		declare(spec, "int", "buffer_size");
+		declare(spec, "int", "flushed");
+		declare(spec, "string", "last");
+
+		// Writes are allowed until the buffer is full, when it's emptied
+		ReactionType write = reaction("buffer_size + len <= 1024", "buffer_size", "buffer_size + len");
+		spec.getRule().add(rule(new ObjectFactory().createRuleTypeBefore(when(new WhenType(), WRITE, "string", "b", "int", "off", "int", "len")),
+				update("buffer_size", "0"), write));
+
+		// Flushes are counted
+		AfterType returns = (AfterType)when(new AfterType(), FLUSH);
+		returns.setReturn(parameter("int", "count"));
+		spec.getRule().add(rule(new ObjectFactory().createRuleTypeAfter(returns), null, reaction("count >= 0", "flushed", "(flushed + 1) % 1000000")));
+
+		// Only the first host connected to may be connected to again
+		ReactionType same = reaction("host == last && port == 443");
+		ReactionType first = reaction("last == \"\"", "last", "host");
+		spec.getRule().add(rule(new ObjectFactory().createRuleTypeBefore(when(new WhenType(), CONNECT, "string", "host", "int", "port")), null, same, first));
+
+		// Rules for methods that are never called
+		for (int index = 0; index < padding; index++) {
+			spec.getRule().add(rule(new ObjectFactory().createRuleTypeBefore(when(new WhenType(), "example.Padding.method" + index, "int", "value")),
+					null, reaction("value > " + index)));
+		}
+
+		monitor = new Monitor(spec);
+		writeId = monitor.getMethodId(WRITE);
+		writeArguments = new Object[] {"data", Integer.valueOf(0), Integer.valueOf(64)};
+		flushArguments = new Object[0];
+		flushResult = Integer.valueOf(1);
+		connectArguments = new Object[] {"www.aniketos.eu", Integer.valueOf(443)};
+	}
+
+	/**
+	 * Add a variable declaration to the security state of a policy.
+	 * @param spec The policy.
+	 * @param type The type of the variable.
+	 * @param identifier The name of the variable.
+	 */
+	private static void declare (Specification spec, String type, String identifier) {
+		DeclType declaration = new DeclType();
+		declaration.setType(type);
+		declaration.setIdentifier(identifier);
+		spec.getSecuritystate().getDeclaration().add(declaration);
+	}
+
+	/**
+	 * Fill in the method and parameters of a rule.
+	 * @param when The element to fill in.
+	 * @param identifier The method the rule applies to.
+	 * @param parameters The type and name of each parameter, in turn.
+	 * @return The element.
+	 */
+	private static WhenType when (WhenType when, String identifier, String... parameters) {
+		when.setIdentifier(identifier);
+		for (int index = 0; index < parameters.length; index += 2) {
+			when.getParameter().add(parameter(parameters[index], parameters[index + 1]));
+		}
+		return when;
+	}
+
+	/**
+	 * Create a parameter.
+	 * @param type The type of the parameter.
+	 * @param identifier The name of the parameter.
+	 * @return The parameter.
+	 */
+	private static ParameterType parameter (String type, String identifier) {
+		ParameterType parameter = new ParameterType();
+		parameter.setType(type);
+		parameter.setIdentifier(identifier);
+		return parameter;
+	}
+
+	/**
+	 * Create a rule.
+	 * @param when Says when the rule applies.
+	 * @param otherwise The update applied if no reaction applies, or null to deny the call.
+	 * @param reactions The reactions.
+	 * @return The rule.
+	 */
+	private static RuleType rule (JAXBElement<? extends WhenType> when, UpdateType otherwise, ReactionType... reactions) {
+		RuleType rule = new RuleType();
+		rule.setBeforeOrAfterOrExceptional(when);
+		PerformType perform = new PerformType();
+		for (ReactionType reaction : reactions) {
+			perform.getReaction().add(reaction);
+		}
+		perform.setElse(otherwise);
+		rule.setPerform(perform);
+		return rule;
+	}
+
+	/**
+	 * Create a reaction.
+	 * @param guard The guard, as it would be typed into the editor.
+	 * @param assignments The name of each variable assigned to and the value assigned, in turn.
+	 * @return The reaction.
+	 */
+	private static ReactionType reaction (String guard, String... assignments) {
+		ReactionType reaction = new ReactionType();
+		reaction.setGuard(new ReactionType.Guard());
+		reaction.getGuard().setExpType(new Expression(guard).getValue());
+		reaction.setUpdate(update(assignments));
+		return reaction;
+	}
+
+	/**
+	 * Create an update block.
+	 * @param assignments The name of each variable assigned to and the value assigned, in turn.
+	 * @return The update block.
+	 */
+	private static UpdateType update (String... assignments) {
+		UpdateType update = new UpdateType();
+		for (int index = 0; index < assignments.length; index += 2) {
+			AssignType assign = new AssignType();
+			assign.setIdentifier(assignments[index]);
+			assign.setValue(new AssignType.Value());
+			assign.getValue().setExpType(new Expression(assignments[index + 1]).getValue());
+			update.getAssign().add(assign);
+		}
+		return update;
+	}
+
+	/**
+	 * Check a call before it's made, firing a rule that updates the state.
+	 * @return The decision.
+	 */
+	@Benchmark
+	public Decision before () {
+		return monitor.before(WRITE, writeArguments);
+	}
+
+	/**
+	 * Check a call before it's made, passing the method's id rather than its name.
+	 * @return The decision.
+	 */
+	@Benchmark
+	public Decision beforeById () {
+		return monitor.before(writeId, writeArguments);
+	}
+
+	/**
+	 * Check a call after it returns, firing a rule that uses the value returned.
+	 * @return The decision.
+	 */
+	@Benchmark
+	public Decision after () {
+		return monitor.after(FLUSH, flushArguments, flushResult);
+	}
+
+	/**
+	 * Check a call against a rule whose guard compares strings.
+	 * @return The decision.
+	 */
+	@Benchmark
+	public Decision strings () {
+		return monitor.before(CONNECT, connectArguments);
+	}
+
+	/**
+	 * Check a call that no rule applies to.
+	 * @return The decision.
+	 */
+	@Benchmark
+	public Decision unmatched () {
+		return monitor.before("java.lang.Object.toString", flushArguments);
+	}
+}
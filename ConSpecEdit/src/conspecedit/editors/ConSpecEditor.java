@@ -23,6 +23,8 @@ package conspecedit.editors;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.Iterator;
@@ -53,6 +55,7 @@ import org.eclipse.jface.action.IMenuListener;
 import org.eclipse.jface.action.IMenuManager;
 import org.eclipse.jface.action.MenuManager;
 import org.eclipse.jface.action.Separator;
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.CCombo;
@@ -69,6 +72,7 @@ import org.eclipse.swt.widgets.Combo;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Menu;
@@ -107,8 +111,15 @@ import eu.aniketos.Specification;
 import eu.aniketos.StateType;
 import eu.aniketos.UpdateType;
 import eu.aniketos.WhenType;
+import eu.aniketos.wp2.BoundedArithmetic;
 import eu.aniketos.wp2.Declaration;
 import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionPrinter;
+import eu.aniketos.wp2.ExpressionSimplifier;
+import eu.aniketos.wp2.GuardProfile;
+import eu.aniketos.wp2.GuardReorderer;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.TypeChecker;
 import eu.aniketos.wp2.When;
 
 /**
@@ -143,6 +154,11 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 	 * The spec represents the root of the unmarshalled ConSpec file. It is the start of the ConSpec policy as stored in memory.
 	 */
 	private Specification spec;
+	/**
+	 * Finds type errors in the expressions of the policy, keeping what it's worked out between checks,
+	 * so it must be told when a declaration or rule changes.
+	 */
+	private final TypeChecker typeChecker = new TypeChecker();
 
 	private CCombo scope;
 	private Spinner maxInt;
@@ -164,6 +180,8 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 	private TableViewer rulesViewer;
 	private Action deleteDeclaration;
 	private Action deleteRule;
+	private Action simplifyExpressions;
+	private Action reorderGuards;
 	private Boolean contextMenu;
 	private TableSelected contextSelection;
 	
@@ -393,6 +411,7 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 									}
 									// Set the value of the declaration type as chosen by the user
 									spec.getSecuritystate().getDeclaration().get(row).setType(value);
+									typeChecker.declarationsChanged(spec);
 									setDirty();
 								}
 							};
@@ -414,6 +433,7 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 									case 1:
 										// Update the identifier of the declaration
 										spec.getSecuritystate().getDeclaration().get(row).setIdentifier(value);
+										typeChecker.declarationsChanged(spec);
 										break;
 									case 2:
 										// Update the expression of the declaration
@@ -423,6 +443,14 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 									}
 									setDirty();
 								}
+
+								/* (non-Javadoc)
+								 * @see conspecedit.editors.DeclarationTextListener#isExpression(int)
+								 */
+								public boolean isExpression (int column) {
+									// Only the value column holds expressions
+									return (column == 2);
+								}
 							};
 							DeclarationTextListener.setupListener(text, textListener);
 						}
@@ -598,6 +626,7 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 						// Set the details of the new rule.
 						// The previous rule will eventually get cleaned up by the garbage collector.
 						spec.getRule().set(index, ruleShell.getRule());
+						typeChecker.ruleChanged(spec, ruleShell.getRule());
 						
 						// Update the details in the table to reflect the new values for the rule.
 						String [] info = new String[3];
@@ -742,7 +771,7 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 	}
 
 	/**
-	 * Add the 'Delete' option to the context menu for deleting declarations.
+	 * Add the 'Delete' and 'Simplify' options to the context menu for declarations.
 	 * @param manager The IMenuManager for adding the new menu entry.
 	 */
 	private void fillContextMenuDeclaration(IMenuManager manager) {
@@ -750,12 +779,13 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 		if (contextSelection.getFound()) {
 			manager.add(deleteDeclaration);
 		}
+		manager.add(simplifyExpressions);
 		// Other plug-ins can contribute there actions here
 		manager.add(new Separator(IWorkbenchActionConstants.MB_ADDITIONS));
 	}
 	
 	/**
-	 * Add the 'Delete' option to the context menu for deleting rules.
+	 * Add the 'Delete', 'Simplify' and 'Reorder' options to the context menu for rules.
 	 * @param manager The IMenuManager for adding the new menu entry.
 	 */
 	private void fillContextMenuRule(IMenuManager manager) {
@@ -763,6 +793,8 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 		if (contextSelection.getFound()) {
 			manager.add(deleteRule);
 		}
+		manager.add(simplifyExpressions);
+		manager.add(reorderGuards);
 		// Other plug-ins can contribute there actions here
 		manager.add(new Separator(IWorkbenchActionConstants.MB_ADDITIONS));
 	}
@@ -819,6 +851,7 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 					declarations.remove(contextSelection.getRow());
 					contextSelection.getItem().dispose();
 					spec.getSecuritystate().getDeclaration().remove(contextSelection.getRow());
+					typeChecker.declarationsChanged(spec);
 					setDirty();
 				}
 			}
@@ -845,11 +878,71 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 		deleteRule.setToolTipText("Delete the selected ConSpec rule.");
 		deleteRule.setImageDescriptor(PlatformUI.getWorkbench().getSharedImages().
 				getImageDescriptor(ISharedImages.IMG_TOOL_DELETE));
+
+		// Action of simplifying all of the expressions in the policy using the context menu
+		simplifyExpressions = new Action() {
+			public void run() {
+				int changed = ExpressionSimplifier.forSpecification(spec).simplify(spec);
+				if (changed > 0) {
+					// The declarations table shows the expressions, so it needs to be brought up to date
+					List<DeclType> decList = spec.getSecuritystate().getDeclaration();
+					for (int row = 0; (row < decList.size()) && (row < declarations.getItemCount()); row++) {
+						declarations.getItem(row).setText(2, new Declaration(decList.get(row)).getExpression().toString());
+					}
+					setDirty();
+				}
+			}
+		};
+		simplifyExpressions.setText("Simplify Expressions");
+		simplifyExpressions.setToolTipText("Fold constants and remove redundant operations from all of the expressions in the policy.");
+
+		// Action of reordering the guards of the policy using a saved GuardProfile. The monitors enforce
+		// policies with overflow treated as a violation, so operations that can overflow are treated as
+		// able to fail, and aren't moved past checks that would stop them being evaluated.
+		// The reordered policy is written out when the editor is next saved.
+		reorderGuards = new Action() {
+			public void run() {
+				FileDialog dialog = new FileDialog(getContainer().getShell(), SWT.OPEN);
+				dialog.setText("Open Guard Profile");
+				String path = dialog.open();
+				if (path != null) {
+					GuardProfile profile = new GuardProfile();
+					try {
+						FileReader in = new FileReader(path);
+						List<String> problems;
+						try {
+							problems = profile.load(in);
+						}
+						finally {
+							in.close();
+						}
+						int changed = new GuardReorderer(profile, BoundedArithmetic.forSpecification(spec, BoundedArithmetic.Overflow.VIOLATION), new InvocationResolver()).reorder(spec);
+						if (changed > 0) {
+							setDirty();
+						}
+						String message = "Reordered " + changed + " guards and lists of reactions.";
+						if (!problems.isEmpty()) {
+							// Lines that couldn't be read are left out, but the rest of the profile is still used
+							message += "\n\n" + problems.size() + " lines of the profile couldn't be read and were skipped, the first being:\n" + problems.get(0);
+						}
+						showMessage(message);
+					} catch (IOException e) {
+						showMessage("The profile couldn't be read: " + e.getMessage());
+					}
+				}
+			}
+		};
+		reorderGuards.setText("Reorder Guards Using Profile...");
+		reorderGuards.setToolTipText("Put the cheapest and most decisive checks of each guard first, using timings and outcomes recorded by evaluating its guards with a GuardProfile and saved as text.");
 	}
 	
-//	private void showMessage(String message) {
-//		MessageDialog.openInformation(getContainer().getShell().getShell(), "ConSpec Editor", message);
-//	}
+	/**
+	 * Show a message to the user.
+	 * @param message The message to show.
+	 */
+	private void showMessage(String message) {
+		MessageDialog.openInformation(getContainer().getShell(), "ConSpec Editor", message);
+	}
 	
 	/**
 	 * The <code>MultiPageEditorPart</code> implementation of this 
@@ -917,6 +1010,8 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 			InputStream getOutput = new ByteArrayInputStream(output.toByteArray());
 			// Set the new contents of the file.
 			file.setContents(getOutput, IFile.KEEP_HISTORY, monitor);
+			// Bring the problem markers up to date with the saved expressions.
+			ExpressionMarkers.update(file, spec, typeChecker);
 			// The file has been saved, so we set it to being clean.
 			setClean();
 		} catch (JAXBException e) {
@@ -1024,6 +1119,8 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 			}
 			// Ensure the minimal requirements for a file are fulfilled.
 			ensureMinimumConSpecData();
+			// Report any problems with the expressions in the Problems view.
+			ExpressionMarkers.update(file, spec, typeChecker);
 		}
 		else {
 			throw new PartInitException("Invalid Input: Must be IFileEditorInput");
@@ -1057,92 +1154,103 @@ public class ConSpecEditor extends MultiPageEditorPart implements IResourceChang
 	 * Generates the text-based preview of the ConSpec file 
 	 */
 	void generatePreview() {
-		String preview = "";
-		
-		// Generate the ConSpec header information.
-		preview += "SCOPE " + spec.getScope() + ";\n";
-		preview += "maxint = " + spec.getMaxint() + ";\n"; 
-		preview += "maxlen = " + spec.getMaxlen() + ";\n";
-		preview += "\n";
-		
-		// Generate the security state.
-		preview += "SECURITY STATE" + "\n";
-		Iterator<DeclType> declIter = spec.getSecuritystate().getDeclaration().iterator();
-		while (declIter.hasNext()) {
-			DeclType decl = declIter.next();
-			
-			Expression expression = new Expression(decl.getValue().getExpType());
-			preview += "\t" + decl.getType() + " " + decl.getIdentifier() + " = " + expression.toString() + ";\n";
-		}
- 
-		preview += "\n";
+		// Build the preview in a single buffer; the expressions are streamed straight into it.
+		StringBuilder preview = new StringBuilder();
 		
-		// Generate the security rules
-		Iterator<RuleType> ruleIter = spec.getRule().iterator();
-		while (ruleIter.hasNext()) {
-			RuleType rule = ruleIter.next();
-			When when = new When (rule);
+		try {
+			// Generate the ConSpec header information.
+			preview.append("SCOPE ").append(spec.getScope()).append(";\n");
+			preview.append("maxint = ").append(spec.getMaxint()).append(";\n"); 
+			preview.append("maxlen = ").append(spec.getMaxlen()).append(";\n");
+			preview.append("\n");
 			
-			preview += when.getType().toUpperCase() + " ";
-			if (when.getType() == "after") {
-				preview += when.getReturn().getType() + " " + when.getReturn().getIdentifier() + " = ";
+			// Generate the security state.
+			preview.append("SECURITY STATE").append("\n");
+			Iterator<DeclType> declIter = spec.getSecuritystate().getDeclaration().iterator();
+			while (declIter.hasNext()) {
+				DeclType decl = declIter.next();
+				
+				preview.append("\t").append(decl.getType()).append(" ").append(decl.getIdentifier()).append(" = ");
+				ExpressionPrinter.print(decl.getValue().getExpType(), preview);
+				preview.append(";\n");
 			}
+	 
+			preview.append("\n");
 			
-			preview += when.getIdentifier() + "(";
-			
-			Iterator<ParameterType> paramIter = when.getParameters().iterator();
-			while (paramIter.hasNext()) {
-				ParameterType param = paramIter.next();
-				preview += param.getType() + " " + param.getIdentifier();
-				if (paramIter.hasNext()) {
-					preview += ", ";
+			// Generate the security rules
+			Iterator<RuleType> ruleIter = spec.getRule().iterator();
+			while (ruleIter.hasNext()) {
+				RuleType rule = ruleIter.next();
+				When when = new When (rule);
+				
+				preview.append(when.getType().toUpperCase()).append(" ");
+				if (when.getType() == "after") {
+					preview.append(when.getReturn().getType()).append(" ").append(when.getReturn().getIdentifier()).append(" = ");
 				}
-			}
-			preview += ") PERFORM\n";
-			
-			Iterator<ReactionType> reactIter = rule.getPerform().getReaction().iterator();
-			while (reactIter.hasNext()) {
-				ReactionType react = reactIter.next();
-				Expression guard = new Expression(react.getGuard().getExpType());
-				preview += "\t" + guard + " -> {";
 				
-				Iterator<AssignType> assignIter = react.getUpdate().getAssign().iterator();
-				if (react.getUpdate().getAssign().size() <= 1) {
-					while (assignIter.hasNext()) {
-						AssignType assign = assignIter.next();
-						Expression value = new Expression(assign.getValue().getExpType());
-						preview += " " + assign.getIdentifier() + " = " + value + ";";
+				preview.append(when.getIdentifier()).append("(");
+				
+				Iterator<ParameterType> paramIter = when.getParameters().iterator();
+				while (paramIter.hasNext()) {
+					ParameterType param = paramIter.next();
+					preview.append(param.getType()).append(" ").append(param.getIdentifier());
+					if (paramIter.hasNext()) {
+						preview.append(", ");
 					}
-					preview += " }\n";
 				}
-				else {
-					preview += "\n";
-					while (assignIter.hasNext()) {
-						AssignType assign = assignIter.next();
-						Expression value = new Expression(assign.getValue().getExpType());
-						preview += "\t\t" + assign.getIdentifier() + " = " + value + ";\n";
+				preview.append(") PERFORM\n");
+				
+				Iterator<ReactionType> reactIter = rule.getPerform().getReaction().iterator();
+				while (reactIter.hasNext()) {
+					ReactionType react = reactIter.next();
+					preview.append("\t");
+					ExpressionPrinter.print(react.getGuard().getExpType(), preview);
+					preview.append(" -> {");
+					
+					Iterator<AssignType> assignIter = react.getUpdate().getAssign().iterator();
+					if (react.getUpdate().getAssign().size() <= 1) {
+						while (assignIter.hasNext()) {
+							AssignType assign = assignIter.next();
+							preview.append(" ").append(assign.getIdentifier()).append(" = ");
+							ExpressionPrinter.print(assign.getValue().getExpType(), preview);
+							preview.append(";");
+						}
+						preview.append(" }\n");
+					}
+					else {
+						preview.append("\n");
+						while (assignIter.hasNext()) {
+							AssignType assign = assignIter.next();
+							preview.append("\t\t").append(assign.getIdentifier()).append(" = ");
+							ExpressionPrinter.print(assign.getValue().getExpType(), preview);
+							preview.append(";\n");
+						}
+						preview.append("\t}\n");
 					}
-					preview += "\t}\n";
 				}
-			}
-			
-			if ((rule.getPerform().getElse().getAssign() != null) && (rule.getPerform().getElse().getAssign().size() > 0)) {
-				preview += "ELSE\n";
-				Iterator<AssignType> ruleElseIter = rule.getPerform().getElse().getAssign().iterator();
-				while (ruleElseIter.hasNext()) {
-					AssignType ruleElse = ruleElseIter.next();
-					Expression value = new Expression(ruleElse.getValue().getExpType());
-					preview += "\t" + ruleElse.getIdentifier() + " = " + value + ";\n";
+				
+				if ((rule.getPerform().getElse().getAssign() != null) && (rule.getPerform().getElse().getAssign().size() > 0)) {
+					preview.append("ELSE\n");
+					Iterator<AssignType> ruleElseIter = rule.getPerform().getElse().getAssign().iterator();
+					while (ruleElseIter.hasNext()) {
+						AssignType ruleElse = ruleElseIter.next();
+						preview.append("\t").append(ruleElse.getIdentifier()).append(" = ");
+						ExpressionPrinter.print(ruleElse.getValue().getExpType(), preview);
+						preview.append(";\n");
+					}
 				}
+				
+				preview.append("\n");
 			}
-			
-			preview += "\n";
+		} catch (IOException e) {
+			// A StringBuilder never throws, but the Appendable interface requires us to catch this
+			e.printStackTrace();
 		}
 		
 		Font font = new Font(text.getDisplay(), "Consolas", 10, java.awt.Font.PLAIN);
 		text.setFont(font);
 
-		text.setText(preview);
+		text.setText(preview.toString());
 	}
 	
 	/**
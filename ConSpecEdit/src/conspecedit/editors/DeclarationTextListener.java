@@ -28,6 +28,10 @@ import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionDiagnostic;
+import eu.aniketos.wp2.ExpressionParseResult;
+
 /**
  * Manage the listener for the text box widget used for editing
  * the text field of the declarations table in the ConSpec Editor.
@@ -106,6 +110,9 @@ public abstract class DeclarationTextListener implements Listener {
 	public static void setupListener(Text text, DeclarationTextListener textListener) {
 		text.addListener (SWT.FocusOut, textListener);
 		text.addListener (SWT.Traverse, textListener);
+		text.addListener (SWT.Modify, textListener);
+		// Show any problems with the initial value straight away
+		textListener.checkExpression();
 	}
 	
 	
@@ -135,10 +142,46 @@ public abstract class DeclarationTextListener implements Listener {
 				e.doit = false;
 				break;
 			}
+			break;
+		case SWT.Modify:
+			// The user typed something, so check whether it's still a valid expression.
+			checkExpression();
+			break;
 		}
 		
 	}
 
+	/**
+	 * Check the text being edited for syntax errors, if the column holds an expression.
+	 * Any problems are shown by colouring the text red and listing them in the tooltip.
+	 * This is quick enough to be called on every keystroke.
+	 */
+	private void checkExpression () {
+		if (isExpression(column)) {
+			ExpressionParseResult result = Expression.check(text.getText());
+			// Collect the problems together for the tooltip
+			StringBuilder problems = new StringBuilder();
+			for (ExpressionDiagnostic diagnostic : result.getDiagnostics()) {
+				if (problems.length() > 0) {
+					problems.append('\n');
+				}
+				problems.append(diagnostic.toString());
+			}
+			text.setForeground(result.hasErrors() ? text.getDisplay().getSystemColor(SWT.COLOR_RED) : null);
+			text.setToolTipText((problems.length() > 0) ? problems.toString() : null);
+		}
+	}
+
+	/**
+	 * Determine whether a column of the table holds expressions, so that they can be checked as the user types.
+	 * By default no columns hold expressions.
+	 * @param column The column of the table.
+	 * @return true if the column holds expressions, false otherwise.
+	 */
+	public boolean isExpression (int column) {
+		return false;
+	}
+
 	/**
 	 * Once the user is done, this method can be used to update the text in the original table based on
 	 * what the user entered in the text box widget.
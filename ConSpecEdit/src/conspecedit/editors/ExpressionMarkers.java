@@ -0,0 +1,180 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package conspecedit.editors;
+
+import javax.xml.bind.JAXBElement;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
+import conspecedit.Activator;
+
+import eu.aniketos.AssignType;
+import eu.aniketos.DeclType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.UpdateType;
+import eu.aniketos.WhenType;
+import eu.aniketos.wp2.ExprNode;
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionDiagnostic;
+import eu.aniketos.wp2.ExpressionParseResult;
+import eu.aniketos.wp2.ExpressionPrinter;
+import eu.aniketos.wp2.ExpressionSimplifier;
+import eu.aniketos.wp2.TypeChecker;
+
+/**
+ * Creates Eclipse problem markers for any syntax errors in the expressions of a ConSpec file,
+ * so that they appear in the Problems view, along with any type errors if a TypeChecker is given.
+ * Expressions are stored as object hierarchies, so each is checked in its human-readable form.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionMarkers {
+	/**
+	 * The type of marker used for problems with expressions, as declared in plugin.xml.
+	 */
+	public static final String MARKER_TYPE = "ConSpecEdit.expressionproblem";
+
+	/**
+	 * Private initialiser; the class only has static methods.
+	 */
+	private ExpressionMarkers () {
+	}
+
+	/**
+	 * Replace the expression problem markers of a file with markers for the problems currently in its policy.
+	 * @param file The file the policy was loaded from.
+	 * @param spec The policy to check.
+	 */
+	public static void update (IFile file, Specification spec) {
+		update(file, spec, null);
+	}
+
+	/**
+	 * Replace the expression problem markers of a file with markers for the problems currently in its
+	 * policy, including type errors.
+	 * @param file The file the policy was loaded from.
+	 * @param spec The policy to check.
+	 * @param checker Used to find type errors, which only rechecks the expressions affected by edits
+	 * it's been told about; or null to check syntax only.
+	 */
+	public static void update (IFile file, Specification spec, TypeChecker checker) {
+		try {
+			// Remove the markers from the last check
+			file.deleteMarkers(MARKER_TYPE, false, IResource.DEPTH_ZERO);
+
+			// Declarations
+			if (spec.getSecuritystate() != null) {
+				for (DeclType declaration : spec.getSecuritystate().getDeclaration()) {
+					if (declaration.getValue() != null) {
+						check(file, declaration.getValue().getExpType(), "Declaration '" + declaration.getIdentifier() + "'");
+					}
+				}
+			}
+
+			// Rules
+			int ruleNumber = 1;
+			for (RuleType rule : spec.getRule()) {
+				String location = "Rule " + ruleNumber;
+				JAXBElement<? extends WhenType> when = rule.getBeforeOrAfterOrExceptional();
+				if (when != null) {
+					location += " (" + when.getName().getLocalPart() + " " + when.getValue().getIdentifier() + ")";
+				}
+				if (rule.getPerform() != null) {
+					int reactionNumber = 1;
+					for (ReactionType reaction : rule.getPerform().getReaction()) {
+						if (reaction.getGuard() != null) {
+							check(file, reaction.getGuard().getExpType(), location + ", reaction " + reactionNumber + " guard");
+						}
+						check(file, reaction.getUpdate(), location + ", reaction " + reactionNumber);
+						reactionNumber++;
+					}
+					check(file, rule.getPerform().getElse(), location + ", else");
+				}
+				ruleNumber++;
+			}
+
+			// Types
+			if (checker != null) {
+				for (String problem : checker.check(spec)) {
+					IMarker marker = file.createMarker(MARKER_TYPE);
+					marker.setAttribute(IMarker.MESSAGE, problem);
+					marker.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
+				}
+			}
+		} catch (CoreException e) {
+			// The markers are only a convenience, so the editor carries on, but the failure is recorded in the error log
+			Activator.getDefault().getLog().log(new Status(IStatus.ERROR, Activator.PLUGIN_ID, "The expression problem markers for " + file.getFullPath() + " couldn't be updated", e));
+		}
+	}
+
+	/**
+	 * Check the expressions assigned by an update block.
+	 * @param file The file to add markers to.
+	 * @param update The update block, may be null.
+	 * @param location A description of where the update block is in the policy.
+	 * @throws CoreException if a marker couldn't be created.
+	 */
+	private static void check (IFile file, UpdateType update, String location) throws CoreException {
+		if (update != null) {
+			for (AssignType assign : update.getAssign()) {
+				if (assign.getValue() != null) {
+					check(file, assign.getValue().getExpType(), location + " update of '" + assign.getIdentifier() + "'");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check a single expression and add a marker for each problem found.
+	 * @param file The file to add markers to.
+	 * @param value The root of the expression hierarchy, may be null.
+	 * @param location A description of where the expression is in the policy.
+	 * @throws CoreException if a marker couldn't be created.
+	 */
+	private static void check (IFile file, JAXBElement<?> value, String location) throws CoreException {
+		// Method invocations can't yet be entered as text, so only expressions without them are checked
+		boolean checkable = false;
+		try {
+			checkable = (value != null) && ExpressionSimplifier.isPure(ExprNode.fromElement(value));
+		}
+		catch (IllegalArgumentException e) {
+			// The hierarchy contains elements that aren't expressions, which the editor can't show anyway
+		}
+		if (checkable) {
+			String text = ExpressionPrinter.toString(value);
+			ExpressionParseResult result = Expression.check(text);
+			for (ExpressionDiagnostic diagnostic : result.getDiagnostics()) {
+				IMarker marker = file.createMarker(MARKER_TYPE);
+				marker.setAttribute(IMarker.MESSAGE, location + ": " + diagnostic.getMessage() + " in '" + text.trim() + "'");
+				marker.setAttribute(IMarker.SEVERITY, diagnostic.isError() ? IMarker.SEVERITY_ERROR : IMarker.SEVERITY_WARNING);
+				marker.setAttribute(IMarker.LOCATION, location + ", character " + (diagnostic.getOffset() + 1));
+			}
+		}
+	}
+}
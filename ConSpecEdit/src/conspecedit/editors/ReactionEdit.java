@@ -61,6 +61,7 @@ import eu.aniketos.AssignType.Value;
 import eu.aniketos.ReactionType;
 import eu.aniketos.UpdateType;
 import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionParseResult;
 
 /**
  * Create a dialogue box for editing ConSpec reactions.
@@ -174,6 +175,19 @@ public class ReactionEdit extends TitleAreaDialog {
 		return new Point(412, 400);
 	}
 	
+	/**
+	 * Check the guard expression for syntax errors, showing the first one found as the dialogue's error message.
+	 * The error message is cleared if there are no errors.
+	 */
+	private void checkGuard () {
+		ExpressionParseResult result = Expression.check(guard.getText());
+		String message = null;
+		if (result.hasErrors()) {
+			message = "Guard expression: " + result.getDiagnostics().get(0).toString();
+		}
+		setErrorMessage(message);
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipse.jface.window.Window#setShellStyle(int)
 	 */
@@ -220,8 +234,11 @@ public class ReactionEdit extends TitleAreaDialog {
 				Expression expression = new Expression(guard.getText());
 				// Store the new guard expression in the ConSpec file.
 				reaction.getGuard().setExpType(expression.getValue());
+				// Let the user know about the first syntax error, if there is one.
+				checkGuard();
 			}
 		});
+		checkGuard();
 		
 		// Label for the update table.
 		Label labelUpdate = new Label(composite, SWT.RIGHT);
@@ -314,6 +331,14 @@ public class ReactionEdit extends TitleAreaDialog {
 									break;
 								}
 							}
+
+							/* (non-Javadoc)
+							 * @see conspecedit.editors.DeclarationTextListener#isExpression(int)
+							 */
+							public boolean isExpression (int column) {
+								// Only the expression column holds expressions
+								return (column == 1);
+							}
 						};
 						// Apply the listener
 						DeclarationTextListener.setupListener(text, textListener);
@@ -723,6 +723,14 @@ public class RuleEdit extends TitleAreaDialog {
 									break;
 								}
 							}
+
+							/* (non-Javadoc)
+							 * @see conspecedit.editors.DeclarationTextListener#isExpression(int)
+							 */
+							public boolean isExpression (int column) {
+								// Only the expression column holds expressions
+								return (column == 1);
+							}
 						};
 						// Apply the listener
 						DeclarationTextListener.setupListener(text, textListener);
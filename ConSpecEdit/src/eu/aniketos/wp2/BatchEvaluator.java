@@ -0,0 +1,710 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a single compiled guard over the session states held in a StateBlock, such as when an audit
+ * asks which of the stored sessions satisfy a condition, producing a bitmap with a bit set for each
+ * session whose guard holds.
+ * Rather than running the guard once per session, each instruction is applied to a whole chunk of
+ * rows at a time, using simple loops over primitive arrays that the JIT can turn into vector
+ * instructions. Both sides of <code>&&</code> and <code>||</code> are worked out for every row and
+ * then combined. If anything goes wrong in a chunk (a type error, a modulus by zero, a result
+ * outside the policy's bounds, or an unbound identifier, which might all be avoided by short
+ * circuiting) the chunk is run again a row at a time by an ExpressionMachine, so the results and
+ * errors are always the same as running the guard against each session in turn.
+ * Large blocks are split between the threads of a ForkJoinPool. Guards that invoke methods are
+ * always run a row at a time, on the calling thread, since the InvocationResolver isn't thread safe.
+ * An evaluator can be shared between threads, as long as its settings aren't changed while it's in use.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class BatchEvaluator {
+	/**
+	 * The number of rows each instruction is applied to at once; a multiple of 64, so that each chunk
+	 * fills whole words of the bitmap.
+	 */
+	static final int CHUNK = 1024;
+	/**
+	 * The default number of rows below which a block isn't split any further between threads.
+	 */
+	public static final int DEFAULT_SPLIT = 16 * CHUNK;
+
+	/**
+	 * The pool used by evaluators that aren't given one.
+	 */
+	private static ForkJoinPool sharedPool = null;
+
+	/**
+	 * The pool that large blocks are split between.
+	 */
+	private final ForkJoinPool pool;
+	/**
+	 * The number of rows below which a block isn't split any further.
+	 */
+	private final int split;
+	/**
+	 * Carries out integer and string operations.
+	 */
+	private BoundedArithmetic arithmetic = BoundedArithmetic.UNCHECKED;
+	/**
+	 * Resolves the methods invoked by guards, or null to use one with the default allowlist.
+	 */
+	private InvocationResolver resolver = null;
+
+	/**
+	 * Create an evaluator that splits large blocks between the threads of a pool shared by all such
+	 * evaluators, with a thread for each processor.
+	 */
+	public BatchEvaluator () {
+		this(sharedPool(), DEFAULT_SPLIT);
+	}
+
+	/**
+	 * Create an evaluator.
+	 * @param pool The pool that large blocks are split between.
+	 * @param split The number of rows below which a block isn't split any further; blocks are never
+	 * split into pieces smaller than a chunk.
+	 */
+	public BatchEvaluator (ForkJoinPool pool, int split) {
+		this.pool = pool;
+		this.split = Math.max(split, CHUNK);
+	}
+
+	/**
+	 * Return the pool shared by evaluators that aren't given one, creating it if necessary.
+	 * @return The shared pool.
+	 */
+	private static synchronized ForkJoinPool sharedPool () {
+		if (sharedPool == null) {
+			sharedPool = new ForkJoinPool();
+		}
+		return sharedPool;
+	}
+
+	/**
+	 * Set the arithmetic used for integer and string operations.
+	 * @param arithmetic The arithmetic, which applies the policy's bounds to the results of operations.
+	 */
+	public void setArithmetic (BoundedArithmetic arithmetic) {
+		if (arithmetic == null) {
+			throw new IllegalArgumentException("The arithmetic mustn't be null");
+		}
+		this.arithmetic = arithmetic;
+	}
+
+	/**
+	 * Set the resolver used to find invoked methods, in place of one with the default allowlist.
+	 * @param resolver The resolver.
+	 */
+	public void setResolver (InvocationResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Run a guard over every row of a block.
+	 * @param guard The compiled guard; if it was compiled against a layout, it must be the block's.
+	 * @param block The session states.
+	 * @param parameters The parameters the guard can refer to, the same for every row, or null if there are none.
+	 * @return A bitmap with the bit for each row set if the guard holds for that row.
+	 */
+	public BitSet evaluateGuard (CompiledExpression guard, StateBlock block, Bindings parameters) {
+		if ((guard.layout != null) && (guard.layout != block.getLayout())) {
+			throw new EvaluationException("The expression was compiled for a different security state layout");
+		}
+		int size = block.getSize();
+		long[] bitmap = new long[(size + 63) >>> 6];
+		Job job = new Job(guard, block, parameters, 0, size, bitmap);
+		if (job.columnar && (size > split)) {
+			pool.invoke(job);
+		}
+		else {
+			job.compute();
+		}
+		return BitSet.valueOf(bitmap);
+	}
+
+	/**
+	 * Check whether a compiled expression can be run a chunk at a time.
+	 * @param program The compiled expression.
+	 * @return true unless the expression invokes a method.
+	 */
+	private static boolean isColumnar (CompiledExpression program) {
+		boolean result = true;
+		for (int pc = 0; result && (pc < program.code.length); pc += CompiledExpression.hasOperand(program.code[pc]) ? 2 : 1) {
+			result = (program.code[pc] != CompiledExpression.INVOKE);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs a guard over a range of rows, splitting the range between threads if it's large.
+	 * Ranges start on a chunk boundary, so that different jobs write to different words of the bitmap.
+	 */
+	private final class Job extends RecursiveAction {
+		/**
+		 * Serialisation version.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The compiled guard.
+		 */
+		private final CompiledExpression guard;
+		/**
+		 * The session states.
+		 */
+		private final StateBlock block;
+		/**
+		 * The parameters the guard can refer to, or null if there are none.
+		 */
+		private final Bindings parameters;
+		/**
+		 * The first row of the range.
+		 */
+		private final int from;
+		/**
+		 * The row after the last row of the range.
+		 */
+		private final int to;
+		/**
+		 * The results, a bit for each row.
+		 */
+		private final long[] bitmap;
+		/**
+		 * True if the guard can be run a chunk at a time.
+		 */
+		private final boolean columnar;
+
+		/**
+		 * Create a job.
+		 * @param guard The compiled guard.
+		 * @param block The session states.
+		 * @param parameters The parameters the guard can refer to, or null if there are none.
+		 * @param from The first row of the range, a multiple of the chunk size.
+		 * @param to The row after the last row of the range.
+		 * @param bitmap The results, a bit for each row.
+		 */
+		Job (CompiledExpression guard, StateBlock block, Bindings parameters, int from, int to, long[] bitmap) {
+			this.guard = guard;
+			this.block = block;
+			this.parameters = parameters;
+			this.from = from;
+			this.to = to;
+			this.bitmap = bitmap;
+			this.columnar = isColumnar(guard);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute () {
+			if (columnar && (to - from > split)) {
+				// Split on a chunk boundary
+				int middle = from + (((to - from) / 2 + CHUNK - 1) / CHUNK) * CHUNK;
+				invokeAll(new Job(guard, block, parameters, from, middle, bitmap), new Job(guard, block, parameters, middle, to, bitmap));
+			}
+			else {
+				Chunks chunks = new Chunks(guard, block, parameters);
+				for (int start = from; start < to; start += CHUNK) {
+					int count = Math.min(CHUNK, to - start);
+					if (!columnar || !chunks.run(start, count, bitmap)) {
+						chunks.runRows(start, count, bitmap);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a guard over chunks of rows, one instruction at a time, holding a column of values for each
+	 * position on the stack. Each thread needs its own.
+	 */
+	private final class Chunks {
+		/**
+		 * The compiled guard.
+		 */
+		private final CompiledExpression guard;
+		/**
+		 * The session states.
+		 */
+		private final StateBlock block;
+		/**
+		 * The parameters the guard can refer to, or null if there are none.
+		 */
+		private final Bindings parameters;
+		/**
+		 * The types of the columns on the stack.
+		 */
+		private final ValueType[] types;
+		/**
+		 * The integer and boolean columns on the stack; booleans are held as one or zero.
+		 */
+		private final long[][] values;
+		/**
+		 * The string columns on the stack.
+		 */
+		private final String[][] strings;
+		/**
+		 * Runs rows one at a time when a chunk can't be run as a whole; created when first needed.
+		 */
+		private ExpressionMachine machine = null;
+		/**
+		 * Holds the row being run by the machine.
+		 */
+		private SlotState row = null;
+
+		/**
+		 * Set up the stack for a guard.
+		 * @param guard The compiled guard.
+		 * @param block The session states.
+		 * @param parameters The parameters the guard can refer to, or null if there are none.
+		 */
+		Chunks (CompiledExpression guard, StateBlock block, Bindings parameters) {
+			this.guard = guard;
+			this.block = block;
+			this.parameters = parameters;
+			// The left hand side of each && and || stays on the stack while the right hand side is worked out
+			int depth = guard.maxStack;
+			for (int pc = 0; pc < guard.code.length; pc += CompiledExpression.hasOperand(guard.code[pc]) ? 2 : 1) {
+				if ((guard.code[pc] == CompiledExpression.AND) || (guard.code[pc] == CompiledExpression.OR)) {
+					depth++;
+				}
+			}
+			types = new ValueType[depth];
+			values = new long[depth][CHUNK];
+			strings = new String[depth][];
+		}
+
+		/**
+		 * Run the guard over a chunk, an instruction at a time.
+		 * @param start The first row of the chunk, a multiple of 64.
+		 * @param count The number of rows in the chunk.
+		 * @param bitmap The results, a bit for each row.
+		 * @return true if the results were written, or false if the chunk needs to be run a row at a time.
+		 */
+		boolean run (int start, int count, long[] bitmap) {
+			boolean result;
+			try {
+				result = execute(start, count);
+			}
+			catch (EvaluationException e) {
+				// The machine will find out whether the problem happens when short circuiting
+				result = false;
+			}
+			if (result) {
+				// Pack the results into the bitmap, 64 rows to a word
+				long[] column = values[0];
+				for (int base = 0; base < count; base += 64) {
+					int bits = Math.min(64, count - base);
+					long word = 0;
+					for (int bit = 0; bit < bits; bit++) {
+						word |= (column[base + bit] & 1) << bit;
+					}
+					bitmap[(start + base) >>> 6] = word;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Run the guard over a chunk using an ExpressionMachine, one row at a time.
+		 * @param start The first row of the chunk, a multiple of 64.
+		 * @param count The number of rows in the chunk.
+		 * @param bitmap The results, a bit for each row.
+		 */
+		void runRows (int start, int count, long[] bitmap) {
+			if (machine == null) {
+				machine = new ExpressionMachine();
+				machine.setArithmetic(arithmetic);
+				if (resolver != null) {
+					machine.setResolver(resolver);
+				}
+				row = new SlotState(block.getLayout());
+			}
+			for (int index = start; index < start + count; index++) {
+				block.copy(index, row);
+				boolean holds;
+				try {
+					holds = machine.evaluateGuard(guard, row, parameters);
+				}
+				catch (EvaluationException e) {
+					throw new EvaluationException("Row " + index + ": " + e.getMessage(), e);
+				}
+				if (holds) {
+					bitmap[index >>> 6] |= 1L << index;
+				}
+				else {
+					bitmap[index >>> 6] &= ~(1L << index);
+				}
+			}
+		}
+
+		/**
+		 * Apply each instruction of the guard to a whole chunk.
+		 * @param start The first row of the chunk.
+		 * @param count The number of rows in the chunk.
+		 * @return true if the guard gave a boolean for every row, or false if there was a type error.
+		 */
+		private boolean execute (int start, int count) {
+			final int[] code = guard.code;
+			boolean result = true;
+			int pc = 0;
+			// The position of the top of the stack
+			int top = -1;
+
+			while (result && (pc < code.length)) {
+				int opcode = code[pc];
+				switch (opcode) {
+				case CompiledExpression.PUSH_INT:
+					top++;
+					types[top] = ValueType.INT;
+					Arrays.fill(values[top], 0, count, guard.integers[code[pc + 1]]);
+					break;
+				case CompiledExpression.PUSH_BOOL:
+					top++;
+					types[top] = ValueType.BOOL;
+					Arrays.fill(values[top], 0, count, code[pc + 1]);
+					break;
+				case CompiledExpression.PUSH_STRING:
+					top++;
+					fillStrings(top, count, guard.strings[code[pc + 1]]);
+					break;
+				case CompiledExpression.LOAD:
+					top++;
+					load(guard.names[code[pc + 1]], top, start, count);
+					break;
+				case CompiledExpression.LOAD_INT:
+					top++;
+					types[top] = ValueType.INT;
+					System.arraycopy(block.ints[code[pc + 1]], start, values[top], 0, count);
+					break;
+				case CompiledExpression.LOAD_BOOL:
+					top++;
+					loadBools(block.bools[code[pc + 1]], top, start, count);
+					break;
+				case CompiledExpression.LOAD_STRING:
+					top++;
+					loadStrings(block.strings[code[pc + 1]], top, start, count);
+					break;
+				case CompiledExpression.SUM:
+				case CompiledExpression.DIF:
+				case CompiledExpression.MUL:
+				case CompiledExpression.MOD:
+					top--;
+					result = (types[top] == ValueType.INT) && (types[top + 1] == ValueType.INT);
+					if (result) {
+						arithmetic(opcode, values[top], values[top + 1], count);
+					}
+					break;
+				case CompiledExpression.MORETHAN:
+				case CompiledExpression.LESSTHAN:
+				case CompiledExpression.MOREQUALTHAN:
+				case CompiledExpression.LESSEQUALTHAN:
+					top--;
+					result = (types[top] == ValueType.INT) && (types[top + 1] == ValueType.INT);
+					if (result) {
+						compare(opcode, values[top], values[top + 1], count);
+						types[top] = ValueType.BOOL;
+					}
+					break;
+				case CompiledExpression.EQUAL:
+				case CompiledExpression.NOTEQUAL:
+				case CompiledExpression.EQUAL_STRING:
+				case CompiledExpression.NOTEQUAL_STRING:
+					top--;
+					result = (types[top] == types[top + 1]) && ((types[top] == ValueType.STRING) || (opcode <= CompiledExpression.NOTEQUAL));
+					if (result) {
+						equal((opcode == CompiledExpression.EQUAL) || (opcode == CompiledExpression.EQUAL_STRING), top, count);
+						types[top] = ValueType.BOOL;
+					}
+					break;
+				case CompiledExpression.APPEND:
+					top--;
+					result = (types[top] == ValueType.STRING) && (types[top + 1] == ValueType.STRING);
+					if (result) {
+						String[] left = strings[top];
+						String[] right = strings[top + 1];
+						for (int index = 0; index < count; index++) {
+							left[index] = arithmetic.append(left[index], right[index]);
+						}
+					}
+					break;
+				case CompiledExpression.NOT:
+					result = (types[top] == ValueType.BOOL);
+					if (result) {
+						long[] column = values[top];
+						for (int index = 0; index < count; index++) {
+							column[index] ^= 1;
+						}
+					}
+					break;
+				case CompiledExpression.AND:
+				case CompiledExpression.OR:
+					// Keep the left hand side and work out the right hand side for every row
+					result = (types[top] == ValueType.BOOL);
+					break;
+				case CompiledExpression.CHECK_BOOL:
+					top--;
+					result = (types[top + 1] == ValueType.BOOL);
+					if (result) {
+						logical(code[pc + 1] == CompiledExpression.AND, values[top], values[top + 1], count);
+					}
+					break;
+				default:
+					// Invocations are only run a row at a time
+					result = false;
+					break;
+				}
+				pc += CompiledExpression.hasOperand(opcode) ? 2 : 1;
+			}
+			return result && (types[0] == ValueType.BOOL);
+		}
+
+		/**
+		 * Push a column holding the value of a variable found by name: a parameter, which is the same
+		 * for every row, or else a variable in the block.
+		 * @param name The name of the variable.
+		 * @param top The position on the stack.
+		 * @param start The first row of the chunk.
+		 * @param count The number of rows in the chunk.
+		 */
+		private void load (String name, int top, int start, int count) {
+			Bindings.Variable variable = ExpressionEvaluator.find(name, null, parameters);
+			if (variable != null) {
+				types[top] = variable.getType();
+				switch (variable.getType()) {
+				case INT:
+					Arrays.fill(values[top], 0, count, variable.getInt());
+					break;
+				case BOOL:
+					Arrays.fill(values[top], 0, count, variable.getBool() ? 1 : 0);
+					break;
+				default:
+					fillStrings(top, count, variable.getString());
+					break;
+				}
+			}
+			else {
+				int slot = block.getLayout().getSlot(name);
+				if (slot < 0) {
+					throw ExpressionEvaluator.unbound(name);
+				}
+				int index = StateLayout.indexOf(slot);
+				switch (StateLayout.typeOf(slot)) {
+				case INT:
+					types[top] = ValueType.INT;
+					System.arraycopy(block.ints[index], start, values[top], 0, count);
+					break;
+				case BOOL:
+					loadBools(block.bools[index], top, start, count);
+					break;
+				default:
+					loadStrings(block.strings[index], top, start, count);
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Push a column from a boolean variable in the block, as ones and zeros.
+		 * @param source The column of the variable.
+		 * @param top The position on the stack.
+		 * @param start The first row of the chunk.
+		 * @param count The number of rows in the chunk.
+		 */
+		private void loadBools (boolean[] source, int top, int start, int count) {
+			types[top] = ValueType.BOOL;
+			long[] column = values[top];
+			for (int index = 0; index < count; index++) {
+				column[index] = source[start + index] ? 1 : 0;
+			}
+		}
+
+		/**
+		 * Push a column from a string variable in the block.
+		 * @param source The column of the variable.
+		 * @param top The position on the stack.
+		 * @param start The first row of the chunk.
+		 * @param count The number of rows in the chunk.
+		 */
+		private void loadStrings (String[] source, int top, int start, int count) {
+			types[top] = ValueType.STRING;
+			if (strings[top] == null) {
+				strings[top] = new String[CHUNK];
+			}
+			System.arraycopy(source, start, strings[top], 0, count);
+		}
+
+		/**
+		 * Push a column holding the same string in every row.
+		 * @param top The position on the stack.
+		 * @param count The number of rows in the chunk.
+		 * @param value The string.
+		 */
+		private void fillStrings (int top, int count, String value) {
+			types[top] = ValueType.STRING;
+			if (strings[top] == null) {
+				strings[top] = new String[CHUNK];
+			}
+			Arrays.fill(strings[top], 0, count, value);
+		}
+
+		/**
+		 * Apply an integer operation to two columns, leaving the result in the left hand column.
+		 * Unchecked arithmetic uses plain Java operators, so that the loops can be vectorised.
+		 * @param opcode The operation.
+		 * @param left The left hand column.
+		 * @param right The right hand column.
+		 * @param count The number of rows in the chunk.
+		 */
+		private void arithmetic (int opcode, long[] left, long[] right, int count) {
+			final BoundedArithmetic arithmetic = BatchEvaluator.this.arithmetic;
+			boolean unchecked = (arithmetic == BoundedArithmetic.UNCHECKED);
+			switch (opcode) {
+			case CompiledExpression.SUM:
+				if (unchecked) {
+					for (int index = 0; index < count; index++) {
+						left[index] += right[index];
+					}
+				}
+				else {
+					for (int index = 0; index < count; index++) {
+						left[index] = arithmetic.sum(left[index], right[index]);
+					}
+				}
+				break;
+			case CompiledExpression.DIF:
+				if (unchecked) {
+					for (int index = 0; index < count; index++) {
+						left[index] -= right[index];
+					}
+				}
+				else {
+					for (int index = 0; index < count; index++) {
+						left[index] = arithmetic.dif(left[index], right[index]);
+					}
+				}
+				break;
+			case CompiledExpression.MUL:
+				if (unchecked) {
+					for (int index = 0; index < count; index++) {
+						left[index] *= right[index];
+					}
+				}
+				else {
+					for (int index = 0; index < count; index++) {
+						left[index] = arithmetic.mul(left[index], right[index]);
+					}
+				}
+				break;
+			default:
+				// Division can't be vectorised, and needs checking for zero in any case
+				for (int index = 0; index < count; index++) {
+					left[index] = arithmetic.mod(left[index], right[index]);
+				}
+				break;
+			}
+		}
+
+		/**
+		 * Compare two integer columns, leaving one or zero in the left hand column.
+		 * @param opcode The comparison.
+		 * @param left The left hand column.
+		 * @param right The right hand column.
+		 * @param count The number of rows in the chunk.
+		 */
+		private void compare (int opcode, long[] left, long[] right, int count) {
+			switch (opcode) {
+			case CompiledExpression.MORETHAN:
+				for (int index = 0; index < count; index++) {
+					left[index] = (left[index] > right[index]) ? 1 : 0;
+				}
+				break;
+			case CompiledExpression.LESSTHAN:
+				for (int index = 0; index < count; index++) {
+					left[index] = (left[index] < right[index]) ? 1 : 0;
+				}
+				break;
+			case CompiledExpression.MOREQUALTHAN:
+				for (int index = 0; index < count; index++) {
+					left[index] = (left[index] >= right[index]) ? 1 : 0;
+				}
+				break;
+			default:
+				for (int index = 0; index < count; index++) {
+					left[index] = (left[index] <= right[index]) ? 1 : 0;
+				}
+				break;
+			}
+		}
+
+		/**
+		 * Compare the top two columns on the stack for equality, leaving one or zero in the lower column.
+		 * @param equal true to test for equality, false for inequality.
+		 * @param left The position of the lower column, which has the same type as the one above it.
+		 * @param count The number of rows in the chunk.
+		 */
+		private void equal (boolean equal, int left, int count) {
+			long[] result = values[left];
+			long same = equal ? 1 : 0;
+			if (types[left] == ValueType.STRING) {
+				String[] first = strings[left];
+				String[] second = strings[left + 1];
+				for (int index = 0; index < count; index++) {
+					result[index] = first[index].equals(second[index]) ? same : (same ^ 1);
+				}
+			}
+			else {
+				long[] right = values[left + 1];
+				for (int index = 0; index < count; index++) {
+					result[index] = (result[index] == right[index]) ? same : (same ^ 1);
+				}
+			}
+		}
+
+		/**
+		 * Combine two boolean columns, leaving the result in the left hand column.
+		 * @param and true for <code>&&</code>, false for <code>||</code>.
+		 * @param left The left hand column.
+		 * @param right The right hand column.
+		 * @param count The number of rows in the chunk.
+		 */
+		private void logical (boolean and, long[] left, long[] right, int count) {
+			if (and) {
+				for (int index = 0; index < count; index++) {
+					left[index] &= right[index];
+				}
+			}
+			else {
+				for (int index = 0; index < count; index++) {
+					left[index] |= right[index];
+				}
+			}
+		}
+	}
+}
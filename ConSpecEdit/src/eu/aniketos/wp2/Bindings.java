@@ -0,0 +1,290 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import eu.aniketos.ParameterType;
+
+/**
+ * A set of named, typed variables that expressions can be evaluated against: either the
+ * security state of a policy, or the parameters of the method call that triggered a rule.
+ * Each variable is held in its own mutable slot, so once a variable has been defined its value
+ * can be changed without allocating anything. Integers and booleans are held as primitive values.
+ * Bindings aren't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class Bindings {
+	/**
+	 * The variables, keyed by name.
+	 */
+	private final HashMap<String, Variable> variables = new HashMap<String, Variable>();
+	/**
+	 * The number of variables created by define(), so that code holding on to the variables it found
+	 * can tell when one of them may have been replaced.
+	 */
+	private int definitions = 0;
+
+	/**
+	 * Create a set of parameter bindings for a rule, with every parameter set to the default value for its type.
+	 * @param parameters The parameters of the method the rule applies to.
+	 * @return The new bindings.
+	 */
+	public static Bindings forParameters (List<ParameterType> parameters) {
+		Bindings result = new Bindings();
+		for (ParameterType parameter : parameters) {
+			ValueType type = ValueType.forName(parameter.getType());
+			if (type == null) {
+				throw new EvaluationException("Parameter '" + parameter.getIdentifier() + "' has unknown type '" + parameter.getType() + "'");
+			}
+			result.define(parameter.getIdentifier(), type);
+		}
+		return result;
+	}
+
+	/**
+	 * Define a variable, set to the default value for its type (zero, false or the empty string).
+	 * If a variable with the same name and type already exists it's left as it is; if it has a different type it's replaced.
+	 * @param name The name of the variable.
+	 * @param type The type of the variable.
+	 * @return The variable.
+	 */
+	public Variable define (String name, ValueType type) {
+		Variable result = variables.get(name);
+		if ((result == null) || (result.type != type)) {
+			// Interned names can be matched against the interned identifiers of expressions without comparing characters
+			result = new Variable(name.intern(), type);
+			variables.put(result.name, result);
+			definitions++;
+		}
+		return result;
+	}
+
+	/**
+	 * Find a variable.
+	 * @param name The name of the variable.
+	 * @return The variable, or null if there's no variable with that name.
+	 */
+	public Variable lookup (String name) {
+		return variables.get(name);
+	}
+
+	/**
+	 * Set the value of an integer variable, defining it if necessary.
+	 * @param name The name of the variable.
+	 * @param value The new value.
+	 */
+	public void setInt (String name, long value) {
+		define(name, ValueType.INT).setInt(value);
+	}
+
+	/**
+	 * Set the value of a boolean variable, defining it if necessary.
+	 * @param name The name of the variable.
+	 * @param value The new value.
+	 */
+	public void setBool (String name, boolean value) {
+		define(name, ValueType.BOOL).setBool(value);
+	}
+
+	/**
+	 * Set the value of a string variable, defining it if necessary.
+	 * @param name The name of the variable.
+	 * @param value The new value.
+	 */
+	public void setString (String name, String value) {
+		define(name, ValueType.STRING).setString(value);
+	}
+
+	/**
+	 * Return the number of variables that have been created by defining them. A variable found by
+	 * lookup() is still the one that would be found as long as this hasn't changed.
+	 * @return The number of definitions.
+	 */
+	int getDefinitions () {
+		return definitions;
+	}
+
+	/**
+	 * Return all of the variables.
+	 * @return An unmodifiable view of the variables, in no particular order.
+	 */
+	public Collection<Variable> getVariables () {
+		return Collections.unmodifiableCollection(variables.values());
+	}
+
+	/**
+	 * Make an independent copy of the bindings, for example to give each session its own security state.
+	 * @return The copy.
+	 */
+	public Bindings copy () {
+		Bindings result = new Bindings();
+		for (Variable variable : variables.values()) {
+			Variable copy = new Variable(variable.name, variable.type);
+			copy.value = variable.value;
+			copy.string = variable.string;
+			result.variables.put(copy.name, copy);
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString () {
+		return variables.values().toString();
+	}
+
+	/**
+	 * A single named, typed variable.
+	 */
+	public static final class Variable {
+		private final String name;
+		private final ValueType type;
+		/**
+		 * The value of an integer, or one or zero for a boolean.
+		 */
+		private long value;
+		/**
+		 * The value of a string.
+		 */
+		private String string;
+
+		/**
+		 * Create a variable set to the default value for its type.
+		 * @param name The interned name of the variable.
+		 * @param type The type of the variable.
+		 */
+		private Variable (String name, ValueType type) {
+			this.name = name;
+			this.type = type;
+			this.value = 0;
+			this.string = (type == ValueType.STRING) ? "" : null;
+		}
+
+		/**
+		 * Return the name of the variable.
+		 * @return The variable name.
+		 */
+		public String getName () {
+			return name;
+		}
+
+		/**
+		 * Return the type of the variable.
+		 * @return The variable type.
+		 */
+		public ValueType getType () {
+			return type;
+		}
+
+		/**
+		 * Return the value of an integer variable.
+		 * @return The value.
+		 */
+		public long getInt () {
+			check(ValueType.INT);
+			return value;
+		}
+
+		/**
+		 * Return the value of a boolean variable.
+		 * @return The value.
+		 */
+		public boolean getBool () {
+			check(ValueType.BOOL);
+			return (value != 0);
+		}
+
+		/**
+		 * Return the value of a string variable.
+		 * @return The value.
+		 */
+		public String getString () {
+			check(ValueType.STRING);
+			return string;
+		}
+
+		/**
+		 * Set the value of an integer variable.
+		 * @param value The new value.
+		 */
+		public void setInt (long value) {
+			check(ValueType.INT);
+			this.value = value;
+		}
+
+		/**
+		 * Set the value of a boolean variable.
+		 * @param value The new value.
+		 */
+		public void setBool (boolean value) {
+			check(ValueType.BOOL);
+			this.value = value ? 1 : 0;
+		}
+
+		/**
+		 * Set the value of a string variable.
+		 * @param value The new value, which mustn't be null.
+		 */
+		public void setString (String value) {
+			check(ValueType.STRING);
+			if (value == null) {
+				throw new EvaluationException("String variable '" + name + "' can't be set to null");
+			}
+			this.string = value;
+		}
+
+		/**
+		 * Check that the variable has the type expected.
+		 * @param expected The type expected.
+		 */
+		private void check (ValueType expected) {
+			if (type != expected) {
+				throw new EvaluationException("Variable '" + name + "' is of type " + type.getTypeName() + ", not " + expected.getTypeName());
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString () {
+			String result;
+			switch (type) {
+			case INT:
+				result = name + " = " + value;
+				break;
+			case BOOL:
+				result = name + " = " + (value != 0);
+				break;
+			default:
+				result = name + " = \"" + string + "\"";
+				break;
+			}
+			return result;
+		}
+	}
+}
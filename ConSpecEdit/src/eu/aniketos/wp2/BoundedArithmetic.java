@@ -0,0 +1,385 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import eu.aniketos.Specification;
+
+/**
+ * The integer and string operations used by the evaluators, applying the bounds a policy sets on its
+ * values. A policy's integers lie between zero and its maxint, and its strings are no longer than its
+ * maxlen. The result of an operation that falls outside these bounds is dealt with according to the
+ * overflow behaviour chosen: it can be saturated (clamped to the nearest bound), wrapped (taken
+ * modulo maxint + 1), or reported as a violation by throwing an EvaluationException. Strings that
+ * would be too long are truncated when saturating or wrapping, without building the longer string.
+ * All of this is worked out exactly using primitive longs, including results that would overflow a
+ * long, so no BigInteger is needed.
+ * Without a maxint, integers may take any long value; without a maxlen, strings may be any length.
+ * Only the results of operations are bounded: constants and variables are used as they are, except
+ * that a remainder taken while wrapping wraps its operands first.
+ * Instances are immutable, so they can be shared between threads.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class BoundedArithmetic {
+	/**
+	 * What happens to the result of an operation that falls outside the policy's bounds.
+	 */
+	public static enum Overflow {
+		/**
+		 * The result is replaced by the nearest bound; strings are truncated.
+		 */
+		SATURATE,
+		/**
+		 * Integers are taken modulo maxint + 1 (or modulo 2^64 if there's no maxint); strings are truncated.
+		 */
+		WRAP,
+		/**
+		 * An EvaluationException is thrown.
+		 */
+		VIOLATION
+	}
+
+	/**
+	 * Arithmetic without any policy bounds, wrapping integers as Java longs do and joining strings of
+	 * any length. This is what the evaluators use unless they're given something else.
+	 */
+	public static final BoundedArithmetic UNCHECKED = new BoundedArithmetic(-1, -1, Overflow.WRAP);
+
+	/**
+	 * The smallest integer allowed.
+	 */
+	private final long min;
+	/**
+	 * The largest integer allowed.
+	 */
+	private final long max;
+	/**
+	 * The longest string allowed, or -1 if there's no limit.
+	 */
+	private final long maxlen;
+	/**
+	 * What happens to results outside the bounds.
+	 */
+	private final Overflow overflow;
+	/**
+	 * True if integers are wrapped within the policy's bounds, rather than as Java longs.
+	 */
+	private final boolean wrapBounded;
+	/**
+	 * True if integer results need to be checked against the bounds; false if they wrap as Java longs.
+	 */
+	private final boolean checked;
+
+	/**
+	 * Create arithmetic for the given policy bounds.
+	 * @param maxint The largest integer value the policy allows, or -1 if integers may take any long value.
+	 * @param maxlen The longest string the policy allows, or -1 if strings may be any length.
+	 * @param overflow What happens to results outside the bounds.
+	 */
+	public BoundedArithmetic (long maxint, long maxlen, Overflow overflow) {
+		if (overflow == null) {
+			throw new IllegalArgumentException("The overflow behaviour mustn't be null");
+		}
+		min = (maxint < 0) ? Long.MIN_VALUE : 0;
+		max = (maxint < 0) ? Long.MAX_VALUE : maxint;
+		this.maxlen = (maxlen < 0) ? -1 : maxlen;
+		this.overflow = overflow;
+		wrapBounded = (overflow == Overflow.WRAP) && (maxint >= 0);
+		checked = (overflow != Overflow.WRAP);
+	}
+
+	/**
+	 * Create arithmetic using the bounds set by a policy.
+	 * @param spec The policy; if either bound is missing, the values it applies to aren't bounded.
+	 * @param overflow What happens to results outside the bounds.
+	 * @return The arithmetic.
+	 */
+	public static BoundedArithmetic forSpecification (Specification spec, Overflow overflow) {
+		return new BoundedArithmetic(ExpressionSimplifier.bound(spec.getMaxint()), ExpressionSimplifier.bound(spec.getMaxlen()), overflow);
+	}
+
+	/**
+	 * Return the smallest integer allowed.
+	 * @return Zero, or Long.MIN_VALUE if there's no maxint.
+	 */
+	public long getMin () {
+		return min;
+	}
+
+	/**
+	 * Return the largest integer allowed.
+	 * @return The maxint bound, or Long.MAX_VALUE if there's no maxint.
+	 */
+	public long getMax () {
+		return max;
+	}
+
+	/**
+	 * Return the longest string allowed.
+	 * @return The maxlen bound, or -1 if there's no limit.
+	 */
+	public long getMaxlen () {
+		return maxlen;
+	}
+
+	/**
+	 * Return what happens to results outside the bounds.
+	 * @return The overflow behaviour.
+	 */
+	public Overflow getOverflow () {
+		return overflow;
+	}
+
+	/**
+	 * Add two integers.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The bounded result.
+	 */
+	public long sum (long left, long right) {
+		long result;
+		if (wrapBounded) {
+			result = addWrapped(wrap(left), wrap(right));
+		}
+		else {
+			result = left + right;
+			if (checked) {
+				// On overflow the true result has the sign of the operands, but doesn't fit in a long
+				boolean overflowed = (((left ^ result) & (right ^ result)) < 0);
+				result = overflowed ? outside(NodeKind.SUM, left > 0) : bound(NodeKind.SUM, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Subtract one integer from another.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The bounded result.
+	 */
+	public long dif (long left, long right) {
+		long result;
+		if (wrapBounded) {
+			result = subtractWrapped(wrap(left), wrap(right));
+		}
+		else {
+			result = left - right;
+			if (checked) {
+				// On overflow the true result has the sign of the left operand, but doesn't fit in a long
+				boolean overflowed = (((left ^ right) & (left ^ result)) < 0);
+				result = overflowed ? outside(NodeKind.DIF, left >= 0) : bound(NodeKind.DIF, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Multiply two integers.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The bounded result.
+	 */
+	public long mul (long left, long right) {
+		long result;
+		if (wrapBounded) {
+			result = multiplyWrapped(wrap(left), wrap(right));
+		}
+		else {
+			result = left * right;
+			if (checked) {
+				// Only operands of more than 31 bits can overflow, so the division is usually skipped
+				boolean overflowed = ((((Math.abs(left) | Math.abs(right)) >>> 31) != 0)
+						&& (((right != 0) && (result / right != left)) || ((left == Long.MIN_VALUE) && (right == -1))));
+				result = overflowed ? outside(NodeKind.MUL, (left < 0) == (right < 0)) : bound(NodeKind.MUL, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Take one integer modulo another. The result has the sign of the left hand operand, as for Java's
+	 * remainder operator, before it's bounded. When wrapping within the policy's bounds, both operands
+	 * are wrapped first, as for the other operations, so the result is already in range; a right hand
+	 * operand that wraps to zero is a modulus by zero.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand, which mustn't be zero.
+	 * @return The bounded result.
+	 */
+	public long mod (long left, long right) {
+		long divisor = wrapBounded ? wrap(right) : right;
+		if (divisor == 0) {
+			throw new EvaluationException("Modulus by zero");
+		}
+		long result;
+		if (wrapBounded) {
+			result = wrap(left) % divisor;
+		}
+		else {
+			result = left % divisor;
+			if (checked) {
+				result = bound(NodeKind.MOD, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Join two strings.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The joined string, truncated to maxlen if it's too long and violations aren't being reported.
+	 */
+	public String append (String left, String right) {
+		String result;
+		long length = (long)left.length() + right.length();
+		if ((maxlen < 0) || (length <= maxlen)) {
+			result = left.concat(right);
+		}
+		else if (overflow == Overflow.VIOLATION) {
+			throw new EvaluationException("The result of '" + NodeKind.APPEND.getSymbol() + "' would be " + length + " characters long, but the policy's maxlen is " + maxlen);
+		}
+		else if (left.length() >= maxlen) {
+			// None of the right hand side fits
+			result = left.substring(0, (int)maxlen);
+		}
+		else {
+			result = left.concat(right.substring(0, (int)(maxlen - left.length())));
+		}
+		return result;
+	}
+
+	/**
+	 * Apply the bounds to a result that fits in a long.
+	 * @param kind The operation that gave the result, used to describe any problem.
+	 * @param value The result.
+	 * @return The bounded result.
+	 */
+	private long bound (NodeKind kind, long value) {
+		long result = value;
+		if (value < min) {
+			result = outside(kind, false);
+		}
+		else if (value > max) {
+			result = outside(kind, true);
+		}
+		return result;
+	}
+
+	/**
+	 * Deal with a result outside the bounds, when saturating or reporting violations. Wrapping never
+	 * gets here: wrapping within the policy's bounds is done separately, and otherwise results are
+	 * left to wrap as Java longs.
+	 * @param kind The operation that gave the result, used to describe any problem.
+	 * @param above true if the result is above the bounds, false if it's below.
+	 * @return The bound nearest the result.
+	 */
+	private long outside (NodeKind kind, boolean above) {
+		if (overflow == Overflow.VIOLATION) {
+			throw new EvaluationException("The result of '" + kind.getSymbol() + "' is outside the policy's range of " + min + " to " + max);
+		}
+		return above ? max : min;
+	}
+
+	/**
+	 * Wrap an integer into the range from zero to maxint.
+	 * @param value The integer.
+	 * @return The integer modulo maxint + 1.
+	 */
+	private long wrap (long value) {
+		long result;
+		if (max == Long.MAX_VALUE) {
+			// The modulus is 2^63, which divides 2^64, so dropping the sign bit is enough
+			result = value & Long.MAX_VALUE;
+		}
+		else {
+			result = value % (max + 1);
+			if (result < 0) {
+				result += max + 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add two wrapped integers modulo maxint + 1, without overflowing.
+	 * @param left The left hand operand, between zero and maxint.
+	 * @param right The right hand operand, between zero and maxint.
+	 * @return The sum modulo maxint + 1.
+	 */
+	private long addWrapped (long left, long right) {
+		long result;
+		if (max == Long.MAX_VALUE) {
+			result = (left + right) & Long.MAX_VALUE;
+		}
+		else {
+			// Subtracting the distance from the right operand to the modulus can't overflow
+			result = left - (max + 1 - right);
+			if (result < 0) {
+				result += max + 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Subtract one wrapped integer from another modulo maxint + 1, without overflowing.
+	 * @param left The left hand operand, between zero and maxint.
+	 * @param right The right hand operand, between zero and maxint.
+	 * @return The difference modulo maxint + 1.
+	 */
+	private long subtractWrapped (long left, long right) {
+		long result = left - right;
+		if (result < 0) {
+			result = (max == Long.MAX_VALUE) ? (result & Long.MAX_VALUE) : (result + max + 1);
+		}
+		return result;
+	}
+
+	/**
+	 * Multiply two wrapped integers modulo maxint + 1, without overflowing.
+	 * @param left The left hand operand, between zero and maxint.
+	 * @param right The right hand operand, between zero and maxint.
+	 * @return The product modulo maxint + 1.
+	 */
+	private long multiplyWrapped (long left, long right) {
+		long result;
+		if (max == Long.MAX_VALUE) {
+			result = (left * right) & Long.MAX_VALUE;
+		}
+		else if (((left | right) >>> 31) == 0) {
+			// The product of two 31 bit values fits in a long
+			result = (left * right) % (max + 1);
+		}
+		else {
+			// Multiply by doubling and adding, one bit of the right operand at a time
+			result = 0;
+			long doubled = left;
+			for (long remaining = right; remaining != 0; remaining >>>= 1) {
+				if ((remaining & 1) != 0) {
+					result = addWrapped(result, doubled);
+				}
+				doubled = addWrapped(doubled, doubled);
+			}
+		}
+		return result;
+	}
+}
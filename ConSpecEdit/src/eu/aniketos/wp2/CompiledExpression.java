@@ -0,0 +1,331 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+import javax.xml.bind.JAXBElement;
+
+/**
+ * An expression compiled by ExpressionCompiler into a flat array of postfix instructions, ready to be
+ * executed by an ExpressionMachine.
+ * Each instruction is an opcode, followed by a single operand for those that need one. Integer and
+ * string constants are held in constant pools, and identifiers and invocations in tables, referred
+ * to by index. The right hand sides of <code>&&</code> and <code>||</code> are skipped using jumps.
+ * Expressions compiled against a StateLayout load the variables of the security state by index.
+ * Compiled expressions are immutable, so they can be shared between threads.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class CompiledExpression {
+	/**
+	 * Push an integer constant; the operand indexes the integer pool.
+	 */
+	static final int PUSH_INT = 0;
+	/**
+	 * Push a boolean constant; the operand is one or zero.
+	 */
+	static final int PUSH_BOOL = 1;
+	/**
+	 * Push a string constant; the operand indexes the string pool.
+	 */
+	static final int PUSH_STRING = 2;
+	/**
+	 * Push the value of a variable; the operand indexes the name table.
+	 */
+	static final int LOAD = 3;
+	/**
+	 * Add the top two integers.
+	 */
+	static final int SUM = 4;
+	/**
+	 * Subtract the top integer from the one below.
+	 */
+	static final int DIF = 5;
+	/**
+	 * Multiply the top two integers.
+	 */
+	static final int MUL = 6;
+	/**
+	 * Take the integer below the top modulo the top.
+	 */
+	static final int MOD = 7;
+	/**
+	 * Compare the top two integers.
+	 */
+	static final int MORETHAN = 8;
+	/**
+	 * Compare the top two integers.
+	 */
+	static final int LESSTHAN = 9;
+	/**
+	 * Compare the top two integers.
+	 */
+	static final int MOREQUALTHAN = 10;
+	/**
+	 * Compare the top two integers.
+	 */
+	static final int LESSEQUALTHAN = 11;
+	/**
+	 * Compare the top two values, which must be of the same type.
+	 */
+	static final int EQUAL = 12;
+	/**
+	 * Compare the top two values, which must be of the same type.
+	 */
+	static final int NOTEQUAL = 13;
+	/**
+	 * Join the top two strings.
+	 */
+	static final int APPEND = 14;
+	/**
+	 * Negate the top boolean.
+	 */
+	static final int NOT = 15;
+	/**
+	 * If the top boolean is false, jump to the operand, leaving it as the result; otherwise pop it.
+	 */
+	static final int AND = 16;
+	/**
+	 * If the top boolean is true, jump to the operand, leaving it as the result; otherwise pop it.
+	 */
+	static final int OR = 17;
+	/**
+	 * Check that the top value is a boolean; the operand is the AND or OR instruction it belongs to.
+	 */
+	static final int CHECK_BOOL = 18;
+	/**
+	 * Invoke a method; the operand indexes the invocation table.
+	 */
+	static final int INVOKE = 19;
+	/**
+	 * Push the value of an integer variable in the security state; the operand is its index in the state's integer array.
+	 */
+	static final int LOAD_INT = 20;
+	/**
+	 * Push the value of a boolean variable in the security state; the operand is its index in the state's boolean array.
+	 */
+	static final int LOAD_BOOL = 21;
+	/**
+	 * Push the value of a string variable in the security state; the operand is its index in the state's string array.
+	 */
+	static final int LOAD_STRING = 22;
+	/**
+	 * Replace the top two strings with true if they're equal; only used in code that's been type checked.
+	 */
+	static final int EQUAL_STRING = 23;
+	/**
+	 * Replace the top two strings with true if they differ; only used in code that's been type checked.
+	 */
+	static final int NOTEQUAL_STRING = 24;
+
+	/**
+	 * The node kind each opcode was compiled from, used for disassembly and error messages.
+	 */
+	static final NodeKind[] KINDS = {
+		NodeKind.ICONST, NodeKind.BCONST, NodeKind.SCONST, NodeKind.IDENTIFIER,
+		NodeKind.SUM, NodeKind.DIF, NodeKind.MUL, NodeKind.MOD,
+		NodeKind.MORETHAN, NodeKind.LESSTHAN, NodeKind.MOREQUALTHAN, NodeKind.LESSEQUALTHAN,
+		NodeKind.EQUAL, NodeKind.NOTEQUAL, NodeKind.APPEND, NodeKind.NOT,
+		NodeKind.AND, NodeKind.OR, NodeKind.AND, NodeKind.INVOCATION,
+		NodeKind.IDENTIFIER, NodeKind.IDENTIFIER, NodeKind.IDENTIFIER, NodeKind.EQUAL,
+		NodeKind.NOTEQUAL
+	};
+
+	/**
+	 * The instructions.
+	 */
+	final int[] code;
+	/**
+	 * The integer constant pool.
+	 */
+	final long[] integers;
+	/**
+	 * The string constant pool.
+	 */
+	final String[] strings;
+	/**
+	 * The interned names of the identifiers loaded.
+	 */
+	final String[] names;
+	/**
+	 * The invocations made; only the identifiers and number of arguments are used.
+	 */
+	final ExprNode.Invocation[] invocations;
+	/**
+	 * The greatest number of values on the stack at any point during execution.
+	 */
+	final int maxStack;
+	/**
+	 * The layout of the security state that variables are loaded from by index, or null if they're all loaded by name.
+	 */
+	final StateLayout layout;
+	/**
+	 * The type of the result, if the expression was compiled from a TypedExpression known to be well
+	 * typed, so that it can be executed without checking types; otherwise null.
+	 */
+	final ValueType type;
+	/**
+	 * The type each identifier loaded by name was found to have when the expression was type checked,
+	 * or null if it wasn't.
+	 */
+	final ValueType[] nameTypes;
+	/**
+	 * The hierarchy the expression was compiled from, or null if it was compiled from a compact expression.
+	 */
+	private final JAXBElement<?> source;
+
+	/**
+	 * Create a compiled expression. The arrays are used as they are, rather than copied.
+	 * @param code The instructions.
+	 * @param integers The integer constant pool.
+	 * @param strings The string constant pool.
+	 * @param names The interned names of the identifiers loaded.
+	 * @param invocations The invocations made.
+	 * @param maxStack The greatest number of values on the stack at any point during execution.
+	 * @param layout The layout of the security state that variables are loaded from by index, may be null.
+	 * @param type The type of the result if the expression has been type checked, otherwise null.
+	 * @param nameTypes The type of each identifier loaded by name if the expression has been type checked, otherwise null.
+	 * @param source The hierarchy the expression was compiled from, may be null.
+	 */
+	CompiledExpression (int[] code, long[] integers, String[] strings, String[] names, ExprNode.Invocation[] invocations, int maxStack, StateLayout layout,
+			ValueType type, ValueType[] nameTypes, JAXBElement<?> source) {
+		this.code = code;
+		this.integers = integers;
+		this.strings = strings;
+		this.names = names;
+		this.invocations = invocations;
+		this.maxStack = maxStack;
+		this.layout = layout;
+		this.type = type;
+		this.nameTypes = nameTypes;
+		this.source = source;
+	}
+
+	/**
+	 * Return the number of ints making up the instructions.
+	 * @return The length of the code, including operands.
+	 */
+	public int getLength () {
+		return code.length;
+	}
+
+	/**
+	 * Return the greatest number of values on the stack at any point during execution.
+	 * @return The stack depth needed.
+	 */
+	public int getMaxStack () {
+		return maxStack;
+	}
+
+	/**
+	 * Return the layout of the security state the expression was compiled for.
+	 * @return The layout, or null if the expression loads all of its variables by name.
+	 */
+	public StateLayout getLayout () {
+		return layout;
+	}
+
+	/**
+	 * Return the type of the result, if the expression was type checked before it was compiled.
+	 * @return The type, or null if the expression checks types as it runs.
+	 */
+	public ValueType getType () {
+		return type;
+	}
+
+	/**
+	 * Return the hierarchy the expression was compiled from.
+	 * @return The root of the hierarchy, or null if it was compiled from a compact expression.
+	 */
+	public JAXBElement<?> getSource () {
+		return source;
+	}
+
+	/**
+	 * Check whether an opcode is followed by an operand.
+	 * @param opcode The opcode.
+	 * @return true if the opcode has an operand.
+	 */
+	static boolean hasOperand (int opcode) {
+		return (opcode <= LOAD) || ((opcode >= AND) && (opcode <= LOAD_STRING));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString () {
+		// List the instructions, one per line
+		StringBuilder result = new StringBuilder();
+		int pc = 0;
+		while (pc < code.length) {
+			int opcode = code[pc];
+			result.append(pc).append(": ");
+			switch (opcode) {
+			case PUSH_INT:
+				result.append("push ").append(integers[code[pc + 1]]);
+				break;
+			case PUSH_BOOL:
+				result.append("push ").append(code[pc + 1] != 0);
+				break;
+			case PUSH_STRING:
+				result.append("push \"").append(strings[code[pc + 1]]).append('"');
+				break;
+			case LOAD:
+				result.append("load ").append(names[code[pc + 1]]);
+				break;
+			case LOAD_INT:
+				result.append("load int[").append(code[pc + 1]).append("] ").append(layout.getName(ValueType.INT, code[pc + 1]));
+				break;
+			case LOAD_BOOL:
+				result.append("load bool[").append(code[pc + 1]).append("] ").append(layout.getName(ValueType.BOOL, code[pc + 1]));
+				break;
+			case LOAD_STRING:
+				result.append("load string[").append(code[pc + 1]).append("] ").append(layout.getName(ValueType.STRING, code[pc + 1]));
+				break;
+			case AND:
+				result.append("and jump ").append(code[pc + 1]);
+				break;
+			case OR:
+				result.append("or jump ").append(code[pc + 1]);
+				break;
+			case CHECK_BOOL:
+				result.append("check bool");
+				break;
+			case EQUAL_STRING:
+				result.append("equal string");
+				break;
+			case NOTEQUAL_STRING:
+				result.append("notequal string");
+				break;
+			case INVOKE:
+				ExprNode.Invocation invocation = invocations[code[pc + 1]];
+				result.append("invoke ").append(invocation.getIdentifier(0)).append('/').append(invocation.getArgumentCount());
+				break;
+			default:
+				result.append(KINDS[opcode].getElementName());
+				break;
+			}
+			result.append('\n');
+			pc += hasOperand(opcode) ? 2 : 1;
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+/**
+ * Thrown when an expression can't be evaluated, for example because it refers to an identifier
+ * that isn't bound, applies an operator to a value of the wrong type, or invokes a method that
+ * can't be found.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class EvaluationException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Create an exception.
+	 * @param message A description of the problem.
+	 */
+	public EvaluationException (String message) {
+		super(message);
+	}
+
+	/**
+	 * Create an exception caused by another.
+	 * @param message A description of the problem.
+	 * @param cause The exception that caused the problem.
+	 */
+	public EvaluationException (String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,715 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.InvocationType;
+
+/**
+ * A compact, immutable representation of a ConSpec expression.
+ * The JAXB classes need a JAXBElement, a QName reference and a Vector for every node, which adds up
+ * to well over a hundred bytes per node. The nodes here hold only their kind, a precomputed hash and
+ * their payload: a primitive long for integers, an interned string for identifiers and exactly
+ * two child references for binary operations.
+ * Conversion to and from the JAXBElement representation is lossless, except that integer constants
+ * must fit in a long.
+ * Conversion and comparison walk the tree using an explicit stack, so the depth of an expression is
+ * limited only by the heap.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public abstract class ExprNode {
+	/**
+	 * The kind of node.
+	 */
+	private final NodeKind kind;
+	/**
+	 * The structural hash of the node and its subexpressions, computed once on creation.
+	 */
+	private final int hash;
+
+	/**
+	 * Class initialiser, for use by the node subclasses only.
+	 * @param kind The kind of node.
+	 * @param hash The structural hash of the node.
+	 */
+	ExprNode (NodeKind kind, int hash) {
+		this.kind = kind;
+		this.hash = (hash * 31) + kind.ordinal();
+	}
+
+	/**
+	 * Return the kind of node.
+	 * @return The node kind.
+	 */
+	public final NodeKind getKind () {
+		return kind;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public final int hashCode () {
+		return hash;
+	}
+
+	/**
+	 * Return the number of subexpressions the node has.
+	 * @return Two for binary operations, one for unary operations, the number of arguments
+	 * for invocations, or zero for constants and identifiers.
+	 */
+	public int getChildCount () {
+		return 0;
+	}
+
+	/**
+	 * Return one of the subexpressions of the node.
+	 * @param index The index of the subexpression, less than getChildCount().
+	 * @return The subexpression, which may be null.
+	 * @throws IndexOutOfBoundsException if the node doesn't have a subexpression with the given index.
+	 */
+	public ExprNode getChild (int index) {
+		throw new IndexOutOfBoundsException("Node kind " + kind + " has no subexpression " + index);
+	}
+
+	/**
+	 * Return a node of the same kind and value, but with different subexpressions.
+	 * @param children The new subexpressions, the same number as returned by getChildCount().
+	 * @return The new node, or this node if the subexpressions are all the same instances as before.
+	 */
+	public ExprNode withChildren (ExprNode[] children) {
+		return this;
+	}
+
+	/**
+	 * Compare the kind and value of this node with another, ignoring any subexpressions.
+	 * @param other The node to compare against, which is of the same class as this one.
+	 * @return true if the nodes have the same value.
+	 */
+	abstract boolean sameValue (ExprNode other);
+
+	/**
+	 * Create a JAXBElement for this node alone; any subexpressions are left as null.
+	 * @return The new element.
+	 */
+	abstract JAXBElement<?> createElement ();
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public final boolean equals (Object other) {
+		boolean result = (other == this);
+		if (!result && (other instanceof ExprNode)) {
+			// Compare the trees node by node, keeping the pairs still to be compared on an explicit stack
+			ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+			pending.add(this);
+			pending.add((ExprNode)other);
+			result = true;
+			while (result && !pending.isEmpty()) {
+				ExprNode second = pending.remove(pending.size() - 1);
+				ExprNode first = pending.remove(pending.size() - 1);
+				if (first != second) {
+					result = (first != null) && (second != null) && (first.getClass() == second.getClass())
+							&& (first.hash == second.hash) && (first.kind == second.kind) && first.sameValue(second);
+					int count = result ? first.getChildCount() : 0;
+					for (int index = count - 1; index >= 0; index--) {
+						pending.add(first.getChild(index));
+						pending.add(second.getChild(index));
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Convert the node back into a JAXBElement object hierarchy that can be used by JAXB.
+	 * @return The root of a newly created JAXBElement expression hierarchy.
+	 */
+	public final JAXBElement<?> toElement () {
+		JAXBElement<?> result = createElement();
+
+		// Each pending entry pairs a node with its element, whose subexpressions still need filling in
+		ArrayList<Object> pending = new ArrayList<Object>();
+		pending.add(this);
+		pending.add(result);
+		while (!pending.isEmpty()) {
+			JAXBElement<?> element = (JAXBElement<?>)pending.remove(pending.size() - 1);
+			ExprNode node = (ExprNode)pending.remove(pending.size() - 1);
+			for (int index = 0; index < node.getChildCount(); index++) {
+				ExprNode child = node.getChild(index);
+				if (child != null) {
+					JAXBElement<?> childElement = child.createElement();
+					ExpressionElements.setChild(element, index, childElement);
+					pending.add(child);
+					pending.add(childElement);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Convert a JAXBElement object hierarchy into the compact representation.
+	 * @param value The root of the JAXBElement expression hierarchy, may be null.
+	 * @return The root of the compact expression, or null if the value was null.
+	 * @throws IllegalArgumentException if the hierarchy contains an unknown element,
+	 * or an integer that doesn't fit in a long.
+	 */
+	public static ExprNode fromElement (JAXBElement<?> value) {
+		// Nodes are built from the leaves upwards. Each element is visited twice: first to queue up
+		// its subexpressions, and then, once they've been converted, to build the node from them.
+		ArrayList<Object> pending = new ArrayList<Object>();
+		ArrayList<ExprNode> converted = new ArrayList<ExprNode>();
+		pending.add(value);
+		pending.add(Boolean.FALSE);
+		while (!pending.isEmpty()) {
+			boolean expanded = (Boolean)pending.remove(pending.size() - 1);
+			JAXBElement<?> element = (JAXBElement<?>)pending.remove(pending.size() - 1);
+			int count = (element == null) ? 0 : ExpressionElements.getChildCount(element);
+			if (!expanded && (count > 0)) {
+				pending.add(element);
+				pending.add(Boolean.TRUE);
+				// Push the subexpressions in reverse so that they're converted in order
+				for (int index = count - 1; index >= 0; index--) {
+					pending.add(ExpressionElements.getChild(element, index));
+					pending.add(Boolean.FALSE);
+				}
+			}
+			else {
+				ExprNode[] children = new ExprNode[count];
+				for (int index = count - 1; index >= 0; index--) {
+					children[index] = converted.remove(converted.size() - 1);
+				}
+				converted.add(createNode(element, children));
+			}
+		}
+		return converted.get(0);
+	}
+
+	/**
+	 * Create a single node from an element whose subexpressions have already been converted.
+	 * @param value The element, may be null.
+	 * @param children The converted subexpressions of the element.
+	 * @return The new node, or null if the value was null.
+	 * @throws IllegalArgumentException if the element is unknown, or is an integer that doesn't fit in a long.
+	 */
+	private static ExprNode createNode (JAXBElement<?> value, ExprNode[] children) {
+		ExprNode result;
+
+		if (value == null) {
+			result = null;
+		}
+		else {
+			NodeKind kind = NodeKind.forName(value.getName());
+			if (kind == null) {
+				throw new IllegalArgumentException("Unknown expression element: " + value.getName());
+			}
+			switch (kind) {
+			case ICONST:
+				BigInteger integer = (BigInteger)value.getValue();
+				if ((integer != null) && (integer.bitLength() > 63)) {
+					throw new IllegalArgumentException("Integer constant out of range: " + integer);
+				}
+				result = new IntConstant((integer == null) ? 0 : integer.longValue());
+				break;
+			case BCONST:
+				result = BoolConstant.valueOf(Boolean.TRUE.equals(value.getValue()));
+				break;
+			case SCONST:
+				result = new StringConstant((String)value.getValue());
+				break;
+			case IDENTIFIER:
+				result = new Identifier((String)value.getValue());
+				break;
+			case NOT:
+				result = new UnaryOperation(kind, children[0]);
+				break;
+			case INVOCATION:
+				List<String> identifiers = ((InvocationType)value.getValue()).getIdentifier();
+				result = new Invocation(identifiers.toArray(new String[identifiers.size()]), children);
+				break;
+			default:
+				// Everything else is a binary operation
+				result = new BinaryOperation(kind, children[0], children[1]);
+				break;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Convert a node that may be null into a JAXBElement object hierarchy.
+	 * @param node The node to convert.
+	 * @return The root of the JAXBElement expression hierarchy, or null if the node was null.
+	 */
+	static JAXBElement<?> toElement (ExprNode node) {
+		return (node == null) ? null : node.toElement();
+	}
+
+	/**
+	 * Return the hash of a node that may be null.
+	 * @param node The node.
+	 * @return The structural hash of the node, or zero if it is null.
+	 */
+	static int hashOf (ExprNode node) {
+		return (node == null) ? 0 : node.hashCode();
+	}
+
+	/**
+	 * An integer constant.
+	 */
+	public static final class IntConstant extends ExprNode {
+		private final long value;
+
+		/**
+		 * Create an integer constant node.
+		 * @param value The value of the constant.
+		 */
+		public IntConstant (long value) {
+			super(NodeKind.ICONST, (int)(value ^ (value >>> 32)));
+			this.value = value;
+		}
+
+		/**
+		 * Return the value of the constant.
+		 * @return The integer value.
+		 */
+		public long getValue () {
+			return value;
+		}
+
+		@Override
+		JAXBElement<?> createElement () {
+			return new JAXBElement<BigInteger>(NodeKind.ICONST.getQName(), BigInteger.class, BigInteger.valueOf(value));
+		}
+
+		@Override
+		boolean sameValue (ExprNode other) {
+			return (((IntConstant)other).value == value);
+		}
+	}
+
+	/**
+	 * A boolean constant. There are only ever two instances.
+	 */
+	public static final class BoolConstant extends ExprNode {
+		public static final BoolConstant TRUE = new BoolConstant(true);
+		public static final BoolConstant FALSE = new BoolConstant(false);
+
+		private final boolean value;
+
+		/**
+		 * Create a boolean constant node.
+		 * @param value The value of the constant.
+		 */
+		private BoolConstant (boolean value) {
+			super(NodeKind.BCONST, value ? 1231 : 1237);
+			this.value = value;
+		}
+
+		/**
+		 * Return the node for a boolean value.
+		 * @param value The value of the constant.
+		 * @return The shared node with the given value.
+		 */
+		public static BoolConstant valueOf (boolean value) {
+			return value ? TRUE : FALSE;
+		}
+
+		/**
+		 * Return the value of the constant.
+		 * @return The boolean value.
+		 */
+		public boolean getValue () {
+			return value;
+		}
+
+		@Override
+		JAXBElement<?> createElement () {
+			return new JAXBElement<Boolean>(NodeKind.BCONST.getQName(), Boolean.class, Boolean.valueOf(value));
+		}
+
+		@Override
+		boolean sameValue (ExprNode other) {
+			return (other == this);
+		}
+	}
+
+	/**
+	 * A string constant.
+	 */
+	public static final class StringConstant extends ExprNode {
+		private final String value;
+
+		/**
+		 * Create a string constant node.
+		 * @param value The value of the constant; null is treated as the empty string.
+		 */
+		public StringConstant (String value) {
+			this((value == null) ? "" : value, 0);
+		}
+
+		/**
+		 * Private initialiser used once the value is known not to be null.
+		 * @param value The value of the constant.
+		 * @param unused Distinguishes this initialiser from the public one.
+		 */
+		private StringConstant (String value, int unused) {
+			super(NodeKind.SCONST, value.hashCode());
+			this.value = value;
+		}
+
+		/**
+		 * Return the value of the constant.
+		 * @return The string value.
+		 */
+		public String getValue () {
+			return value;
+		}
+
+		@Override
+		JAXBElement<?> createElement () {
+			return new JAXBElement<String>(NodeKind.SCONST.getQName(), String.class, value);
+		}
+
+		@Override
+		boolean sameValue (ExprNode other) {
+			return ((StringConstant)other).value.equals(value);
+		}
+	}
+
+	/**
+	 * A reference to a variable in the security state or a rule parameter.
+	 * The name is interned so that identical identifiers share their string.
+	 */
+	public static final class Identifier extends ExprNode {
+		private final String name;
+
+		/**
+		 * Create an identifier node.
+		 * @param name The name of the variable; null is treated as the empty string.
+		 */
+		public Identifier (String name) {
+			this(((name == null) ? "" : name).intern(), 0);
+		}
+
+		/**
+		 * Private initialiser used once the name has been interned.
+		 * @param name The interned name.
+		 * @param unused Distinguishes this initialiser from the public one.
+		 */
+		private Identifier (String name, int unused) {
+			super(NodeKind.IDENTIFIER, name.hashCode());
+			this.name = name;
+		}
+
+		/**
+		 * Return the name of the variable.
+		 * @return The interned variable name.
+		 */
+		public String getName () {
+			return name;
+		}
+
+		@Override
+		JAXBElement<?> createElement () {
+			return new JAXBElement<String>(NodeKind.IDENTIFIER.getQName(), String.class, name);
+		}
+
+		@Override
+		boolean sameValue (ExprNode other) {
+			// Names are interned, so they can be compared by reference
+			return (((Identifier)other).name == name);
+		}
+	}
+
+	/**
+	 * A unary operation; currently the only one is "not".
+	 */
+	public static final class UnaryOperation extends ExprNode {
+		private final ExprNode operand;
+
+		/**
+		 * Create a unary operation node.
+		 * @param kind The kind of operation, which must have an arity of one.
+		 * @param operand The subexpression the operation applies to.
+		 */
+		public UnaryOperation (NodeKind kind, ExprNode operand) {
+			super(check(kind, 1), hashOf(operand));
+			this.operand = operand;
+		}
+
+		/**
+		 * Return the subexpression the operation applies to.
+		 * @return The operand.
+		 */
+		public ExprNode getOperand () {
+			return operand;
+		}
+
+		@Override
+		public int getChildCount () {
+			return 1;
+		}
+
+		@Override
+		public ExprNode getChild (int index) {
+			return (index == 0) ? operand : super.getChild(index);
+		}
+
+		@Override
+		public ExprNode withChildren (ExprNode[] children) {
+			return (children[0] == operand) ? this : new UnaryOperation(getKind(), children[0]);
+		}
+
+		@Override
+		JAXBElement<?> createElement () {
+			return ExpressionElements.createUnary(getKind());
+		}
+
+		@Override
+		boolean sameValue (ExprNode other) {
+			return true;
+		}
+	}
+
+	/**
+	 * A binary operation, such as a sum, comparison or logical operation.
+	 */
+	public static final class BinaryOperation extends ExprNode {
+		private final ExprNode left;
+		private final ExprNode right;
+
+		/**
+		 * Create a binary operation node.
+		 * @param kind The kind of operation, which must have an arity of two.
+		 * @param left The left hand side of the operation.
+		 * @param right The right hand side of the operation.
+		 */
+		public BinaryOperation (NodeKind kind, ExprNode left, ExprNode right) {
+			super(check(kind, 2), (hashOf(left) * 31) + hashOf(right));
+			this.left = left;
+			this.right = right;
+		}
+
+		/**
+		 * Return the left hand side of the operation.
+		 * @return The left subexpression.
+		 */
+		public ExprNode getLeft () {
+			return left;
+		}
+
+		/**
+		 * Return the right hand side of the operation.
+		 * @return The right subexpression.
+		 */
+		public ExprNode getRight () {
+			return right;
+		}
+
+		@Override
+		public int getChildCount () {
+			return 2;
+		}
+
+		@Override
+		public ExprNode getChild (int index) {
+			ExprNode result;
+			switch (index) {
+			case 0:
+				result = left;
+				break;
+			case 1:
+				result = right;
+				break;
+			default:
+				result = super.getChild(index);
+				break;
+			}
+			return result;
+		}
+
+		@Override
+		public ExprNode withChildren (ExprNode[] children) {
+			ExprNode result = this;
+			if ((children[0] != left) || (children[1] != right)) {
+				result = new BinaryOperation(getKind(), children[0], children[1]);
+			}
+			return result;
+		}
+
+		@Override
+		JAXBElement<?> createElement () {
+			return ExpressionElements.createBinary(getKind());
+		}
+
+		@Override
+		boolean sameValue (ExprNode other) {
+			return true;
+		}
+	}
+
+	/**
+	 * A method invocation. The first identifier names the method; any further identifiers are
+	 * carried across unchanged from the ConSpec document (in practice the variable the method is invoked on).
+	 */
+	public static final class Invocation extends ExprNode {
+		private final String[] identifiers;
+		private final ExprNode[] arguments;
+
+		/**
+		 * Create an invocation node. The arrays are copied.
+		 * @param identifiers The method identifier followed by any further identifiers.
+		 * @param arguments The argument subexpressions.
+		 */
+		public Invocation (String[] identifiers, ExprNode[] arguments) {
+			this(internAll(identifiers), arguments.clone(), 0);
+		}
+
+		/**
+		 * Private initialiser used once the arrays have been copied.
+		 * @param identifiers The interned identifiers.
+		 * @param arguments The argument subexpressions.
+		 * @param unused Distinguishes this initialiser from the public one.
+		 */
+		private Invocation (String[] identifiers, ExprNode[] arguments, int unused) {
+			super(NodeKind.INVOCATION, (Arrays.hashCode(identifiers) * 31) + Arrays.hashCode(arguments));
+			this.identifiers = identifiers;
+			this.arguments = arguments;
+		}
+
+		/**
+		 * Copy and intern an array of identifiers.
+		 * @param identifiers The identifiers to intern.
+		 * @return A new array containing the interned identifiers.
+		 */
+		private static String[] internAll (String[] identifiers) {
+			String[] result = new String[identifiers.length];
+			for (int index = 0; index < identifiers.length; index++) {
+				result[index] = (identifiers[index] == null) ? null : identifiers[index].intern();
+			}
+			return result;
+		}
+
+		/**
+		 * Return the number of identifiers.
+		 * @return The identifier count, including the method identifier.
+		 */
+		public int getIdentifierCount () {
+			return identifiers.length;
+		}
+
+		/**
+		 * Return one of the identifiers.
+		 * @param index The index of the identifier; zero is the method identifier.
+		 * @return The interned identifier.
+		 */
+		public String getIdentifier (int index) {
+			return identifiers[index];
+		}
+
+		/**
+		 * Return the number of arguments.
+		 * @return The argument count.
+		 */
+		public int getArgumentCount () {
+			return arguments.length;
+		}
+
+		/**
+		 * Return one of the arguments.
+		 * @param index The index of the argument.
+		 * @return The argument subexpression.
+		 */
+		public ExprNode getArgument (int index) {
+			return arguments[index];
+		}
+
+		@Override
+		public int getChildCount () {
+			return arguments.length;
+		}
+
+		@Override
+		public ExprNode getChild (int index) {
+			return arguments[index];
+		}
+
+		@Override
+		public ExprNode withChildren (ExprNode[] children) {
+			ExprNode result = this;
+			if (!sameInstances(children, arguments)) {
+				result = new Invocation(identifiers, children.clone(), 0);
+			}
+			return result;
+		}
+
+		/**
+		 * Check whether two arrays hold exactly the same instances.
+		 * @param first The first array.
+		 * @param second The second array, of the same length.
+		 * @return true if every element of the first array is the same instance as in the second.
+		 */
+		private static boolean sameInstances (ExprNode[] first, ExprNode[] second) {
+			boolean result = true;
+			for (int index = 0; result && (index < first.length); index++) {
+				result = (first[index] == second[index]);
+			}
+			return result;
+		}
+
+		@Override
+		JAXBElement<?> createElement () {
+			return ExpressionElements.createInvocation(Arrays.asList(identifiers), arguments.length);
+		}
+
+		@Override
+		boolean sameValue (ExprNode other) {
+			return Arrays.equals(((Invocation)other).identifiers, identifiers);
+		}
+	}
+
+	/**
+	 * Check that a node kind has the arity expected by the node class.
+	 * @param kind The kind to check.
+	 * @param arity The expected arity.
+	 * @return The kind, if it has the expected arity.
+	 * @throws IllegalArgumentException if the kind has a different arity.
+	 */
+	private static NodeKind check (NodeKind kind, int arity) {
+		if (kind.getArity() != arity) {
+			throw new IllegalArgumentException("Node kind " + kind + " does not take " + arity + " subexpressions");
+		}
+		return kind;
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+
+/**
+ * Rebuilds a compact expression from the leaves upwards.
+ * Each node is passed to rewrite() once all of its subexpressions have been rewritten, so
+ * subclasses only need to deal with one node at a time. The tree is walked using an explicit stack
+ * rather than by recursion, so the depth of expression that can be rewritten is limited only by the heap.
+ * A rewriter holds no state between calls to apply(), other than any kept by the subclass.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public abstract class ExprNodeRewriter {
+	/**
+	 * Rewrite a single node.
+	 * @param node The original node, which may be null.
+	 * @param children The rewritten subexpressions of the node, in order; empty for leaves.
+	 * @return The node to use in place of the original.
+	 */
+	protected abstract ExprNode rewrite (ExprNode node, ExprNode[] children);
+
+	/**
+	 * Rewrite an expression.
+	 * @param root The root of the expression, may be null.
+	 * @return The rewritten expression.
+	 */
+	public final ExprNode apply (ExprNode root) {
+		// Each node is visited twice: first to queue up its subexpressions, and then, once they've
+		// been rewritten, to rewrite the node itself.
+		ArrayList<Object> pending = new ArrayList<Object>();
+		ArrayList<ExprNode> rewritten = new ArrayList<ExprNode>();
+		pending.add(root);
+		pending.add(Boolean.FALSE);
+		while (!pending.isEmpty()) {
+			boolean expanded = (Boolean)pending.remove(pending.size() - 1);
+			ExprNode node = (ExprNode)pending.remove(pending.size() - 1);
+			int count = (node == null) ? 0 : node.getChildCount();
+			if (!expanded && (count > 0)) {
+				pending.add(node);
+				pending.add(Boolean.TRUE);
+				// Push the subexpressions in reverse so that they're rewritten in order
+				for (int index = count - 1; index >= 0; index--) {
+					pending.add(node.getChild(index));
+					pending.add(Boolean.FALSE);
+				}
+			}
+			else {
+				ExprNode[] children = new ExprNode[count];
+				for (int index = count - 1; index >= 0; index--) {
+					children[index] = rewritten.remove(rewritten.size() - 1);
+				}
+				rewritten.add(rewrite(node, children));
+			}
+		}
+		return rewritten.get(0);
+	}
+}
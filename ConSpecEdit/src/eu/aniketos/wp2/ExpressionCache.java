@@ -0,0 +1,202 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.bind.JAXBElement;
+
+/**
+ * A size-bounded, thread-safe cache of parsed expressions, keyed by the expression text.
+ * The least recently used entry is discarded once the cache is full.
+ * The cached JAXBElement hierarchies are never handed out directly, since the JAXB classes are mutable;
+ * instead every lookup returns a fresh deep copy, which is still much cheaper than parsing the text again.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionCache {
+	/**
+	 * The number of entries held by the shared cache.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The cache shared by all expressions parsed using the Expression(String) constructor.
+	 */
+	private static final ExpressionCache defaultCache = new ExpressionCache(DEFAULT_CAPACITY);
+
+	/**
+	 * The maximum number of entries the cache will hold.
+	 */
+	private final int capacity;
+	/**
+	 * The cached hierarchies, in least recently used order. All access is synchronized on the map.
+	 */
+	private final LinkedHashMap<String, JAXBElement<?>> entries;
+	/**
+	 * The number of lookups satisfied from the cache.
+	 */
+	private long hits;
+	/**
+	 * The number of lookups that required the expression to be parsed.
+	 */
+	private long misses;
+
+	/**
+	 * Create a new cache.
+	 * @param capacity The maximum number of expressions to hold; must be at least one.
+	 */
+	public ExpressionCache (final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Cache capacity must be at least one");
+		}
+		this.capacity = capacity;
+		// An access-ordered map gives us the least recently used entry as the eldest
+		entries = new LinkedHashMap<String, JAXBElement<?>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, JAXBElement<?>> eldest) {
+				return (size() > capacity);
+			}
+		};
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * Return the cache shared by the Expression class.
+	 * @return The shared cache.
+	 */
+	public static ExpressionCache getDefault () {
+		return defaultCache;
+	}
+
+	/**
+	 * Return the parsed JAXBElement object hierarchy for the given expression text.
+	 * The result is always a private copy that the caller is free to modify or attach to a ConSpec document.
+	 * @param expression The expression in human-readable form.
+	 * @return The root of a newly created JAXBElement expression hierarchy.
+	 */
+	public JAXBElement<?> parse (String expression) {
+		String key = normalise(expression);
+		JAXBElement<?> cached;
+
+		synchronized (entries) {
+			cached = entries.get(key);
+			if (cached != null) {
+				hits++;
+			}
+			else {
+				misses++;
+			}
+		}
+
+		if (cached == null) {
+			// Parse outside the lock so that other threads aren't held up by a long expression
+			cached = new ExpressionParser(key).parse();
+			synchronized (entries) {
+				entries.put(key, cached);
+			}
+		}
+
+		// The cached hierarchy is never changed, so it's safe to copy outside the lock
+		return Expression.copy(cached);
+	}
+
+	/**
+	 * Remove all entries from the cache and reset the counters.
+	 */
+	public void clear () {
+		synchronized (entries) {
+			entries.clear();
+			hits = 0;
+			misses = 0;
+		}
+	}
+
+	/**
+	 * Return the number of lookups satisfied from the cache.
+	 * @return The hit count.
+	 */
+	public long getHits () {
+		synchronized (entries) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Return the number of lookups that required the expression to be parsed.
+	 * @return The miss count.
+	 */
+	public long getMisses () {
+		synchronized (entries) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Return the number of expressions currently cached.
+	 * @return The number of entries.
+	 */
+	public int getSize () {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Return the maximum number of expressions the cache will hold.
+	 * @return The capacity of the cache.
+	 */
+	public int getCapacity () {
+		return capacity;
+	}
+
+	/**
+	 * Convert expression text into the form used as the cache key.
+	 * The parser ignores spaces, so expressions that only differ by spacing share an entry.
+	 * An empty expression is treated as zero, as it is by the parser.
+	 * @param expression The expression in human-readable form.
+	 * @return The normalised expression text.
+	 */
+	static String normalise (String expression) {
+		String result;
+		if ((expression == null) || (expression.length() <= 0)) {
+			result = "0";
+		}
+		else if (expression.indexOf(' ') < 0) {
+			result = expression;
+		}
+		else {
+			StringBuilder clean = new StringBuilder(expression.length());
+			for (int pos = 0; pos < expression.length(); pos++) {
+				char character = expression.charAt(pos);
+				if (character != ' ') {
+					clean.append(character);
+				}
+			}
+			result = clean.toString();
+		}
+		return result;
+	}
+}
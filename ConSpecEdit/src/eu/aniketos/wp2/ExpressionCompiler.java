@@ -0,0 +1,597 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.AssignType;
+import eu.aniketos.ReactionType;
+
+/**
+ * Compiles expressions into flat arrays of postfix instructions that an ExpressionMachine can execute
+ * far more quickly than walking the expression tree.
+ * Compiled guards and assignment values are cached against the reaction or assignment they belong to,
+ * and compiled again automatically if the expression is replaced (as happens when it's edited), or if
+ * it's asked for with parameters that hide a different set of state variables from those it was
+ * compiled with, since a hidden state variable is loaded by name rather than by index. Parameters that
+ * don't hide anything make no difference to the code, so fresh Bindings for the same rule still find
+ * the cached expression.
+ * The cache holds reactions and assignments weakly, so it doesn't stop policies being discarded.
+ * A compiler given a StateLayout compiles identifiers declared in the security state into loads by
+ * index, unless they're hidden by a parameter of the same name, so the machine doesn't need to look
+ * them up by name.
+ * Expressions are walked using an explicit stack, so there's no limit on their depth.
+ * A compiler isn't thread safe, but the expressions it compiles can be shared.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionCompiler {
+	/**
+	 * The guard used for reactions that don't have one, which always holds.
+	 */
+	private static final JAXBElement<?> ALWAYS = ExprNode.BoolConstant.TRUE.toElement();
+
+	/**
+	 * Applied to expressions before they're compiled, or null to compile expressions as they are.
+	 */
+	private final ExpressionSimplifier simplifier;
+	/**
+	 * The layout of the security state, or null to load all variables by name.
+	 */
+	private final StateLayout layout;
+	/**
+	 * Compiled expressions, keyed by the reaction or assignment they belong to.
+	 */
+	private final WeakHashMap<Object, CompiledExpression> programs = new WeakHashMap<Object, CompiledExpression>();
+	/**
+	 * The state variables hidden by parameters when each cached expression was compiled, along with the
+	 * types of the parameters hiding them, keyed by the reaction or assignment it belongs to.
+	 */
+	private final WeakHashMap<Object, Map<String, ValueType>> compiledWith = new WeakHashMap<Object, Map<String, ValueType>>();
+
+	/**
+	 * The instructions compiled so far.
+	 */
+	private int[] code;
+	/**
+	 * The number of ints of code compiled so far.
+	 */
+	private int length;
+	/**
+	 * The number of values that will be on the stack at the current point of the code.
+	 */
+	private int depth;
+	/**
+	 * The greatest number of values that will be on the stack at any point of the code so far.
+	 */
+	private int maxStack;
+	/**
+	 * The integer constant pool being built, with the index of each constant.
+	 */
+	private HashMap<Long, Integer> integers;
+	/**
+	 * The string constant pool being built, with the index of each constant.
+	 */
+	private HashMap<String, Integer> strings;
+	/**
+	 * The identifiers loaded, with the index of each name.
+	 */
+	private HashMap<String, Integer> names;
+	/**
+	 * The invocations made.
+	 */
+	private ArrayList<ExprNode.Invocation> invocations;
+	/**
+	 * The parameters of the expression being compiled, which hide state variables of the same name; may be null.
+	 */
+	private Bindings parameters;
+	/**
+	 * The types of the expression being compiled, if it's known to be well typed; otherwise null.
+	 */
+	private TypedExpression typed;
+	/**
+	 * The type of each identifier loaded by name, if the expression being compiled is well typed.
+	 */
+	private HashMap<String, ValueType> nameTypes;
+
+	/**
+	 * Create a compiler that compiles expressions as they are.
+	 */
+	public ExpressionCompiler () {
+		this(null);
+	}
+
+	/**
+	 * Create a compiler.
+	 * @param simplifier Applied to expressions before they're compiled, or null to compile expressions as they are.
+	 */
+	public ExpressionCompiler (ExpressionSimplifier simplifier) {
+		this(simplifier, null);
+	}
+
+	/**
+	 * Create a compiler that loads the variables of the security state by index.
+	 * @param simplifier Applied to expressions before they're compiled, or null to compile expressions as they are.
+	 * @param layout The layout of the security state, or null to load all variables by name.
+	 */
+	public ExpressionCompiler (ExpressionSimplifier simplifier, StateLayout layout) {
+		this.simplifier = simplifier;
+		this.layout = layout;
+	}
+
+	/**
+	 * Return the compiled guard of a reaction, compiling it if it hasn't already been compiled.
+	 * A reaction without a guard is given a guard that always holds.
+	 * @param reaction The reaction.
+	 * @return The compiled guard.
+	 */
+	public CompiledExpression compileGuard (ReactionType reaction) {
+		return compileGuard(reaction, null);
+	}
+
+	/**
+	 * Return the compiled guard of a reaction, compiling it if it hasn't already been compiled.
+	 * A reaction without a guard is given a guard that always holds.
+	 * @param reaction The reaction.
+	 * @param parameters The parameters of the rule, which hide state variables of the same name; may be null.
+	 * @return The compiled guard.
+	 */
+	public CompiledExpression compileGuard (ReactionType reaction, Bindings parameters) {
+		JAXBElement<?> guard = (reaction.getGuard() == null) ? null : reaction.getGuard().getExpType();
+		return cached(reaction, (guard == null) ? ALWAYS : guard, parameters);
+	}
+
+	/**
+	 * Return the compiled value of an assignment, compiling it if it hasn't already been compiled.
+	 * @param assign The assignment.
+	 * @return The compiled value.
+	 */
+	public CompiledExpression compileValue (AssignType assign) {
+		return compileValue(assign, null);
+	}
+
+	/**
+	 * Return the compiled value of an assignment, compiling it if it hasn't already been compiled.
+	 * @param assign The assignment.
+	 * @param parameters The parameters of the rule, which hide state variables of the same name; may be null.
+	 * @return The compiled value.
+	 */
+	public CompiledExpression compileValue (AssignType assign, Bindings parameters) {
+		return cached(assign, (assign.getValue() == null) ? null : assign.getValue().getExpType(), parameters);
+	}
+
+	/**
+	 * Return the cached compiled expression for a reaction or assignment, compiling it again if its
+	 * expression has changed, or if its parameters hide different state variables from those they hid
+	 * when it was compiled.
+	 * @param owner The reaction or assignment.
+	 * @param value The expression it currently holds.
+	 * @param parameters The parameters of the rule, may be null.
+	 * @return The compiled expression.
+	 */
+	private CompiledExpression cached (Object owner, JAXBElement<?> value, Bindings parameters) {
+		CompiledExpression result = programs.get(owner);
+		Map<String, ValueType> hidden = hiddenBy(parameters);
+		if ((result == null) || (result.getSource() != value) || !hidden.equals(compiledWith.get(owner))) {
+			result = compile(value, parameters);
+			programs.put(owner, result);
+			compiledWith.put(owner, hidden);
+		}
+		return result;
+	}
+
+	/**
+	 * Find the state variables that parameters hide, which are the only thing about the parameters that
+	 * changes the compiled code. Without a layout every identifier is loaded by name, so nothing is hidden.
+	 * @param parameters The parameters, may be null.
+	 * @return The name of each state variable hidden, with the type of the parameter hiding it.
+	 */
+	private Map<String, ValueType> hiddenBy (Bindings parameters) {
+		Map<String, ValueType> result = Collections.emptyMap();
+		if ((layout != null) && (parameters != null)) {
+			for (Bindings.Variable parameter : parameters.getVariables()) {
+				if (layout.getSlot(parameter.getName()) >= 0) {
+					if (result.isEmpty()) {
+						result = new HashMap<String, ValueType>();
+					}
+					result.put(parameter.getName(), parameter.getType());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forget all of the cached compiled expressions.
+	 */
+	public void clear () {
+		programs.clear();
+		compiledWith.clear();
+	}
+
+	/**
+	 * Compile a JAXBElement expression hierarchy, simplifying it first if the compiler has a simplifier.
+	 * @param value The root of the hierarchy.
+	 * @return The compiled expression.
+	 */
+	public CompiledExpression compile (JAXBElement<?> value) {
+		return compile(value, null);
+	}
+
+	/**
+	 * Compile a JAXBElement expression hierarchy, simplifying it first if the compiler has a simplifier.
+	 * @param value The root of the hierarchy.
+	 * @param parameters The parameters the expression can refer to, which hide state variables of the same name; may be null.
+	 * @return The compiled expression.
+	 */
+	public CompiledExpression compile (JAXBElement<?> value, Bindings parameters) {
+		ExprNode node = ExprNode.fromElement(value);
+		if ((simplifier != null) && (node != null)) {
+			node = simplifier.simplify(node);
+		}
+		return compile(node, parameters, value);
+	}
+
+	/**
+	 * Compile a compact expression as it is.
+	 * @param node The root of the expression.
+	 * @return The compiled expression.
+	 */
+	public CompiledExpression compile (ExprNode node) {
+		return compile(node, null, null);
+	}
+
+	/**
+	 * Compile a compact expression as it is.
+	 * @param node The root of the expression.
+	 * @param parameters The parameters the expression can refer to, which hide state variables of the same name; may be null.
+	 * @return The compiled expression.
+	 */
+	public CompiledExpression compile (ExprNode node, Bindings parameters) {
+		return compile(node, parameters, null);
+	}
+
+	/**
+	 * Compile an expression that's been type checked. If it's well typed, and doesn't invoke any methods
+	 * (whose results can't be relied on to have the type they were resolved to), the compiled code doesn't
+	 * check types as it runs, and compares strings without checking what the operands are. Identifiers
+	 * loaded by name, which may be bound differently each time, are checked once as they're loaded.
+	 * Otherwise the expression is compiled as it would be without its types.
+	 * If the compiler has a simplifier, a well typed expression is simplified first, and the types of
+	 * the simplified tree worked out again, since the types are held against the nodes.
+	 * @param typed The typed expression.
+	 * @return The compiled expression.
+	 */
+	public CompiledExpression compile (TypedExpression typed) {
+		CompiledExpression result;
+		typed = typed.simplify(simplifier);
+		if (typed.isWellTyped() && ExpressionSimplifier.isPure(typed.getRoot())) {
+			this.typed = typed;
+			nameTypes = new HashMap<String, ValueType>();
+			try {
+				result = compile(typed.getRoot(), typed.getParameters(), null);
+			}
+			finally {
+				this.typed = null;
+				nameTypes = null;
+			}
+		}
+		else {
+			result = compile(typed.getRoot(), typed.getParameters(), null);
+		}
+		return result;
+	}
+
+	/**
+	 * Compile a compact expression.
+	 * @param root The root of the expression.
+	 * @param parameters The parameters the expression can refer to, may be null.
+	 * @param source The hierarchy the expression came from, may be null.
+	 * @return The compiled expression.
+	 */
+	private CompiledExpression compile (ExprNode root, Bindings parameters, JAXBElement<?> source) {
+		if (root == null) {
+			throw new EvaluationException("There's no expression to compile");
+		}
+		code = new int[16];
+		length = 0;
+		depth = 0;
+		maxStack = 0;
+		integers = new HashMap<Long, Integer>();
+		strings = new HashMap<String, Integer>();
+		names = new HashMap<String, Integer>();
+		invocations = new ArrayList<ExprNode.Invocation>();
+		this.parameters = parameters;
+
+		// Nodes are visited once before their subexpressions have been compiled, and again afterwards.
+		// Logical operations are visited a third time, after their right hand sides, to fill in their jumps.
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		ArrayList<Integer> phases = new ArrayList<Integer>();
+		pending.add(root);
+		phases.add(Integer.valueOf(0));
+		while (!pending.isEmpty()) {
+			ExprNode node = pending.remove(pending.size() - 1);
+			int phase = phases.remove(phases.size() - 1).intValue();
+			if (node == null) {
+				throw new EvaluationException("An operation is missing one of its subexpressions");
+			}
+			NodeKind kind = node.getKind();
+			if (phase == 0) {
+				switch (kind) {
+				case ICONST:
+					emit(CompiledExpression.PUSH_INT, index(integers, Long.valueOf(((ExprNode.IntConstant)node).getValue())), 1);
+					break;
+				case BCONST:
+					emit(CompiledExpression.PUSH_BOOL, ((ExprNode.BoolConstant)node).getValue() ? 1 : 0, 1);
+					break;
+				case SCONST:
+					emit(CompiledExpression.PUSH_STRING, index(strings, ((ExprNode.StringConstant)node).getValue()), 1);
+					break;
+				case IDENTIFIER:
+					load(((ExprNode.Identifier)node).getName());
+					if (typed != null) {
+						nameTypes.put(((ExprNode.Identifier)node).getName(), typed.getType(node));
+					}
+					break;
+				case AND:
+				case OR:
+					// Only the left hand side is compiled before the jump
+					pending.add(node);
+					phases.add(Integer.valueOf(1));
+					pending.add(((ExprNode.BinaryOperation)node).getLeft());
+					phases.add(Integer.valueOf(0));
+					break;
+				default:
+					// Push the subexpressions in reverse so that they're compiled in order
+					pending.add(node);
+					phases.add(Integer.valueOf(1));
+					for (int index = node.getChildCount() - 1; index >= 0; index--) {
+						pending.add(node.getChild(index));
+						phases.add(Integer.valueOf(0));
+					}
+					break;
+				}
+			}
+			else {
+				switch (kind) {
+				case AND:
+				case OR:
+					if (phase == 1) {
+						// The jump target isn't known until the right hand side has been compiled, so the
+						// position of the operand to fill in is passed to the third visit, offset by two so
+						// that it can't be mistaken for an earlier phase. The left hand side is popped if the
+						// jump isn't taken.
+						emit((kind == NodeKind.AND) ? CompiledExpression.AND : CompiledExpression.OR, 0, -1);
+						pending.add(node);
+						phases.add(Integer.valueOf((length - 1) + 2));
+						pending.add(((ExprNode.BinaryOperation)node).getRight());
+						phases.add(Integer.valueOf(0));
+					}
+					else {
+						emit(CompiledExpression.CHECK_BOOL, (kind == NodeKind.AND) ? CompiledExpression.AND : CompiledExpression.OR, 0);
+						code[phase - 2] = length;
+					}
+					break;
+				case NOT:
+					emit(CompiledExpression.NOT);
+					break;
+				case INVOCATION:
+					ExprNode.Invocation invocation = (ExprNode.Invocation)node;
+					invocations.add(invocation);
+					emit(CompiledExpression.INVOKE, invocations.size() - 1, 1 - invocation.getArgumentCount());
+					break;
+				default:
+					int opcode = opcodeOf(kind);
+					if ((typed != null) && (typed.getType(node.getChild(0)) == ValueType.STRING)) {
+						// Strings known to be strings can be compared without checking
+						if (kind == NodeKind.EQUAL) {
+							opcode = CompiledExpression.EQUAL_STRING;
+						}
+						else if (kind == NodeKind.NOTEQUAL) {
+							opcode = CompiledExpression.NOTEQUAL_STRING;
+						}
+					}
+					emit(opcode);
+					depth--;
+					break;
+				}
+			}
+		}
+
+		int[] compiled = new int[length];
+		System.arraycopy(code, 0, compiled, 0, length);
+		String[] loaded = pool(names, new String[names.size()]);
+		ValueType[] types = null;
+		if (typed != null) {
+			types = new ValueType[loaded.length];
+			for (int index = 0; index < loaded.length; index++) {
+				types[index] = nameTypes.get(loaded[index]);
+			}
+		}
+		CompiledExpression result = new CompiledExpression(compiled, toLongs(integers), pool(strings, new String[strings.size()]),
+				loaded, invocations.toArray(new ExprNode.Invocation[invocations.size()]), maxStack, layout,
+				(typed == null) ? null : typed.getType(), types, source);
+
+		// Don't hold on to anything between compilations
+		code = null;
+		integers = null;
+		strings = null;
+		names = null;
+		invocations = null;
+		this.parameters = null;
+		return result;
+	}
+
+	/**
+	 * Add an instruction to load the value of a variable: by index if it's in the state layout and not
+	 * hidden by a parameter, otherwise by name.
+	 * @param name The name of the variable.
+	 */
+	private void load (String name) {
+		int slot = ((layout == null) || ((parameters != null) && (parameters.lookup(name) != null))) ? -1 : layout.getSlot(name);
+		if (slot < 0) {
+			emit(CompiledExpression.LOAD, index(names, name), 1);
+		}
+		else {
+			switch (StateLayout.typeOf(slot)) {
+			case INT:
+				emit(CompiledExpression.LOAD_INT, StateLayout.indexOf(slot), 1);
+				break;
+			case BOOL:
+				emit(CompiledExpression.LOAD_BOOL, StateLayout.indexOf(slot), 1);
+				break;
+			default:
+				emit(CompiledExpression.LOAD_STRING, StateLayout.indexOf(slot), 1);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Return the opcode for a binary operation.
+	 * @param kind The kind of operation.
+	 * @return The opcode.
+	 */
+	private static int opcodeOf (NodeKind kind) {
+		int result;
+		switch (kind) {
+		case SUM:
+			result = CompiledExpression.SUM;
+			break;
+		case DIF:
+			result = CompiledExpression.DIF;
+			break;
+		case MUL:
+			result = CompiledExpression.MUL;
+			break;
+		case MOD:
+			result = CompiledExpression.MOD;
+			break;
+		case MORETHAN:
+			result = CompiledExpression.MORETHAN;
+			break;
+		case LESSTHAN:
+			result = CompiledExpression.LESSTHAN;
+			break;
+		case MOREQUALTHAN:
+			result = CompiledExpression.MOREQUALTHAN;
+			break;
+		case LESSEQUALTHAN:
+			result = CompiledExpression.LESSEQUALTHAN;
+			break;
+		case EQUAL:
+			result = CompiledExpression.EQUAL;
+			break;
+		case NOTEQUAL:
+			result = CompiledExpression.NOTEQUAL;
+			break;
+		case APPEND:
+			result = CompiledExpression.APPEND;
+			break;
+		default:
+			throw new EvaluationException("'" + kind.getElementName() + "' isn't a binary operation");
+		}
+		return result;
+	}
+
+	/**
+	 * Add an instruction without an operand that doesn't change the depth of the stack.
+	 * @param opcode The opcode.
+	 */
+	private void emit (int opcode) {
+		ensure(1);
+		code[length++] = opcode;
+	}
+
+	/**
+	 * Add an instruction with an operand.
+	 * @param opcode The opcode.
+	 * @param operand The operand.
+	 * @param change The change in the depth of the stack caused by the instruction.
+	 */
+	private void emit (int opcode, int operand, int change) {
+		ensure(2);
+		code[length++] = opcode;
+		code[length++] = operand;
+		depth += change;
+		maxStack = Math.max(maxStack, depth);
+	}
+
+	/**
+	 * Make room for more code.
+	 * @param count The number of ints needed.
+	 */
+	private void ensure (int count) {
+		if (length + count > code.length) {
+			int[] newCode = new int[Math.max(code.length * 2, length + count)];
+			System.arraycopy(code, 0, newCode, 0, length);
+			code = newCode;
+		}
+	}
+
+	/**
+	 * Find the index of an entry in a pool or table, adding it if it's not already there.
+	 * @param pool The pool.
+	 * @param value The entry.
+	 * @return The index of the entry.
+	 */
+	private static <T> int index (HashMap<T, Integer> pool, T value) {
+		Integer result = pool.get(value);
+		if (result == null) {
+			result = Integer.valueOf(pool.size());
+			pool.put(value, result);
+		}
+		return result.intValue();
+	}
+
+	/**
+	 * Convert a pool into an array, with each entry at its index.
+	 * @param pool The pool.
+	 * @param result The array to fill, of the same size as the pool.
+	 * @return The filled array.
+	 */
+	private static <T> T[] pool (HashMap<T, Integer> pool, T[] result) {
+		for (T value : pool.keySet()) {
+			result[pool.get(value).intValue()] = value;
+		}
+		return result;
+	}
+
+	/**
+	 * Convert the integer pool into an array of primitive values.
+	 * @param pool The pool.
+	 * @return The array, with each constant at its index.
+	 */
+	private static long[] toLongs (HashMap<Long, Integer> pool) {
+		long[] result = new long[pool.size()];
+		for (Long value : pool.keySet()) {
+			result[pool.get(value).intValue()] = value.longValue();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+/**
+ * A problem found while parsing a human-readable expression, along with where in the expression it was found.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class ExpressionDiagnostic {
+	/**
+	 * The severity of a problem that means the expression can't be parsed as written.
+	 */
+	public static final int ERROR = 2;
+	/**
+	 * The severity of a problem that doesn't stop the expression being parsed, but probably isn't what was intended.
+	 */
+	public static final int WARNING = 1;
+
+	/**
+	 * How serious the problem is; either ERROR or WARNING.
+	 */
+	private final int severity;
+	/**
+	 * The offset of the first character of the problem in the expression.
+	 */
+	private final int offset;
+	/**
+	 * The number of characters the problem covers; may be zero, for example if something is missing.
+	 */
+	private final int length;
+	/**
+	 * A description of the problem, suitable for showing to the user.
+	 */
+	private final String message;
+
+	/**
+	 * Create a diagnostic.
+	 * @param severity How serious the problem is; either ERROR or WARNING.
+	 * @param offset The offset of the first character of the problem in the expression.
+	 * @param length The number of characters the problem covers.
+	 * @param message A description of the problem, suitable for showing to the user.
+	 */
+	public ExpressionDiagnostic (int severity, int offset, int length, String message) {
+		this.severity = severity;
+		this.offset = offset;
+		this.length = length;
+		this.message = message;
+	}
+
+	/**
+	 * Return how serious the problem is.
+	 * @return Either ERROR or WARNING.
+	 */
+	public int getSeverity () {
+		return severity;
+	}
+
+	/**
+	 * Check whether the problem means the expression can't be parsed as written.
+	 * @return true if the severity is ERROR.
+	 */
+	public boolean isError () {
+		return (severity == ERROR);
+	}
+
+	/**
+	 * Return where the problem starts.
+	 * @return The offset of the first character of the problem in the expression, including any spaces.
+	 */
+	public int getOffset () {
+		return offset;
+	}
+
+	/**
+	 * Return how much of the expression the problem covers.
+	 * @return The number of characters; may be zero, for example if something is missing.
+	 */
+	public int getLength () {
+		return length;
+	}
+
+	/**
+	 * Return a description of the problem.
+	 * @return The description, suitable for showing to the user.
+	 */
+	public String getMessage () {
+		return message;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString () {
+		return "Character " + (offset + 1) + ": " + message;
+	}
+}
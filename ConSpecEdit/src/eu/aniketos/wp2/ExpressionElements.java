@@ -0,0 +1,209 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.Binary;
+import eu.aniketos.InvocationType;
+import eu.aniketos.InvocationType.Argument;
+import eu.aniketos.Unary;
+
+/**
+ * Uniform access to the subexpressions of JAXBElement expression elements, whichever JAXB class
+ * holds them, so that hierarchies can be walked using an explicit stack rather than by recursion.
+ * Walking this way means the depth of an expression is limited only by the heap, rather than by
+ * the call stack of the thread doing the work (often the SWT user interface thread).
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class ExpressionElements {
+	/**
+	 * Private initialiser; the class only has static methods.
+	 */
+	private ExpressionElements () {
+	}
+
+	/**
+	 * Return the number of subexpressions an element has.
+	 * @param value The element, which must not be null.
+	 * @return Two for binary operations, one for unary operations, the number of arguments
+	 * for invocations, or zero for constants and identifiers.
+	 */
+	static int getChildCount (JAXBElement<?> value) {
+		int result;
+		Object content = value.getValue();
+		if (content instanceof Binary) {
+			result = 2;
+		}
+		else if (content instanceof Unary) {
+			result = 1;
+		}
+		else if (content instanceof InvocationType) {
+			result = ((InvocationType)content).getArgument().size();
+		}
+		else {
+			result = 0;
+		}
+		return result;
+	}
+
+	/**
+	 * Return one of the subexpressions of an element.
+	 * @param value The element.
+	 * @param index The index of the subexpression, less than getChildCount().
+	 * @return The subexpression, which may be null.
+	 */
+	static JAXBElement<?> getChild (JAXBElement<?> value, int index) {
+		JAXBElement<?> result;
+		Object content = value.getValue();
+		if (content instanceof Binary) {
+			result = ((Binary)content).getExpType().get(index);
+		}
+		else if (content instanceof Unary) {
+			result = ((Unary)content).getExpType();
+		}
+		else {
+			result = ((InvocationType)content).getArgument().get(index).getExpType();
+		}
+		return result;
+	}
+
+	/**
+	 * Replace one of the subexpressions of an element.
+	 * @param value The element.
+	 * @param index The index of the subexpression, less than getChildCount().
+	 * @param child The new subexpression.
+	 */
+	static void setChild (JAXBElement<?> value, int index, JAXBElement<?> child) {
+		Object content = value.getValue();
+		if (content instanceof Binary) {
+			((Binary)content).getExpType().set(index, child);
+		}
+		else if (content instanceof Unary) {
+			((Unary)content).setExpType(child);
+		}
+		else {
+			((InvocationType)content).getArgument().get(index).setExpType(child);
+		}
+	}
+
+	/**
+	 * Create a binary operation element whose subexpressions have yet to be set.
+	 * @param kind The kind of binary operation.
+	 * @return The new element, with two null subexpressions.
+	 */
+	static JAXBElement<Binary> createBinary (NodeKind kind) {
+		Binary binary = new Binary();
+		binary.getExpType().add(null);
+		binary.getExpType().add(null);
+		return new JAXBElement<Binary>(kind.getQName(), Binary.class, binary);
+	}
+
+	/**
+	 * Create a unary operation element whose subexpression has yet to be set.
+	 * @param kind The kind of unary operation.
+	 * @return The new element, with a null subexpression.
+	 */
+	static JAXBElement<Unary> createUnary (NodeKind kind) {
+		return new JAXBElement<Unary>(kind.getQName(), Unary.class, new Unary());
+	}
+
+	/**
+	 * Create an invocation element whose arguments have yet to be set.
+	 * @param identifiers The method identifier followed by any further identifiers.
+	 * @param arguments The number of arguments.
+	 * @return The new element, with the given number of null arguments.
+	 */
+	static JAXBElement<InvocationType> createInvocation (Iterable<String> identifiers, int arguments) {
+		InvocationType invocation = new InvocationType();
+		for (String identifier : identifiers) {
+			invocation.getIdentifier().add(identifier);
+		}
+		for (int index = 0; index < arguments; index++) {
+			invocation.getArgument().add(new Argument());
+		}
+		return new JAXBElement<InvocationType>(NodeKind.INVOCATION.getQName(), InvocationType.class, invocation);
+	}
+
+	/**
+	 * Copy an element without its subexpressions.
+	 * Constants and identifiers hold immutable values (BigInteger, Boolean or String), so these are complete copies.
+	 * @param value The element to copy, which must not be null.
+	 * @return A new element with the same name, type and scope, and null subexpressions.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static JAXBElement<?> copyShallow (JAXBElement<?> value) {
+		Object content = value.getValue();
+		if (content instanceof Binary) {
+			Binary binary = new Binary();
+			binary.getExpType().add(null);
+			binary.getExpType().add(null);
+			content = binary;
+		}
+		else if (content instanceof Unary) {
+			content = new Unary();
+		}
+		else if (content instanceof InvocationType) {
+			InvocationType original = (InvocationType)content;
+			InvocationType invocation = new InvocationType();
+			invocation.getIdentifier().addAll(original.getIdentifier());
+			for (int index = 0; index < original.getArgument().size(); index++) {
+				invocation.getArgument().add(new Argument());
+			}
+			content = invocation;
+		}
+		return new JAXBElement(value.getName(), value.getDeclaredType(), value.getScope(), content);
+	}
+
+	/**
+	 * Make a deep copy of an element and all of its subexpressions.
+	 * @param value The root of the hierarchy to copy.
+	 * @return The root of the new copy, or null if the value was null.
+	 */
+	static JAXBElement<?> copyDeep (JAXBElement<?> value) {
+		JAXBElement<?> result = null;
+		if (value != null) {
+			result = copyShallow(value);
+			// Each pending entry pairs an original element with its copy, whose subexpressions still need filling in
+			ArrayList<JAXBElement<?>> pending = new ArrayList<JAXBElement<?>>();
+			pending.add(value);
+			pending.add(result);
+			while (!pending.isEmpty()) {
+				JAXBElement<?> copy = pending.remove(pending.size() - 1);
+				JAXBElement<?> original = pending.remove(pending.size() - 1);
+				int count = getChildCount(original);
+				for (int index = 0; index < count; index++) {
+					JAXBElement<?> child = getChild(original, index);
+					if (child != null) {
+						JAXBElement<?> childCopy = copyShallow(child);
+						setChild(copy, index, childCopy);
+						pending.add(child);
+						pending.add(childCopy);
+					}
+				}
+			}
+		}
+		return result;
+	}
+}
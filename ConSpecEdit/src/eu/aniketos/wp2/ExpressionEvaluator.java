@@ -0,0 +1,652 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.DeclType;
+import eu.aniketos.Specification;
+
+/**
+ * Evaluates compact expressions, such as reaction guards and assignment values, against a security
+ * state and the parameters of the method call that triggered a rule.
+ * Integers are held as primitive longs and booleans as primitive values throughout, so evaluating an
+ * expression made up of integers, booleans and identifiers doesn't allocate anything once the
+ * evaluator's stacks have grown to fit. Joining strings necessarily creates a new string, and method
+ * invocations box their arguments and results.
+ * The expression is walked using explicit stacks rather than by recursion, so there's no limit on its
+ * depth. The right hand side of <code>&&</code> and <code>||</code> is only evaluated if it's needed.
+ * Integer and string operations are carried out by a BoundedArithmetic, which can apply the bounds
+ * set by the policy; by default results wrap as Java longs and strings can be any length.
+ * Identifiers are looked up in the parameters first, and then in the security state.
+ * Invocations are made through method handles found by an InvocationResolver: the first identifier of
+ * the invocation gives the class and method name (for example <code>java.lang.String.equals</code>),
+ * and the second, if present, names the variable the method is invoked on. Only methods on the
+ * resolver's allowlist can be invoked.
+ * An evaluator isn't thread safe, so each thread should have its own.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionEvaluator {
+	/**
+	 * The initial size of the stacks, which grow as needed.
+	 */
+	private static final int INITIAL_STACK = 32;
+
+	/**
+	 * Applied to expressions before they're evaluated, or null to evaluate expressions as they are.
+	 */
+	private final ExpressionSimplifier simplifier;
+	/**
+	 * Invokes the methods named by invocations.
+	 */
+	private final MethodInvoker invoker = new MethodInvoker();
+	/**
+	 * Carries out integer and string operations.
+	 */
+	private BoundedArithmetic arithmetic = BoundedArithmetic.UNCHECKED;
+
+	/**
+	 * Nodes waiting to be evaluated, or to have their operator applied.
+	 */
+	private ExprNode[] work = new ExprNode[INITIAL_STACK];
+	/**
+	 * How far through each waiting node evaluation has got: zero if its subexpressions haven't been started yet.
+	 */
+	private int[] phases = new int[INITIAL_STACK];
+	/**
+	 * The number of nodes waiting.
+	 */
+	private int waiting;
+
+	/**
+	 * The types of the values calculated so far.
+	 */
+	private ValueType[] types = new ValueType[INITIAL_STACK];
+	/**
+	 * The integer and boolean values calculated so far; booleans are held as one or zero.
+	 */
+	private long[] values = new long[INITIAL_STACK];
+	/**
+	 * The string values calculated so far.
+	 */
+	private String[] strings = new String[INITIAL_STACK];
+	/**
+	 * The number of values calculated so far.
+	 */
+	private int size;
+
+	/**
+	 * Create an evaluator that evaluates expressions as they are.
+	 */
+	public ExpressionEvaluator () {
+		this(null);
+	}
+
+	/**
+	 * Create an evaluator.
+	 * @param simplifier Applied to expressions as they're prepared, or null to evaluate expressions as they are.
+	 */
+	public ExpressionEvaluator (ExpressionSimplifier simplifier) {
+		this.simplifier = simplifier;
+	}
+
+	/**
+	 * Create an evaluator that simplifies expressions using the bounds set by a policy.
+	 * @param spec The policy.
+	 * @return The evaluator.
+	 */
+	public static ExpressionEvaluator forSpecification (Specification spec) {
+		return new ExpressionEvaluator(ExpressionSimplifier.forSpecification(spec));
+	}
+
+	/**
+	 * Create an evaluator that simplifies expressions and bounds the results of operations using the
+	 * bounds set by a policy.
+	 * @param spec The policy.
+	 * @param overflow What happens to results outside the policy's bounds.
+	 * @return The evaluator.
+	 */
+	public static ExpressionEvaluator forSpecification (Specification spec, BoundedArithmetic.Overflow overflow) {
+		ExpressionEvaluator result = new ExpressionEvaluator(ExpressionSimplifier.forSpecification(spec, overflow));
+		result.setArithmetic(BoundedArithmetic.forSpecification(spec, overflow));
+		return result;
+	}
+
+	/**
+	 * Set the arithmetic used for integer and string operations.
+	 * @param arithmetic The arithmetic, which applies the policy's bounds to the results of operations.
+	 */
+	public void setArithmetic (BoundedArithmetic arithmetic) {
+		if (arithmetic == null) {
+			throw new IllegalArgumentException("The arithmetic mustn't be null");
+		}
+		this.arithmetic = arithmetic;
+	}
+
+	/**
+	 * Return the arithmetic used for integer and string operations.
+	 * @return The arithmetic.
+	 */
+	public BoundedArithmetic getArithmetic () {
+		return arithmetic;
+	}
+
+	/**
+	 * Set the class loader used to find the classes of invoked methods.
+	 * @param classLoader The class loader.
+	 */
+	public void setClassLoader (ClassLoader classLoader) {
+		invoker.setClassLoader(classLoader);
+	}
+
+	/**
+	 * Set the resolver used to find invoked methods, in place of one with the default allowlist.
+	 * @param resolver The resolver, which may already have resolved the invocations of a policy.
+	 */
+	public void setResolver (InvocationResolver resolver) {
+		invoker.setResolver(resolver);
+	}
+
+	/**
+	 * Convert a JAXBElement expression hierarchy into the compact form used for evaluation, simplifying it if the
+	 * evaluator has a simplifier. This should be done once, when a policy is loaded, rather than for every evaluation.
+	 * @param value The root of the expression hierarchy, may be null.
+	 * @return The expression ready for evaluation, or null if there was no expression.
+	 */
+	public ExprNode prepare (JAXBElement<?> value) {
+		ExprNode result = ExprNode.fromElement(value);
+		if ((simplifier != null) && (result != null)) {
+			result = simplifier.simplify(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Create the initial security state for a policy by evaluating each of its declarations in turn.
+	 * Each declaration can refer to those before it.
+	 * @param spec The policy.
+	 * @return The security state.
+	 */
+	public Bindings createState (Specification spec) {
+		Bindings state = new Bindings();
+		if (spec.getSecuritystate() != null) {
+			for (DeclType declaration : spec.getSecuritystate().getDeclaration()) {
+				ValueType type = ValueType.forName(declaration.getType());
+				if (type == null) {
+					throw new EvaluationException("Declaration '" + declaration.getIdentifier() + "' has unknown type '" + declaration.getType() + "'");
+				}
+				// A declaration without a name, as a half edited policy may have, can't be referred to
+				if (declaration.getIdentifier() != null) {
+					ExprNode value = (declaration.getValue() == null) ? null : prepare(declaration.getValue().getExpType());
+					if (value == null) {
+						// Without a value the variable keeps the default for its type
+						state.define(declaration.getIdentifier(), type);
+					}
+					else {
+						evaluate(value, state, null);
+						store(state.define(declaration.getIdentifier(), type));
+					}
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Evaluate a guard.
+	 * @param guard The guard expression; if null, the guard always holds.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the guard.
+	 */
+	public boolean evaluateGuard (ExprNode guard, Bindings state, Bindings parameters) {
+		boolean result = true;
+		if (guard != null) {
+			if (evaluate(guard, state, parameters) != ValueType.BOOL) {
+				throw new EvaluationException("The guard is of type " + types[0].getTypeName() + ", not bool");
+			}
+			result = (values[0] != 0);
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluate an expression and assign the result to a variable in the security state.
+	 * @param identifier The name of the variable to assign to, which must already be defined in the security state.
+	 * @param value The expression to evaluate.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	public void assign (String identifier, ExprNode value, Bindings state, Bindings parameters) {
+		Bindings.Variable variable = state.lookup(identifier);
+		if (variable == null) {
+			throw new EvaluationException("There's no variable '" + identifier + "' in the security state to assign to");
+		}
+		evaluate(value, state, parameters);
+		store(variable);
+	}
+
+	/**
+	 * Evaluate an expression. The result can be read using getInt(), getBool() or getString(),
+	 * depending on its type.
+	 * @param node The expression to evaluate.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The type of the result.
+	 */
+	public ValueType evaluate (ExprNode node, Bindings state, Bindings parameters) {
+		if (node == null) {
+			throw new EvaluationException("There's no expression to evaluate");
+		}
+		waiting = 0;
+		size = 0;
+		pushWork(node, 0);
+		while (waiting > 0) {
+			waiting--;
+			ExprNode current = work[waiting];
+			int phase = phases[waiting];
+			if (current == null) {
+				throw new EvaluationException("An operation is missing one of its subexpressions");
+			}
+			switch (current.getKind()) {
+			case ICONST:
+				pushValue(ValueType.INT, ((ExprNode.IntConstant)current).getValue(), null);
+				break;
+			case BCONST:
+				pushValue(ValueType.BOOL, ((ExprNode.BoolConstant)current).getValue() ? 1 : 0, null);
+				break;
+			case SCONST:
+				pushValue(ValueType.STRING, 0, ((ExprNode.StringConstant)current).getValue());
+				break;
+			case IDENTIFIER:
+				Bindings.Variable variable = resolve(((ExprNode.Identifier)current).getName(), state, parameters);
+				pushValue(variable.getType(), (variable.getType() == ValueType.STRING) ? 0 : valueOf(variable), (variable.getType() == ValueType.STRING) ? variable.getString() : null);
+				break;
+			case NOT:
+				if (phase == 0) {
+					pushWork(current, 1);
+					pushWork(((ExprNode.UnaryOperation)current).getOperand(), 0);
+				}
+				else {
+					values[size - 1] = checkBool(size - 1, current) ? 0 : 1;
+				}
+				break;
+			case AND:
+			case OR:
+				ExprNode.BinaryOperation logical = (ExprNode.BinaryOperation)current;
+				if (phase == 0) {
+					pushWork(current, 1);
+					pushWork(logical.getLeft(), 0);
+				}
+				else if (phase == 1) {
+					// The right hand side is only needed if the left hand side doesn't decide the result on its own
+					if (checkBool(size - 1, current) == (current.getKind() == NodeKind.AND)) {
+						size--;
+						pushWork(current, 2);
+						pushWork(logical.getRight(), 0);
+					}
+				}
+				else {
+					checkBool(size - 1, current);
+				}
+				break;
+			case INVOCATION:
+				ExprNode.Invocation invocation = (ExprNode.Invocation)current;
+				if (phase == 0) {
+					pushWork(current, 1);
+					// Push the arguments in reverse so that they're evaluated in order
+					for (int index = invocation.getArgumentCount() - 1; index >= 0; index--) {
+						pushWork(invocation.getArgument(index), 0);
+					}
+				}
+				else {
+					invoke(invocation, state, parameters);
+				}
+				break;
+			default:
+				// Everything else is a binary operation whose operands are both needed
+				ExprNode.BinaryOperation binary = (ExprNode.BinaryOperation)current;
+				if (phase == 0) {
+					pushWork(current, 1);
+					pushWork(binary.getRight(), 0);
+					pushWork(binary.getLeft(), 0);
+				}
+				else {
+					apply(current);
+				}
+				break;
+			}
+		}
+		return types[0];
+	}
+
+	/**
+	 * Return the type of the result of the last evaluation.
+	 * @return The type of the result.
+	 */
+	public ValueType getType () {
+		return types[0];
+	}
+
+	/**
+	 * Return the result of the last evaluation, which must have been an integer.
+	 * @return The result.
+	 */
+	public long getInt () {
+		checkResult(ValueType.INT);
+		return values[0];
+	}
+
+	/**
+	 * Return the result of the last evaluation, which must have been a boolean.
+	 * @return The result.
+	 */
+	public boolean getBool () {
+		checkResult(ValueType.BOOL);
+		return (values[0] != 0);
+	}
+
+	/**
+	 * Return the result of the last evaluation, which must have been a string.
+	 * @return The result.
+	 */
+	public String getString () {
+		checkResult(ValueType.STRING);
+		return strings[0];
+	}
+
+	/**
+	 * Check the type of the result of the last evaluation.
+	 * @param expected The type expected.
+	 */
+	private void checkResult (ValueType expected) {
+		if (types[0] != expected) {
+			throw new EvaluationException("The result is of type " + ((types[0] == null) ? "unknown" : types[0].getTypeName()) + ", not " + expected.getTypeName());
+		}
+	}
+
+	/**
+	 * Store the result of the last evaluation in a variable.
+	 * @param variable The variable, which must have the same type as the result.
+	 */
+	private void store (Bindings.Variable variable) {
+		if (variable.getType() != types[0]) {
+			throw new EvaluationException("Can't assign a value of type " + types[0].getTypeName() + " to '" + variable.getName() + "', which is of type " + variable.getType().getTypeName());
+		}
+		switch (types[0]) {
+		case INT:
+			variable.setInt(values[0]);
+			break;
+		case BOOL:
+			variable.setBool(values[0] != 0);
+			break;
+		default:
+			variable.setString(strings[0]);
+			break;
+		}
+	}
+
+	/**
+	 * Find the variable an identifier refers to.
+	 * @param name The identifier.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The variable.
+	 */
+	static Bindings.Variable resolve (String name, Bindings state, Bindings parameters) {
+		Bindings.Variable result = find(name, state, parameters);
+		if (result == null) {
+			throw unbound(name);
+		}
+		return result;
+	}
+
+	/**
+	 * Create an exception for an identifier that isn't bound.
+	 * @param name The identifier.
+	 * @return The exception.
+	 */
+	static EvaluationException unbound (String name) {
+		return new EvaluationException("Identifier '" + name + "' isn't bound to a parameter or a variable in the security state");
+	}
+
+	/**
+	 * Find the variable an identifier refers to, if there is one.
+	 * @param name The identifier.
+	 * @param state The security state, may be null.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The variable, or null if the identifier isn't bound.
+	 */
+	static Bindings.Variable find (String name, Bindings state, Bindings parameters) {
+		Bindings.Variable result = (parameters == null) ? null : parameters.lookup(name);
+		if ((result == null) && (state != null)) {
+			result = state.lookup(name);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the value of an integer or boolean variable as it's held on the stack.
+	 * @param variable The variable.
+	 * @return The integer value, or one or zero for a boolean.
+	 */
+	private static long valueOf (Bindings.Variable variable) {
+		return (variable.getType() == ValueType.INT) ? variable.getInt() : (variable.getBool() ? 1 : 0);
+	}
+
+	/**
+	 * Apply a binary operation to the top two values on the stack, replacing them with the result.
+	 * @param node The operation.
+	 */
+	private void apply (ExprNode node) {
+		int left = size - 2;
+		int right = size - 1;
+		switch (node.getKind()) {
+		case SUM:
+			setInt(left, arithmetic.sum(checkInt(left, node), checkInt(right, node)));
+			break;
+		case DIF:
+			setInt(left, arithmetic.dif(checkInt(left, node), checkInt(right, node)));
+			break;
+		case MUL:
+			setInt(left, arithmetic.mul(checkInt(left, node), checkInt(right, node)));
+			break;
+		case MOD:
+			long dividend = checkInt(left, node);
+			setInt(left, arithmetic.mod(dividend, checkInt(right, node)));
+			break;
+		case MORETHAN:
+			setBool(left, checkInt(left, node) > checkInt(right, node));
+			break;
+		case LESSTHAN:
+			setBool(left, checkInt(left, node) < checkInt(right, node));
+			break;
+		case MOREQUALTHAN:
+			setBool(left, checkInt(left, node) >= checkInt(right, node));
+			break;
+		case LESSEQUALTHAN:
+			setBool(left, checkInt(left, node) <= checkInt(right, node));
+			break;
+		case EQUAL:
+			setBool(left, same(left, right, node));
+			break;
+		case NOTEQUAL:
+			setBool(left, !same(left, right, node));
+			break;
+		case APPEND:
+			String first = checkString(left, node);
+			strings[left] = arithmetic.append(first, checkString(right, node));
+			break;
+		default:
+			throw new EvaluationException("'" + node.getKind().getElementName() + "' isn't a binary operation");
+		}
+		strings[right] = null;
+		size--;
+	}
+
+	/**
+	 * Compare two values on the stack for equality.
+	 * @param left The position of the left hand value.
+	 * @param right The position of the right hand value.
+	 * @param node The comparison, used to describe any problem.
+	 * @return true if the values are of the same type and equal.
+	 */
+	private boolean same (int left, int right, ExprNode node) {
+		if (types[left] != types[right]) {
+			throw new EvaluationException("'" + node.getKind().getSymbol() + "' can't compare a " + types[left].getTypeName() + " with a " + types[right].getTypeName());
+		}
+		return (types[left] == ValueType.STRING) ? strings[left].equals(strings[right]) : (values[left] == values[right]);
+	}
+
+	/**
+	 * Check that a value on the stack is an integer.
+	 * @param index The position of the value.
+	 * @param node The operation using the value, used to describe any problem.
+	 * @return The value.
+	 */
+	private long checkInt (int index, ExprNode node) {
+		if (types[index] != ValueType.INT) {
+			throw new EvaluationException(describe(node) + " needs integer operands, but was given a " + types[index].getTypeName());
+		}
+		return values[index];
+	}
+
+	/**
+	 * Check that a value on the stack is a boolean.
+	 * @param index The position of the value.
+	 * @param node The operation using the value, used to describe any problem.
+	 * @return The value.
+	 */
+	private boolean checkBool (int index, ExprNode node) {
+		if (types[index] != ValueType.BOOL) {
+			throw new EvaluationException(describe(node) + " needs boolean operands, but was given a " + types[index].getTypeName());
+		}
+		return (values[index] != 0);
+	}
+
+	/**
+	 * Check that a value on the stack is a string.
+	 * @param index The position of the value.
+	 * @param node The operation using the value, used to describe any problem.
+	 * @return The value.
+	 */
+	private String checkString (int index, ExprNode node) {
+		if (types[index] != ValueType.STRING) {
+			throw new EvaluationException(describe(node) + " needs string operands, but was given a " + types[index].getTypeName());
+		}
+		return strings[index];
+	}
+
+	/**
+	 * Describe an operation for use in a message.
+	 * @param node The operation.
+	 * @return The operator in quotes.
+	 */
+	private static String describe (ExprNode node) {
+		return "'" + node.getKind().getSymbol() + "'";
+	}
+
+	/**
+	 * Replace a value on the stack with an integer.
+	 * @param index The position of the value.
+	 * @param value The integer.
+	 */
+	private void setInt (int index, long value) {
+		types[index] = ValueType.INT;
+		values[index] = value;
+	}
+
+	/**
+	 * Replace a value on the stack with a boolean.
+	 * @param index The position of the value.
+	 * @param value The boolean.
+	 */
+	private void setBool (int index, boolean value) {
+		types[index] = ValueType.BOOL;
+		values[index] = value ? 1 : 0;
+		strings[index] = null;
+	}
+
+	/**
+	 * Push a node onto the work stack.
+	 * @param node The node.
+	 * @param phase How far through evaluating the node has got.
+	 */
+	private void pushWork (ExprNode node, int phase) {
+		if (waiting == work.length) {
+			ExprNode[] newWork = new ExprNode[waiting * 2];
+			int[] newPhases = new int[waiting * 2];
+			System.arraycopy(work, 0, newWork, 0, waiting);
+			System.arraycopy(phases, 0, newPhases, 0, waiting);
+			work = newWork;
+			phases = newPhases;
+		}
+		work[waiting] = node;
+		phases[waiting] = phase;
+		waiting++;
+	}
+
+	/**
+	 * Push a value onto the value stack.
+	 * @param type The type of the value.
+	 * @param value The integer value, or one or zero for a boolean.
+	 * @param string The string value, or null if the value isn't a string.
+	 */
+	private void pushValue (ValueType type, long value, String string) {
+		if (size == types.length) {
+			ValueType[] newTypes = new ValueType[size * 2];
+			long[] newValues = new long[size * 2];
+			String[] newStrings = new String[size * 2];
+			System.arraycopy(types, 0, newTypes, 0, size);
+			System.arraycopy(values, 0, newValues, 0, size);
+			System.arraycopy(strings, 0, newStrings, 0, size);
+			types = newTypes;
+			values = newValues;
+			strings = newStrings;
+		}
+		types[size] = type;
+		values[size] = value;
+		strings[size] = string;
+		size++;
+	}
+
+	/**
+	 * Invoke a method, replacing its arguments on the stack with the result.
+	 * @param invocation The invocation.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	private void invoke (ExprNode.Invocation invocation, Bindings state, Bindings parameters) {
+		int first = size - invocation.getArgumentCount();
+		Object receiver = null;
+		if (invocation.getIdentifierCount() > 1) {
+			receiver = MethodInvoker.receiver(resolve(invocation.getIdentifier(1), state, parameters));
+		}
+		Object result = invoker.invoke(invocation, receiver, types, values, strings, first);
+
+		// Replace the arguments with the result
+		size = first;
+		ValueType type = MethodInvoker.typeOf(result);
+		pushValue(type, (type == ValueType.STRING) ? 0 : MethodInvoker.valueOf(result), (type == ValueType.STRING) ? MethodInvoker.stringOf(result) : null);
+	}
+}
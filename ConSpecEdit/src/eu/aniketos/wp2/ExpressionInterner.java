@@ -0,0 +1,208 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Shares identical compact subexpressions (hash-consing), so that each distinct subexpression is
+ * held in memory only once however many times it appears in a policy.
+ * Expressions are interned from the leaves upwards. Once the subexpressions of a node have been
+ * replaced by their canonical instances, the node is identified by its kind, its value and the
+ * identities of its subexpressions, so looking it up never needs to compare whole subtrees.
+ * Since a shared subexpression is the same object wherever it appears, an evaluator can use object
+ * identity to work out each one just once per event.
+ * Only the compact ExprNode form is interned, since it's immutable. The JAXBElement hierarchies of
+ * a policy are the document being edited, so sharing their elements would let an edit to one
+ * expression change another. A TypeChecker given an interner interns the compact form of each of a
+ * policy's expressions as it checks it, which is how the monitors share the subexpressions of the
+ * policies they compile.
+ * An interner isn't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionInterner {
+	/**
+	 * Canonical compact nodes.
+	 */
+	private final HashMap<Key, ExprNode> nodes = new HashMap<Key, ExprNode>();
+	/**
+	 * The number of subexpressions looked up.
+	 */
+	private long lookups;
+	/**
+	 * The number of subexpressions that were replaced by an existing canonical instance.
+	 */
+	private long shared;
+	/**
+	 * Walks compact expressions from the leaves upwards, interning each node.
+	 */
+	private final ExprNodeRewriter rewriter = new ExprNodeRewriter() {
+		@Override
+		protected ExprNode rewrite (ExprNode node, ExprNode[] children) {
+			return internNode(node, children);
+		}
+	};
+
+	/**
+	 * Intern a compact expression.
+	 * @param node The root of the expression, may be null.
+	 * @return The canonical instance of the expression, which should be used in place of the original.
+	 */
+	public ExprNode intern (ExprNode node) {
+		return rewriter.apply(node);
+	}
+
+	/**
+	 * Intern a single compact node whose subexpressions have already been interned.
+	 * @param node The original node, may be null.
+	 * @param children The canonical subexpressions of the node.
+	 * @return The canonical instance of the node.
+	 */
+	private ExprNode internNode (ExprNode node, ExprNode[] children) {
+		ExprNode result = node;
+
+		if (node instanceof ExprNode.IntConstant) {
+			result = lookup(nodes, new Key(node.getKind(), ((ExprNode.IntConstant)node).getValue()), node);
+		}
+		else if (node instanceof ExprNode.StringConstant) {
+			result = lookup(nodes, new Key(node.getKind(), ((ExprNode.StringConstant)node).getValue()), node);
+		}
+		else if (node instanceof ExprNode.Identifier) {
+			result = lookup(nodes, new Key(node.getKind(), ((ExprNode.Identifier)node).getName()), node);
+		}
+		else if (node instanceof ExprNode.Invocation) {
+			ExprNode.Invocation invocation = (ExprNode.Invocation)node;
+			String[] identifiers = new String[invocation.getIdentifierCount()];
+			for (int index = 0; index < identifiers.length; index++) {
+				identifiers[index] = invocation.getIdentifier(index);
+			}
+			result = lookup(nodes, new Key(node.getKind(), Arrays.asList(identifiers), (Object[])children), node.withChildren(children));
+		}
+		else if ((node != null) && (node.getChildCount() > 0)) {
+			// Operations
+			result = lookup(nodes, new Key(node.getKind(), null, (Object[])children), node.withChildren(children));
+		}
+		// Boolean constants are already shared
+
+		return result;
+	}
+
+	/**
+	 * Find the canonical instance for a key, making the candidate canonical if there isn't one yet.
+	 * @param table The table of canonical instances.
+	 * @param key The key identifying the subexpression.
+	 * @param candidate The subexpression being interned.
+	 * @return The canonical instance.
+	 */
+	private <T> T lookup (HashMap<Key, T> table, Key key, T candidate) {
+		lookups++;
+		T result = table.get(key);
+		if (result == null) {
+			table.put(key, candidate);
+			result = candidate;
+		}
+		else if (result != candidate) {
+			shared++;
+		}
+		return result;
+	}
+
+	/**
+	 * Forget all of the canonical instances. Expressions already interned remain shared.
+	 */
+	public void clear () {
+		nodes.clear();
+	}
+
+	/**
+	 * Return the number of distinct subexpressions held.
+	 * @return The number of canonical instances.
+	 */
+	public int getSize () {
+		return nodes.size();
+	}
+
+	/**
+	 * Return the number of subexpressions looked up since the interner was created.
+	 * @return The number of lookups.
+	 */
+	public long getLookups () {
+		return lookups;
+	}
+
+	/**
+	 * Return the number of subexpressions that have been replaced by a shared instance.
+	 * @return The number of subexpressions shared.
+	 */
+	public long getShared () {
+		return shared;
+	}
+
+	/**
+	 * Identifies a subexpression whose own subexpressions have already been interned.
+	 * Subexpressions are compared by identity rather than structurally.
+	 */
+	private static final class Key {
+		private final NodeKind kind;
+		private final Object value;
+		private final Object[] children;
+		private final int hash;
+
+		/**
+		 * Create a key.
+		 * @param kind The kind of node.
+		 * @param value The value of a constant or identifier, or the identifiers of an invocation.
+		 * @param children The canonical subexpressions.
+		 */
+		Key (NodeKind kind, Object value, Object... children) {
+			this.kind = kind;
+			this.value = value;
+			this.children = children;
+			int hash = (kind.ordinal() * 31) + Objects.hashCode(value);
+			for (Object child : children) {
+				hash = (hash * 31) + System.identityHashCode(child);
+			}
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode () {
+			return hash;
+		}
+
+		@Override
+		public boolean equals (Object other) {
+			boolean result = (other == this);
+			if (!result && (other instanceof Key)) {
+				Key key = (Key)other;
+				result = (key.hash == hash) && (key.kind == kind) && Objects.equals(key.value, value)
+						&& (key.children.length == children.length);
+				for (int index = 0; result && (index < children.length); index++) {
+					result = (key.children[index] == children[index]);
+				}
+			}
+			return result;
+		}
+	}
+}
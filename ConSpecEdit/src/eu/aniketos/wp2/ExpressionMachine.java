@@ -0,0 +1,800 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+/**
+ * Executes compiled expressions, such as reaction guards and assignment values, against a security
+ * state and the parameters of the method call that triggered a rule.
+ * This is a stack machine: each instruction takes its operands from the top of a value stack and
+ * pushes its result back. Integers and booleans are held on a primitive stack, with strings held
+ * alongside, so executing an expression made up of integers, booleans and identifiers doesn't
+ * allocate anything once the stack has grown to fit. The stack depth each expression needs is
+ * worked out when it's compiled, so the stack is checked once per execution rather than on every push.
+ * Integer and string operations are carried out by a BoundedArithmetic, as for ExpressionEvaluator.
+ * Identifiers are looked up in the parameters first, and then in the security state. Invocations
+ * are made through method handles found by an InvocationResolver, as for ExpressionEvaluator.
+ * Expressions compiled against a StateLayout are executed against a SlotState, reading and writing
+ * the state's variables by index.
+ * A machine isn't thread safe, so each thread should have its own; compiled expressions can be shared.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionMachine {
+	/**
+	 * Invokes the methods named by invocations.
+	 */
+	private final MethodInvoker invoker = new MethodInvoker();
+	/**
+	 * Carries out integer and string operations.
+	 */
+	private BoundedArithmetic arithmetic = BoundedArithmetic.UNCHECKED;
+
+	/**
+	 * The types of the values on the stack.
+	 */
+	private ValueType[] types = new ValueType[16];
+	/**
+	 * The integer and boolean values on the stack; booleans are held as one or zero.
+	 */
+	private long[] values = new long[16];
+	/**
+	 * The string values on the stack.
+	 */
+	private String[] strings = new String[16];
+
+	/**
+	 * Set the class loader used to find the classes of invoked methods.
+	 * @param classLoader The class loader.
+	 */
+	public void setClassLoader (ClassLoader classLoader) {
+		invoker.setClassLoader(classLoader);
+	}
+
+	/**
+	 * Set the resolver used to find invoked methods, in place of one with the default allowlist.
+	 * @param resolver The resolver, which may already have resolved the invocations of a policy
+	 * using the same compiled expressions.
+	 */
+	public void setResolver (InvocationResolver resolver) {
+		invoker.setResolver(resolver);
+	}
+
+	/**
+	 * Set the arithmetic used for integer and string operations.
+	 * @param arithmetic The arithmetic, which applies the policy's bounds to the results of operations.
+	 */
+	public void setArithmetic (BoundedArithmetic arithmetic) {
+		if (arithmetic == null) {
+			throw new IllegalArgumentException("The arithmetic mustn't be null");
+		}
+		this.arithmetic = arithmetic;
+	}
+
+	/**
+	 * Return the arithmetic used for integer and string operations.
+	 * @return The arithmetic.
+	 */
+	public BoundedArithmetic getArithmetic () {
+		return arithmetic;
+	}
+
+	/**
+	 * Execute a compiled guard.
+	 * @param guard The compiled guard.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the guard.
+	 */
+	public boolean evaluateGuard (CompiledExpression guard, Bindings state, Bindings parameters) {
+		if (execute(guard, state, parameters) != ValueType.BOOL) {
+			throw new EvaluationException("The guard is of type " + types[0].getTypeName() + ", not bool");
+		}
+		return (values[0] != 0);
+	}
+
+	/**
+	 * Execute a compiled guard against a security state held in slots.
+	 * @param guard The compiled guard.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the guard.
+	 */
+	public boolean evaluateGuard (CompiledExpression guard, SlotState state, Bindings parameters) {
+		if (execute(guard, state, parameters) != ValueType.BOOL) {
+			throw new EvaluationException("The guard is of type " + types[0].getTypeName() + ", not bool");
+		}
+		return (values[0] != 0);
+	}
+
+	/**
+	 * Execute a compiled expression and assign the result to a variable in the security state.
+	 * @param identifier The name of the variable to assign to, which must already be defined in the security state.
+	 * @param value The compiled expression.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	public void assign (String identifier, CompiledExpression value, Bindings state, Bindings parameters) {
+		Bindings.Variable variable = state.lookup(identifier);
+		if (variable == null) {
+			throw new EvaluationException("There's no variable '" + identifier + "' in the security state to assign to");
+		}
+		execute(value, state, parameters);
+		if (variable.getType() != types[0]) {
+			throw new EvaluationException("Can't assign a value of type " + types[0].getTypeName() + " to '" + variable.getName() + "', which is of type " + variable.getType().getTypeName());
+		}
+		switch (types[0]) {
+		case INT:
+			variable.setInt(values[0]);
+			break;
+		case BOOL:
+			variable.setBool(values[0] != 0);
+			break;
+		default:
+			variable.setString(strings[0]);
+			break;
+		}
+	}
+
+	/**
+	 * Execute a compiled expression and assign the result to a variable in a security state held in slots.
+	 * @param identifier The name of the variable to assign to, which must be declared in the state's layout.
+	 * @param value The compiled expression.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	public void assign (String identifier, CompiledExpression value, SlotState state, Bindings parameters) {
+		int slot = state.getLayout().getSlot(identifier);
+		if (slot < 0) {
+			throw new EvaluationException("There's no variable '" + identifier + "' in the security state to assign to");
+		}
+		assign(slot, value, state, parameters);
+	}
+
+	/**
+	 * Execute a compiled expression and assign the result to the variable in a slot of the security state.
+	 * @param slot The slot of the variable to assign to, as given by the state's layout.
+	 * @param value The compiled expression.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	public void assign (int slot, CompiledExpression value, SlotState state, Bindings parameters) {
+		execute(value, state, parameters);
+		ValueType type = StateLayout.typeOf(slot);
+		int index = StateLayout.indexOf(slot);
+		if (type != types[0]) {
+			throw new EvaluationException("Can't assign a value of type " + types[0].getTypeName() + " to '" + state.getLayout().getName(type, index) + "', which is of type " + type.getTypeName());
+		}
+		switch (type) {
+		case INT:
+			state.ints[index] = values[0];
+			break;
+		case BOOL:
+			state.bools[index] = (values[0] != 0);
+			break;
+		default:
+			state.strings[index] = strings[0];
+			break;
+		}
+		state.changed(type, index);
+	}
+
+	/**
+	 * Execute a compiled expression. The result can be read using getInt(), getBool() or getString(),
+	 * depending on its type.
+	 * @param program The compiled expression.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The type of the result.
+	 */
+	public ValueType execute (CompiledExpression program, Bindings state, Bindings parameters) {
+		return execute(program, state, null, parameters);
+	}
+
+	/**
+	 * Execute a compiled expression against a security state held in slots. The result can be read
+	 * using getInt(), getBool() or getString(), depending on its type.
+	 * @param program The compiled expression.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The type of the result.
+	 */
+	public ValueType execute (CompiledExpression program, SlotState state, Bindings parameters) {
+		return execute(program, null, state, parameters);
+	}
+
+	/**
+	 * Execute a compiled expression against a security state held either in bindings or in slots.
+	 * @param program The compiled expression.
+	 * @param state The security state held in bindings, or null.
+	 * @param slots The security state held in slots, or null.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The type of the result.
+	 */
+	private ValueType execute (CompiledExpression program, Bindings state, SlotState slots, Bindings parameters) {
+		if ((program.layout != null) && ((slots == null) || (slots.getLayout() != program.layout))) {
+			throw new EvaluationException("The expression was compiled for a different security state layout");
+		}
+		if (types.length < program.maxStack) {
+			types = new ValueType[program.maxStack];
+			values = new long[program.maxStack];
+			strings = new String[program.maxStack];
+		}
+		// Code that's been type checked doesn't need to check types as it runs
+		return (program.type == null) ? executeChecked(program, state, slots, parameters) : executeTyped(program, state, slots, parameters);
+	}
+
+	/**
+	 * Execute a compiled expression, checking the type of each operand as it's used.
+	 * @param program The compiled expression.
+	 * @param state The security state held in bindings, or null.
+	 * @param slots The security state held in slots, or null.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The type of the result.
+	 */
+	private ValueType executeChecked (CompiledExpression program, Bindings state, SlotState slots, Bindings parameters) {
+		// Local copies of the fields help the JIT keep them in registers
+		final int[] code = program.code;
+		final ValueType[] types = this.types;
+		final long[] values = this.values;
+		final String[] strings = this.strings;
+		int pc = 0;
+		// The position of the top of the stack
+		int top = -1;
+
+		while (pc < code.length) {
+			int opcode = code[pc];
+			switch (opcode) {
+			case CompiledExpression.PUSH_INT:
+				top++;
+				types[top] = ValueType.INT;
+				values[top] = program.integers[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.PUSH_BOOL:
+				top++;
+				types[top] = ValueType.BOOL;
+				values[top] = code[pc + 1];
+				pc += 2;
+				break;
+			case CompiledExpression.PUSH_STRING:
+				top++;
+				types[top] = ValueType.STRING;
+				strings[top] = program.strings[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD:
+				top++;
+				load(program.names[code[pc + 1]], top, state, slots, parameters);
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD_INT:
+				top++;
+				types[top] = ValueType.INT;
+				values[top] = slots.ints[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD_BOOL:
+				top++;
+				types[top] = ValueType.BOOL;
+				values[top] = slots.bools[code[pc + 1]] ? 1 : 0;
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD_STRING:
+				top++;
+				types[top] = ValueType.STRING;
+				strings[top] = slots.strings[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.SUM:
+				top--;
+				checkInts(top, opcode);
+				values[top] = arithmetic.sum(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.DIF:
+				top--;
+				checkInts(top, opcode);
+				values[top] = arithmetic.dif(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.MUL:
+				top--;
+				checkInts(top, opcode);
+				values[top] = arithmetic.mul(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.MOD:
+				top--;
+				checkInts(top, opcode);
+				values[top] = arithmetic.mod(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.MORETHAN:
+				top--;
+				checkInts(top, opcode);
+				types[top] = ValueType.BOOL;
+				values[top] = (values[top] > values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.LESSTHAN:
+				top--;
+				checkInts(top, opcode);
+				types[top] = ValueType.BOOL;
+				values[top] = (values[top] < values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.MOREQUALTHAN:
+				top--;
+				checkInts(top, opcode);
+				types[top] = ValueType.BOOL;
+				values[top] = (values[top] >= values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.LESSEQUALTHAN:
+				top--;
+				checkInts(top, opcode);
+				types[top] = ValueType.BOOL;
+				values[top] = (values[top] <= values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.EQUAL:
+			case CompiledExpression.NOTEQUAL:
+				top--;
+				boolean same = same(top, opcode);
+				types[top] = ValueType.BOOL;
+				values[top] = (same == (opcode == CompiledExpression.EQUAL)) ? 1 : 0;
+				strings[top] = null;
+				strings[top + 1] = null;
+				pc++;
+				break;
+			case CompiledExpression.APPEND:
+				top--;
+				if (types[top] != ValueType.STRING) {
+					throw wrongType(top, opcode, ValueType.STRING);
+				}
+				if (types[top + 1] != ValueType.STRING) {
+					throw wrongType(top + 1, opcode, ValueType.STRING);
+				}
+				strings[top] = arithmetic.append(strings[top], strings[top + 1]);
+				strings[top + 1] = null;
+				pc++;
+				break;
+			case CompiledExpression.NOT:
+				checkBool(top, opcode);
+				values[top] ^= 1;
+				pc++;
+				break;
+			case CompiledExpression.AND:
+				checkBool(top, opcode);
+				if (values[top] == 0) {
+					pc = code[pc + 1];
+				}
+				else {
+					top--;
+					pc += 2;
+				}
+				break;
+			case CompiledExpression.OR:
+				checkBool(top, opcode);
+				if (values[top] != 0) {
+					pc = code[pc + 1];
+				}
+				else {
+					top--;
+					pc += 2;
+				}
+				break;
+			case CompiledExpression.CHECK_BOOL:
+				checkBool(top, code[pc + 1]);
+				pc += 2;
+				break;
+			case CompiledExpression.INVOKE:
+				top = invoke(program.invocations[code[pc + 1]], top, state, slots, parameters);
+				pc += 2;
+				break;
+			default:
+				throw new EvaluationException("Unknown instruction " + opcode + " at " + pc);
+			}
+		}
+		return types[0];
+	}
+
+	/**
+	 * Execute a compiled expression that's been type checked. The operands are known to be of the right
+	 * types, so only the values are kept on the stack and the types are set once, for the result. The
+	 * only check made is that each identifier loaded by name has the type it was checked against, since
+	 * the parameters it may be bound to are only known when the expression is executed. Such code
+	 * never invokes methods.
+	 * @param program The compiled expression.
+	 * @param state The security state held in bindings, or null.
+	 * @param slots The security state held in slots, or null.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The type of the result.
+	 */
+	private ValueType executeTyped (CompiledExpression program, Bindings state, SlotState slots, Bindings parameters) {
+		// Local copies of the fields help the JIT keep them in registers
+		final int[] code = program.code;
+		final ValueType[] types = this.types;
+		final long[] values = this.values;
+		final String[] strings = this.strings;
+		int pc = 0;
+		// The position of the top of the stack
+		int top = -1;
+
+		while (pc < code.length) {
+			int opcode = code[pc];
+			switch (opcode) {
+			case CompiledExpression.PUSH_INT:
+				top++;
+				values[top] = program.integers[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.PUSH_BOOL:
+				top++;
+				values[top] = code[pc + 1];
+				pc += 2;
+				break;
+			case CompiledExpression.PUSH_STRING:
+				top++;
+				strings[top] = program.strings[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD:
+				top++;
+				load(program.names[code[pc + 1]], top, state, slots, parameters);
+				if (types[top] != program.nameTypes[code[pc + 1]]) {
+					throw new EvaluationException("Identifier '" + program.names[code[pc + 1]] + "' is of type " + types[top].getTypeName()
+							+ ", but the expression was checked with it being of type " + program.nameTypes[code[pc + 1]].getTypeName());
+				}
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD_INT:
+				top++;
+				values[top] = slots.ints[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD_BOOL:
+				top++;
+				values[top] = slots.bools[code[pc + 1]] ? 1 : 0;
+				pc += 2;
+				break;
+			case CompiledExpression.LOAD_STRING:
+				top++;
+				strings[top] = slots.strings[code[pc + 1]];
+				pc += 2;
+				break;
+			case CompiledExpression.SUM:
+				top--;
+				values[top] = arithmetic.sum(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.DIF:
+				top--;
+				values[top] = arithmetic.dif(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.MUL:
+				top--;
+				values[top] = arithmetic.mul(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.MOD:
+				top--;
+				values[top] = arithmetic.mod(values[top], values[top + 1]);
+				pc++;
+				break;
+			case CompiledExpression.MORETHAN:
+				top--;
+				values[top] = (values[top] > values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.LESSTHAN:
+				top--;
+				values[top] = (values[top] < values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.MOREQUALTHAN:
+				top--;
+				values[top] = (values[top] >= values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.LESSEQUALTHAN:
+				top--;
+				values[top] = (values[top] <= values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.EQUAL:
+				top--;
+				values[top] = (values[top] == values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.NOTEQUAL:
+				top--;
+				values[top] = (values[top] != values[top + 1]) ? 1 : 0;
+				pc++;
+				break;
+			case CompiledExpression.EQUAL_STRING:
+			case CompiledExpression.NOTEQUAL_STRING:
+				top--;
+				values[top] = (strings[top].equals(strings[top + 1]) == (opcode == CompiledExpression.EQUAL_STRING)) ? 1 : 0;
+				strings[top] = null;
+				strings[top + 1] = null;
+				pc++;
+				break;
+			case CompiledExpression.APPEND:
+				top--;
+				strings[top] = arithmetic.append(strings[top], strings[top + 1]);
+				strings[top + 1] = null;
+				pc++;
+				break;
+			case CompiledExpression.NOT:
+				values[top] ^= 1;
+				pc++;
+				break;
+			case CompiledExpression.AND:
+				if (values[top] == 0) {
+					pc = code[pc + 1];
+				}
+				else {
+					top--;
+					pc += 2;
+				}
+				break;
+			case CompiledExpression.OR:
+				if (values[top] != 0) {
+					pc = code[pc + 1];
+				}
+				else {
+					top--;
+					pc += 2;
+				}
+				break;
+			case CompiledExpression.CHECK_BOOL:
+				pc += 2;
+				break;
+			default:
+				throw new EvaluationException("Unknown instruction " + opcode + " at " + pc);
+			}
+		}
+		types[0] = program.type;
+		return types[0];
+	}
+
+	/**
+	 * Return the type of the result of the last execution.
+	 * @return The type of the result.
+	 */
+	public ValueType getType () {
+		return types[0];
+	}
+
+	/**
+	 * Return the result of the last execution, which must have been an integer.
+	 * @return The result.
+	 */
+	public long getInt () {
+		checkResult(ValueType.INT);
+		return values[0];
+	}
+
+	/**
+	 * Return the result of the last execution, which must have been a boolean.
+	 * @return The result.
+	 */
+	public boolean getBool () {
+		checkResult(ValueType.BOOL);
+		return (values[0] != 0);
+	}
+
+	/**
+	 * Return the result of the last execution, which must have been a string.
+	 * @return The result.
+	 */
+	public String getString () {
+		checkResult(ValueType.STRING);
+		return strings[0];
+	}
+
+	/**
+	 * Check the type of the result of the last execution.
+	 * @param expected The type expected.
+	 */
+	private void checkResult (ValueType expected) {
+		if (types[0] != expected) {
+			throw new EvaluationException("The result is of type " + ((types[0] == null) ? "unknown" : types[0].getTypeName()) + ", not " + expected.getTypeName());
+		}
+	}
+
+	/**
+	 * Copy the value of a variable, found by name, onto the stack. The parameters are searched first,
+	 * and then the security state, whether it's held in bindings or in slots.
+	 * @param name The name of the variable.
+	 * @param index The position on the stack.
+	 * @param state The security state held in bindings, or null.
+	 * @param slots The security state held in slots, or null.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	private void load (String name, int index, Bindings state, SlotState slots, Bindings parameters) {
+		Bindings.Variable variable = ExpressionEvaluator.find(name, state, parameters);
+		if (variable != null) {
+			load(variable, index);
+		}
+		else {
+			int slot = (slots == null) ? -1 : slots.getLayout().getSlot(name);
+			if (slot < 0) {
+				throw ExpressionEvaluator.unbound(name);
+			}
+			ValueType type = StateLayout.typeOf(slot);
+			int position = StateLayout.indexOf(slot);
+			types[index] = type;
+			switch (type) {
+			case INT:
+				values[index] = slots.ints[position];
+				break;
+			case BOOL:
+				values[index] = slots.bools[position] ? 1 : 0;
+				break;
+			default:
+				strings[index] = slots.strings[position];
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Find the variable a method is invoked on, in the same way as load(), and convert it into an object.
+	 * @param name The name of the variable.
+	 * @param state The security state held in bindings, or null.
+	 * @param slots The security state held in slots, or null.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The object to invoke the method on.
+	 */
+	private static Object receiver (String name, Bindings state, SlotState slots, Bindings parameters) {
+		Object result;
+		Bindings.Variable variable = ExpressionEvaluator.find(name, state, parameters);
+		if (variable != null) {
+			result = MethodInvoker.receiver(variable);
+		}
+		else {
+			int slot = (slots == null) ? -1 : slots.getLayout().getSlot(name);
+			if (slot < 0) {
+				throw ExpressionEvaluator.unbound(name);
+			}
+			int position = StateLayout.indexOf(slot);
+			switch (StateLayout.typeOf(slot)) {
+			case INT:
+				result = Long.valueOf(slots.ints[position]);
+				break;
+			case BOOL:
+				result = Boolean.valueOf(slots.bools[position]);
+				break;
+			default:
+				result = slots.strings[position];
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Copy the value of a variable onto the stack.
+	 * @param variable The variable.
+	 * @param index The position on the stack.
+	 */
+	private void load (Bindings.Variable variable, int index) {
+		ValueType type = variable.getType();
+		types[index] = type;
+		switch (type) {
+		case INT:
+			values[index] = variable.getInt();
+			break;
+		case BOOL:
+			values[index] = variable.getBool() ? 1 : 0;
+			break;
+		default:
+			strings[index] = variable.getString();
+			break;
+		}
+	}
+
+	/**
+	 * Check that a value and the one above it on the stack are both integers.
+	 * @param index The position of the lower value.
+	 * @param opcode The instruction using the values, used to describe any problem.
+	 */
+	private void checkInts (int index, int opcode) {
+		if (types[index] != ValueType.INT) {
+			throw wrongType(index, opcode, ValueType.INT);
+		}
+		if (types[index + 1] != ValueType.INT) {
+			throw wrongType(index + 1, opcode, ValueType.INT);
+		}
+	}
+
+	/**
+	 * Check that a value on the stack is a boolean.
+	 * @param index The position of the value.
+	 * @param opcode The instruction using the value, used to describe any problem.
+	 */
+	private void checkBool (int index, int opcode) {
+		if (types[index] != ValueType.BOOL) {
+			throw wrongType(index, opcode, ValueType.BOOL);
+		}
+	}
+
+	/**
+	 * Compare a value and the one above it on the stack for equality.
+	 * @param index The position of the lower value.
+	 * @param opcode The comparison, used to describe any problem.
+	 * @return true if the values are equal.
+	 */
+	private boolean same (int index, int opcode) {
+		if (types[index] != types[index + 1]) {
+			throw new EvaluationException("'" + CompiledExpression.KINDS[opcode].getSymbol() + "' can't compare a " + types[index].getTypeName() + " with a " + types[index + 1].getTypeName());
+		}
+		return (types[index] == ValueType.STRING) ? strings[index].equals(strings[index + 1]) : (values[index] == values[index + 1]);
+	}
+
+	/**
+	 * Create an exception for an operand of the wrong type.
+	 * @param index The position of the operand on the stack.
+	 * @param opcode The instruction using the operand.
+	 * @param expected The type the instruction needs.
+	 * @return The exception.
+	 */
+	private EvaluationException wrongType (int index, int opcode, ValueType expected) {
+		return new EvaluationException("'" + CompiledExpression.KINDS[opcode].getSymbol() + "' needs " + (expected == ValueType.INT ? "integer" : (expected == ValueType.BOOL ? "boolean" : "string"))
+				+ " operands, but was given a " + types[index].getTypeName());
+	}
+
+	/**
+	 * Invoke a method, replacing its arguments on the stack with the result.
+	 * @param invocation The invocation.
+	 * @param top The position of the top of the stack.
+	 * @param state The security state held in bindings, or null.
+	 * @param slots The security state held in slots, or null.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The new position of the top of the stack.
+	 */
+	private int invoke (ExprNode.Invocation invocation, int top, Bindings state, SlotState slots, Bindings parameters) {
+		int first = top + 1 - invocation.getArgumentCount();
+		Object receiver = null;
+		if (invocation.getIdentifierCount() > 1) {
+			receiver = receiver(invocation.getIdentifier(1), state, slots, parameters);
+		}
+		Object result = invoker.invoke(invocation, receiver, types, values, strings, first);
+
+		// Replace the arguments with the result
+		for (int index = first; index <= top; index++) {
+			strings[index] = null;
+		}
+		ValueType type = MethodInvoker.typeOf(result);
+		types[first] = type;
+		if (type == ValueType.STRING) {
+			strings[first] = MethodInvoker.stringOf(result);
+		}
+		else {
+			values[first] = MethodInvoker.valueOf(result);
+		}
+		return first;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+
+/**
+ * The result of checking a human-readable expression: the expression hierarchy recovered from it,
+ * every problem found, and where in the text each element of the hierarchy came from.
+ * Returned by Expression.check().
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class ExpressionParseResult {
+	/**
+	 * The root of the recovered expression hierarchy.
+	 */
+	private final JAXBElement<?> value;
+	/**
+	 * The problems found, in the order they appear in the expression.
+	 */
+	private final List<ExpressionDiagnostic> diagnostics;
+	/**
+	 * The start and end offsets of each element, packed into the high and low halves of a long.
+	 */
+	private final IdentityHashMap<JAXBElement<?>, Long> positions;
+
+	/**
+	 * Create a result. Only the parser creates these.
+	 * @param value The root of the recovered expression hierarchy.
+	 * @param diagnostics The problems found.
+	 * @param positions The offsets of each element.
+	 */
+	ExpressionParseResult (JAXBElement<?> value, List<ExpressionDiagnostic> diagnostics, IdentityHashMap<JAXBElement<?>, Long> positions) {
+		this.value = value;
+		this.diagnostics = Collections.unmodifiableList(diagnostics);
+		this.positions = positions;
+	}
+
+	/**
+	 * Return the expression hierarchy recovered from the text.
+	 * Where there were errors, missing operands are empty identifiers and missing operators are
+	 * assumed to be <code>&&</code>, so the hierarchy is only useful for locating problems.
+	 * @return The root of the JAXBElement expression hierarchy.
+	 */
+	public JAXBElement<?> getValue () {
+		return value;
+	}
+
+	/**
+	 * Return the problems found in the expression.
+	 * @return An unmodifiable list of problems, in the order they appear in the expression.
+	 */
+	public List<ExpressionDiagnostic> getDiagnostics () {
+		return diagnostics;
+	}
+
+	/**
+	 * Check whether any of the problems found prevent the expression being parsed as written.
+	 * @return true if there is at least one error.
+	 */
+	public boolean hasErrors () {
+		boolean result = false;
+		for (int index = 0; !result && (index < diagnostics.size()); index++) {
+			result = diagnostics.get(index).isError();
+		}
+		return result;
+	}
+
+	/**
+	 * Return where an element of the recovered hierarchy starts in the text.
+	 * @param element An element of the hierarchy returned by getValue().
+	 * @return The offset of the element's first character, or -1 if the element isn't part of the hierarchy.
+	 */
+	public int getStart (JAXBElement<?> element) {
+		Long position = positions.get(element);
+		return (position == null) ? -1 : (int)(position.longValue() >>> 32);
+	}
+
+	/**
+	 * Return where an element of the recovered hierarchy ends in the text.
+	 * @param element An element of the hierarchy returned by getValue().
+	 * @return The offset one beyond the element's last character, or -1 if the element isn't part of the hierarchy.
+	 */
+	public int getEnd (JAXBElement<?> element) {
+		Long position = positions.get(element);
+		return (position == null) ? -1 : (int)position.longValue();
+	}
+}
@@ -0,0 +1,524 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.Binary;
+import eu.aniketos.Unary;
+
+/**
+ * Operator-precedence parser that converts a tokenised human-readable expression into a JAXBElement object hierarchy.
+ * The parser walks the token list with a cursor rather than repeatedly copying the remaining text,
+ * so parsing is linear in the length of the expression.
+ * The precedence levels (from loosest to tightest) match those of the original parser:
+ * append; and/or; more/less than; comparisons with equivalence; sum/difference; multiply/modulus; not; brackets.
+ * Elements are created using the canonical QName instances held by NodeKind.
+ * <p>
+ * In recovery mode the parser carries on past errors rather than stopping at the first one, so that
+ * every problem can be reported in a single pass. Missing operands are replaced by empty identifiers,
+ * missing operators by <code>&&</code>, unmatched closing brackets are skipped, and a lone <code>&</code>
+ * or <code>=</code> is read as <code>&&</code> or <code>==</code>. The position of every element in the
+ * original text is recorded too.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class ExpressionParser {
+	/**
+	 * The tokens being parsed.
+	 */
+	private final ExpressionTokeniser tokens;
+	/**
+	 * The index of the next token to be consumed.
+	 */
+	private int cursor;
+	/**
+	 * Whether to carry on past errors, recording diagnostics and element positions.
+	 */
+	private final boolean recover;
+	/**
+	 * The problems found so far, when recovering.
+	 */
+	private ArrayList<ExpressionDiagnostic> diagnostics;
+	/**
+	 * The start and end offsets of each element created, when recovering.
+	 */
+	private IdentityHashMap<JAXBElement<?>, Long> positions;
+
+	/**
+	 * Pending operators; null marks an open bracket.
+	 */
+	private final ArrayList<NodeKind> operators = new ArrayList<NodeKind>();
+	/**
+	 * The offset in the original text of each pending operator.
+	 */
+	private final int[] operatorStarts;
+	/**
+	 * Operands waiting for their operators.
+	 */
+	private final ArrayList<JAXBElement<?>> operands = new ArrayList<JAXBElement<?>>();
+	/**
+	 * The offset in the original text of the first character of each waiting operand.
+	 */
+	private final int[] operandStarts;
+	/**
+	 * The offset in the original text one beyond the last character of each waiting operand.
+	 */
+	private final int[] operandEnds;
+
+	/**
+	 * Set up a parser for the given expression, which stops at the first error.
+	 * @param expression The expression in human-readable form to be parsed.
+	 */
+	ExpressionParser (String expression) {
+		this(expression, false);
+	}
+
+	/**
+	 * Set up a parser for the given expression.
+	 * @param expression The expression in human-readable form to be parsed.
+	 * @param recover true to carry on past errors and record diagnostics, or false to stop at the first error.
+	 */
+	ExpressionParser (String expression, boolean recover) {
+		tokens = new ExpressionTokeniser(expression);
+		cursor = 0;
+		this.recover = recover;
+		// There can never be more operators or operands than tokens, plus any inserted during recovery
+		int size = (tokens.getCount() * 2) + 2;
+		operatorStarts = new int[size];
+		operandStarts = new int[size];
+		operandEnds = new int[size];
+	}
+
+	/**
+	 * Parse the full expression.
+	 * Parsing stops at the first token that can't continue the expression; this can be checked using getRemaining().
+	 * Operators and operands are held on explicit stacks (the shunting-yard algorithm) rather than the
+	 * call stack, so the depth of brackets and operator chains is limited only by the heap.
+	 * @return The root of the JAXBElement expression hierarchy.
+	 */
+	JAXBElement<?> parse () {
+		int brackets = 0;
+		boolean expectOperand = true;
+		boolean more = true;
+
+		cursor = 0;
+		operators.clear();
+		operands.clear();
+		if (recover) {
+			diagnostics = new ArrayList<ExpressionDiagnostic>();
+			positions = new IdentityHashMap<JAXBElement<?>, Long>();
+		}
+
+		while (more) {
+			int type = tokens.getType(cursor);
+			if (expectOperand) {
+				switch (type) {
+				case ExpressionTokeniser.NOT:
+					pushOperator(NodeKind.NOT, tokens.getSourceStart(cursor));
+					cursor++;
+					break;
+				case ExpressionTokeniser.OPEN:
+					pushOperator(null, tokens.getSourceStart(cursor));
+					cursor++;
+					brackets++;
+					break;
+				default:
+					// A constant, or if there isn't one, an empty identifier
+					int start = tokens.getSourceStart(cursor);
+					int end = start;
+					if (type == ExpressionTokeniser.CONSTANT) {
+						end = tokens.getSourceEnd(cursor);
+						if (recover) {
+							checkConstant(cursor);
+						}
+					}
+					else if (recover) {
+						error(start, 0, (type == ExpressionTokeniser.END) ? "Expected a value at the end of the expression" : "Expected a value before '" + tokenText(cursor) + "'");
+					}
+					pushOperand(parseConstant(), start, end);
+					expectOperand = false;
+					break;
+				}
+			}
+			else {
+				NodeKind kind = binaryKind(type);
+				if ((kind == null) && recover && (type == ExpressionTokeniser.UNKNOWN)) {
+					// A lone '&' or '=' was probably meant to be '&&' or '=='
+					String text = tokenText(cursor);
+					kind = text.equals("&") ? NodeKind.AND : NodeKind.EQUAL;
+					error(tokens.getSourceStart(cursor), 1, "'" + text + "' isn't an operator; use '" + kind.getSymbol() + "' instead");
+				}
+
+				if (kind != null) {
+					// Operators associate to the left, so apply any waiting operators that bind at least as tightly
+					int start = tokens.getSourceStart(cursor);
+					cursor++;
+					reduce(kind.getPrecedence());
+					pushOperator(kind, start);
+					expectOperand = true;
+				}
+				else if ((type == ExpressionTokeniser.CLOSE) && (brackets > 0)) {
+					cursor++;
+					reduce(0);
+					operators.remove(operators.size() - 1);
+					brackets--;
+				}
+				else if (recover && (type == ExpressionTokeniser.CLOSE)) {
+					error(tokens.getSourceStart(cursor), 1, "There's no '(' to match this ')'");
+					cursor++;
+				}
+				else if (recover && (type != ExpressionTokeniser.END)) {
+					// Assume the missing operator is an 'and' so the rest of the expression can still be checked
+					error(tokens.getSourceStart(cursor), 0, "Expected an operator before '" + tokenText(cursor) + "'");
+					reduce(NodeKind.AND.getPrecedence());
+					pushOperator(NodeKind.AND, tokens.getSourceStart(cursor));
+					expectOperand = true;
+				}
+				else {
+					// The expression can't be continued; a missing closing bracket is tolerated
+					more = false;
+				}
+			}
+		}
+
+		// Apply everything that's left, discarding any unclosed brackets
+		while (!operators.isEmpty()) {
+			reduce(0);
+			if (!operators.isEmpty()) {
+				if (recover) {
+					error(operatorStarts[operators.size() - 1], 1, "There's no ')' to match this '('");
+				}
+				operators.remove(operators.size() - 1);
+			}
+		}
+
+		return operands.get(0);
+	}
+
+	/**
+	 * Parse the full expression in recovery mode, collecting every problem found.
+	 * @return The recovered expression hierarchy, the problems found and the positions of the elements.
+	 */
+	ExpressionParseResult check () {
+		JAXBElement<?> value = parse();
+		// Problems with brackets are found out of order, so put them back into order
+		Collections.sort(diagnostics, new Comparator<ExpressionDiagnostic>() {
+			@Override
+			public int compare (ExpressionDiagnostic first, ExpressionDiagnostic second) {
+				return (first.getOffset() < second.getOffset()) ? -1 : ((first.getOffset() == second.getOffset()) ? 0 : 1);
+			}
+		});
+		return new ExpressionParseResult(value, diagnostics, positions);
+	}
+
+	/**
+	 * Record an error.
+	 * @param offset The offset in the original text of the start of the problem.
+	 * @param length The number of characters the problem covers.
+	 * @param message A description of the problem.
+	 */
+	private void error (int offset, int length, String message) {
+		diagnostics.add(new ExpressionDiagnostic(ExpressionDiagnostic.ERROR, offset, length, message));
+	}
+
+	/**
+	 * Record a warning.
+	 * @param offset The offset in the original text of the start of the problem.
+	 * @param length The number of characters the problem covers.
+	 * @param message A description of the problem.
+	 */
+	private void warning (int offset, int length, String message) {
+		diagnostics.add(new ExpressionDiagnostic(ExpressionDiagnostic.WARNING, offset, length, message));
+	}
+
+	/**
+	 * Return the text of a token, for use in messages.
+	 * @param index The index of the token.
+	 * @return The token's text, with spaces removed.
+	 */
+	private String tokenText (int index) {
+		return new String(tokens.getText(), tokens.getStart(index), tokens.getEnd(index) - tokens.getStart(index));
+	}
+
+	/**
+	 * Check a constant token for problems that don't stop it being parsed, but mean it probably won't do what was intended.
+	 * @param index The index of the constant token.
+	 */
+	private void checkConstant (int index) {
+		char[] text = tokens.getText();
+		int start = tokens.getStart(index);
+		int end = tokens.getEnd(index);
+		int offset = tokens.getSourceStart(index);
+		int length = tokens.getSourceEnd(index) - offset;
+
+		if (text[start] == '"') {
+			if ((end - start < 2) || (text[end - 1] != '"')) {
+				error(offset, length, "The string " + tokenText(index) + " has no closing '\"'");
+			}
+			else if (length != end - start) {
+				warning(offset, length, "Spaces inside the string " + tokenText(index) + " will be removed");
+			}
+		}
+		else if (Character.isDigit(text[start])) {
+			if (parseInteger(text, start, end) < 0) {
+				error(offset, length, "'" + tokenText(index) + "' isn't a valid integer");
+			}
+		}
+		else if (length != end - start) {
+			warning(offset, length, "Spaces inside '" + tokenText(index) + "' will be removed");
+		}
+	}
+
+	/**
+	 * Push an operator, or an open bracket, onto the operator stack.
+	 * @param kind The operator, or null for an open bracket.
+	 * @param start The offset of the operator in the original text.
+	 */
+	private void pushOperator (NodeKind kind, int start) {
+		operatorStarts[operators.size()] = start;
+		operators.add(kind);
+	}
+
+	/**
+	 * Push an operand onto the operand stack.
+	 * @param value The operand.
+	 * @param start The offset of its first character in the original text.
+	 * @param end The offset one beyond its last character in the original text.
+	 */
+	private void pushOperand (JAXBElement<?> value, int start, int end) {
+		operandStarts[operands.size()] = start;
+		operandEnds[operands.size()] = end;
+		operands.add(value);
+		if (positions != null) {
+			positions.put(value, Long.valueOf(((long)start << 32) | (end & 0xffffffffL)));
+		}
+	}
+
+	/**
+	 * Apply waiting operators to their operands, until reaching an open bracket or an operator that binds less tightly.
+	 * The results replace the operands that were used on the operand stack.
+	 * @param precedence The lowest precedence of operator to apply.
+	 */
+	private void reduce (int precedence) {
+		boolean more = true;
+		while (more && !operators.isEmpty()) {
+			NodeKind kind = operators.get(operators.size() - 1);
+			if ((kind == null) || (kind.getPrecedence() < precedence)) {
+				more = false;
+			}
+			else {
+				int operatorStart = operatorStarts[operators.size() - 1];
+				operators.remove(operators.size() - 1);
+				int end = operandEnds[operands.size() - 1];
+				JAXBElement<?> rhs = operands.remove(operands.size() - 1);
+				if (kind.isBinary()) {
+					int start = operandStarts[operands.size() - 1];
+					JAXBElement<?> lhs = operands.remove(operands.size() - 1);
+					pushOperand(binary(kind, lhs, rhs), start, end);
+				}
+				else {
+					pushOperand(unary(kind, rhs), operatorStart, end);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the binary operation for a token.
+	 * @param type The type of the token.
+	 * @return The kind of binary operation, or null if the token isn't a binary operator.
+	 */
+	private static NodeKind binaryKind (int type) {
+		NodeKind result;
+		switch (type) {
+		case ExpressionTokeniser.APPEND:
+			result = NodeKind.APPEND;
+			break;
+		case ExpressionTokeniser.OR:
+			result = NodeKind.OR;
+			break;
+		case ExpressionTokeniser.AND:
+			result = NodeKind.AND;
+			break;
+		case ExpressionTokeniser.MORETHAN:
+			result = NodeKind.MORETHAN;
+			break;
+		case ExpressionTokeniser.LESSTHAN:
+			result = NodeKind.LESSTHAN;
+			break;
+		case ExpressionTokeniser.MOREQUALTHAN:
+			result = NodeKind.MOREQUALTHAN;
+			break;
+		case ExpressionTokeniser.LESSEQUALTHAN:
+			result = NodeKind.LESSEQUALTHAN;
+			break;
+		case ExpressionTokeniser.EQUAL:
+			result = NodeKind.EQUAL;
+			break;
+		case ExpressionTokeniser.NOTEQUAL:
+			result = NodeKind.NOTEQUAL;
+			break;
+		case ExpressionTokeniser.SUM:
+			result = NodeKind.SUM;
+			break;
+		case ExpressionTokeniser.DIF:
+			result = NodeKind.DIF;
+			break;
+		case ExpressionTokeniser.MUL:
+			result = NodeKind.MUL;
+			break;
+		case ExpressionTokeniser.MOD:
+			result = NodeKind.MOD;
+			break;
+		default:
+			result = null;
+			break;
+		}
+		return result;
+	}
+
+	/**
+	 * Return any text that was left unparsed.
+	 * @return The text from the first unconsumed token onwards, or an empty string if everything was consumed.
+	 */
+	String getRemaining () {
+		return tokens.getRemaining(cursor);
+	}
+
+	/**
+	 * Convert a constant value into an object.
+	 * If it's not a boolean, string or number, whatever's left must be an identifier.
+	 * If there's no constant at the cursor an empty identifier is returned without consuming anything.
+	 * @return The converted JAXBElement object.
+	 */
+	private JAXBElement<?> parseConstant () {
+		JAXBElement<?> result;
+		int start;
+		int end;
+
+		if (tokens.getType(cursor) == ExpressionTokeniser.CONSTANT) {
+			start = tokens.getStart(cursor);
+			end = tokens.getEnd(cursor);
+			cursor++;
+		}
+		else {
+			start = 0;
+			end = 0;
+		}
+
+		char[] text = tokens.getText();
+		int length = end - start;
+		if (matches(text, start, end, "true")) {
+			result = new JAXBElement<Boolean>(NodeKind.BCONST.getQName(), Boolean.class, Boolean.TRUE);
+		}
+		else if (matches(text, start, end, "false")) {
+			result = new JAXBElement<Boolean>(NodeKind.BCONST.getQName(), Boolean.class, Boolean.FALSE);
+		}
+		else if ((length >= 2) && (text[start] == '"') && (text[end - 1] == '"')) {
+			result = new JAXBElement<String>(NodeKind.SCONST.getQName(), String.class, new String(text, start + 1, length - 2));
+		}
+		else {
+			long num = parseInteger(text, start, end);
+			if (num >= 0) {
+				result = new JAXBElement<BigInteger>(NodeKind.ICONST.getQName(), BigInteger.class, BigInteger.valueOf(num));
+			}
+			else {
+				result = new JAXBElement<String>(NodeKind.IDENTIFIER.getQName(), String.class, new String(text, start, length));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Check whether a section of a character buffer matches a string exactly.
+	 * @param text The character buffer.
+	 * @param start The offset of the first character to compare.
+	 * @param end The offset one beyond the last character to compare.
+	 * @param match The string to compare against.
+	 * @return true if the section and the string are identical.
+	 */
+	private static boolean matches (char[] text, int start, int end, String match) {
+		boolean result = ((end - start) == match.length());
+		for (int pos = 0; result && (pos < match.length()); pos++) {
+			result = (text[start + pos] == match.charAt(pos));
+		}
+		return result;
+	}
+
+	/**
+	 * Convert a section of a character buffer into a non-negative integer without throwing an exception.
+	 * Accepts exactly the unsigned values that Integer.parseInt() would accept.
+	 * @param text The character buffer.
+	 * @param start The offset of the first character of the number.
+	 * @param end The offset one beyond the last character of the number.
+	 * @return The integer value, or -1 if the text is not a valid integer.
+	 */
+	private static long parseInteger (char[] text, int start, int end) {
+		long num = (end > start) ? 0 : -1;
+		for (int pos = start; (num >= 0) && (pos < end); pos++) {
+			int digit = Character.digit(text[pos], 10);
+			if (digit < 0) {
+				num = -1;
+			}
+			else {
+				num = (num * 10) + digit;
+				if (num > Integer.MAX_VALUE) {
+					num = -1;
+				}
+			}
+		}
+		return num;
+	}
+
+	/**
+	 * Create a binary operation element.
+	 * @param kind The kind of binary operation.
+	 * @param lhs The left hand side of the operation.
+	 * @param rhs The right hand side of the operation.
+	 * @return The new JAXBElement containing the operation.
+	 */
+	private static JAXBElement<Binary> binary (NodeKind kind, JAXBElement<?> lhs, JAXBElement<?> rhs) {
+		Binary binary = new Binary();
+		binary.getExpType().add(lhs);
+		binary.getExpType().add(rhs);
+		return new JAXBElement<Binary>(kind.getQName(), Binary.class, binary);
+	}
+
+	/**
+	 * Create a unary operation element.
+	 * @param kind The kind of unary operation.
+	 * @param operand The operand the operation applies to.
+	 * @return The new JAXBElement containing the operation.
+	 */
+	private static JAXBElement<Unary> unary (NodeKind kind, JAXBElement<?> operand) {
+		Unary unary = new Unary();
+		unary.setExpType(operand);
+		return new JAXBElement<Unary>(kind.getQName(), Unary.class, unary);
+	}
+}
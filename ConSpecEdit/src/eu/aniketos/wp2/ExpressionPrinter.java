@@ -0,0 +1,217 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.Binary;
+import eu.aniketos.InvocationType;
+import eu.aniketos.Unary;
+
+/**
+ * Writes JAXBElement expression hierarchies out in human-readable form.
+ * Output is streamed straight into an Appendable (such as a StringBuilder or Writer), rather than
+ * being built up by concatenating strings, so printing is linear in the size of the expression.
+ * The hierarchy is walked using an explicit stack, so the depth of expression that can be printed
+ * is limited only by the heap.
+ * Brackets are only added where the precedence of the operators requires them, so that the
+ * output of an expression made up of operators, identifiers and constants parses back into the same
+ * hierarchy, with two exceptions. The parser removes every space, including those within string
+ * constants, and it has no syntax for invocations. So the output is only guaranteed to parse back
+ * for expressions without invocations, and without spaces in their string constants.
+ * Invocations are written for reading as the method identifier followed by the remaining identifiers
+ * and the arguments in brackets, for example <code>java.lang.String.equals(host, last)</code>.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class ExpressionPrinter {
+	/**
+	 * The destination for the output.
+	 */
+	private final Appendable out;
+	/**
+	 * The parts of the expression still to be printed, most recent last.
+	 */
+	private final ArrayList<Object> pending = new ArrayList<Object>();
+
+	/**
+	 * Private initialiser; use the static print() method.
+	 * @param out The destination for the output.
+	 */
+	private ExpressionPrinter (Appendable out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write an expression out in human-readable form.
+	 * @param value The root of the JAXBElement expression hierarchy to print.
+	 * @param out The destination to write the expression to.
+	 * @throws IOException if the destination can't be written to.
+	 */
+	public static void print (JAXBElement<?> value, Appendable out) throws IOException {
+		new ExpressionPrinter(out).printNode(value);
+	}
+
+	/**
+	 * Convert an expression into a human-readable string.
+	 * @param value The root of the JAXBElement expression hierarchy to convert.
+	 * @return The expression in human-readable form.
+	 */
+	public static String toString (JAXBElement<?> value) {
+		StringBuilder text = new StringBuilder();
+		try {
+			print(value, text);
+		}
+		catch (IOException e) {
+			// A StringBuilder never throws
+			throw new IllegalStateException(e);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Return the precedence of an expression element.
+	 * @param value The element.
+	 * @return The precedence of the element's operator, or PRIMARY if it doesn't need bracketing.
+	 */
+	private static int precedenceOf (JAXBElement<?> value) {
+		NodeKind kind = (value == null) ? null : NodeKind.forName(value.getName());
+		return (kind == null) ? NodeKind.PRIMARY : kind.getPrecedence();
+	}
+
+	/**
+	 * Queue up a subexpression to be printed.
+	 * @param value The subexpression to print.
+	 * @param minimum The lowest precedence that can be printed without brackets.
+	 */
+	private void pushOperand (JAXBElement<?> value, int minimum) {
+		pending.add(value);
+		pending.add(Integer.valueOf(minimum));
+	}
+
+	/**
+	 * Print an expression element and its subexpressions.
+	 * Rather than recursing, the work still to be done is kept on an explicit stack, so there's no limit
+	 * on the depth of expression that can be printed. Each entry on the stack is either a string to be
+	 * output as it is, or an element followed by the lowest precedence it can be printed at without brackets.
+	 * Entries are pushed in reverse order, so that they come off the stack in the order they're printed.
+	 * @param root The element to print.
+	 * @throws IOException if the destination can't be written to.
+	 */
+	private void printNode (JAXBElement<?> root) throws IOException {
+		pushOperand(root, 0);
+		while (!pending.isEmpty()) {
+			Object item = pending.remove(pending.size() - 1);
+			if (item instanceof String) {
+				out.append((String)item);
+			}
+			else {
+				int minimum = (Integer)item;
+				JAXBElement<?> value = (JAXBElement<?>)pending.remove(pending.size() - 1);
+				if (precedenceOf(value) < minimum) {
+					pending.add(")");
+					pushContents(value);
+					pending.add("(");
+				}
+				else {
+					pushContents(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue up the parts of an expression element to be printed.
+	 * @param value The element to print.
+	 */
+	private void pushContents (JAXBElement<?> value) {
+		if (value == null) {
+			// There is no value; this shouldn't happen, but we need it just in case.
+			pending.add("[NULL]");
+		}
+		else {
+			NodeKind kind = NodeKind.forName(value.getName());
+			if (kind == null) {
+				// This shouldn't happen, but we need it just in case.
+				pending.add("[UNKNOWN]");
+			}
+			else {
+				switch (kind) {
+				case ICONST:
+				case BCONST:
+				case IDENTIFIER:
+					pending.add(String.valueOf(value.getValue()));
+					break;
+				case SCONST:
+					pending.add("\"" + value.getValue() + "\"");
+					break;
+				case NOT:
+					pushOperand(((Unary)value.getValue()).getExpType(), kind.getPrecedence());
+					pending.add(kind.getSymbol());
+					break;
+				case INVOCATION:
+					pushInvocation((InvocationType)value.getValue());
+					break;
+				default:
+					// Everything else is a binary operation.
+					// Operators associate to the left, so the right hand side must bind more tightly to avoid brackets.
+					List<JAXBElement<?>> params = ((Binary)value.getValue()).getExpType();
+					pushOperand(params.get(1), kind.getPrecedence() + 1);
+					pending.add(" " + kind.getSymbol() + " ");
+					pushOperand(params.get(0), kind.getPrecedence());
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue up a method invocation to be printed.
+	 * @param invocation The invocation to print.
+	 */
+	private void pushInvocation (InvocationType invocation) {
+		List<String> identifiers = invocation.getIdentifier();
+		List<InvocationType.Argument> arguments = invocation.getArgument();
+
+		// The first identifier is the method; everything else goes in the brackets
+		pending.add(")");
+		for (int index = arguments.size() - 1; index >= 0; index--) {
+			pushOperand(arguments.get(index).getExpType(), 0);
+			if ((index > 0) || (identifiers.size() > 1)) {
+				pending.add(", ");
+			}
+		}
+		for (int index = identifiers.size() - 1; index >= 1; index--) {
+			pending.add(identifiers.get(index));
+			if (index > 1) {
+				pending.add(", ");
+			}
+		}
+		pending.add("(");
+		if (identifiers.size() > 0) {
+			pending.add(identifiers.get(0));
+		}
+	}
+}
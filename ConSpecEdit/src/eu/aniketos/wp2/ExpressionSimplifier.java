@@ -0,0 +1,626 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.AssignType;
+import eu.aniketos.DeclType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.UpdateType;
+
+/**
+ * Folds constants and removes redundant operations from expressions, so that expressions such as
+ * <code>(7 * 4) + 10</code>, <code>true && x</code> and <code>!!b</code> don't have to be worked out
+ * every time a rule is evaluated.
+ * Integer arithmetic is only folded when the operands and the result all lie between zero and the
+ * policy's maxint, and strings are only joined when the result is no longer than maxlen; anything
+ * outside these bounds is left for the evaluator to deal with at runtime. Without a maxint, integers
+ * are folded whenever the result fits in a long, and without a maxlen, strings are always joined. Subexpressions are only
+ * discarded if they contain no method invocations, since these may have side effects, and no '%',
+ * which fails for a zero modulus.
+ * An expression that hasn't been type checked may refer to variables that aren't bound, or apply
+ * operations to values of the wrong type, either of which fails when it's evaluated. So simplify()
+ * only folds constants and drops subexpressions that are never evaluated, such as the right hand side
+ * of <code>false && x</code>, leaving every operation applied to anything but constants in place.
+ * Removing identities such as <code>true && x</code> and <code>x * 1</code>, and discarding operands
+ * that don't affect the result, such as x in <code>x && false</code>, are only done by simplifyTyped(),
+ * for expressions known to be well typed.
+ * A simplifier created for the BoundedArithmetic an evaluator uses also keeps the evaluator's
+ * failures and bounds. It never discards arithmetic that reports violations of the bounds, so a call
+ * that would have been denied still is. It also leaves identities such as <code>x + 0</code> and
+ * <code>s | ""</code> alone when values are bounded, since the evaluator applies the bounds to their
+ * results but wouldn't to x or s alone.
+ * Evaluators should pass expressions through simplify() before evaluating them.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class ExpressionSimplifier {
+	/**
+	 * The largest integer value the policy allows, or -1 if there's no limit.
+	 */
+	private final long maxint;
+	/**
+	 * The smallest integer folding may use or produce.
+	 */
+	private final long min;
+	/**
+	 * The largest integer folding may use or produce.
+	 */
+	private final long max;
+	/**
+	 * The longest string the policy allows, or -1 if there's no limit.
+	 */
+	private final long maxlen;
+	/**
+	 * True if identities may be removed, because the evaluator doesn't apply bounds to the results of operations.
+	 */
+	private final boolean identities;
+	/**
+	 * True if arithmetic fails when its result is outside the bounds, so it mustn't be discarded.
+	 */
+	private final boolean arithmeticFails;
+	/**
+	 * Walks expressions from the leaves upwards, applying the simplification rules that hold for any
+	 * expression to each node.
+	 */
+	private final ExprNodeRewriter rewriter = new ExprNodeRewriter() {
+		@Override
+		protected ExprNode rewrite (ExprNode node, ExprNode[] children) {
+			return simplifyNode(node, children, false);
+		}
+	};
+	/**
+	 * Walks expressions from the leaves upwards, applying every simplification rule that holds for a
+	 * well typed expression to each node.
+	 */
+	private final ExprNodeRewriter typedRewriter = new ExprNodeRewriter() {
+		@Override
+		protected ExprNode rewrite (ExprNode node, ExprNode[] children) {
+			return simplifyNode(node, children, true);
+		}
+	};
+
+	/**
+	 * Create a simplifier for the given policy bounds.
+	 * @param maxint The largest integer value the policy allows, or -1 if integers may take any long value.
+	 * @param maxlen The longest string the policy allows, or -1 if strings may be any length.
+	 */
+	public ExpressionSimplifier (long maxint, long maxlen) {
+		this.maxint = (maxint < 0) ? -1 : maxint;
+		this.maxlen = (maxlen < 0) ? -1 : maxlen;
+		min = (maxint < 0) ? Long.MIN_VALUE : 0;
+		max = (maxint < 0) ? Long.MAX_VALUE : maxint;
+		identities = true;
+		arithmeticFails = false;
+	}
+
+	/**
+	 * Create a simplifier for expressions evaluated with the arithmetic given, which keeps the failures
+	 * and bounds it applies.
+	 * @param arithmetic The arithmetic the simplified expressions will be evaluated with.
+	 */
+	public ExpressionSimplifier (BoundedArithmetic arithmetic) {
+		min = arithmetic.getMin();
+		max = arithmetic.getMax();
+		maxint = (min == Long.MIN_VALUE) ? -1 : max;
+		maxlen = arithmetic.getMaxlen();
+		identities = (maxint < 0) && (maxlen < 0);
+		arithmeticFails = (arithmetic.getOverflow() == BoundedArithmetic.Overflow.VIOLATION);
+	}
+
+	/**
+	 * Create a simplifier using the bounds set by a policy.
+	 * @param spec The policy; if either bound is missing, the values it applies to aren't bounded.
+	 * @return The simplifier.
+	 */
+	public static ExpressionSimplifier forSpecification (Specification spec) {
+		return new ExpressionSimplifier(bound(spec.getMaxint()), bound(spec.getMaxlen()));
+	}
+
+	/**
+	 * Create a simplifier for expressions evaluated with a policy's bounds, which keeps the failures
+	 * and bounds the evaluator applies.
+	 * @param spec The policy.
+	 * @param overflow What happens to results outside the policy's bounds.
+	 * @return The simplifier.
+	 */
+	public static ExpressionSimplifier forSpecification (Specification spec, BoundedArithmetic.Overflow overflow) {
+		return new ExpressionSimplifier(BoundedArithmetic.forSpecification(spec, overflow));
+	}
+
+	/**
+	 * Convert a policy bound into a long.
+	 * @param value The bound from the policy, may be null.
+	 * @return The bound, -1 if there isn't one, or Long.MAX_VALUE if it's too big to fit.
+	 */
+	static long bound (BigInteger value) {
+		long result;
+		if (value == null) {
+			result = -1;
+		}
+		else if (value.bitLength() > 63) {
+			result = Long.MAX_VALUE;
+		}
+		else {
+			result = value.longValue();
+		}
+		return result;
+	}
+
+	/**
+	 * Return the largest integer value that will be produced by folding.
+	 * @return The maxint bound, or -1 if any long value may be produced.
+	 */
+	public long getMaxint () {
+		return maxint;
+	}
+
+	/**
+	 * Return the longest string that will be produced by folding.
+	 * @return The maxlen bound, or -1 if strings of any length may be produced.
+	 */
+	public long getMaxlen () {
+		return maxlen;
+	}
+
+	/**
+	 * Simplify every expression in a policy: the declaration initialisers, and the guards and
+	 * assignments of every reaction. Expressions that can't be simplified are left untouched.
+	 * @param spec The policy to simplify.
+	 * @return The number of expressions that were changed.
+	 */
+	public int simplify (Specification spec) {
+		int changed = 0;
+
+		// Declarations
+		if (spec.getSecuritystate() != null) {
+			for (DeclType declaration : spec.getSecuritystate().getDeclaration()) {
+				DeclType.Value value = declaration.getValue();
+				if (value != null) {
+					JAXBElement<?> simplified = simplify(value.getExpType());
+					if (simplified != value.getExpType()) {
+						value.setExpType(simplified);
+						changed++;
+					}
+				}
+			}
+		}
+
+		// Rules
+		for (RuleType rule : spec.getRule()) {
+			if (rule.getPerform() != null) {
+				for (ReactionType reaction : rule.getPerform().getReaction()) {
+					ReactionType.Guard guard = reaction.getGuard();
+					if (guard != null) {
+						JAXBElement<?> simplified = simplify(guard.getExpType());
+						if (simplified != guard.getExpType()) {
+							guard.setExpType(simplified);
+							changed++;
+						}
+					}
+					changed += simplify(reaction.getUpdate());
+				}
+				changed += simplify(rule.getPerform().getElse());
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Simplify the expressions assigned by an update block.
+	 * @param update The update block, may be null.
+	 * @return The number of expressions that were changed.
+	 */
+	private int simplify (UpdateType update) {
+		int changed = 0;
+		if (update != null) {
+			for (AssignType assign : update.getAssign()) {
+				AssignType.Value value = assign.getValue();
+				if (value != null) {
+					JAXBElement<?> simplified = simplify(value.getExpType());
+					if (simplified != value.getExpType()) {
+						value.setExpType(simplified);
+						changed++;
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Simplify a JAXBElement expression hierarchy.
+	 * @param value The root of the expression hierarchy.
+	 * @return A new simplified hierarchy, or the original value if nothing could be simplified.
+	 */
+	public JAXBElement<?> simplify (JAXBElement<?> value) {
+		JAXBElement<?> result = value;
+		ExprNode node = null;
+		try {
+			node = ExprNode.fromElement(value);
+		}
+		catch (IllegalArgumentException e) {
+			// The expression contains something that can't be represented compactly, so leave it as it is
+		}
+		if (node != null) {
+			ExprNode simplified = simplify(node);
+			if (simplified != node) {
+				result = simplified.toElement();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Simplify an expression that may not be well typed, working from the leaves upwards. Only the
+	 * rules that keep every failure of the expression are applied.
+	 * @param node The root of the expression, may be null.
+	 * @return The simplified expression, or the same node if nothing could be simplified.
+	 */
+	public ExprNode simplify (ExprNode node) {
+		return rewriter.apply(node);
+	}
+
+	/**
+	 * Simplify an expression that the TypeChecker has found to be well typed, working from the leaves
+	 * upwards. Identities are removed, and operands that don't affect the result are discarded where
+	 * that can't lose a failure.
+	 * @param node The root of the expression, may be null.
+	 * @return The simplified expression, or the same node if nothing could be simplified.
+	 */
+	public ExprNode simplifyTyped (ExprNode node) {
+		return typedRewriter.apply(node);
+	}
+
+	/**
+	 * Simplify a single node whose subexpressions have already been simplified.
+	 * @param node The original node, may be null.
+	 * @param children The simplified subexpressions of the node.
+	 * @param typed true if the expression is well typed.
+	 * @return The simplified node, or the same node if nothing could be simplified.
+	 */
+	private ExprNode simplifyNode (ExprNode node, ExprNode[] children, boolean typed) {
+		ExprNode result = null;
+
+		if (node instanceof ExprNode.BinaryOperation) {
+			result = simplifyBinary(node.getKind(), children[0], children[1], typed);
+		}
+		else if (node instanceof ExprNode.UnaryOperation) {
+			ExprNode operand = children[0];
+			if (operand instanceof ExprNode.BoolConstant) {
+				// !true and !false
+				result = ExprNode.BoolConstant.valueOf(!((ExprNode.BoolConstant)operand).getValue());
+			}
+			else if (typed && (operand != null) && (operand.getKind() == NodeKind.NOT)) {
+				// !!x
+				result = ((ExprNode.UnaryOperation)operand).getOperand();
+			}
+		}
+		if (result == null) {
+			// No rule applied, so keep the node, sharing it if the subexpressions didn't change.
+			// Invocations always stay, but their arguments may have been simplified.
+			result = (node == null) ? null : node.withChildren(children);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Apply the simplification rules to a binary operation whose operands have already been simplified.
+	 * @param kind The operation.
+	 * @param left The simplified left hand operand.
+	 * @param right The simplified right hand operand.
+	 * @param typed true if the expression is well typed.
+	 * @return The simplified expression, or null if no rule applies.
+	 */
+	private ExprNode simplifyBinary (NodeKind kind, ExprNode left, ExprNode right, boolean typed) {
+		ExprNode result = null;
+
+		switch (kind) {
+		case SUM:
+		case DIF:
+		case MUL:
+		case MOD:
+			result = simplifyArithmetic(kind, left, right, typed);
+			break;
+		case MORETHAN:
+		case LESSTHAN:
+		case MOREQUALTHAN:
+		case LESSEQUALTHAN:
+		case EQUAL:
+		case NOTEQUAL:
+			result = simplifyComparison(kind, left, right);
+			break;
+		case AND:
+		case OR:
+			// true is the identity for and, false is the identity for or
+			boolean identity = (kind == NodeKind.AND);
+			if (left instanceof ExprNode.BoolConstant) {
+				// The left operand is always evaluated first, so if it decides the result the right is never
+				// evaluated; otherwise the right is the result, once it's known to be a bool
+				if (((ExprNode.BoolConstant)left).getValue() != identity) {
+					result = left;
+				}
+				else if (typed) {
+					result = right;
+				}
+			}
+			else if (typed && (right instanceof ExprNode.BoolConstant)) {
+				if (((ExprNode.BoolConstant)right).getValue() == identity) {
+					result = left;
+				}
+				else if (canDiscard(left)) {
+					result = right;
+				}
+			}
+			break;
+		case APPEND:
+			if ((left instanceof ExprNode.StringConstant) && (right instanceof ExprNode.StringConstant)) {
+				String first = ((ExprNode.StringConstant)left).getValue();
+				String second = ((ExprNode.StringConstant)right).getValue();
+				// Only join the strings if the result would fit in the policy's bounds
+				if ((maxlen < 0) || ((long)first.length() + second.length() <= maxlen)) {
+					result = new ExprNode.StringConstant(first + second);
+				}
+			}
+			else if (typed && identities && isEmptyString(right)) {
+				result = left;
+			}
+			else if (typed && identities && isEmptyString(left)) {
+				result = right;
+			}
+			break;
+		default:
+			break;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Apply the simplification rules for integer arithmetic.
+	 * @param kind The operation: sum, dif, mul or mod.
+	 * @param left The simplified left hand operand.
+	 * @param right The simplified right hand operand.
+	 * @param typed true if the expression is well typed.
+	 * @return The simplified expression, or null if no rule applies.
+	 */
+	private ExprNode simplifyArithmetic (NodeKind kind, ExprNode left, ExprNode right, boolean typed) {
+		ExprNode result = null;
+
+		if (inRange(left) && inRange(right)) {
+			// Both operands are constant, so fold them if the result is in range
+			BigInteger first = BigInteger.valueOf(((ExprNode.IntConstant)left).getValue());
+			BigInteger second = BigInteger.valueOf(((ExprNode.IntConstant)right).getValue());
+			BigInteger value = null;
+			switch (kind) {
+			case SUM:
+				value = first.add(second);
+				break;
+			case DIF:
+				value = first.subtract(second);
+				break;
+			case MUL:
+				value = first.multiply(second);
+				break;
+			default:
+				// Never fold division by zero; leave it for the evaluator to report
+				if (second.signum() != 0) {
+					value = first.remainder(second);
+				}
+				break;
+			}
+			if ((value != null) && (value.compareTo(BigInteger.valueOf(min)) >= 0) && (value.compareTo(BigInteger.valueOf(max)) <= 0)) {
+				result = new ExprNode.IntConstant(value.longValue());
+			}
+		}
+		else if (typed && identities) {
+			// Algebraic identities
+			switch (kind) {
+			case SUM:
+				if (isInteger(right, 0)) {
+					result = left;
+				}
+				else if (isInteger(left, 0)) {
+					result = right;
+				}
+				break;
+			case DIF:
+				if (isInteger(right, 0)) {
+					result = left;
+				}
+				break;
+			case MUL:
+				if (isInteger(right, 1)) {
+					result = left;
+				}
+				else if (isInteger(left, 1)) {
+					result = right;
+				}
+				else if ((isInteger(right, 0) && canDiscard(left)) || (isInteger(left, 0) && canDiscard(right))) {
+					result = new ExprNode.IntConstant(0);
+				}
+				break;
+			default:
+				// A maxint of zero wraps the 1 to zero, making it a modulus by zero
+				if (isInteger(right, 1) && (max >= 1) && canDiscard(left)) {
+					result = new ExprNode.IntConstant(0);
+				}
+				break;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Apply the simplification rules for comparisons, folding those between two constants.
+	 * @param kind The comparison.
+	 * @param left The simplified left hand operand.
+	 * @param right The simplified right hand operand.
+	 * @return The boolean result, or null if the operands aren't both constants of the same type.
+	 */
+	private ExprNode simplifyComparison (NodeKind kind, ExprNode left, ExprNode right) {
+		ExprNode result = null;
+
+		if ((left instanceof ExprNode.IntConstant) && (right instanceof ExprNode.IntConstant)) {
+			long first = ((ExprNode.IntConstant)left).getValue();
+			long second = ((ExprNode.IntConstant)right).getValue();
+			boolean value;
+			switch (kind) {
+			case MORETHAN:
+				value = (first > second);
+				break;
+			case LESSTHAN:
+				value = (first < second);
+				break;
+			case MOREQUALTHAN:
+				value = (first >= second);
+				break;
+			case LESSEQUALTHAN:
+				value = (first <= second);
+				break;
+			case EQUAL:
+				value = (first == second);
+				break;
+			default:
+				value = (first != second);
+				break;
+			}
+			result = ExprNode.BoolConstant.valueOf(value);
+		}
+		else if (((kind == NodeKind.EQUAL) || (kind == NodeKind.NOTEQUAL)) && isConstant(left) && isConstant(right)
+				&& (left.getKind() == right.getKind())) {
+			// Booleans and strings can only be tested for equality
+			result = ExprNode.BoolConstant.valueOf(left.equals(right) == (kind == NodeKind.EQUAL));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Check whether a node is an integer constant within the policy's bounds.
+	 * @param node The node to check.
+	 * @return true if the node is an integer constant between zero and maxint inclusive, or any
+	 * integer constant if there's no maxint.
+	 */
+	private boolean inRange (ExprNode node) {
+		boolean result = false;
+		if (node instanceof ExprNode.IntConstant) {
+			long value = ((ExprNode.IntConstant)node).getValue();
+			result = (value >= min) && (value <= max);
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether a node is a particular integer constant.
+	 * @param node The node to check.
+	 * @param value The value to compare against.
+	 * @return true if the node is an integer constant with the given value.
+	 */
+	private static boolean isInteger (ExprNode node, long value) {
+		return (node instanceof ExprNode.IntConstant) && (((ExprNode.IntConstant)node).getValue() == value);
+	}
+
+	/**
+	 * Check whether a node is the empty string constant.
+	 * @param node The node to check.
+	 * @return true if the node is a string constant of length zero.
+	 */
+	private static boolean isEmptyString (ExprNode node) {
+		return (node instanceof ExprNode.StringConstant) && (((ExprNode.StringConstant)node).getValue().length() == 0);
+	}
+
+	/**
+	 * Check whether a node is a constant of any type.
+	 * @param node The node to check.
+	 * @return true if the node is an integer, boolean or string constant.
+	 */
+	private static boolean isConstant (ExprNode node) {
+		return (node instanceof ExprNode.IntConstant) || (node instanceof ExprNode.BoolConstant)
+				|| (node instanceof ExprNode.StringConstant);
+	}
+
+	/**
+	 * Check whether an expression can be discarded without changing what the evaluator does.
+	 * @param node The root of the expression.
+	 * @return true if the expression contains no method invocations or '%', and no arithmetic if arithmetic can fail.
+	 */
+	private boolean canDiscard (ExprNode node) {
+		boolean result = true;
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		pending.add(node);
+		while (result && !pending.isEmpty()) {
+			ExprNode current = pending.remove(pending.size() - 1);
+			if (current != null) {
+				switch (current.getKind()) {
+				case INVOCATION:
+				case MOD:
+					result = false;
+					break;
+				case SUM:
+				case DIF:
+				case MUL:
+				case APPEND:
+					result = !arithmeticFails;
+					break;
+				default:
+					break;
+				}
+				for (int index = 0; index < current.getChildCount(); index++) {
+					pending.add(current.getChild(index));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether an expression is free of method invocations, which may have side effects.
+	 * @param node The root of the expression.
+	 * @return true if the expression contains no method invocations.
+	 */
+	public static boolean isPure (ExprNode node) {
+		boolean result = true;
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		pending.add(node);
+		while (result && !pending.isEmpty()) {
+			ExprNode current = pending.remove(pending.size() - 1);
+			if (current instanceof ExprNode.Invocation) {
+				result = false;
+			}
+			else if (current != null) {
+				for (int index = 0; index < current.getChildCount(); index++) {
+					pending.add(current.getChild(index));
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+/**
+ * Splits a human-readable expression into tokens in a single pass.
+ * Spaces are discarded before tokenising (in the same way the original parser removed them),
+ * so that the token boundaries are identical to those the original character-by-character parser used.
+ * Tokens are stored as offsets into the cleaned character buffer, so no strings are created until
+ * the parser actually needs the text of a constant. The offset of each character in the original
+ * expression is also kept, so that errors can be reported against the text the user actually typed.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class ExpressionTokeniser {
+	/**
+	 * Token type for the end of the input.
+	 */
+	static final int END = 0;
+	/**
+	 * Token type for a run of non-operator characters: a number, boolean, string or identifier.
+	 */
+	static final int CONSTANT = 1;
+	/**
+	 * Token type for an opening bracket, '('.
+	 */
+	static final int OPEN = 2;
+	/**
+	 * Token type for a closing bracket, ')'.
+	 */
+	static final int CLOSE = 3;
+	/**
+	 * Token type for the string append operator, '|'.
+	 */
+	static final int APPEND = 4;
+	/**
+	 * Token type for the logical or operator, '||'.
+	 */
+	static final int OR = 5;
+	/**
+	 * Token type for the logical and operator, '&amp;&amp;'.
+	 */
+	static final int AND = 6;
+	/**
+	 * Token type for the greater than operator, '&gt;'.
+	 */
+	static final int MORETHAN = 7;
+	/**
+	 * Token type for the less than operator, '&lt;'.
+	 */
+	static final int LESSTHAN = 8;
+	/**
+	 * Token type for the greater than or equal operator, '&gt;='.
+	 */
+	static final int MOREQUALTHAN = 9;
+	/**
+	 * Token type for the less than or equal operator, '&lt;='.
+	 */
+	static final int LESSEQUALTHAN = 10;
+	/**
+	 * Token type for the equality operator, '=='.
+	 */
+	static final int EQUAL = 11;
+	/**
+	 * Token type for the inequality operator, '!='.
+	 */
+	static final int NOTEQUAL = 12;
+	/**
+	 * Token type for the addition operator, '+'.
+	 */
+	static final int SUM = 13;
+	/**
+	 * Token type for the subtraction operator, '-'.
+	 */
+	static final int DIF = 14;
+	/**
+	 * Token type for the multiplication operator, '*'.
+	 */
+	static final int MUL = 15;
+	/**
+	 * Token type for the modulus operator, '%'.
+	 */
+	static final int MOD = 16;
+	/**
+	 * Token type for the logical not operator, '!'.
+	 */
+	static final int NOT = 17;
+	/**
+	 * Token type for a character that can't start any valid operator (e.g. a lone '&amp;' or '=').
+	 */
+	static final int UNKNOWN = 18;
+
+	/**
+	 * The characters that terminate a constant. Anything else forms part of a constant.
+	 */
+	private static final String OPERATOR_CHARACTERS = "+-*%><=!|&()";
+
+	/**
+	 * The expression with all spaces removed.
+	 */
+	private final char[] text;
+	/**
+	 * The number of valid characters in the text buffer.
+	 */
+	private final int length;
+	/**
+	 * The offset in the original expression of each character in the text buffer, followed by the
+	 * length of the original expression.
+	 */
+	private final int[] sources;
+	/**
+	 * The type of each token.
+	 */
+	private int[] types;
+	/**
+	 * The offset of the first character of each token in the text buffer.
+	 */
+	private int[] starts;
+	/**
+	 * The offset one beyond the last character of each token in the text buffer.
+	 */
+	private int[] ends;
+	/**
+	 * The number of tokens, not including the final END token.
+	 */
+	private int count;
+
+	/**
+	 * Tokenise an expression.
+	 * @param expression The expression in human-readable form to be tokenised.
+	 */
+	ExpressionTokeniser (String expression) {
+		// Remove whitespace in a single copy
+		int size = expression.length();
+		char[] clean = new char[size];
+		int[] offsets = new int[size + 1];
+		int used = 0;
+		for (int pos = 0; pos < size; pos++) {
+			char character = expression.charAt(pos);
+			if (character != ' ') {
+				clean[used] = character;
+				offsets[used] = pos;
+				used++;
+			}
+		}
+		offsets[used] = size;
+		text = clean;
+		length = used;
+		sources = offsets;
+
+		// Every token consumes at least one character, so this is an upper bound on the array sizes
+		types = new int[length + 1];
+		starts = new int[length + 1];
+		ends = new int[length + 1];
+		count = 0;
+
+		tokenise();
+	}
+
+	/**
+	 * Walk the cleaned text once, recording the type and extent of each token.
+	 */
+	private void tokenise () {
+		int pos = 0;
+		while (pos < length) {
+			char character = text[pos];
+			int start = pos;
+			int type;
+			// Check whether the next character is also part of the operator
+			char next = (pos + 1 < length) ? text[pos + 1] : '\0';
+
+			switch (character) {
+			case '(':
+				type = OPEN;
+				pos++;
+				break;
+			case ')':
+				type = CLOSE;
+				pos++;
+				break;
+			case '+':
+				type = SUM;
+				pos++;
+				break;
+			case '-':
+				type = DIF;
+				pos++;
+				break;
+			case '*':
+				type = MUL;
+				pos++;
+				break;
+			case '%':
+				type = MOD;
+				pos++;
+				break;
+			case '|':
+				if (next == '|') {
+					type = OR;
+					pos += 2;
+				}
+				else {
+					type = APPEND;
+					pos++;
+				}
+				break;
+			case '&':
+				if (next == '&') {
+					type = AND;
+					pos += 2;
+				}
+				else {
+					type = UNKNOWN;
+					pos++;
+				}
+				break;
+			case '>':
+				if (next == '=') {
+					type = MOREQUALTHAN;
+					pos += 2;
+				}
+				else {
+					type = MORETHAN;
+					pos++;
+				}
+				break;
+			case '<':
+				if (next == '=') {
+					type = LESSEQUALTHAN;
+					pos += 2;
+				}
+				else {
+					type = LESSTHAN;
+					pos++;
+				}
+				break;
+			case '=':
+				if (next == '=') {
+					type = EQUAL;
+					pos += 2;
+				}
+				else {
+					type = UNKNOWN;
+					pos++;
+				}
+				break;
+			case '!':
+				if (next == '=') {
+					type = NOTEQUAL;
+					pos += 2;
+				}
+				else {
+					type = NOT;
+					pos++;
+				}
+				break;
+			default:
+				// Anything that isn't an operator is part of a constant, up to the next operator character
+				type = CONSTANT;
+				while ((pos < length) && (OPERATOR_CHARACTERS.indexOf(text[pos]) < 0)) {
+					pos++;
+				}
+				break;
+			}
+
+			types[count] = type;
+			starts[count] = start;
+			ends[count] = pos;
+			count++;
+		}
+
+		// Terminate the token list
+		types[count] = END;
+		starts[count] = length;
+		ends[count] = length;
+	}
+
+	/**
+	 * Return the number of tokens, not including the final END token.
+	 * @return The number of tokens.
+	 */
+	int getCount () {
+		return count;
+	}
+
+	/**
+	 * Return the type of a token.
+	 * @param index The index of the token. The index equal to the count is the END token.
+	 * @return The token type.
+	 */
+	int getType (int index) {
+		return types[index];
+	}
+
+	/**
+	 * Return the offset of the start of a token in the cleaned text.
+	 * @param index The index of the token.
+	 * @return The offset of the first character of the token.
+	 */
+	int getStart (int index) {
+		return starts[index];
+	}
+
+	/**
+	 * Return the offset of the end of a token in the cleaned text.
+	 * @param index The index of the token.
+	 * @return The offset one beyond the last character of the token.
+	 */
+	int getEnd (int index) {
+		return ends[index];
+	}
+
+	/**
+	 * Return the offset of the start of a token in the original expression, including any spaces.
+	 * @param index The index of the token. The index equal to the count is the END token.
+	 * @return The offset of the first character of the token in the original expression.
+	 */
+	int getSourceStart (int index) {
+		return sources[starts[index]];
+	}
+
+	/**
+	 * Return the offset of the end of a token in the original expression, including any spaces.
+	 * @param index The index of the token. The index equal to the count is the END token.
+	 * @return The offset one beyond the last character of the token in the original expression.
+	 */
+	int getSourceEnd (int index) {
+		return (ends[index] > starts[index]) ? sources[ends[index] - 1] + 1 : sources[starts[index]];
+	}
+
+	/**
+	 * Return the cleaned text buffer the token offsets refer to.
+	 * The buffer must not be changed.
+	 * @return The text with spaces removed.
+	 */
+	char[] getText () {
+		return text;
+	}
+
+	/**
+	 * Return the text from the start of a token through to the end of the input.
+	 * @param index The index of the token.
+	 * @return The remaining unparsed text.
+	 */
+	String getRemaining (int index) {
+		return new String(text, starts[index], length - starts[index]);
+	}
+}
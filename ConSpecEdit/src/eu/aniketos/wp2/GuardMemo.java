@@ -0,0 +1,436 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of a compiled guard for one session, so that a guard whose inputs haven't
+ * changed since it was last evaluated doesn't have to be evaluated again. There should be one memo
+ * for each reaction guard of each session.
+ * Results are keyed by the versions of the state variables the guard reads, together with the values
+ * of any parameters it uses. Since a variable's version goes up whenever it's written, a result can
+ * only be reused while none of the variables it depended on have been written.
+ * The inputs are gathered into a key that's reused for every lookup, so evaluating a guard whose
+ * result is already known allocates nothing; a new key is only created when a result is added.
+ * Only guards whose invocations are all of methods marked as pure by an InvocationResolver can be
+ * memoised; for any other guard the memo is disabled and simply evaluates the guard every time.
+ * Guards that fail aren't remembered, so they fail again the next time they're evaluated.
+ * The least recently used result is discarded once the memo is full.
+ * The memo is cleared if it's used with a different state, or with a machine using different
+ * arithmetic, from the last time.
+ * A memo isn't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class GuardMemo {
+	/**
+	 * The number of results held if no capacity is given.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * The guard.
+	 */
+	private final CompiledExpression guard;
+	/**
+	 * True if the guard's results can be remembered.
+	 */
+	private final boolean enabled;
+	/**
+	 * True if the guard invokes any methods.
+	 */
+	private final boolean invokes;
+	/**
+	 * The slots of the state variables the guard reads directly.
+	 */
+	private final int[] slots;
+	/**
+	 * The names of the variables the guard looks up by name, which may be parameters or state variables.
+	 */
+	private final String[] names;
+	/**
+	 * The slot of the state variable with each name, or -1 if there isn't one.
+	 */
+	private final int[] nameSlots;
+	/**
+	 * The maximum number of results held.
+	 */
+	private final int capacity;
+	/**
+	 * The results, in least recently used order.
+	 */
+	private final LinkedHashMap<Key, Boolean> entries;
+	/**
+	 * The key the current inputs are gathered into to look up a result; it's never added to the map itself.
+	 */
+	private final Key probe;
+	/**
+	 * The state the results were worked out for.
+	 */
+	private SlotState state = null;
+	/**
+	 * The arithmetic the results were worked out with.
+	 */
+	private BoundedArithmetic arithmetic = null;
+	/**
+	 * The number of evaluations satisfied from the memo.
+	 */
+	private long hits = 0;
+	/**
+	 * The number of evaluations that needed the guard to be executed.
+	 */
+	private long misses = 0;
+	/**
+	 * The number of results discarded to make room for others.
+	 */
+	private long evictions = 0;
+
+	/**
+	 * Create a memo with the default capacity, treating the methods on the default allowlist as pure.
+	 * @param guard The guard, compiled against a StateLayout.
+	 */
+	public GuardMemo (CompiledExpression guard) {
+		this(guard, new InvocationResolver(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a memo.
+	 * @param guard The guard, compiled against a StateLayout.
+	 * @param resolver Says which invoked methods are pure.
+	 * @param capacity The maximum number of results to hold; must be at least one.
+	 */
+	public GuardMemo (CompiledExpression guard, InvocationResolver resolver, final int capacity) {
+		if (guard.getLayout() == null) {
+			throw new IllegalArgumentException("Only guards compiled against a StateLayout can be memoised");
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Memo capacity must be at least one");
+		}
+		this.guard = guard;
+		this.capacity = capacity;
+
+		// Find the variables the guard reads, and check that everything it invokes is pure
+		StateLayout layout = guard.getLayout();
+		ArrayList<Integer> read = new ArrayList<Integer>();
+		ArrayList<String> named = new ArrayList<String>();
+		boolean pure = true;
+		boolean invoking = false;
+		int[] code = guard.code;
+		for (int pc = 0; pc < code.length; pc += CompiledExpression.hasOperand(code[pc]) ? 2 : 1) {
+			switch (code[pc]) {
+			case CompiledExpression.LOAD:
+				addOnce(named, guard.names[code[pc + 1]]);
+				break;
+			case CompiledExpression.LOAD_INT:
+				addOnce(read, Integer.valueOf(layout.getSlot(layout.getName(ValueType.INT, code[pc + 1]))));
+				break;
+			case CompiledExpression.LOAD_BOOL:
+				addOnce(read, Integer.valueOf(layout.getSlot(layout.getName(ValueType.BOOL, code[pc + 1]))));
+				break;
+			case CompiledExpression.LOAD_STRING:
+				addOnce(read, Integer.valueOf(layout.getSlot(layout.getName(ValueType.STRING, code[pc + 1]))));
+				break;
+			case CompiledExpression.INVOKE:
+				ExprNode.Invocation invocation = guard.invocations[code[pc + 1]];
+				pure = pure && resolver.isPure(invocation.getIdentifier(0));
+				invoking = true;
+				if (invocation.getIdentifierCount() > 1) {
+					// The receiver is looked up by name
+					addOnce(named, invocation.getIdentifier(1));
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		enabled = pure;
+		invokes = invoking;
+		slots = new int[read.size()];
+		for (int index = 0; index < slots.length; index++) {
+			slots[index] = read.get(index).intValue();
+		}
+		names = named.toArray(new String[named.size()]);
+		nameSlots = new int[names.length];
+		for (int index = 0; index < names.length; index++) {
+			nameSlots[index] = layout.getSlot(names[index]);
+		}
+		probe = new Key(new long[slots.length + (2 * names.length)], new Object[names.length]);
+
+		// An access-ordered map gives us the least recently used entry as the eldest
+		entries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+				boolean full = (size() > capacity);
+				if (full) {
+					evictions++;
+				}
+				return full;
+			}
+		};
+	}
+
+	/**
+	 * Add an item to a list unless it's already there.
+	 * @param list The list.
+	 * @param item The item.
+	 */
+	private static <T> void addOnce (ArrayList<T> list, T item) {
+		if (!list.contains(item)) {
+			list.add(item);
+		}
+	}
+
+	/**
+	 * Evaluate the guard, reusing the last result worked out for the same inputs if there is one.
+	 * @param machine The machine used to execute the guard if its result isn't known.
+	 * @param state The security state of the session, which must have the layout the guard was compiled against.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the guard.
+	 */
+	public boolean evaluateGuard (ExpressionMachine machine, SlotState state, Bindings parameters) {
+		boolean result;
+		if (!enabled) {
+			result = machine.evaluateGuard(guard, state, parameters);
+		}
+		else {
+			if (state.getLayout() != guard.getLayout()) {
+				throw new EvaluationException("The expression was compiled for a different security state layout");
+			}
+			// Results worked out for another state or other arithmetic don't apply
+			if ((state != this.state) || (machine.getArithmetic() != arithmetic)) {
+				entries.clear();
+				this.state = state;
+				arithmetic = machine.getArithmetic();
+			}
+			gather(state, parameters);
+			Boolean cached = entries.get(probe);
+			if (cached != null) {
+				hits++;
+				result = cached.booleanValue();
+			}
+			else {
+				misses++;
+				result = machine.evaluateGuard(guard, state, parameters);
+				// The probe is reused, so the map is given a copy of it
+				entries.put(probe.copy(), Boolean.valueOf(result));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gather the current inputs of the guard into the probe key.
+	 * Integer and boolean parameters are held as numbers, alongside their type, so nothing is boxed.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	private void gather (SlotState state, Bindings parameters) {
+		long[] numbers = probe.numbers;
+		Object[] values = probe.values;
+		for (int index = 0; index < slots.length; index++) {
+			numbers[index] = state.getVersion(slots[index]);
+		}
+		int position = slots.length;
+		for (int index = 0; index < names.length; index++) {
+			// A name is taken from the parameters if it's there, and from the state otherwise
+			Bindings.Variable variable = (parameters == null) ? null : parameters.lookup(names[index]);
+			long number = 0;
+			Object value = null;
+			if (variable != null) {
+				switch (variable.getType()) {
+				case INT:
+					number = variable.getInt();
+					value = ValueType.INT;
+					break;
+				case BOOL:
+					number = variable.getBool() ? 1 : 0;
+					value = ValueType.BOOL;
+					break;
+				default:
+					// A string stands for itself; only a null string needs its type to tell it apart from no parameter
+					value = (variable.getString() == null) ? ValueType.STRING : variable.getString();
+					break;
+				}
+			}
+			numbers[position++] = (nameSlots[index] < 0) ? -1 : state.getVersion(nameSlots[index]);
+			numbers[position++] = number;
+			values[index] = value;
+		}
+		probe.rehash();
+	}
+
+	/**
+	 * Check whether the guard's results can be remembered.
+	 * @return true if every method the guard invokes is pure.
+	 */
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	/**
+	 * Check whether remembering the guard's results is likely to be quicker than evaluating it. Building
+	 * the key for a guard costs about as much as evaluating a guard that only compares variables, so
+	 * only guards that invoke methods gain from being memoised.
+	 * @return true if the memo is enabled and the guard invokes at least one method.
+	 */
+	public boolean isWorthwhile () {
+		return enabled && invokes;
+	}
+
+	/**
+	 * Forget all of the results and reset the counters.
+	 */
+	public void clear () {
+		entries.clear();
+		state = null;
+		arithmetic = null;
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	/**
+	 * Return the number of evaluations satisfied from the memo.
+	 * @return The hit count.
+	 */
+	public long getHits () {
+		return hits;
+	}
+
+	/**
+	 * Return the number of evaluations that needed the guard to be executed, not counting those
+	 * made while the memo is disabled.
+	 * @return The miss count.
+	 */
+	public long getMisses () {
+		return misses;
+	}
+
+	/**
+	 * Return the number of results discarded to make room for others.
+	 * @return The eviction count.
+	 */
+	public long getEvictions () {
+		return evictions;
+	}
+
+	/**
+	 * Return the proportion of evaluations satisfied from the memo.
+	 * @return A value between zero and one, or zero if nothing has been evaluated.
+	 */
+	public double getHitRatio () {
+		long total = hits + misses;
+		return (total == 0) ? 0.0 : ((double)hits / total);
+	}
+
+	/**
+	 * Return the number of results currently held.
+	 * @return The number of entries.
+	 */
+	public int getSize () {
+		return entries.size();
+	}
+
+	/**
+	 * Return the maximum number of results the memo will hold.
+	 * @return The capacity of the memo.
+	 */
+	public int getCapacity () {
+		return capacity;
+	}
+
+	/**
+	 * The inputs of a guard: the versions of the state variables it reads and the values of the parameters it uses.
+	 * Keys held by the map are never changed; only the memo's probe is filled in again for each lookup.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Key {
+		/**
+		 * The versions of the state variables read directly, followed by two numbers for each name: the
+		 * version of its state variable, or -1 if there isn't one, and the value of an integer or boolean
+		 * parameter, or zero.
+		 */
+		private final long[] numbers;
+		/**
+		 * For each name, the value of a string parameter, the type of any other parameter, or null if the
+		 * name isn't a parameter.
+		 */
+		private final Object[] values;
+		/**
+		 * The hash code, worked out whenever the contents change.
+		 */
+		private int hash;
+
+		/**
+		 * Create a key.
+		 * @param numbers The versions of the state variables and the values of numeric parameters.
+		 * @param values The values or types of the parameters.
+		 */
+		Key (long[] numbers, Object[] values) {
+			this.numbers = numbers;
+			this.values = values;
+			rehash();
+		}
+
+		/**
+		 * Work out the hash code again, after the contents of the key have been changed.
+		 */
+		void rehash () {
+			hash = (31 * Arrays.hashCode(numbers)) + Arrays.hashCode(values);
+		}
+
+		/**
+		 * Make a copy of the key that won't change when this one does.
+		 * @return The copy.
+		 */
+		Key copy () {
+			return new Key(numbers.clone(), values.clone());
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode () {
+			return hash;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals (Object other) {
+			boolean result = false;
+			if (other instanceof Key) {
+				Key key = (Key)other;
+				result = (hash == key.hash) && Arrays.equals(numbers, key.numbers) && Arrays.equals(values, key.values);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,604 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records how long guards and their subexpressions take to evaluate, and how often they hold, so that
+ * GuardReorderer can put the cheapest and most decisive checks first.
+ * Guards are evaluated here with the same short-circuit semantics as ExpressionEvaluator, but each
+ * operand of a chain of '&&' or '||' operations is evaluated and timed on its own, and the guard as a
+ * whole is timed too. Operands are only recorded when they're actually evaluated, so the figures for
+ * later operands in a chain are conditional on the earlier ones not having decided the result.
+ * Statistics are keyed by the structure of each subexpression, so a profile can be saved as text,
+ * loaded again in another process, and matched up with the guards of a policy loaded there. The
+ * structure is saved node by node rather than as the expression would be typed, since the parser
+ * can't read invocations back in, and drops the spaces from string constants.
+ * A profile isn't thread safe; each thread should use its own, and they can be merged afterwards.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class GuardProfile {
+	/**
+	 * The depth of nested '&&' and '||' chains that are profiled operand by operand; anything nested
+	 * more deeply is evaluated and recorded as a whole.
+	 */
+	private static final int MAX_NESTING = 64;
+	/**
+	 * Look up table from the element name used in saved profiles to node kind.
+	 */
+	private static final HashMap<String, NodeKind> kinds = new HashMap<String, NodeKind>();
+
+	static {
+		for (NodeKind kind : NodeKind.values()) {
+			kinds.put(kind.getElementName(), kind);
+		}
+	}
+
+	/**
+	 * The statistics recorded for one subexpression.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	public static final class Stats {
+		/**
+		 * The number of times the subexpression was evaluated.
+		 */
+		private long runs;
+		/**
+		 * The number of evaluations that gave true.
+		 */
+		private long holds;
+		/**
+		 * The number of evaluations that threw an exception.
+		 */
+		private long failures;
+		/**
+		 * The total time spent evaluating the subexpression, in nanoseconds.
+		 */
+		private long nanos;
+
+		/**
+		 * Return the number of times the subexpression was evaluated.
+		 * @return The number of evaluations, including those that failed.
+		 */
+		public long getRuns () {
+			return runs;
+		}
+
+		/**
+		 * Return the number of evaluations that gave true.
+		 * @return The number of evaluations that held.
+		 */
+		public long getHolds () {
+			return holds;
+		}
+
+		/**
+		 * Return the number of evaluations that threw an exception.
+		 * @return The number of failures.
+		 */
+		public long getFailures () {
+			return failures;
+		}
+
+		/**
+		 * Return the total time spent evaluating the subexpression.
+		 * @return The time in nanoseconds.
+		 */
+		public long getNanos () {
+			return nanos;
+		}
+
+		/**
+		 * Return the average time taken to evaluate the subexpression.
+		 * @return The mean time in nanoseconds, or zero if it's never been evaluated.
+		 */
+		public double getCost () {
+			return (runs == 0) ? 0.0 : ((double)nanos / runs);
+		}
+
+		/**
+		 * Return the proportion of evaluations that gave true.
+		 * @return A value between zero and one, or zero if it's never been evaluated.
+		 */
+		public double getSelectivity () {
+			return (runs == 0) ? 0.0 : ((double)holds / runs);
+		}
+
+		/**
+		 * Add in the results of evaluations.
+		 * @param runs The number of evaluations.
+		 * @param holds The number that gave true.
+		 * @param failures The number that threw an exception.
+		 * @param nanos The time they took, in nanoseconds.
+		 */
+		private void add (long runs, long holds, long failures, long nanos) {
+			this.runs += runs;
+			this.holds += holds;
+			this.failures += failures;
+			this.nanos += nanos;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString () {
+			return runs + " " + holds + " " + failures + " " + nanos;
+		}
+	}
+
+	/**
+	 * The statistics of each subexpression, keyed by its structure.
+	 */
+	private final HashMap<ExprNode, Stats> stats = new HashMap<ExprNode, Stats>();
+	/**
+	 * The operands of each '&&' or '||' chain that's been profiled, keyed by the root of the chain.
+	 */
+	private final HashMap<ExprNode, ExprNode[]> chains = new HashMap<ExprNode, ExprNode[]>();
+
+	/**
+	 * Evaluate a guard, recording statistics for it and for each operand of its '&&' and '||' chains.
+	 * @param evaluator The evaluator used for everything other than the '&&' and '||' operations.
+	 * @param guard The guard expression; if null, the guard always holds and nothing is recorded.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the guard.
+	 */
+	public boolean evaluateGuard (ExpressionEvaluator evaluator, ExprNode guard, Bindings state, Bindings parameters) {
+		boolean result = true;
+		if (guard != null) {
+			result = profile(evaluator, guard, null, 0, state, parameters);
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluate and time a subexpression, recording the result.
+	 * @param evaluator The evaluator.
+	 * @param node The subexpression.
+	 * @param parent The '&&' or '||' chain the subexpression is an operand of, or null if it's the whole guard.
+	 * @param nesting The number of chains the subexpression is nested within.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the subexpression.
+	 */
+	private boolean profile (ExpressionEvaluator evaluator, ExprNode node, ExprNode parent, int nesting, Bindings state, Bindings parameters) {
+		Stats recorded = statsFor(node);
+		boolean result = false;
+		boolean completed = false;
+		long start = System.nanoTime();
+		try {
+			ExprNode[] operands = (nesting < MAX_NESTING) ? operandsOf(node) : null;
+			if (operands == null) {
+				// Evaluate the subexpression as a whole, checking its type as the evaluator would
+				ValueType type = evaluator.evaluate(node, state, parameters);
+				if (type != ValueType.BOOL) {
+					throw new EvaluationException((parent == null) ? ("The guard is of type " + type.getTypeName() + ", not bool")
+							: ("'" + parent.getKind().getSymbol() + "' needs boolean operands, but was given a " + type.getTypeName()));
+				}
+				result = evaluator.getBool();
+			}
+			else {
+				// Evaluate the operands in turn until one decides the result
+				boolean and = (node.getKind() == NodeKind.AND);
+				result = and;
+				for (int index = 0; (index < operands.length) && (result == and); index++) {
+					result = profile(evaluator, operands[index], node, nesting + 1, state, parameters);
+				}
+			}
+			completed = true;
+		}
+		finally {
+			recorded.add(1, (completed && result) ? 1 : 0, completed ? 0 : 1, System.nanoTime() - start);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the operands of a chain of '&&' or '||' operations, in the order they're evaluated.
+	 * @param node The root of the chain.
+	 * @return The operands, or null if the node isn't an '&&' or '||' operation.
+	 */
+	private ExprNode[] operandsOf (ExprNode node) {
+		ExprNode[] result = null;
+		if ((node.getKind() == NodeKind.AND) || (node.getKind() == NodeKind.OR)) {
+			result = chains.get(node);
+			if (result == null) {
+				ArrayList<ExprNode> operands = flatten(node);
+				result = operands.toArray(new ExprNode[operands.size()]);
+				chains.put(node, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Collect the operands of a chain of operations of the same kind, in the order they're evaluated.
+	 * Since '&&' and '||' are associative, this is the same whichever way the chain is bracketed.
+	 * @param node The root of the chain, an '&&' or '||' operation.
+	 * @return The operands.
+	 */
+	static ArrayList<ExprNode> flatten (ExprNode node) {
+		ArrayList<ExprNode> result = new ArrayList<ExprNode>();
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		pending.add(node);
+		while (!pending.isEmpty()) {
+			ExprNode current = pending.remove(pending.size() - 1);
+			if ((current != null) && (current.getKind() == node.getKind())) {
+				// Push the right hand side first so that the left hand side is taken first
+				pending.add(((ExprNode.BinaryOperation)current).getRight());
+				pending.add(((ExprNode.BinaryOperation)current).getLeft());
+			}
+			else {
+				result.add(current);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the statistics for a subexpression, creating them if there are none yet.
+	 * @param node The subexpression.
+	 * @return The statistics.
+	 */
+	private Stats statsFor (ExprNode node) {
+		Stats result = stats.get(node);
+		if (result == null) {
+			result = new Stats();
+			stats.put(node, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the statistics recorded for a subexpression.
+	 * @param node The subexpression.
+	 * @return The statistics, or null if the subexpression has never been evaluated on its own.
+	 */
+	public Stats getStats (ExprNode node) {
+		return stats.get(node);
+	}
+
+	/**
+	 * Return the number of subexpressions with statistics.
+	 * @return The number of subexpressions.
+	 */
+	public int getSize () {
+		return stats.size();
+	}
+
+	/**
+	 * Add the statistics of another profile into this one.
+	 * @param other The profile to add in, which is left unchanged.
+	 */
+	public void merge (GuardProfile other) {
+		for (Map.Entry<ExprNode, Stats> entry : other.stats.entrySet()) {
+			Stats from = entry.getValue();
+			statsFor(entry.getKey()).add(from.runs, from.holds, from.failures, from.nanos);
+		}
+	}
+
+	/**
+	 * Forget all of the statistics recorded.
+	 */
+	public void clear () {
+		stats.clear();
+		chains.clear();
+	}
+
+	/**
+	 * Write the profile as text. Each line holds the number of runs, holds and failures and the total
+	 * time in nanoseconds, separated by spaces, then a tab and the structure of the subexpression.
+	 * The structure is written in postfix order, each node's subexpressions before the node itself, as
+	 * one token per node separated by spaces. A token is the node's element name, such as
+	 * <code>and</code>, followed for constants and identifiers by a colon and the value, and for
+	 * invocations by a colon and the number of arguments and a colon before each identifier. String
+	 * constants and identifiers are written in double quotes, with '\', '"', tabs and line breaks
+	 * escaped by a backslash. For example, <code>b &amp;&amp; !java.lang.String.equals(host, "a b")</code> is written as
+	 * <code>identifier:"b" sconst:"a b" invocation:1:"java.lang.String.equals":"host" not and</code>.
+	 * @param out The destination.
+	 * @throws IOException if the destination can't be written to.
+	 */
+	public void save (Writer out) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (Map.Entry<ExprNode, Stats> entry : stats.entrySet()) {
+			line.setLength(0);
+			line.append(entry.getValue().toString()).append('\t');
+			appendKey(line, entry.getKey());
+			line.append('\n');
+			out.write(line.toString());
+		}
+		out.flush();
+	}
+
+	/**
+	 * Read a profile written by save(), adding its statistics to this one.
+	 * Blank lines and lines starting with '#' are skipped. Lines that aren't in the right form are
+	 * skipped too, and reported, so that the rest of the profile can still be used.
+	 * @param in The source.
+	 * @return A description of each line that was skipped because it couldn't be read, or an empty
+	 * list if every line was read.
+	 * @throws IOException if the source can't be read.
+	 */
+	public List<String> load (Reader in) throws IOException {
+		List<String> problems = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(in);
+		int number = 0;
+		String line = reader.readLine();
+		while (line != null) {
+			number++;
+			if ((line.trim().length() > 0) && !line.startsWith("#")) {
+				// Split off the counts from the structure
+				int tab = line.indexOf('\t');
+				String[] counts = (tab < 0) ? new String[0] : line.substring(0, tab).trim().split(" +");
+				if (counts.length != 4) {
+					problems.add("Line " + number + " of the profile should start with four counts followed by a tab");
+				}
+				else {
+					long[] values = new long[counts.length];
+					String problem = null;
+					try {
+						for (int index = 0; index < counts.length; index++) {
+							values[index] = Long.parseLong(counts[index]);
+						}
+					}
+					catch (NumberFormatException e) {
+						problem = "Line " + number + " of the profile has an invalid count: " + e.getMessage();
+					}
+					if (problem == null) {
+						try {
+							statsFor(parseKey(line.substring(tab + 1))).add(values[0], values[1], values[2], values[3]);
+						}
+						catch (IllegalArgumentException e) {
+							problem = "Line " + number + " of the profile has an invalid subexpression: " + e.getMessage();
+						}
+					}
+					if (problem != null) {
+						problems.add(problem);
+					}
+				}
+			}
+			line = reader.readLine();
+		}
+		return problems;
+	}
+
+	/**
+	 * Write out the structure of a subexpression in the form used by save().
+	 * @param out The destination.
+	 * @param root The subexpression.
+	 */
+	static void appendKey (StringBuilder out, ExprNode root) {
+		// Each node is visited twice: first to queue up its subexpressions, and then, once they've been written, to write it
+		ArrayList<Object> pending = new ArrayList<Object>();
+		pending.add(root);
+		boolean first = true;
+		while (!pending.isEmpty()) {
+			Object item = pending.remove(pending.size() - 1);
+			if (item instanceof ExprNode) {
+				ExprNode node = (ExprNode)item;
+				pending.add(new ExprNode[] {node});
+				for (int index = node.getChildCount() - 1; index >= 0; index--) {
+					pending.add(node.getChild(index));
+				}
+			}
+			else {
+				ExprNode node = ((ExprNode[])item)[0];
+				if (!first) {
+					out.append(' ');
+				}
+				first = false;
+				out.append(node.getKind().getElementName());
+				switch (node.getKind()) {
+				case ICONST:
+					out.append(':').append(((ExprNode.IntConstant)node).getValue());
+					break;
+				case BCONST:
+					out.append(':').append(((ExprNode.BoolConstant)node).getValue());
+					break;
+				case SCONST:
+					appendQuoted(out.append(':'), ((ExprNode.StringConstant)node).getValue());
+					break;
+				case IDENTIFIER:
+					appendQuoted(out.append(':'), ((ExprNode.Identifier)node).getName());
+					break;
+				case INVOCATION:
+					ExprNode.Invocation invocation = (ExprNode.Invocation)node;
+					out.append(':').append(invocation.getArgumentCount());
+					for (int index = 0; index < invocation.getIdentifierCount(); index++) {
+						appendQuoted(out.append(':'), invocation.getIdentifier(index));
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write out a string in double quotes, escaping anything that would stop it being read back.
+	 * @param out The destination.
+	 * @param value The string.
+	 */
+	private static void appendQuoted (StringBuilder out, String value) {
+		out.append('"');
+		for (int index = 0; index < value.length(); index++) {
+			char character = value.charAt(index);
+			switch (character) {
+			case '\\':
+			case '"':
+				out.append('\\').append(character);
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			default:
+				out.append(character);
+				break;
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Read back the structure of a subexpression written by appendKey().
+	 * @param text The structure.
+	 * @return The subexpression.
+	 * @throws IllegalArgumentException if the text isn't in the right form.
+	 */
+	static ExprNode parseKey (String text) {
+		ArrayList<ExprNode> operands = new ArrayList<ExprNode>();
+		ArrayList<String> fields = new ArrayList<String>();
+		int position = 0;
+		while (position < text.length()) {
+			if (text.charAt(position) == ' ') {
+				position++;
+			}
+			else {
+				// Read the element name, and the fields following it
+				int start = position;
+				while ((position < text.length()) && (text.charAt(position) != ':') && (text.charAt(position) != ' ')) {
+					position++;
+				}
+				NodeKind kind = kinds.get(text.substring(start, position));
+				if (kind == null) {
+					throw new IllegalArgumentException("Unknown element '" + text.substring(start, position) + "'");
+				}
+				fields.clear();
+				while ((position < text.length()) && (text.charAt(position) == ':')) {
+					position = readField(text, position + 1, fields);
+				}
+				operands.add(build(kind, fields, operands));
+			}
+		}
+		if (operands.size() != 1) {
+			throw new IllegalArgumentException("Expected one subexpression, but found " + operands.size());
+		}
+		return operands.get(0);
+	}
+
+	/**
+	 * Read one field of a token, either a quoted string or everything up to the next colon or space.
+	 * @param text The structure being read.
+	 * @param position The position of the start of the field.
+	 * @param fields The list to add the field to, with any escapes in a quoted string removed.
+	 * @return The position after the end of the field.
+	 * @throws IllegalArgumentException if a quoted string isn't closed.
+	 */
+	private static int readField (String text, int position, List<String> fields) {
+		StringBuilder field = new StringBuilder();
+		if ((position < text.length()) && (text.charAt(position) == '"')) {
+			position++;
+			boolean closed = false;
+			while (!closed && (position < text.length())) {
+				char character = text.charAt(position++);
+				if (character == '"') {
+					closed = true;
+				}
+				else if ((character == '\\') && (position < text.length())) {
+					character = text.charAt(position++);
+					field.append((character == 't') ? '\t' : (character == 'n') ? '\n' : (character == 'r') ? '\r' : character);
+				}
+				else {
+					field.append(character);
+				}
+			}
+			if (!closed) {
+				throw new IllegalArgumentException("A quoted string isn't closed");
+			}
+		}
+		else {
+			while ((position < text.length()) && (text.charAt(position) != ':') && (text.charAt(position) != ' ')) {
+				field.append(text.charAt(position++));
+			}
+		}
+		fields.add(field.toString());
+		return position;
+	}
+
+	/**
+	 * Build a node from a token, taking its subexpressions from the end of the list of those already built.
+	 * @param kind The kind of node.
+	 * @param fields The fields following the element name.
+	 * @param operands The nodes built so far that haven't yet been used as subexpressions.
+	 * @return The node.
+	 * @throws IllegalArgumentException if the fields or the number of subexpressions are wrong for the kind.
+	 */
+	private static ExprNode build (NodeKind kind, List<String> fields, ArrayList<ExprNode> operands) {
+		int expected = (kind == NodeKind.INVOCATION) ? 3 : (kind.getArity() == 0) ? 1 : 0;
+		if ((fields.size() != expected) && !((kind == NodeKind.INVOCATION) && (fields.size() == 2))) {
+			throw new IllegalArgumentException("Wrong number of fields for '" + kind.getElementName() + "'");
+		}
+		int arity = (kind == NodeKind.INVOCATION) ? Integer.parseInt(fields.get(0)) : kind.getArity();
+		if ((arity < 0) || (arity > operands.size())) {
+			throw new IllegalArgumentException("Not enough subexpressions for '" + kind.getElementName() + "'");
+		}
+		ExprNode[] children = new ExprNode[arity];
+		for (int index = arity - 1; index >= 0; index--) {
+			children[index] = operands.remove(operands.size() - 1);
+		}
+
+		ExprNode result;
+		switch (kind) {
+		case ICONST:
+			result = new ExprNode.IntConstant(Long.parseLong(fields.get(0)));
+			break;
+		case BCONST:
+			if (!fields.get(0).equals("true") && !fields.get(0).equals("false")) {
+				throw new IllegalArgumentException("Invalid boolean constant '" + fields.get(0) + "'");
+			}
+			result = ExprNode.BoolConstant.valueOf(fields.get(0).equals("true"));
+			break;
+		case SCONST:
+			result = new ExprNode.StringConstant(fields.get(0));
+			break;
+		case IDENTIFIER:
+			result = new ExprNode.Identifier(fields.get(0));
+			break;
+		case INVOCATION:
+			result = new ExprNode.Invocation(fields.subList(1, fields.size()).toArray(new String[fields.size() - 1]), children);
+			break;
+		case NOT:
+			result = new ExprNode.UnaryOperation(kind, children[0]);
+			break;
+		default:
+			result = new ExprNode.BinaryOperation(kind, children[0], children[1]);
+			break;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,530 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import eu.aniketos.PerformType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+
+/**
+ * Uses a GuardProfile to reorder the guards of a policy so that the checks that are cheapest and
+ * most likely to decide the result are made first, without changing what any guard evaluates to.
+ * The operands of each chain of '&&' operations are sorted by their average cost divided by the
+ * proportion of times they were false, and those of each chain of '||' operations by their cost
+ * divided by the proportion of times they were true. The reactions of a rule are sorted by the cost
+ * of their guards divided by the proportion of times they held, but only when no two of the guards
+ * can hold at once, so that the same reaction is chosen whatever the order. The else block always
+ * stays last.
+ * Only operands that are known to be safe to move are reordered: they must have been evaluated
+ * often enough to be worth trusting, must never have failed, and mustn't contain anything that could
+ * fail for some values but not others, such as '%' (which fails for a zero modulus), an invocation
+ * of a method that the InvocationResolver hasn't marked as pure or has marked as partial, or
+ * arithmetic that reports violations of the policy's bounds. Operands that can't be moved stay where they are, and the
+ * others are only reordered between them. Two guards are only treated as unable to hold at once if
+ * this can be seen from their '&&' operands, such as x &gt; 5 in one and x &lt; 3 in the other, or
+ * b in one and !b in the other.
+ * The profile should have been recorded for guards written the same way as those in the policy,
+ * since statistics are matched to subexpressions by their structure.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class GuardReorderer {
+	/**
+	 * The number of evaluations an operand needs before its statistics are used, unless set otherwise.
+	 */
+	public static final long DEFAULT_MIN_RUNS = 100;
+	/**
+	 * The depth of nested '&&' and '||' chains that are reordered; anything nested more deeply is left as it is.
+	 */
+	private static final int MAX_NESTING = 64;
+
+	/**
+	 * The statistics to order by.
+	 */
+	private final GuardProfile profile;
+	/**
+	 * The resolver the guards are evaluated with, which says which methods are pure and which are partial.
+	 */
+	private final InvocationResolver resolver;
+	/**
+	 * True if arithmetic can fail because the policy's bounds are enforced by reporting violations.
+	 */
+	private final boolean arithmeticFails;
+	/**
+	 * The number of evaluations an operand needs before its statistics are used.
+	 */
+	private long minRuns = DEFAULT_MIN_RUNS;
+
+	/**
+	 * Create a reorderer for guards evaluated without any policy bounds, using the default InvocationResolver.
+	 * @param profile The statistics to order by.
+	 */
+	public GuardReorderer (GuardProfile profile) {
+		this(profile, BoundedArithmetic.UNCHECKED, new InvocationResolver());
+	}
+
+	/**
+	 * Create a reorderer.
+	 * @param profile The statistics to order by.
+	 * @param arithmetic The arithmetic the guards are evaluated with.
+	 * @param resolver The resolver the guards' invocations are evaluated with.
+	 */
+	public GuardReorderer (GuardProfile profile, BoundedArithmetic arithmetic, InvocationResolver resolver) {
+		this.profile = profile;
+		this.resolver = resolver;
+		arithmeticFails = (arithmetic.getOverflow() == BoundedArithmetic.Overflow.VIOLATION);
+	}
+
+	/**
+	 * Set the number of evaluations an operand needs before its statistics are used.
+	 * @param minRuns The number of evaluations; operands evaluated fewer times aren't moved.
+	 */
+	public void setMinRuns (long minRuns) {
+		this.minRuns = minRuns;
+	}
+
+	/**
+	 * Reorder the guards and reactions of every rule of a policy.
+	 * @param spec The policy to reorder, which is changed in place.
+	 * @return The number of guards and lists of reactions that were changed.
+	 */
+	public int reorder (Specification spec) {
+		int changed = 0;
+		for (RuleType rule : spec.getRule()) {
+			if (rule.getPerform() != null) {
+				// Reactions are ordered using their original guards, since that's how they were profiled
+				if (reorder(rule.getPerform())) {
+					changed++;
+				}
+				for (ReactionType reaction : rule.getPerform().getReaction()) {
+					ReactionType.Guard guard = reaction.getGuard();
+					if ((guard != null) && (guard.getExpType() != null)) {
+						ExprNode original = ExprNode.fromElement(guard.getExpType());
+						ExprNode reordered = reorder(original);
+						if (reordered != original) {
+							guard.setExpType(reordered.toElement());
+							changed++;
+						}
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Reorder the reactions of a rule, if no two of their guards can hold at once.
+	 * @param perform The reactions to reorder, which are changed in place.
+	 * @return true if the order changed.
+	 */
+	private boolean reorder (PerformType perform) {
+		List<ReactionType> reactions = perform.getReaction();
+		int count = reactions.size();
+		boolean possible = (count > 1);
+		ExprNode[] guards = new ExprNode[count];
+		double[] keys = new double[count];
+
+		// Every guard has to be safe to move, and have enough statistics to order it by
+		for (int index = 0; possible && (index < count); index++) {
+			ReactionType.Guard guard = reactions.get(index).getGuard();
+			guards[index] = ((guard == null) || (guard.getExpType() == null)) ? null : ExprNode.fromElement(guard.getExpType());
+			GuardProfile.Stats stats = (guards[index] == null) ? null : profile.getStats(guards[index]);
+			possible = movable(guards[index], stats);
+			if (possible) {
+				keys[index] = key(stats, true);
+			}
+		}
+
+		// No two guards can hold at once
+		for (int first = 0; possible && (first < count); first++) {
+			for (int second = first + 1; possible && (second < count); second++) {
+				possible = exclusive(guards[first], guards[second]);
+			}
+		}
+
+		boolean result = false;
+		if (possible) {
+			int[] order = identity(count);
+			sort(keys, order, 0, count);
+			result = !Arrays.equals(order, identity(count));
+			if (result) {
+				ArrayList<ReactionType> original = new ArrayList<ReactionType>(reactions);
+				reactions.clear();
+				for (int index = 0; index < count; index++) {
+					reactions.add(original.get(order[index]));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reorder the '&&' and '||' chains of a guard.
+	 * @param guard The guard, may be null.
+	 * @return The reordered guard, or the same instance if nothing was moved.
+	 */
+	public ExprNode reorder (ExprNode guard) {
+		return (guard == null) ? null : reorder(guard, 0);
+	}
+
+	/**
+	 * Reorder the '&&' and '||' chains of a subexpression and of any chains within it.
+	 * @param node The subexpression.
+	 * @param nesting The number of chains the subexpression is nested within.
+	 * @return The reordered subexpression, or the same instance if nothing was moved.
+	 */
+	private ExprNode reorder (ExprNode node, int nesting) {
+		ExprNode result = node;
+		if ((node != null) && (nesting < MAX_NESTING)) {
+			if (node.getKind() == NodeKind.NOT) {
+				result = node.withChildren(new ExprNode[] {reorder(((ExprNode.UnaryOperation)node).getOperand(), nesting + 1)});
+			}
+			else if ((node.getKind() == NodeKind.AND) || (node.getKind() == NodeKind.OR)) {
+				// Work out the keys from the original operands, since those are what the profile recorded
+				ArrayList<ExprNode> operands = GuardProfile.flatten(node);
+				int count = operands.size();
+				boolean and = (node.getKind() == NodeKind.AND);
+				ExprNode[] reordered = new ExprNode[count];
+				double[] keys = new double[count];
+				boolean[] movable = new boolean[count];
+				boolean changed = false;
+				for (int index = 0; index < count; index++) {
+					ExprNode operand = operands.get(index);
+					GuardProfile.Stats stats = (operand == null) ? null : profile.getStats(operand);
+					movable[index] = movable(operand, stats);
+					keys[index] = movable[index] ? key(stats, !and) : 0.0;
+					reordered[index] = reorder(operand, nesting + 1);
+					changed = changed || (reordered[index] != operand);
+				}
+
+				// Sort each run of operands between those that can't be moved
+				int[] order = identity(count);
+				int start = 0;
+				for (int index = 0; index <= count; index++) {
+					if ((index == count) || !movable[index]) {
+						sort(keys, order, start, index);
+						start = index + 1;
+					}
+				}
+				changed = changed || !Arrays.equals(order, identity(count));
+
+				// Rebuild the chain only if something moved, so an unchanged guard keeps its bracketing
+				if (changed) {
+					result = reordered[order[0]];
+					for (int index = 1; index < count; index++) {
+						result = new ExprNode.BinaryOperation(node.getKind(), result, reordered[order[index]]);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Work out the sort key of an operand: its average cost for each time it decides the result.
+	 * @param stats The statistics of the operand.
+	 * @param decidesWhenTrue true if the result is decided by the operand being true, false if by it being false.
+	 * @return The key; operands with smaller keys go first.
+	 */
+	private static double key (GuardProfile.Stats stats, boolean decidesWhenTrue) {
+		double decisive = decidesWhenTrue ? stats.getSelectivity() : (1.0 - stats.getSelectivity());
+		return (decisive <= 0.0) ? Double.POSITIVE_INFINITY : (stats.getCost() / decisive);
+	}
+
+	/**
+	 * Check whether an operand can be moved.
+	 * @param operand The operand.
+	 * @param stats The statistics recorded for it, or null if there are none.
+	 * @return true if the operand has enough statistics, has never failed and can't fail for some values but not others.
+	 */
+	private boolean movable (ExprNode operand, GuardProfile.Stats stats) {
+		boolean result = (operand != null) && (stats != null) && (stats.getRuns() >= minRuns) && (stats.getFailures() == 0);
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		pending.add(operand);
+		while (result && !pending.isEmpty()) {
+			ExprNode current = pending.remove(pending.size() - 1);
+			if (current == null) {
+				result = false;
+			}
+			else {
+				switch (current.getKind()) {
+				case MOD:
+					result = false;
+					break;
+				case SUM:
+				case DIF:
+				case MUL:
+				case APPEND:
+					result = !arithmeticFails;
+					break;
+				case INVOCATION:
+					String identifier = ((ExprNode.Invocation)current).getIdentifier(0);
+					result = resolver.isPure(identifier) && !resolver.isPartial(identifier);
+					break;
+				default:
+					break;
+				}
+				for (int index = 0; index < current.getChildCount(); index++) {
+					pending.add(current.getChild(index));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether two guards can never hold at once, because an '&amp;&amp;' operand of one contradicts an '&amp;&amp;' operand of the other.
+	 * @param first The first guard.
+	 * @param second The second guard.
+	 * @return true if the guards can be seen to be mutually exclusive.
+	 */
+	static boolean exclusive (ExprNode first, ExprNode second) {
+		ArrayList<ExprNode> firstTerms = conjuncts(first);
+		ArrayList<ExprNode> secondTerms = conjuncts(second);
+		boolean result = false;
+		for (int outer = 0; !result && (outer < firstTerms.size()); outer++) {
+			for (int inner = 0; !result && (inner < secondTerms.size()); inner++) {
+				result = contradicts(firstTerms.get(outer), secondTerms.get(inner));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the operands of a guard's top level '&&' chain.
+	 * @param guard The guard.
+	 * @return The operands, or the guard alone if it isn't an '&&' operation.
+	 */
+	private static ArrayList<ExprNode> conjuncts (ExprNode guard) {
+		ArrayList<ExprNode> result;
+		if (guard.getKind() == NodeKind.AND) {
+			result = GuardProfile.flatten(guard);
+		}
+		else {
+			result = new ArrayList<ExprNode>();
+			result.add(guard);
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether two conditions can never both be true.
+	 * @param first The first condition.
+	 * @param second The second condition.
+	 * @return true if the conditions can be seen to contradict each other.
+	 */
+	private static boolean contradicts (ExprNode first, ExprNode second) {
+		boolean result = false;
+		if ((first != null) && (second != null)) {
+			// One is the negation of the other
+			result = ((first.getKind() == NodeKind.NOT) && second.equals(((ExprNode.UnaryOperation)first).getOperand()))
+					|| ((second.getKind() == NodeKind.NOT) && first.equals(((ExprNode.UnaryOperation)second).getOperand()));
+			if (!result) {
+				// Or they compare the same identifier with constants in incompatible ways
+				Comparison left = Comparison.of(first);
+				Comparison right = Comparison.of(second);
+				result = (left != null) && (right != null) && left.name.equals(right.name) && left.contradicts(right);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return an array holding the numbers from zero upwards.
+	 * @param count The length of the array.
+	 * @return The array.
+	 */
+	private static int[] identity (int count) {
+		int[] result = new int[count];
+		for (int index = 0; index < count; index++) {
+			result[index] = index;
+		}
+		return result;
+	}
+
+	/**
+	 * Sort part of an ordering by key, keeping items with equal keys in the order they were in.
+	 * The lists sorted here are short, so an insertion sort is used.
+	 * @param keys The keys, indexed by item.
+	 * @param order The items in order, part of which is sorted.
+	 * @param from The first position to sort.
+	 * @param to The position after the last one to sort.
+	 */
+	private static void sort (double[] keys, int[] order, int from, int to) {
+		for (int index = from + 1; index < to; index++) {
+			int item = order[index];
+			int position = index;
+			while ((position > from) && (keys[order[position - 1]] > keys[item])) {
+				order[position] = order[position - 1];
+				position--;
+			}
+			order[position] = item;
+		}
+	}
+
+	/**
+	 * A comparison between an identifier and a constant, with the identifier on the left.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Comparison {
+		/**
+		 * The name of the identifier.
+		 */
+		private final String name;
+		/**
+		 * The comparison, as though the identifier were on the left.
+		 */
+		private final NodeKind kind;
+		/**
+		 * The constant.
+		 */
+		private final ExprNode constant;
+
+		/**
+		 * Create a comparison.
+		 * @param name The name of the identifier.
+		 * @param kind The comparison, as though the identifier were on the left.
+		 * @param constant The constant.
+		 */
+		private Comparison (String name, NodeKind kind, ExprNode constant) {
+			this.name = name;
+			this.kind = kind;
+			this.constant = constant;
+		}
+
+		/**
+		 * Recognise a comparison between an identifier and a constant.
+		 * @param node The condition.
+		 * @return The comparison, or null if the condition isn't one.
+		 */
+		static Comparison of (ExprNode node) {
+			Comparison result = null;
+			NodeKind kind = node.getKind();
+			if ((kind == NodeKind.EQUAL) || (kind == NodeKind.NOTEQUAL) || (kind == NodeKind.MORETHAN) || (kind == NodeKind.LESSTHAN)
+					|| (kind == NodeKind.MOREQUALTHAN) || (kind == NodeKind.LESSEQUALTHAN)) {
+				ExprNode left = ((ExprNode.BinaryOperation)node).getLeft();
+				ExprNode right = ((ExprNode.BinaryOperation)node).getRight();
+				if ((left instanceof ExprNode.Identifier) && isConstant(right)) {
+					result = new Comparison(((ExprNode.Identifier)left).getName(), kind, right);
+				}
+				else if ((right instanceof ExprNode.Identifier) && isConstant(left)) {
+					result = new Comparison(((ExprNode.Identifier)right).getName(), flip(kind), left);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Check whether a node is a constant.
+		 * @param node The node, may be null.
+		 * @return true if the node is an integer, boolean or string constant.
+		 */
+		private static boolean isConstant (ExprNode node) {
+			return (node instanceof ExprNode.IntConstant) || (node instanceof ExprNode.BoolConstant) || (node instanceof ExprNode.StringConstant);
+		}
+
+		/**
+		 * Swap the sides of a comparison.
+		 * @param kind The comparison.
+		 * @return The comparison that gives the same result with its operands swapped.
+		 */
+		private static NodeKind flip (NodeKind kind) {
+			NodeKind result = kind;
+			switch (kind) {
+			case MORETHAN:
+				result = NodeKind.LESSTHAN;
+				break;
+			case LESSTHAN:
+				result = NodeKind.MORETHAN;
+				break;
+			case MOREQUALTHAN:
+				result = NodeKind.LESSEQUALTHAN;
+				break;
+			case LESSEQUALTHAN:
+				result = NodeKind.MOREQUALTHAN;
+				break;
+			default:
+				break;
+			}
+			return result;
+		}
+
+		/**
+		 * Check whether this comparison and another of the same identifier can never both be true.
+		 * @param other The other comparison.
+		 * @return true if the comparisons contradict each other.
+		 */
+		boolean contradicts (Comparison other) {
+			boolean result = false;
+			if ((kind == NodeKind.EQUAL) && (other.kind == NodeKind.EQUAL)) {
+				// Equal to two different constants of the same type
+				result = (constant.getKind() == other.constant.getKind()) && !constant.equals(other.constant);
+			}
+			else if (((kind == NodeKind.EQUAL) && (other.kind == NodeKind.NOTEQUAL)) || ((kind == NodeKind.NOTEQUAL) && (other.kind == NodeKind.EQUAL))) {
+				result = constant.equals(other.constant);
+			}
+			else if ((kind != NodeKind.NOTEQUAL) && (other.kind != NodeKind.NOTEQUAL)
+					&& (constant instanceof ExprNode.IntConstant) && (other.constant instanceof ExprNode.IntConstant)) {
+				// The ranges of integers the comparisons allow don't overlap
+				long[] range = range();
+				long[] otherRange = other.range();
+				result = (range[0] > range[1]) || (otherRange[0] > otherRange[1]) || (range[1] < otherRange[0]) || (otherRange[1] < range[0]);
+			}
+			return result;
+		}
+
+		/**
+		 * Work out the range of integers an integer comparison allows.
+		 * @return The lowest and highest values allowed; the lowest is greater than the highest if none are.
+		 */
+		private long[] range () {
+			long value = ((ExprNode.IntConstant)constant).getValue();
+			long[] result = {Long.MIN_VALUE, Long.MAX_VALUE};
+			switch (kind) {
+			case MORETHAN:
+				result[0] = (value == Long.MAX_VALUE) ? Long.MAX_VALUE : (value + 1);
+				result[1] = (value == Long.MAX_VALUE) ? Long.MIN_VALUE : Long.MAX_VALUE;
+				break;
+			case LESSTHAN:
+				result[0] = (value == Long.MIN_VALUE) ? Long.MAX_VALUE : Long.MIN_VALUE;
+				result[1] = (value == Long.MIN_VALUE) ? Long.MIN_VALUE : (value - 1);
+				break;
+			case MOREQUALTHAN:
+				result[0] = value;
+				break;
+			case LESSEQUALTHAN:
+				result[1] = value;
+				break;
+			default:
+				result[0] = value;
+				result[1] = value;
+				break;
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,529 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+
+/**
+ * Turns compiled expressions into trees of method handles, which the JVM can compile to native code
+ * in the same way as ordinary methods.
+ * Each node becomes a handle taking the SlotState holding the security state and the array of
+ * variables the expression looks up by name, and returning a long, boolean or String. Variables an
+ * expression compiled against a StateLayout reads by index are read straight from the typed arrays of
+ * the SlotState; those it reads by name, such as the parameters of a rule, are read from the array,
+ * which holds the variable for each entry of the expression's name table. The types of the variables
+ * read by name are fixed when the expression is compiled, so the handles don't check types as they go;
+ * instead the types of the variables are checked once, when they're put in the array. An expression
+ * that would fail a type check with those types, or that invokes a method, isn't compiled, and should
+ * be left to the ExpressionMachine.
+ * Integer and string operations are carried out by the BoundedArithmetic the expression is compiled
+ * for, which is bound into the tree; unchecked arithmetic uses plain Java operations instead.
+ * The postfix code is translated using a stack of handles, so no recursion is needed to compile.
+ * Running a handle tree does recurse, however, so very deep expressions are left uncompiled too.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class HandleCompiler {
+	/**
+	 * The deepest expression that will be compiled. Deeper expressions gain little, since the JIT
+	 * stops inlining long before this depth.
+	 */
+	static final int MAX_DEPTH = 64;
+
+	/**
+	 * Reads a variable from the array of variables, taking the array and the index of the variable.
+	 */
+	private static final MethodHandle SLOT = MethodHandles.arrayElementGetter(Bindings.Variable[].class);
+	/**
+	 * Reads the integers of a SlotState.
+	 */
+	private static final MethodHandle INTS;
+	/**
+	 * Reads the booleans of a SlotState.
+	 */
+	private static final MethodHandle BOOLS;
+	/**
+	 * Reads the strings of a SlotState.
+	 */
+	private static final MethodHandle STRINGS;
+	/**
+	 * Reads the value of an integer variable.
+	 */
+	private static final MethodHandle GET_INT;
+	/**
+	 * Reads the value of a boolean variable.
+	 */
+	private static final MethodHandle GET_BOOL;
+	/**
+	 * Reads the value of a string variable.
+	 */
+	private static final MethodHandle GET_STRING;
+	/**
+	 * The operations, indexed by opcode; EQUAL and NOTEQUAL here compare integers.
+	 */
+	private static final MethodHandle[] OPERATIONS = new MethodHandle[CompiledExpression.NOT + 1];
+	/**
+	 * The integer and string operations of BoundedArithmetic, indexed by opcode, each taking the
+	 * arithmetic to use as its first argument.
+	 */
+	private static final MethodHandle[] BOUNDED = new MethodHandle[CompiledExpression.NOT + 1];
+	/**
+	 * Compare booleans for equality.
+	 */
+	private static final MethodHandle EQUAL_BOOL;
+	/**
+	 * Compare booleans for inequality.
+	 */
+	private static final MethodHandle NOTEQUAL_BOOL;
+	/**
+	 * Compare strings for equality.
+	 */
+	private static final MethodHandle EQUAL_STRING;
+	/**
+	 * Compare strings for inequality.
+	 */
+	private static final MethodHandle NOTEQUAL_STRING;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			GET_INT = lookup.findVirtual(Bindings.Variable.class, "getInt", MethodType.methodType(long.class));
+			GET_BOOL = lookup.findVirtual(Bindings.Variable.class, "getBool", MethodType.methodType(boolean.class));
+			GET_STRING = lookup.findVirtual(Bindings.Variable.class, "getString", MethodType.methodType(String.class));
+			INTS = lookup.findGetter(SlotState.class, "ints", long[].class);
+			BOOLS = lookup.findGetter(SlotState.class, "bools", boolean[].class);
+			STRINGS = lookup.findGetter(SlotState.class, "strings", String[].class);
+
+			MethodType arithmetic = MethodType.methodType(long.class, long.class, long.class);
+			MethodType comparison = MethodType.methodType(boolean.class, long.class, long.class);
+			OPERATIONS[CompiledExpression.SUM] = lookup.findStatic(HandleCompiler.class, "sum", arithmetic);
+			OPERATIONS[CompiledExpression.DIF] = lookup.findStatic(HandleCompiler.class, "dif", arithmetic);
+			OPERATIONS[CompiledExpression.MUL] = lookup.findStatic(HandleCompiler.class, "mul", arithmetic);
+			OPERATIONS[CompiledExpression.MOD] = lookup.findStatic(HandleCompiler.class, "mod", arithmetic);
+			OPERATIONS[CompiledExpression.MORETHAN] = lookup.findStatic(HandleCompiler.class, "moreThan", comparison);
+			OPERATIONS[CompiledExpression.LESSTHAN] = lookup.findStatic(HandleCompiler.class, "lessThan", comparison);
+			OPERATIONS[CompiledExpression.MOREQUALTHAN] = lookup.findStatic(HandleCompiler.class, "moreEqualThan", comparison);
+			OPERATIONS[CompiledExpression.LESSEQUALTHAN] = lookup.findStatic(HandleCompiler.class, "lessEqualThan", comparison);
+			OPERATIONS[CompiledExpression.EQUAL] = lookup.findStatic(HandleCompiler.class, "equal", comparison);
+			OPERATIONS[CompiledExpression.NOTEQUAL] = lookup.findStatic(HandleCompiler.class, "notEqual", comparison);
+			OPERATIONS[CompiledExpression.APPEND] = lookup.findVirtual(String.class, "concat", MethodType.methodType(String.class, String.class));
+			OPERATIONS[CompiledExpression.NOT] = lookup.findStatic(HandleCompiler.class, "not", MethodType.methodType(boolean.class, boolean.class));
+
+			BOUNDED[CompiledExpression.SUM] = lookup.findVirtual(BoundedArithmetic.class, "sum", arithmetic);
+			BOUNDED[CompiledExpression.DIF] = lookup.findVirtual(BoundedArithmetic.class, "dif", arithmetic);
+			BOUNDED[CompiledExpression.MUL] = lookup.findVirtual(BoundedArithmetic.class, "mul", arithmetic);
+			BOUNDED[CompiledExpression.MOD] = lookup.findVirtual(BoundedArithmetic.class, "mod", arithmetic);
+			BOUNDED[CompiledExpression.APPEND] = lookup.findVirtual(BoundedArithmetic.class, "append", MethodType.methodType(String.class, String.class, String.class));
+
+			MethodType flags = MethodType.methodType(boolean.class, boolean.class, boolean.class);
+			MethodType texts = MethodType.methodType(boolean.class, String.class, String.class);
+			EQUAL_BOOL = lookup.findStatic(HandleCompiler.class, "equal", flags);
+			NOTEQUAL_BOOL = lookup.findStatic(HandleCompiler.class, "notEqual", flags);
+			EQUAL_STRING = lookup.findVirtual(String.class, "equals", MethodType.methodType(boolean.class, Object.class)).asType(texts);
+			NOTEQUAL_STRING = lookup.findStatic(HandleCompiler.class, "notEqual", texts);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Private initialiser; the class only has static methods.
+	 */
+	private HandleCompiler () {
+	}
+
+	/**
+	 * Compile an expression into a method handle tree.
+	 * @param program The expression, already compiled to postfix code.
+	 * @param slotTypes The types of the variables the expression looks up by name, in the order of its name table.
+	 * @param arithmetic Carries out the integer and string operations.
+	 * @return The compiled expression, or null if the expression can't be compiled.
+	 */
+	static HandleExpression compile (CompiledExpression program, ValueType[] slotTypes, BoundedArithmetic arithmetic) {
+		final int[] code = program.code;
+		// The handles for the values that would be on the machine's stack, with their types and depths
+		ArrayList<MethodHandle> handles = new ArrayList<MethodHandle>();
+		ArrayList<ValueType> types = new ArrayList<ValueType>();
+		ArrayList<Integer> depths = new ArrayList<Integer>();
+		// The logical operations whose right hand sides are being compiled, innermost last
+		ArrayList<Integer> logicals = new ArrayList<Integer>();
+		boolean compilable = true;
+		int pc = 0;
+
+		while (compilable && (pc < code.length)) {
+			int opcode = code[pc];
+			int top = handles.size() - 1;
+			switch (opcode) {
+			case CompiledExpression.PUSH_INT:
+				push(handles, types, depths, constant(long.class, Long.valueOf(program.integers[code[pc + 1]])), ValueType.INT, 1);
+				break;
+			case CompiledExpression.PUSH_BOOL:
+				push(handles, types, depths, constant(boolean.class, Boolean.valueOf(code[pc + 1] != 0)), ValueType.BOOL, 1);
+				break;
+			case CompiledExpression.PUSH_STRING:
+				push(handles, types, depths, constant(String.class, program.strings[code[pc + 1]]), ValueType.STRING, 1);
+				break;
+			case CompiledExpression.LOAD:
+				int slot = code[pc + 1];
+				push(handles, types, depths, load(slot, slotTypes[slot]), slotTypes[slot], 1);
+				break;
+			case CompiledExpression.LOAD_INT:
+				push(handles, types, depths, load(INTS, long[].class, code[pc + 1]), ValueType.INT, 1);
+				break;
+			case CompiledExpression.LOAD_BOOL:
+				push(handles, types, depths, load(BOOLS, boolean[].class, code[pc + 1]), ValueType.BOOL, 1);
+				break;
+			case CompiledExpression.LOAD_STRING:
+				push(handles, types, depths, load(STRINGS, String[].class, code[pc + 1]), ValueType.STRING, 1);
+				break;
+			case CompiledExpression.SUM:
+			case CompiledExpression.DIF:
+			case CompiledExpression.MUL:
+			case CompiledExpression.MOD:
+				compilable = (types.get(top - 1) == ValueType.INT) && (types.get(top) == ValueType.INT);
+				if (compilable) {
+					combine(handles, types, depths, operation(opcode, arithmetic), ValueType.INT);
+				}
+				break;
+			case CompiledExpression.MORETHAN:
+			case CompiledExpression.LESSTHAN:
+			case CompiledExpression.MOREQUALTHAN:
+			case CompiledExpression.LESSEQUALTHAN:
+				compilable = (types.get(top - 1) == ValueType.INT) && (types.get(top) == ValueType.INT);
+				if (compilable) {
+					combine(handles, types, depths, OPERATIONS[opcode], ValueType.BOOL);
+				}
+				break;
+			case CompiledExpression.EQUAL:
+			case CompiledExpression.NOTEQUAL:
+			case CompiledExpression.EQUAL_STRING:
+			case CompiledExpression.NOTEQUAL_STRING:
+				// Pick the comparison for the type of the operands
+				ValueType operands = types.get(top);
+				boolean equal = (opcode == CompiledExpression.EQUAL) || (opcode == CompiledExpression.EQUAL_STRING);
+				compilable = (types.get(top - 1) == operands) && ((operands == ValueType.STRING) || (opcode <= CompiledExpression.NOTEQUAL));
+				MethodHandle comparison = OPERATIONS[equal ? CompiledExpression.EQUAL : CompiledExpression.NOTEQUAL];
+				if (operands == ValueType.BOOL) {
+					comparison = equal ? EQUAL_BOOL : NOTEQUAL_BOOL;
+				}
+				else if (operands == ValueType.STRING) {
+					comparison = equal ? EQUAL_STRING : NOTEQUAL_STRING;
+				}
+				if (compilable) {
+					combine(handles, types, depths, comparison, ValueType.BOOL);
+				}
+				break;
+			case CompiledExpression.APPEND:
+				compilable = (types.get(top - 1) == ValueType.STRING) && (types.get(top) == ValueType.STRING);
+				if (compilable) {
+					combine(handles, types, depths, operation(opcode, arithmetic), ValueType.STRING);
+				}
+				break;
+			case CompiledExpression.NOT:
+				compilable = (types.get(top) == ValueType.BOOL);
+				if (compilable) {
+					handles.set(top, MethodHandles.filterReturnValue(handles.get(top), OPERATIONS[opcode]));
+					depths.set(top, Integer.valueOf(depths.get(top).intValue() + 1));
+				}
+				break;
+			case CompiledExpression.AND:
+			case CompiledExpression.OR:
+				// The left hand side stays on the stack until the right hand side has been compiled
+				compilable = (types.get(top) == ValueType.BOOL);
+				logicals.add(Integer.valueOf(opcode));
+				break;
+			case CompiledExpression.CHECK_BOOL:
+				// The end of the right hand side of the innermost logical operation
+				compilable = (types.get(top) == ValueType.BOOL);
+				if (compilable) {
+					boolean and = (logicals.remove(logicals.size() - 1).intValue() == CompiledExpression.AND);
+					MethodHandle right = handles.remove(top);
+					MethodHandle left = handles.get(top - 1);
+					int depth = Math.max(depths.remove(top).intValue(), depths.get(top - 1).intValue()) + 1;
+					types.remove(top);
+					// The left hand side is the result if it's false for an and, or true for an or
+					MethodHandle shortCut = constant(boolean.class, Boolean.valueOf(!and));
+					handles.set(top - 1, and ? MethodHandles.guardWithTest(left, right, shortCut) : MethodHandles.guardWithTest(left, shortCut, right));
+					depths.set(top - 1, Integer.valueOf(depth));
+				}
+				break;
+			default:
+				// Invocations are left to the machine
+				compilable = false;
+				break;
+			}
+			compilable = compilable && (depths.get(depths.size() - 1).intValue() <= MAX_DEPTH);
+			pc += CompiledExpression.hasOperand(opcode) ? 2 : 1;
+		}
+
+		HandleExpression result = null;
+		if (compilable) {
+			result = new HandleExpression(handles.get(0), types.get(0), program.names, slotTypes.clone(), program.layout, arithmetic);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the handle for an integer or string operation.
+	 * @param opcode The operation.
+	 * @param arithmetic Carries out the operation.
+	 * @return The handle, taking the two operands.
+	 */
+	private static MethodHandle operation (int opcode, BoundedArithmetic arithmetic) {
+		MethodHandle result = OPERATIONS[opcode];
+		if (arithmetic != BoundedArithmetic.UNCHECKED) {
+			result = BOUNDED[opcode].bindTo(arithmetic);
+		}
+		return result;
+	}
+
+	/**
+	 * Push a handle onto the stack.
+	 * @param handles The stack of handles.
+	 * @param types The types of the values the handles return.
+	 * @param depths The depths of the handle trees.
+	 * @param handle The handle to push.
+	 * @param type The type of the value it returns.
+	 * @param depth The depth of its tree.
+	 */
+	private static void push (ArrayList<MethodHandle> handles, ArrayList<ValueType> types, ArrayList<Integer> depths, MethodHandle handle, ValueType type, int depth) {
+		handles.add(handle);
+		types.add(type);
+		depths.add(Integer.valueOf(depth));
+	}
+
+	/**
+	 * Replace the top two handles on the stack with a handle that applies an operation to their results.
+	 * @param handles The stack of handles.
+	 * @param types The types of the values the handles return.
+	 * @param depths The depths of the handle trees.
+	 * @param operation The operation, taking two arguments of the types the handles return.
+	 * @param type The type of value the operation returns.
+	 */
+	private static void combine (ArrayList<MethodHandle> handles, ArrayList<ValueType> types, ArrayList<Integer> depths, MethodHandle operation, ValueType type) {
+		int top = handles.size() - 1;
+		MethodHandle right = handles.remove(top);
+		MethodHandle left = handles.remove(top - 1);
+		int depth = Math.max(depths.remove(top).intValue(), depths.remove(top - 1).intValue()) + 1;
+		types.remove(top);
+		types.remove(top - 1);
+
+		// Both operands take the state and the variables; folding runs the left hand side first, and then
+		// the right hand side, which ignores the left hand result it's passed, before the operation
+		Class<?> leftType = operation.type().parameterType(0);
+		Class<?> rightType = operation.type().parameterType(1);
+		MethodType swapped = MethodType.methodType(operation.type().returnType(), rightType, leftType);
+		MethodHandle target = MethodHandles.dropArguments(MethodHandles.permuteArguments(operation, swapped, 1, 0), 2, SlotState.class, Bindings.Variable[].class);
+		MethodHandle withRight = MethodHandles.foldArguments(target, MethodHandles.dropArguments(right, 0, leftType));
+		push(handles, types, depths, MethodHandles.foldArguments(withRight, left), type, depth);
+	}
+
+	/**
+	 * Create a handle that ignores the state and the variables and returns a constant.
+	 * @param type The type of the constant.
+	 * @param value The constant, boxed if it's a primitive.
+	 * @return The handle.
+	 */
+	private static MethodHandle constant (Class<?> type, Object value) {
+		return MethodHandles.dropArguments(MethodHandles.constant(type, value), 0, SlotState.class, Bindings.Variable[].class);
+	}
+
+	/**
+	 * Create a handle that reads a variable of the security state from one of the arrays of a SlotState.
+	 * @param array Reads the array from the state.
+	 * @param type The class of the array.
+	 * @param index The index of the variable in the array.
+	 * @return The handle.
+	 */
+	private static MethodHandle load (MethodHandle array, Class<?> type, int index) {
+		MethodHandle element = MethodHandles.insertArguments(MethodHandles.arrayElementGetter(type), 1, Integer.valueOf(index));
+		return MethodHandles.dropArguments(MethodHandles.filterReturnValue(array, element), 1, Bindings.Variable[].class);
+	}
+
+	/**
+	 * Create a handle that reads the value of a variable looked up by name.
+	 * @param slot The index of the variable in the array of variables, which is its index in the name table.
+	 * @param type The type of the variable.
+	 * @return The handle.
+	 */
+	private static MethodHandle load (int slot, ValueType type) {
+		MethodHandle variable = MethodHandles.insertArguments(SLOT, 1, Integer.valueOf(slot));
+		MethodHandle getter;
+		switch (type) {
+		case INT:
+			getter = GET_INT;
+			break;
+		case BOOL:
+			getter = GET_BOOL;
+			break;
+		default:
+			getter = GET_STRING;
+			break;
+		}
+		return MethodHandles.dropArguments(MethodHandles.filterReturnValue(variable, getter), 0, SlotState.class);
+	}
+
+	/**
+	 * Add two integers.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result.
+	 */
+	private static long sum (long left, long right) {
+		return left + right;
+	}
+
+	/**
+	 * Subtract one integer from another.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result.
+	 */
+	private static long dif (long left, long right) {
+		return left - right;
+	}
+
+	/**
+	 * Multiply two integers.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result.
+	 */
+	private static long mul (long left, long right) {
+		return left * right;
+	}
+
+	/**
+	 * Take one integer modulo another.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result.
+	 */
+	private static long mod (long left, long right) {
+		if (right == 0) {
+			throw new EvaluationException("Modulus by zero");
+		}
+		return left % right;
+	}
+
+	/**
+	 * Check whether one integer is greater than another.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean moreThan (long left, long right) {
+		return left > right;
+	}
+
+	/**
+	 * Check whether one integer is less than another.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean lessThan (long left, long right) {
+		return left < right;
+	}
+
+	/**
+	 * Check whether one integer is greater than or equal to another.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean moreEqualThan (long left, long right) {
+		return left >= right;
+	}
+
+	/**
+	 * Check whether one integer is less than or equal to another.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean lessEqualThan (long left, long right) {
+		return left <= right;
+	}
+
+	/**
+	 * Compare two integers for equality.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean equal (long left, long right) {
+		return left == right;
+	}
+
+	/**
+	 * Compare two integers for inequality.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean notEqual (long left, long right) {
+		return left != right;
+	}
+
+	/**
+	 * Compare two booleans for equality.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean equal (boolean left, boolean right) {
+		return left == right;
+	}
+
+	/**
+	 * Compare two booleans for inequality.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean notEqual (boolean left, boolean right) {
+		return left != right;
+	}
+
+	/**
+	 * Compare two strings for inequality.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean notEqual (String left, String right) {
+		return !left.equals(right);
+	}
+
+	/**
+	 * Negate a boolean.
+	 * @param value The boolean.
+	 * @return The negated value.
+	 */
+	private static boolean not (boolean value) {
+		return !value;
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * An expression compiled by HandleCompiler into a tree of method handles over a SlotState and an
+ * array of variables. Before it's run, each entry of the array must be filled with the variable of the
+ * matching name and type, which bind() takes care of; the array only needs filling again if the
+ * bindings the variables were found in have since defined new variables.
+ * Handle expressions are immutable, so they can be shared between threads.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class HandleExpression {
+	/**
+	 * The root of the handle tree, taking the state and the variables and returning a long, boolean or String.
+	 */
+	private final MethodHandle handle;
+	/**
+	 * The type of the result.
+	 */
+	private final ValueType type;
+	/**
+	 * The interned names of the variables looked up by name, in the order of the array of variables.
+	 */
+	private final String[] names;
+	/**
+	 * The types of the variables looked up by name.
+	 */
+	private final ValueType[] slotTypes;
+	/**
+	 * The layout of the states the expression reads variables from by index, or null if it looks them all up by name.
+	 */
+	private final StateLayout layout;
+	/**
+	 * The arithmetic bound into the handle tree.
+	 */
+	private final BoundedArithmetic arithmetic;
+
+	/**
+	 * Create a handle expression. The arrays are used as they are, rather than copied.
+	 * @param handle The root of the handle tree.
+	 * @param type The type of the result.
+	 * @param names The interned names of the variables looked up by name.
+	 * @param slotTypes The types of the variables looked up by name.
+	 * @param layout The layout of the states variables are read from by index, may be null.
+	 * @param arithmetic The arithmetic bound into the handle tree.
+	 */
+	HandleExpression (MethodHandle handle, ValueType type, String[] names, ValueType[] slotTypes, StateLayout layout, BoundedArithmetic arithmetic) {
+		this.handle = handle;
+		this.type = type;
+		this.names = names;
+		this.slotTypes = slotTypes;
+		this.layout = layout;
+		this.arithmetic = arithmetic;
+	}
+
+	/**
+	 * Return the type of the result.
+	 * @return The result type.
+	 */
+	ValueType getType () {
+		return type;
+	}
+
+	/**
+	 * Return the arithmetic the expression was compiled for.
+	 * @return The arithmetic bound into the handle tree.
+	 */
+	BoundedArithmetic getArithmetic () {
+		return arithmetic;
+	}
+
+	/**
+	 * Check whether the expression can read the variables of a state held in slots.
+	 * @param slots The state, or null if there isn't one.
+	 * @return true if the expression doesn't read variables by index, or the state has the layout it reads them by.
+	 */
+	boolean reads (SlotState slots) {
+		return (layout == null) || ((slots != null) && (slots.getLayout() == layout));
+	}
+
+	/**
+	 * Fill the array of variables with the variables the expression looks up by name.
+	 * Identifiers are looked up in the parameters first, and then in the security state.
+	 * @param variables The array to fill, at least as long as the expression's name table.
+	 * @param state The security state held in bindings, or null if it's held in slots.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return true if every variable was found with the type the expression was compiled for.
+	 */
+	boolean bind (Bindings.Variable[] variables, Bindings state, Bindings parameters) {
+		boolean result = true;
+		for (int slot = 0; result && (slot < names.length); slot++) {
+			Bindings.Variable variable = ExpressionEvaluator.find(names[slot], state, parameters);
+			variables[slot] = variable;
+			result = (variable != null) && (variable.getType() == slotTypes[slot]);
+		}
+		return result;
+	}
+
+	/**
+	 * Run an expression whose result is an integer.
+	 * @param slots The security state held in slots, or null if the expression doesn't read it by index.
+	 * @param variables The variables looked up by name, already filled by bind().
+	 * @return The result.
+	 */
+	long evaluateInt (SlotState slots, Bindings.Variable[] variables) {
+		long result;
+		try {
+			result = (long)handle.invokeExact(slots, variables);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Run an expression whose result is a boolean.
+	 * @param slots The security state held in slots, or null if the expression doesn't read it by index.
+	 * @param variables The variables looked up by name, already filled by bind().
+	 * @return The result.
+	 */
+	boolean evaluateBool (SlotState slots, Bindings.Variable[] variables) {
+		boolean result;
+		try {
+			result = (boolean)handle.invokeExact(slots, variables);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Run an expression whose result is a string.
+	 * @param slots The security state held in slots, or null if the expression doesn't read it by index.
+	 * @param variables The variables looked up by name, already filled by bind().
+	 * @return The result.
+	 */
+	String evaluateString (SlotState slots, Bindings.Variable[] variables) {
+		String result;
+		try {
+			result = (String)handle.invokeExact(slots, variables);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Pass on a problem raised while running the handle tree. The only checked exceptions a handle
+	 * can throw are those invokeExact() declares, so these are wrapped.
+	 * @param e The problem.
+	 * @return The exception to throw, if the problem isn't an unchecked exception or error.
+	 */
+	private static EvaluationException rethrow (Throwable e) {
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException)e;
+		}
+		if (e instanceof Error) {
+			throw (Error)e;
+		}
+		return new EvaluationException("The compiled expression failed", e);
+	}
+}
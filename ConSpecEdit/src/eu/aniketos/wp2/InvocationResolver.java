@@ -0,0 +1,672 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import eu.aniketos.AssignType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.UpdateType;
+
+/**
+ * Resolves the methods named by ConSpec invocations to method handles, so that the dotted method
+ * identifier is looked up once, when a policy is loaded, rather than every time an event is evaluated.
+ * The first identifier of an invocation gives the class and method name (for example
+ * <code>java.lang.String.equals</code>), and the second, if present, names the variable the
+ * method is invoked on. Overloaded methods are chosen by the types of the receiver and arguments,
+ * preferring long parameters over int ones so that integers aren't truncated, and then the most
+ * specific of those left, as the Java compiler would. If no one method is more specific than the
+ * others the invocation is reported as ambiguous, rather than depending on the order the JVM happens
+ * to list the methods in.
+ * Only methods on the allowlist can be resolved. By default this holds a selection of methods of
+ * String, Math, Long and Boolean that have no side effects; entries can either name a single method,
+ * or end in <code>.*</code> to allow every public method of a class.
+ * Methods can also be marked as pure, meaning that they have no side effects and always give the same
+ * result for the same receiver and arguments, so that GuardMemo can reuse the results of guards that
+ * invoke them. The methods on the default allowlist are all marked as pure. Methods that can throw an
+ * exception for some arguments, such as <code>java.lang.String.substring</code>, can also be marked as
+ * partial, so that GuardReorderer doesn't move them ahead of the checks that guard them.
+ * Resolutions are cached against the invocation node, so an invocation node shared by expressions
+ * whose identifiers have different types is resolved once for each combination of types.
+ * A resolver isn't thread safe, even when it's only used to invoke methods, since invocations are
+ * resolved as they're first made; code running policies on several threads should give each thread
+ * its own copy.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class InvocationResolver {
+	/**
+	 * The methods that can be invoked unless the allowlist is set explicitly.
+	 */
+	private static final String[] DEFAULT_ALLOWED = {
+		"java.lang.String.equals", "java.lang.String.equalsIgnoreCase", "java.lang.String.compareTo",
+		"java.lang.String.compareToIgnoreCase", "java.lang.String.length", "java.lang.String.isEmpty",
+		"java.lang.String.contains", "java.lang.String.startsWith", "java.lang.String.endsWith",
+		"java.lang.String.indexOf", "java.lang.String.lastIndexOf", "java.lang.String.substring",
+		"java.lang.String.toLowerCase", "java.lang.String.toUpperCase", "java.lang.String.trim",
+		"java.lang.String.concat", "java.lang.String.valueOf",
+		"java.lang.Math.abs", "java.lang.Math.max", "java.lang.Math.min",
+		"java.lang.Long.compare", "java.lang.Long.signum", "java.lang.Long.toString",
+		"java.lang.Boolean.toString"
+	};
+	/**
+	 * The methods on the default allowlist that can throw an exception for some arguments.
+	 */
+	private static final String[] DEFAULT_PARTIAL = {
+		"java.lang.String.substring"
+	};
+
+	/**
+	 * The methods that can be invoked, and the classes whose methods can all be invoked (ending in ".*").
+	 */
+	private final HashSet<String> allowed;
+	/**
+	 * The methods marked as pure, and the classes whose methods are all pure (ending in ".*").
+	 */
+	private final HashSet<String> pure = new HashSet<String>(Arrays.asList(DEFAULT_ALLOWED));
+	/**
+	 * The methods marked as partial, and the classes whose methods are all partial (ending in ".*").
+	 */
+	private final HashSet<String> partial = new HashSet<String>(Arrays.asList(DEFAULT_PARTIAL));
+	/**
+	 * The class loader used to find the classes of invoked methods.
+	 */
+	private ClassLoader classLoader = InvocationResolver.class.getClassLoader();
+	/**
+	 * The resolutions made for each invocation node, one for each combination of types it's been resolved for.
+	 */
+	private final IdentityHashMap<ExprNode.Invocation, Resolution> resolutions = new IdentityHashMap<ExprNode.Invocation, Resolution>();
+
+	/**
+	 * Create a resolver with the default allowlist.
+	 */
+	public InvocationResolver () {
+		this(Arrays.asList(DEFAULT_ALLOWED));
+	}
+
+	/**
+	 * Create a resolver.
+	 * @param allowed The methods that can be invoked, such as java.lang.String.equals, or classes
+	 * whose methods can all be invoked, such as java.lang.Math.*.
+	 */
+	public InvocationResolver (Collection<String> allowed) {
+		this.allowed = new HashSet<String>(allowed);
+	}
+
+	/**
+	 * Create a resolver with the same allowlist, pure and partial methods and class loader as this one, but none
+	 * of its resolutions, so that it can be used on another thread.
+	 * @return The copy.
+	 */
+	public InvocationResolver copy () {
+		InvocationResolver result = new InvocationResolver(allowed);
+		result.pure.clear();
+		result.pure.addAll(pure);
+		result.partial.clear();
+		result.partial.addAll(partial);
+		result.classLoader = classLoader;
+		return result;
+	}
+
+	/**
+	 * Add a method, or a class ending in ".*", to the allowlist.
+	 * @param identifier The method or class.
+	 */
+	public void allow (String identifier) {
+		allowed.add(identifier);
+	}
+
+	/**
+	 * Check whether a method is on the allowlist.
+	 * @param identifier The class and method name.
+	 * @return true if the method can be invoked.
+	 */
+	public boolean isAllowed (String identifier) {
+		int split = identifier.lastIndexOf('.');
+		return allowed.contains(identifier) || ((split > 0) && allowed.contains(identifier.substring(0, split + 1) + "*"));
+	}
+
+	/**
+	 * Mark a method, or every method of a class if it ends in ".*", as pure: free of side effects and
+	 * always giving the same result for the same receiver and arguments.
+	 * @param identifier The method or class.
+	 */
+	public void markPure (String identifier) {
+		pure.add(identifier);
+	}
+
+	/**
+	 * Check whether a method has been marked as pure.
+	 * @param identifier The class and method name.
+	 * @return true if the method is pure.
+	 */
+	public boolean isPure (String identifier) {
+		int split = identifier.lastIndexOf('.');
+		return pure.contains(identifier) || ((split > 0) && pure.contains(identifier.substring(0, split + 1) + "*"));
+	}
+
+	/**
+	 * Mark a method, or every method of a class if it ends in ".*", as partial: able to throw an
+	 * exception for some receivers or arguments.
+	 * @param identifier The method or class.
+	 */
+	public void markPartial (String identifier) {
+		partial.add(identifier);
+	}
+
+	/**
+	 * Check whether a method has been marked as partial.
+	 * @param identifier The class and method name.
+	 * @return true if the method can throw an exception for some receivers or arguments.
+	 */
+	public boolean isPartial (String identifier) {
+		int split = identifier.lastIndexOf('.');
+		return partial.contains(identifier) || ((split > 0) && partial.contains(identifier.substring(0, split + 1) + "*"));
+	}
+
+	/**
+	 * Set the class loader used to find the classes of invoked methods, forgetting any methods already resolved.
+	 * @param classLoader The class loader.
+	 */
+	public void setClassLoader (ClassLoader classLoader) {
+		this.classLoader = classLoader;
+		resolutions.clear();
+	}
+
+	/**
+	 * Forget all of the methods resolved.
+	 */
+	public void clear () {
+		resolutions.clear();
+	}
+
+	/**
+	 * Resolve every invocation in a policy: those in the guards and assignments of every reaction,
+	 * as compiled by the compiler given. The compiled expressions are cached by the compiler, so these
+	 * are the same invocations that will be evaluated.
+	 * Declaration initialisers are evaluated only once, when the security state is created, so
+	 * invocations within them are resolved as they're evaluated.
+	 * The types of the receivers and arguments are worked out by a TypeChecker, from the policy's SymbolTable.
+	 * @param spec The policy.
+	 * @param compiler The compiler that will provide the compiled expressions when the policy is evaluated.
+	 * @return A description of each invocation that couldn't be resolved, or of the type error that stopped
+	 * it being resolved, or an empty list if all of them were.
+	 */
+	public List<String> resolve (Specification spec, ExpressionCompiler compiler) {
+		ArrayList<String> problems = new ArrayList<String>();
+		TypeChecker checker = new TypeChecker(this);
+		SymbolTable symbols = new SymbolTable(spec);
+		Bindings state = symbols.getState();
+
+		int ruleNumber = 0;
+		for (RuleType rule : spec.getRule()) {
+			ruleNumber++;
+			Bindings parameters = symbols.getParameters(rule);
+			if (rule.getPerform() != null) {
+				int reactionNumber = 0;
+				for (ReactionType reaction : rule.getPerform().getReaction()) {
+					reactionNumber++;
+					String location = "Rule " + ruleNumber + ", reaction " + reactionNumber;
+					resolve(checker, compiler.compileGuard(reaction), state, parameters, location + " guard: ", problems);
+					resolve(checker, reaction.getUpdate(), compiler, state, parameters, location + " update: ", problems);
+				}
+				resolve(checker, rule.getPerform().getElse(), compiler, state, parameters, "Rule " + ruleNumber + " else: ", problems);
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * Resolve every invocation in the values assigned by an update block.
+	 * @param checker Works out the types of the arguments, resolving the invocations with this resolver.
+	 * @param update The update block, may be null.
+	 * @param compiler The compiler that will provide the compiled values.
+	 * @param state The security state, used only for the types of its variables.
+	 * @param parameters The parameters of the rule, used only for their types.
+	 * @param location Where the update is, added to the start of each problem.
+	 * @param problems A description of each invocation that couldn't be resolved is added to this.
+	 */
+	private static void resolve (TypeChecker checker, UpdateType update, ExpressionCompiler compiler, Bindings state, Bindings parameters, String location, List<String> problems) {
+		if (update != null) {
+			for (AssignType assign : update.getAssign()) {
+				if ((assign.getValue() != null) && (assign.getValue().getExpType() != null)) {
+					resolve(checker, compiler.compileValue(assign), state, parameters, location, problems);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resolve every invocation in a compiled expression.
+	 * @param program The compiled expression.
+	 * @param state The security state, used only for the types of its variables.
+	 * @param parameters The parameters of the method call, used only for their types; may be null.
+	 * @return A description of each invocation that couldn't be resolved, or of the type error that stopped
+	 * it being resolved, or an empty list if all of them were.
+	 */
+	public List<String> resolve (CompiledExpression program, Bindings state, Bindings parameters) {
+		ArrayList<String> problems = new ArrayList<String>();
+		resolve(new TypeChecker(this), program, state, parameters, "", problems);
+		return problems;
+	}
+
+	/**
+	 * Resolve every invocation in a compiled expression.
+	 * @param checker Works out the types of the arguments, resolving the invocations with this resolver.
+	 * @param program The compiled expression.
+	 * @param state The security state, used only for the types of its variables.
+	 * @param parameters The parameters of the method call, used only for their types; may be null.
+	 * @param location Where the expression is, added to the start of each problem.
+	 * @param problems A description of each invocation that couldn't be resolved is added to this.
+	 */
+	private static void resolve (TypeChecker checker, CompiledExpression program, Bindings state, Bindings parameters, String location, List<String> problems) {
+		// Nested invocations appear in the table in their own right, but are resolved along with the
+		// invocation they're nested in, so that any problem with them is only reported once
+		IdentityHashMap<ExprNode, Boolean> nested = new IdentityHashMap<ExprNode, Boolean>();
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		for (ExprNode.Invocation invocation : program.invocations) {
+			for (int index = 0; index < invocation.getArgumentCount(); index++) {
+				pending.add(invocation.getArgument(index));
+			}
+		}
+		while (!pending.isEmpty()) {
+			ExprNode node = pending.remove(pending.size() - 1);
+			if ((node != null) && (nested.put(node, Boolean.TRUE) == null)) {
+				for (int index = 0; index < node.getChildCount(); index++) {
+					pending.add(node.getChild(index));
+				}
+			}
+		}
+		for (ExprNode.Invocation invocation : program.invocations) {
+			if (!nested.containsKey(invocation)) {
+				resolve(checker, invocation, state, parameters, location, problems);
+			}
+		}
+	}
+
+	/**
+	 * Resolve every invocation in a compact expression.
+	 * @param root The root of the expression, may be null.
+	 * @param state The security state, used only for the types of its variables.
+	 * @param parameters The parameters of the method call, used only for their types; may be null.
+	 * @return A description of each invocation that couldn't be resolved, or of the type error that stopped
+	 * it being resolved, or an empty list if all of them were.
+	 */
+	public List<String> resolve (ExprNode root, Bindings state, Bindings parameters) {
+		ArrayList<String> problems = new ArrayList<String>();
+		if (root != null) {
+			resolve(new TypeChecker(this), root, state, parameters, "", problems);
+		}
+		return problems;
+	}
+
+	/**
+	 * Resolve every invocation in a compact expression, by having a TypeChecker work out the type of
+	 * each subexpression from the leaves upwards, which resolves each invocation once the types of its
+	 * arguments are known.
+	 * @param checker Works out the types, resolving the invocations with this resolver.
+	 * @param root The root of the expression.
+	 * @param state The security state, used only for the types of its variables.
+	 * @param parameters The parameters of the method call, used only for their types; may be null.
+	 * @param location Where the expression is, added to the start of each problem.
+	 * @param problems A description of each problem found is added to this.
+	 */
+	private static void resolve (TypeChecker checker, ExprNode root, Bindings state, Bindings parameters, String location, List<String> problems) {
+		ArrayList<String> found = new ArrayList<String>();
+		checker.infer(root, state, parameters, null, found);
+		for (String problem : found) {
+			problems.add(location + problem);
+		}
+	}
+
+	/**
+	 * Return the resolution of an invocation for the types of its receiver and arguments, resolving it if necessary.
+	 * @param invocation The invocation.
+	 * @param receiver The type of the variable the method is invoked on, or null for a static method.
+	 * @param types The types of the arguments, from the position given.
+	 * @param first The position of the first argument's type.
+	 * @return The resolution.
+	 * @throws EvaluationException If the invocation can't be resolved.
+	 */
+	Resolution lookup (ExprNode.Invocation invocation, ValueType receiver, ValueType[] types, int first) {
+		Resolution result = resolutions.get(invocation);
+		while ((result != null) && !result.matches(receiver, types, first)) {
+			result = result.next;
+		}
+		if (result == null) {
+			ValueType[] argumentTypes = new ValueType[invocation.getArgumentCount()];
+			System.arraycopy(types, first, argumentTypes, 0, argumentTypes.length);
+			result = resolve(invocation.getIdentifier(0), receiver, argumentTypes);
+			result.next = resolutions.get(invocation);
+			resolutions.put(invocation, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Find the method to use for an invocation and create a handle for it.
+	 * @param identifier The class and method name.
+	 * @param receiver The type of the variable the method is invoked on, or null for a static method.
+	 * @param types The types of the arguments.
+	 * @return The resolution.
+	 * @throws EvaluationException If the method isn't allowed, or can't be found or accessed.
+	 */
+	private Resolution resolve (String identifier, ValueType receiver, ValueType[] types) {
+		if (!isAllowed(identifier)) {
+			throw new EvaluationException("Method '" + identifier + "' isn't one of the methods expressions are allowed to invoke");
+		}
+		int split = identifier.lastIndexOf('.');
+		if (split <= 0) {
+			throw new EvaluationException("Method '" + identifier + "' should include its class name");
+		}
+		String className = identifier.substring(0, split);
+		String methodName = identifier.substring(split + 1);
+		Class<?> type;
+		try {
+			type = Class.forName(className, true, classLoader);
+		}
+		catch (ClassNotFoundException e) {
+			throw new EvaluationException("Class '" + className + "' can't be found", e);
+		}
+
+		// Collect the methods with the fewest int parameters from those that accept the arguments
+		boolean isStatic = (receiver == null);
+		ArrayList<Method> candidates = new ArrayList<Method>();
+		int bestNarrowing = Integer.MAX_VALUE;
+		for (Method method : type.getMethods()) {
+			if (method.getName().equals(methodName) && !method.isBridge() && (Modifier.isStatic(method.getModifiers()) == isStatic)
+					&& (isStatic || method.getDeclaringClass().isAssignableFrom(classOf(receiver)))) {
+				int narrowing = narrowing(method.getParameterTypes(), types);
+				if (narrowing < bestNarrowing) {
+					candidates.clear();
+					bestNarrowing = narrowing;
+				}
+				if ((narrowing == bestNarrowing) && (narrowing < Integer.MAX_VALUE)) {
+					candidates.add(method);
+				}
+			}
+		}
+		if (candidates.isEmpty()) {
+			throw new EvaluationException("There's no " + (isStatic ? "static " : "") + "method '" + identifier + "' taking " + types.length + " argument(s) of the types given");
+		}
+		Method best = mostSpecific(identifier, candidates);
+
+		// Adapt the method so that every method can be invoked in the same way: with a receiver, which
+		// is ignored for static methods, and an array of boxed arguments
+		MethodHandle handle;
+		try {
+			handle = MethodHandles.publicLookup().unreflect(best);
+		}
+		catch (IllegalAccessException e) {
+			throw new EvaluationException("Method '" + identifier + "' can't be accessed", e);
+		}
+		handle = handle.asType(handle.type().generic()).asSpreader(Object[].class, types.length);
+		if (isStatic) {
+			handle = MethodHandles.dropArguments(handle, 0, Object.class);
+		}
+		return new Resolution(identifier, receiver, types, handle, best.getParameterTypes(), typeOf(best.getReturnType()));
+	}
+
+	/**
+	 * Choose the most specific of the methods that accept the arguments equally well: the one whose
+	 * parameters could all be passed to each of the others. Methods are considered in the order of
+	 * their signatures, so that the choice doesn't depend on the order the JVM lists them in; of methods
+	 * with the same parameters, the one declared by the most derived class is taken.
+	 * @param identifier The class and method name, for reporting problems.
+	 * @param candidates The methods, of which there's at least one.
+	 * @return The most specific method.
+	 * @throws EvaluationException If no method is more specific than all of the others.
+	 */
+	private static Method mostSpecific (String identifier, List<Method> candidates) {
+		Method[] sorted = candidates.toArray(new Method[candidates.size()]);
+		Arrays.sort(sorted, new Comparator<Method>() {
+			@Override
+			public int compare (Method first, Method second) {
+				return first.toString().compareTo(second.toString());
+			}
+		});
+		Method best = null;
+		for (Method method : sorted) {
+			if ((best == null) || (isMoreSpecific(method, best) && !isMoreSpecific(best, method))) {
+				best = method;
+			}
+			else if (isMoreSpecific(method, best) && best.getDeclaringClass().isAssignableFrom(method.getDeclaringClass())
+					&& (best.getDeclaringClass() != method.getDeclaringClass())) {
+				// The same parameters, but declared by a more derived class
+				best = method;
+			}
+		}
+		for (Method method : sorted) {
+			if ((method != best) && !isMoreSpecific(best, method)) {
+				throw new EvaluationException("Method '" + identifier + "' is ambiguous for the types given, since neither "
+						+ best.toGenericString() + " nor " + method.toGenericString() + " is more specific than the other");
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Check whether each parameter of one method could be passed to the matching parameter of another,
+	 * boxing primitive parameters where needed.
+	 * @param method The method that may be more specific.
+	 * @param other The method to compare it with, taking the same number of parameters.
+	 * @return true if the method is at least as specific as the other.
+	 */
+	private static boolean isMoreSpecific (Method method, Method other) {
+		Class<?>[] parameters = method.getParameterTypes();
+		Class<?>[] others = other.getParameterTypes();
+		boolean result = true;
+		for (int index = 0; result && (index < parameters.length); index++) {
+			result = (parameters[index] == others[index]) || boxed(others[index]).isAssignableFrom(boxed(parameters[index]));
+		}
+		return result;
+	}
+
+	/**
+	 * Return the class that values of a primitive type are boxed into.
+	 * @param type The type.
+	 * @return The boxed class for a primitive type, or the type itself otherwise.
+	 */
+	private static Class<?> boxed (Class<?> type) {
+		Class<?> result = type;
+		if (type == long.class) {
+			result = Long.class;
+		}
+		else if (type == int.class) {
+			result = Integer.class;
+		}
+		else if (type == boolean.class) {
+			result = Boolean.class;
+		}
+		else if (type == short.class) {
+			result = Short.class;
+		}
+		else if (type == byte.class) {
+			result = Byte.class;
+		}
+		else if (type == char.class) {
+			result = Character.class;
+		}
+		else if (type == float.class) {
+			result = Float.class;
+		}
+		else if (type == double.class) {
+			result = Double.class;
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether a method's parameters accept arguments of the given types, and count how many of
+	 * the integer arguments would be narrowed to an int.
+	 * @param parameters The types of the parameters.
+	 * @param types The types of the arguments.
+	 * @return The number of int parameters, or Integer.MAX_VALUE if the arguments aren't accepted.
+	 */
+	private static int narrowing (Class<?>[] parameters, ValueType[] types) {
+		int result = (parameters.length == types.length) ? 0 : Integer.MAX_VALUE;
+		for (int index = 0; (result < Integer.MAX_VALUE) && (index < types.length); index++) {
+			Class<?> parameter = parameters[index];
+			switch (types[index]) {
+			case INT:
+				if ((parameter == int.class) || (parameter == Integer.class)) {
+					result++;
+				}
+				else if ((parameter != long.class) && !parameter.isAssignableFrom(Long.class)) {
+					result = Integer.MAX_VALUE;
+				}
+				break;
+			case BOOL:
+				if ((parameter != boolean.class) && !parameter.isAssignableFrom(Boolean.class)) {
+					result = Integer.MAX_VALUE;
+				}
+				break;
+			default:
+				if (!parameter.isAssignableFrom(String.class)) {
+					result = Integer.MAX_VALUE;
+				}
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the class of the objects that values of a type are passed as.
+	 * @param type The type.
+	 * @return Long, Boolean or String.
+	 */
+	static Class<?> classOf (ValueType type) {
+		Class<?> result;
+		switch (type) {
+		case INT:
+			result = Long.class;
+			break;
+		case BOOL:
+			result = Boolean.class;
+			break;
+		default:
+			result = String.class;
+			break;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the type that the results of a method are converted to.
+	 * @param type The return type of the method.
+	 * @return Booleans become booleans, integral numbers become integers, and anything else becomes a string.
+	 */
+	private static ValueType typeOf (Class<?> type) {
+		ValueType result;
+		if ((type == boolean.class) || (type == Boolean.class)) {
+			result = ValueType.BOOL;
+		}
+		else if ((type == long.class) || (type == int.class) || (type == short.class) || (type == byte.class)
+				|| (type == Long.class) || (type == Integer.class) || (type == Short.class) || (type == Byte.class)) {
+			result = ValueType.INT;
+		}
+		else {
+			result = ValueType.STRING;
+		}
+		return result;
+	}
+
+	/**
+	 * A method resolved for an invocation with a particular combination of receiver and argument types.
+	 */
+	static final class Resolution {
+		/**
+		 * The class and method name.
+		 */
+		final String identifier;
+		/**
+		 * The type of the variable the method is invoked on, or null for a static method.
+		 */
+		final ValueType receiver;
+		/**
+		 * The types of the arguments.
+		 */
+		final ValueType[] types;
+		/**
+		 * Invokes the method, taking the receiver (ignored for static methods) and an array of boxed arguments.
+		 */
+		final MethodHandle handle;
+		/**
+		 * The types of the method's parameters.
+		 */
+		final Class<?>[] parameters;
+		/**
+		 * The type the result is expected to be converted to.
+		 */
+		final ValueType type;
+		/**
+		 * The resolution of the same invocation for other types, or null if there isn't one.
+		 */
+		Resolution next;
+
+		/**
+		 * Create a resolution.
+		 * @param identifier The class and method name.
+		 * @param receiver The type of the variable the method is invoked on, or null for a static method.
+		 * @param types The types of the arguments.
+		 * @param handle Invokes the method.
+		 * @param parameters The types of the method's parameters.
+		 * @param type The type the result is expected to be converted to.
+		 */
+		Resolution (String identifier, ValueType receiver, ValueType[] types, MethodHandle handle, Class<?>[] parameters, ValueType type) {
+			this.identifier = identifier;
+			this.receiver = receiver;
+			this.types = types;
+			this.handle = handle;
+			this.parameters = parameters;
+			this.type = type;
+			this.next = null;
+		}
+
+		/**
+		 * Check whether this resolution is for the given receiver and argument types.
+		 * @param receiver The type of the receiver, or null for a static method.
+		 * @param types The types of the arguments, from the position given.
+		 * @param first The position of the first argument's type.
+		 * @return true if the types are the same as those resolved for.
+		 */
+		boolean matches (ValueType receiver, ValueType[] types, int first) {
+			boolean result = (receiver == this.receiver);
+			for (int index = 0; result && (index < this.types.length); index++) {
+				result = (types[first + index] == this.types[index]);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+/**
+ * Invokes the methods named by ConSpec invocations on behalf of the evaluators, using the method
+ * handles found by an InvocationResolver.
+ * The first identifier of an invocation gives the class and method name (for example
+ * <code>java.lang.String.equals</code>), and the second, if present, names the variable the
+ * method is invoked on. Methods are resolved once for each invocation and set of argument types,
+ * and only methods on the resolver's allowlist can be invoked. Argument arrays are reused, so the
+ * only allocation made by an invocation is in boxing its arguments and result.
+ * An invoker isn't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class MethodInvoker {
+	/**
+	 * Resolves invocations to the methods to invoke.
+	 */
+	private InvocationResolver resolver = new InvocationResolver();
+	/**
+	 * Reusable argument arrays, indexed by the number of arguments.
+	 */
+	private Object[][] arguments = new Object[0][];
+
+	/**
+	 * Set the class loader used to find the classes of invoked methods, forgetting any methods already resolved.
+	 * @param classLoader The class loader.
+	 */
+	void setClassLoader (ClassLoader classLoader) {
+		resolver.setClassLoader(classLoader);
+	}
+
+	/**
+	 * Set the resolver used to find the methods to invoke, which may already have resolved the
+	 * invocations of a policy, and which holds the allowlist of methods that can be invoked.
+	 * @param resolver The resolver.
+	 */
+	void setResolver (InvocationResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Invoke a method with arguments taken from an evaluator's value stack.
+	 * @param invocation The invocation.
+	 * @param receiver The object to invoke the method on, or null for a static method.
+	 * @param types The types of the values on the stack.
+	 * @param values The integer and boolean values on the stack.
+	 * @param strings The string values on the stack.
+	 * @param first The position on the stack of the first argument.
+	 * @return The result of the method.
+	 */
+	Object invoke (ExprNode.Invocation invocation, Object receiver, ValueType[] types, long[] values, String[] strings, int first) {
+		InvocationResolver.Resolution resolution = resolver.lookup(invocation, (receiver == null) ? null : typeOf(receiver), types, first);
+		int count = invocation.getArgumentCount();
+
+		// Convert the arguments into the types the method expects
+		if (arguments.length <= count) {
+			Object[][] newArguments = new Object[count + 1][];
+			System.arraycopy(arguments, 0, newArguments, 0, arguments.length);
+			arguments = newArguments;
+		}
+		if (arguments[count] == null) {
+			arguments[count] = new Object[count];
+		}
+		Object[] boxed = arguments[count];
+		for (int index = 0; index < count; index++) {
+			boxed[index] = box(types[first + index], values[first + index], strings[first + index], resolution.parameters[index]);
+		}
+
+		Object result;
+		try {
+			result = (Object)resolution.handle.invokeExact(receiver, boxed);
+		}
+		catch (Throwable e) {
+			throw new EvaluationException("Method '" + resolution.identifier + "' threw an exception", e);
+		}
+		finally {
+			// Don't hold on to the arguments
+			for (int index = 0; index < count; index++) {
+				boxed[index] = null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Convert a variable into an object that a method can be invoked on.
+	 * @param variable The variable.
+	 * @return The value of the variable as an object.
+	 */
+	static Object receiver (Bindings.Variable variable) {
+		Object result;
+		switch (variable.getType()) {
+		case INT:
+			result = Long.valueOf(variable.getInt());
+			break;
+		case BOOL:
+			result = Boolean.valueOf(variable.getBool());
+			break;
+		default:
+			result = variable.getString();
+			break;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the type that the result of a method is converted to.
+	 * @param result The result of the method.
+	 * @return Boolean results become booleans, integral numbers become integers, and anything else becomes a string.
+	 */
+	static ValueType typeOf (Object result) {
+		ValueType type;
+		if (result instanceof Boolean) {
+			type = ValueType.BOOL;
+		}
+		else if ((result instanceof Long) || (result instanceof Integer) || (result instanceof Short) || (result instanceof Byte)) {
+			type = ValueType.INT;
+		}
+		else {
+			type = ValueType.STRING;
+		}
+		return type;
+	}
+
+	/**
+	 * Return the integer or boolean value of the result of a method.
+	 * @param result The result, whose type is INT or BOOL.
+	 * @return The integer value, or one or zero for a boolean.
+	 */
+	static long valueOf (Object result) {
+		return (result instanceof Boolean) ? (((Boolean)result).booleanValue() ? 1 : 0) : ((Number)result).longValue();
+	}
+
+	/**
+	 * Return the string value of the result of a method.
+	 * @param result The result, whose type is STRING.
+	 * @return The string form of the result, or the empty string if it was null.
+	 */
+	static String stringOf (Object result) {
+		return (result == null) ? "" : result.toString();
+	}
+
+	/**
+	 * Convert a value into an object suitable for passing to a method.
+	 * @param type The type of the value.
+	 * @param value The integer value, or one or zero for a boolean.
+	 * @param string The string value.
+	 * @param parameter The type the method expects.
+	 * @return The value as an object.
+	 */
+	private static Object box (ValueType type, long value, String string, Class<?> parameter) {
+		Object result;
+		switch (type) {
+		case INT:
+			result = ((parameter == int.class) || (parameter == Integer.class)) ? (Object)Integer.valueOf((int)value) : (Object)Long.valueOf(value);
+			break;
+		case BOOL:
+			result = Boolean.valueOf(value != 0);
+			break;
+		default:
+			result = string;
+			break;
+		}
+		return result;
+	}
+}
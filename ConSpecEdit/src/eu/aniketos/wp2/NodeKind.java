@@ -0,0 +1,204 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import javax.xml.namespace.QName;
+
+/**
+ * The kinds of node that can appear in a ConSpec expression.
+ * Each kind corresponds to one of the expression elements of the ConSpec schema.
+ * The enum also acts as the registry between element names and node kinds: it holds one canonical QName
+ * per kind, which should be used whenever an element is created, and maps element QNames back to kinds
+ * so that traversals can switch on the kind rather than comparing strings.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public enum NodeKind {
+	SUM ("sum", 2, "+", 5),
+	DIF ("dif", 2, "-", 5),
+	MUL ("mul", 2, "*", 6),
+	MOD ("mod", 2, "%", 6),
+	MORETHAN ("morethan", 2, ">", 3),
+	LESSTHAN ("lessthan", 2, "<", 3),
+	MOREQUALTHAN ("morequalthan", 2, ">=", 4),
+	LESSEQUALTHAN ("lessequalthan", 2, "<=", 4),
+	EQUAL ("equal", 2, "==", 4),
+	NOTEQUAL ("notequal", 2, "!=", 4),
+	AND ("and", 2, "&&", 2),
+	OR ("or", 2, "||", 2),
+	APPEND ("append", 2, "|", 1),
+	NOT ("not", 1, "!", 7),
+	ICONST ("iconst", 0, null, NodeKind.PRIMARY),
+	BCONST ("bconst", 0, null, NodeKind.PRIMARY),
+	SCONST ("sconst", 0, null, NodeKind.PRIMARY),
+	IDENTIFIER ("identifier", 0, null, NodeKind.PRIMARY),
+	INVOCATION ("invocation", -1, null, NodeKind.PRIMARY);
+
+	/**
+	 * The precedence of constants, identifiers and invocations, which never need brackets.
+	 */
+	public static final int PRIMARY = 8;
+
+	/**
+	 * The most QName instances from other sources (such as the JAXB unmarshaller) that will be remembered by identity.
+	 */
+	private static final int MAX_ADOPTED = 256;
+
+	/**
+	 * Look up table from element name to node kind, used for QName instances that haven't been seen before.
+	 */
+	private static final HashMap<QName, NodeKind> byName = new HashMap<QName, NodeKind>();
+	/**
+	 * Look up table from QName instance to node kind. This is replaced rather than changed
+	 * whenever a new instance is adopted, so it can be read without locking.
+	 */
+	private static volatile IdentityHashMap<QName, NodeKind> byInstance;
+
+	static {
+		IdentityHashMap<QName, NodeKind> instances = new IdentityHashMap<QName, NodeKind>();
+		for (NodeKind kind : values()) {
+			byName.put(kind.name, kind);
+			instances.put(kind.name, kind);
+		}
+		byInstance = instances;
+	}
+
+	/**
+	 * The local part of the XML element name used by the ConSpec schema.
+	 */
+	private final String elementName;
+	/**
+	 * The canonical QName for the element, with the same namespace as those used by the ObjectFactory.
+	 */
+	private final QName name;
+	/**
+	 * The number of subexpressions, or -1 if it varies.
+	 */
+	private final int arity;
+	/**
+	 * The operator used in human-readable expressions, or null if this kind isn't an operator.
+	 */
+	private final String symbol;
+	/**
+	 * How tightly the operator binds; higher values bind more tightly.
+	 */
+	private final int precedence;
+
+	/**
+	 * Enum initialiser.
+	 * @param elementName The XML element name for the node kind.
+	 * @param arity The number of subexpressions, or -1 if it varies.
+	 * @param symbol The operator used in human-readable expressions, or null if this kind isn't an operator.
+	 * @param precedence How tightly the operator binds, matching the levels used by the parser.
+	 */
+	private NodeKind (String elementName, int arity, String symbol, int precedence) {
+		this.elementName = elementName;
+		this.name = new QName("", elementName);
+		this.arity = arity;
+		this.symbol = symbol;
+		this.precedence = precedence;
+	}
+
+	/**
+	 * Return the XML element name used for this kind of node.
+	 * @return The local part of the element name, for example "sum".
+	 */
+	public String getElementName () {
+		return elementName;
+	}
+
+	/**
+	 * Return the canonical QName for this kind of node.
+	 * This should be used in preference to creating a new QName when creating an element.
+	 * @return The shared QName instance.
+	 */
+	public QName getQName () {
+		return name;
+	}
+
+	/**
+	 * Return the number of subexpressions this kind of node has.
+	 * @return Two for binary operations, one for unary operations, zero for constants
+	 * and identifiers, or -1 for invocations, which can have any number of arguments.
+	 */
+	public int getArity () {
+		return arity;
+	}
+
+	/**
+	 * Return the operator used for this kind of node in human-readable expressions.
+	 * @return The operator, for example "+", or null if this kind isn't an operator.
+	 */
+	public String getSymbol () {
+		return symbol;
+	}
+
+	/**
+	 * Return how tightly the operator binds. All binary operators associate to the left.
+	 * @return The precedence, from 1 (append) up to PRIMARY (constants, identifiers and invocations).
+	 */
+	public int getPrecedence () {
+		return precedence;
+	}
+
+	/**
+	 * Check whether this kind of node is a binary operation.
+	 * @return true if the node has exactly two subexpressions.
+	 */
+	public boolean isBinary () {
+		return (arity == 2);
+	}
+
+	/**
+	 * Find the node kind for an element QName.
+	 * The canonical instances, and any other instances already seen, are found by reference
+	 * without hashing any strings.
+	 * @param name The name of the element, for example as returned by JAXBElement.getName().
+	 * @return The node kind, or null if the name isn't an expression element.
+	 */
+	public static NodeKind forName (QName name) {
+		NodeKind kind = byInstance.get(name);
+		if ((kind == null) && (name != null)) {
+			kind = byName.get(name);
+			if (kind != null) {
+				adopt(name, kind);
+			}
+		}
+		return kind;
+	}
+
+	/**
+	 * Remember a new QName instance, so that it will be found by reference next time.
+	 * Parsers tend to reuse the same instance for every element of a given name, so there are only ever a few of these.
+	 * @param name The QName instance to remember.
+	 * @param kind The node kind it maps to.
+	 */
+	private static synchronized void adopt (QName name, NodeKind kind) {
+		if (!byInstance.containsKey(name) && (byInstance.size() < MAX_ADOPTED)) {
+			IdentityHashMap<QName, NodeKind> instances = new IdentityHashMap<QName, NodeKind>(byInstance);
+			instances.put(name, kind);
+			byInstance = instances;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.Arrays;
+
+/**
+ * The security state of a session, held in arrays laid out by a StateLayout: one array each for
+ * integers, booleans and strings. Expressions compiled against the layout read and write the arrays
+ * directly; other code can use the methods here, by slot or by name.
+ * Each variable also has a version, which goes up every time the variable is written, so that
+ * GuardMemo can tell whether the variables a guard reads have changed since it was last evaluated,
+ * and the state as a whole has a version that goes up whenever any of its variables is written.
+ * A state isn't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class SlotState {
+	/**
+	 * The layout of the arrays.
+	 */
+	private final StateLayout layout;
+	/**
+	 * The values of the integer variables.
+	 */
+	final long[] ints;
+	/**
+	 * The values of the boolean variables.
+	 */
+	final boolean[] bools;
+	/**
+	 * The values of the string variables, none of which are null.
+	 */
+	final String[] strings;
+	/**
+	 * The version of each variable, indexed by type ordinal and then by index.
+	 */
+	private final long[][] versions;
+	/**
+	 * The version of the state as a whole.
+	 */
+	private long version = 0;
+
+	/**
+	 * Create a state with every variable set to the default value for its type (zero, false or the empty string).
+	 * @param layout The layout of the arrays.
+	 */
+	SlotState (StateLayout layout) {
+		this.layout = layout;
+		ints = new long[layout.getSize(ValueType.INT)];
+		bools = new boolean[layout.getSize(ValueType.BOOL)];
+		strings = new String[layout.getSize(ValueType.STRING)];
+		Arrays.fill(strings, "");
+		versions = new long[][] {new long[ints.length], new long[bools.length], new long[strings.length]};
+	}
+
+	/**
+	 * Create a copy of another state.
+	 * @param original The state to copy.
+	 */
+	private SlotState (SlotState original) {
+		layout = original.layout;
+		ints = original.ints.clone();
+		bools = original.bools.clone();
+		strings = original.strings.clone();
+		versions = new long[original.versions.length][];
+		for (int type = 0; type < versions.length; type++) {
+			versions[type] = original.versions[type].clone();
+		}
+		version = original.version;
+	}
+
+	/**
+	 * Make an independent copy of the state.
+	 * @return The copy.
+	 */
+	public SlotState copy () {
+		return new SlotState(this);
+	}
+
+	/**
+	 * Return the layout of the state.
+	 * @return The layout.
+	 */
+	public StateLayout getLayout () {
+		return layout;
+	}
+
+	/**
+	 * Copy the value of a variable into a slot.
+	 * @param slot The slot.
+	 * @param variable The variable, of the same type as the slot.
+	 */
+	void load (int slot, Bindings.Variable variable) {
+		int index = StateLayout.indexOf(slot);
+		switch (StateLayout.typeOf(slot)) {
+		case INT:
+			ints[index] = variable.getInt();
+			break;
+		case BOOL:
+			bools[index] = variable.getBool();
+			break;
+		default:
+			strings[index] = variable.getString();
+			break;
+		}
+		changed(StateLayout.typeOf(slot), index);
+	}
+
+	/**
+	 * Record that a variable has been written, by moving it on to a new version.
+	 * @param type The type of the variable.
+	 * @param index The index of the variable in the array for its type.
+	 */
+	void changed (ValueType type, int index) {
+		versions[type.ordinal()][index]++;
+		version++;
+	}
+
+	/**
+	 * Return the version of the variable in a slot, which goes up every time the variable is written.
+	 * @param slot The slot, as given by the state's layout.
+	 * @return The version.
+	 */
+	public long getVersion (int slot) {
+		return versions[StateLayout.typeOf(slot).ordinal()][StateLayout.indexOf(slot)];
+	}
+
+	/**
+	 * Set the variable in a slot to the value it has in another state with the same layout. The
+	 * variable's version goes up, as it does for any other write, even if the value is the same.
+	 * @param slot The slot, as given by the state's layout.
+	 * @param from The state to copy the value from.
+	 */
+	public void copySlot (int slot, SlotState from) {
+		if (from.layout != layout) {
+			throw new EvaluationException("The states have different layouts");
+		}
+		ValueType type = StateLayout.typeOf(slot);
+		int index = StateLayout.indexOf(slot);
+		switch (type) {
+		case INT:
+			ints[index] = from.ints[index];
+			break;
+		case BOOL:
+			bools[index] = from.bools[index];
+			break;
+		default:
+			strings[index] = from.strings[index];
+			break;
+		}
+		changed(type, index);
+	}
+
+	/**
+	 * Return the version of the state as a whole, which goes up every time any variable is written, so
+	 * that a copy of the state can be compared with the original to see whether it's been written since.
+	 * @return The version.
+	 */
+	public long getVersion () {
+		return version;
+	}
+
+	/**
+	 * Return the slot of a variable, checking its type.
+	 * @param name The name of the variable.
+	 * @param type The type expected.
+	 * @return The index of the variable in the array for its type.
+	 */
+	private int indexOf (String name, ValueType type) {
+		int slot = layout.getSlot(name);
+		if (slot < 0) {
+			throw new EvaluationException("There's no variable '" + name + "' in the security state");
+		}
+		if (StateLayout.typeOf(slot) != type) {
+			throw new EvaluationException("Variable '" + name + "' is of type " + StateLayout.typeOf(slot).getTypeName() + ", not " + type.getTypeName());
+		}
+		return StateLayout.indexOf(slot);
+	}
+
+	/**
+	 * Return the value of an integer variable.
+	 * @param name The name of the variable.
+	 * @return The value.
+	 */
+	public long getInt (String name) {
+		return ints[indexOf(name, ValueType.INT)];
+	}
+
+	/**
+	 * Return the value of a boolean variable.
+	 * @param name The name of the variable.
+	 * @return The value.
+	 */
+	public boolean getBool (String name) {
+		return bools[indexOf(name, ValueType.BOOL)];
+	}
+
+	/**
+	 * Return the value of a string variable.
+	 * @param name The name of the variable.
+	 * @return The value.
+	 */
+	public String getString (String name) {
+		return strings[indexOf(name, ValueType.STRING)];
+	}
+
+	/**
+	 * Set the value of an integer variable.
+	 * @param name The name of the variable.
+	 * @param value The new value.
+	 */
+	public void setInt (String name, long value) {
+		int index = indexOf(name, ValueType.INT);
+		ints[index] = value;
+		changed(ValueType.INT, index);
+	}
+
+	/**
+	 * Set the value of a boolean variable.
+	 * @param name The name of the variable.
+	 * @param value The new value.
+	 */
+	public void setBool (String name, boolean value) {
+		int index = indexOf(name, ValueType.BOOL);
+		bools[index] = value;
+		changed(ValueType.BOOL, index);
+	}
+
+	/**
+	 * Set the value of a string variable.
+	 * @param name The name of the variable.
+	 * @param value The new value, which mustn't be null.
+	 */
+	public void setString (String name, String value) {
+		if (value == null) {
+			throw new EvaluationException("String variable '" + name + "' can't be set to null");
+		}
+		int index = indexOf(name, ValueType.STRING);
+		strings[index] = value;
+		changed(ValueType.STRING, index);
+	}
+
+	/**
+	 * Copy the state into a set of bindings, for use by code that works with variables by name.
+	 * @return The new bindings.
+	 */
+	public Bindings toBindings () {
+		Bindings result = new Bindings();
+		for (int index = 0; index < ints.length; index++) {
+			result.setInt(layout.getName(ValueType.INT, index), ints[index]);
+		}
+		for (int index = 0; index < bools.length; index++) {
+			result.setBool(layout.getName(ValueType.BOOL, index), bools[index]);
+		}
+		for (int index = 0; index < strings.length; index++) {
+			result.setString(layout.getName(ValueType.STRING, index), strings[index]);
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString () {
+		return toBindings().toString();
+	}
+}
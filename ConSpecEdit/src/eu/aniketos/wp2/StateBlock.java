@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.Arrays;
+
+/**
+ * The security states of many sessions, held column by column: one long[] for each integer variable
+ * declared in a StateLayout, one boolean[] for each boolean variable and one String[] for each string
+ * variable, with a row for each session. This is the form BatchEvaluator works on, so that a guard
+ * can be run over every stored session with simple loops down each column.
+ * The columns grow as rows are added.
+ * A block isn't thread safe, although it can be read by several threads at once once it's filled.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class StateBlock {
+	/**
+	 * The capacity of a block if none is given.
+	 */
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The layout of each row.
+	 */
+	private final StateLayout layout;
+	/**
+	 * The columns of integer variables, indexed by slot index and then by row.
+	 */
+	long[][] ints;
+	/**
+	 * The columns of boolean variables, indexed by slot index and then by row.
+	 */
+	boolean[][] bools;
+	/**
+	 * The columns of string variables, indexed by slot index and then by row.
+	 */
+	String[][] strings;
+	/**
+	 * The number of rows.
+	 */
+	private int size;
+	/**
+	 * The number of rows the columns can hold.
+	 */
+	private int capacity;
+
+	/**
+	 * Create an empty block with the default capacity.
+	 * @param layout The layout of each row.
+	 */
+	public StateBlock (StateLayout layout) {
+		this(layout, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an empty block.
+	 * @param layout The layout of each row.
+	 * @param capacity The number of rows to allow for before the columns need to grow.
+	 */
+	public StateBlock (StateLayout layout, int capacity) {
+		this.layout = layout;
+		this.capacity = Math.max(capacity, 1);
+		ints = new long[layout.getSize(ValueType.INT)][this.capacity];
+		bools = new boolean[layout.getSize(ValueType.BOOL)][this.capacity];
+		strings = new String[layout.getSize(ValueType.STRING)][this.capacity];
+		size = 0;
+	}
+
+	/**
+	 * Return the layout of each row.
+	 * @return The layout.
+	 */
+	public StateLayout getLayout () {
+		return layout;
+	}
+
+	/**
+	 * Return the number of rows.
+	 * @return The number of session states held.
+	 */
+	public int getSize () {
+		return size;
+	}
+
+	/**
+	 * Add a session's state as a new row.
+	 * @param state The state, which must have the block's layout.
+	 * @return The index of the new row.
+	 */
+	public int add (SlotState state) {
+		if (size == capacity) {
+			grow();
+		}
+		size++;
+		set(size - 1, state);
+		return size - 1;
+	}
+
+	/**
+	 * Replace a row with a session's state.
+	 * @param row The index of the row.
+	 * @param state The state, which must have the block's layout.
+	 */
+	public void set (int row, SlotState state) {
+		checkRow(row);
+		if (state.getLayout() != layout) {
+			throw new EvaluationException("The state has a different layout from the block");
+		}
+		for (int index = 0; index < ints.length; index++) {
+			ints[index][row] = state.ints[index];
+		}
+		for (int index = 0; index < bools.length; index++) {
+			bools[index][row] = state.bools[index];
+		}
+		for (int index = 0; index < strings.length; index++) {
+			strings[index][row] = state.strings[index];
+		}
+	}
+
+	/**
+	 * Return the state held in a row.
+	 * @param row The index of the row.
+	 * @return A new state holding a copy of the row.
+	 */
+	public SlotState get (int row) {
+		SlotState result = new SlotState(layout);
+		copy(row, result);
+		return result;
+	}
+
+	/**
+	 * Copy a row into a state.
+	 * @param row The index of the row.
+	 * @param state The state to copy the row into, which must have the block's layout.
+	 */
+	void copy (int row, SlotState state) {
+		checkRow(row);
+		for (int index = 0; index < ints.length; index++) {
+			state.ints[index] = ints[index][row];
+			state.changed(ValueType.INT, index);
+		}
+		for (int index = 0; index < bools.length; index++) {
+			state.bools[index] = bools[index][row];
+			state.changed(ValueType.BOOL, index);
+		}
+		for (int index = 0; index < strings.length; index++) {
+			state.strings[index] = strings[index][row];
+			state.changed(ValueType.STRING, index);
+		}
+	}
+
+	/**
+	 * Check that a row exists.
+	 * @param row The index of the row.
+	 */
+	private void checkRow (int row) {
+		if ((row < 0) || (row >= size)) {
+			throw new IndexOutOfBoundsException("Row " + row + " isn't in a block of " + size + " rows");
+		}
+	}
+
+	/**
+	 * Double the number of rows the columns can hold.
+	 */
+	private void grow () {
+		capacity *= 2;
+		for (int index = 0; index < ints.length; index++) {
+			ints[index] = Arrays.copyOf(ints[index], capacity);
+		}
+		for (int index = 0; index < bools.length; index++) {
+			bools[index] = Arrays.copyOf(bools[index], capacity);
+		}
+		for (int index = 0; index < strings.length; index++) {
+			strings[index] = Arrays.copyOf(strings[index], capacity);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import eu.aniketos.DeclType;
+import eu.aniketos.Specification;
+
+/**
+ * Assigns each variable declared in a policy's security state a fixed slot in one of three arrays,
+ * one each for integers, booleans and strings, so that expressions compiled against the layout can
+ * read and write the state by index rather than looking variables up by name.
+ * The initial values of the variables are worked out once, when the layout is created, so that each
+ * new session's state is made by copying the arrays.
+ * A slot is identified by a single int holding both the type of the variable and its index in the
+ * array for that type; use typeOf() and indexOf() to take it apart.
+ * Layouts are immutable, so they can be shared between threads.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class StateLayout {
+	/**
+	 * The number of low bits of a slot that hold the type.
+	 */
+	private static final int TYPE_BITS = 2;
+	/**
+	 * The types, indexed by the low bits of a slot.
+	 */
+	private static final ValueType[] TYPES = ValueType.values();
+
+	/**
+	 * The slot of each variable, keyed by its interned name.
+	 */
+	private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+	/**
+	 * The names of the variables in each array, indexed by type ordinal and then by index.
+	 */
+	private final String[][] names;
+	/**
+	 * The state at the start of each session.
+	 */
+	private final SlotState initial;
+
+	/**
+	 * Create the layout for a policy, working out the initial state using an evaluator that simplifies
+	 * expressions using the policy's declarations.
+	 * @param spec The policy.
+	 * @return The layout.
+	 */
+	public static StateLayout forSpecification (Specification spec) {
+		return new StateLayout(spec, ExpressionEvaluator.forSpecification(spec));
+	}
+
+	/**
+	 * Create the layout for a policy.
+	 * @param spec The policy.
+	 * @param evaluator Used to evaluate the initial values of the declarations.
+	 */
+	public StateLayout (Specification spec, ExpressionEvaluator evaluator) {
+		// Give each declared variable the next slot of its type; a variable declared again with a
+		// different type is moved to a slot of the new type, as Bindings.define() does; declarations
+		// without a name, as a half edited policy may have, can't be referred to, so are skipped
+		ArrayList<ArrayList<String>> declared = new ArrayList<ArrayList<String>>();
+		for (int type = 0; type < TYPES.length; type++) {
+			declared.add(new ArrayList<String>());
+		}
+		if (spec.getSecuritystate() != null) {
+			for (DeclType declaration : spec.getSecuritystate().getDeclaration()) {
+				ValueType type = ValueType.forName(declaration.getType());
+				String name = (declaration.getIdentifier() == null) ? null : declaration.getIdentifier().intern();
+				int slot = (name == null) ? -1 : getSlot(name);
+				if ((type != null) && (name != null) && ((slot < 0) || (typeOf(slot) != type))) {
+					ArrayList<String> ofType = declared.get(type.ordinal());
+					slots.put(name, Integer.valueOf((ofType.size() << TYPE_BITS) | type.ordinal()));
+					ofType.add(name);
+				}
+			}
+		}
+		names = new String[TYPES.length][];
+		for (int type = 0; type < TYPES.length; type++) {
+			names[type] = declared.get(type).toArray(new String[declared.get(type).size()]);
+		}
+
+		// Evaluate the declarations once and copy the results into the arrays
+		initial = new SlotState(this);
+		Bindings state = evaluator.createState(spec);
+		for (String name : slots.keySet()) {
+			initial.load(getSlot(name), state.lookup(name));
+		}
+	}
+
+	/**
+	 * Return the slot of a variable.
+	 * @param name The name of the variable.
+	 * @return The slot, or -1 if the variable isn't declared.
+	 */
+	public int getSlot (String name) {
+		Integer result = slots.get(name);
+		return (result == null) ? -1 : result.intValue();
+	}
+
+	/**
+	 * Return the type of the variable in a slot.
+	 * @param slot The slot.
+	 * @return The type of the variable, which says which array the slot is in.
+	 */
+	public static ValueType typeOf (int slot) {
+		return TYPES[slot & ((1 << TYPE_BITS) - 1)];
+	}
+
+	/**
+	 * Return the index of a slot in the array for its type.
+	 * @param slot The slot.
+	 * @return The index.
+	 */
+	public static int indexOf (int slot) {
+		return slot >>> TYPE_BITS;
+	}
+
+	/**
+	 * Return the number of slots of a type.
+	 * @param type The type.
+	 * @return The length of the array for the type.
+	 */
+	public int getSize (ValueType type) {
+		return names[type.ordinal()].length;
+	}
+
+	/**
+	 * Return the name of the variable in a slot.
+	 * @param type The type of the variable.
+	 * @param index The index of the slot in the array for its type.
+	 * @return The interned name of the variable.
+	 */
+	public String getName (ValueType type, int index) {
+		return names[type.ordinal()][index];
+	}
+
+	/**
+	 * Create the state for a new session, with every variable set to its initial value.
+	 * @return The new state.
+	 */
+	public SlotState createState () {
+		return initial.copy();
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import eu.aniketos.DeclType;
+import eu.aniketos.ParameterType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+
+/**
+ * The types of the names an expression in a policy can refer to: the variables declared in the
+ * security state, and the parameters (and, for an after rule, the return value) of the method each
+ * rule applies to. Names are looked up in the rule's parameters first, and then in the state, as
+ * they are when expressions are evaluated.
+ * The types are worked out when they're first needed and then kept, so the table must be told when
+ * the policy is edited: declarationsChanged() when a declaration is added, removed or changed, and
+ * ruleChanged() when the parameters of a rule are. Only the part of the table affected is worked out
+ * again. Each part has a version that goes up when it's invalidated, so that results worked out from
+ * the table can tell whether they're still current.
+ * Declarations or parameters of types that expressions can't hold are left out.
+ * The table only holds its policy weakly, so that a table kept against its policy in a WeakHashMap,
+ * as TypeChecker does, doesn't stop the policy from being collected.
+ * A table isn't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class SymbolTable {
+	/**
+	 * The policy the table describes.
+	 */
+	private final WeakReference<Specification> spec;
+	/**
+	 * The types of the variables of the security state, or null if they need to be worked out again.
+	 */
+	private Bindings state = null;
+	/**
+	 * The version of the security state's types.
+	 */
+	private long stateVersion = 0;
+	/**
+	 * The types of the parameters of each rule whose parameters have been needed.
+	 */
+	private final IdentityHashMap<RuleType, Bindings> parameters = new IdentityHashMap<RuleType, Bindings>();
+	/**
+	 * The version of the parameter types of each rule that's been invalidated.
+	 */
+	private final IdentityHashMap<RuleType, Long> ruleVersions = new IdentityHashMap<RuleType, Long>();
+
+	/**
+	 * Create a table for a policy.
+	 * @param spec The policy.
+	 */
+	public SymbolTable (Specification spec) {
+		this.spec = new WeakReference<Specification>(spec);
+	}
+
+	/**
+	 * Return the policy the table describes.
+	 * @return The policy, or null if nothing else refers to it any more and it's been collected.
+	 */
+	public Specification getSpecification () {
+		return spec.get();
+	}
+
+	/**
+	 * Return the types of the variables of the security state.
+	 * @return Bindings holding a variable of the right type for each declaration; they mustn't be changed.
+	 */
+	public Bindings getState () {
+		if (state == null) {
+			state = new Bindings();
+			Specification spec = this.spec.get();
+			if ((spec != null) && (spec.getSecuritystate() != null)) {
+				for (DeclType declaration : spec.getSecuritystate().getDeclaration()) {
+					ValueType type = ValueType.forName(declaration.getType());
+					if ((type != null) && (declaration.getIdentifier() != null)) {
+						state.define(declaration.getIdentifier(), type);
+					}
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Return the types of the parameters of a rule, including its return value if it has one.
+	 * @param rule The rule, or null for expressions outside any rule, such as declarations.
+	 * @return Bindings holding a variable of the right type for each parameter, or null if rule is null;
+	 * they mustn't be changed.
+	 */
+	public Bindings getParameters (RuleType rule) {
+		Bindings result = null;
+		if (rule != null) {
+			result = parameters.get(rule);
+			if (result == null) {
+				result = parametersOf(rule);
+				parameters.put(rule, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the type of a name, looking in the rule's parameters first and then in the security state.
+	 * @param rule The rule the name is used in, or null for expressions outside any rule.
+	 * @param name The name.
+	 * @return The type, or null if the name isn't defined.
+	 */
+	public ValueType lookup (RuleType rule, String name) {
+		Bindings.Variable variable = ExpressionEvaluator.find(name, getState(), getParameters(rule));
+		return (variable == null) ? null : variable.getType();
+	}
+
+	/**
+	 * Forget the types of the security state, after a declaration has been added, removed or changed.
+	 */
+	public void declarationsChanged () {
+		state = null;
+		stateVersion++;
+	}
+
+	/**
+	 * Forget the types of a rule's parameters, after the rule has been changed.
+	 * @param rule The rule.
+	 */
+	public void ruleChanged (RuleType rule) {
+		parameters.remove(rule);
+		ruleVersions.put(rule, Long.valueOf(getRuleVersion(rule) + 1));
+	}
+
+	/**
+	 * Forget everything, after the policy has been replaced or changed in some unknown way.
+	 */
+	public void clear () {
+		state = null;
+		stateVersion++;
+		for (RuleType rule : new ArrayList<RuleType>(parameters.keySet())) {
+			ruleChanged(rule);
+		}
+	}
+
+	/**
+	 * Return the version of the security state's types, which goes up each time they're invalidated.
+	 * @return The version.
+	 */
+	public long getStateVersion () {
+		return stateVersion;
+	}
+
+	/**
+	 * Return the version of a rule's parameter types, which goes up each time they're invalidated.
+	 * @param rule The rule, may be null.
+	 * @return The version, or zero if the rule's types have never been invalidated.
+	 */
+	public long getRuleVersion (RuleType rule) {
+		Long result = (rule == null) ? null : ruleVersions.get(rule);
+		return (result == null) ? 0 : result.longValue();
+	}
+
+	/**
+	 * Work out the types of the parameters of a rule.
+	 * @param rule The rule.
+	 * @return The parameters, each set to the default value for its type.
+	 */
+	private static Bindings parametersOf (RuleType rule) {
+		Bindings result = new Bindings();
+		if (rule.getBeforeOrAfterOrExceptional() != null) {
+			When when = new When(rule);
+			ArrayList<ParameterType> declared = new ArrayList<ParameterType>(when.getParameters());
+			if ((when.getReturn() != null) && (when.getReturn().getIdentifier() != null) && !when.getReturn().getIdentifier().isEmpty()) {
+				declared.add(when.getReturn());
+			}
+			for (ParameterType parameter : declared) {
+				ValueType type = ValueType.forName(parameter.getType());
+				if ((type != null) && (parameter.getIdentifier() != null)) {
+					result.define(parameter.getIdentifier(), type);
+				}
+			}
+		}
+		return result;
+	}
+}
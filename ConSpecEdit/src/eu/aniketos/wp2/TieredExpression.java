@@ -0,0 +1,292 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+/**
+ * A guard or assignment value that starts out run by an ExpressionMachine, and is compiled into a
+ * method handle tree once it's been run often enough, so that the hottest rules run as native code.
+ * The threshold is chosen per expression: zero compiles on first use, and a negative threshold
+ * leaves the expression with the machine for good.
+ * The method handle tree is compiled for the types of the variables seen when the threshold is
+ * reached. Whenever a variable is missing or has a different type, the machine is used instead, so
+ * the results and errors are always the same as the machine's; the same goes if the machine has been
+ * given different arithmetic from that the expression was compiled for, or a state with a different
+ * layout. Expressions that invoke methods, or that don't type check, are never compiled.
+ * An expression compiled against a StateLayout, as the rules run by the monitors are, reads the
+ * security state straight from the arrays of a SlotState. The variables an expression looks up by
+ * name, such as the parameters of a rule, are found once and then held on to, and are only looked up
+ * again when the expression is run with different bindings, or the bindings have defined new variables.
+ * A tiered expression isn't thread safe, so each thread should have its own, as for ExpressionMachine.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class TieredExpression {
+	/**
+	 * The default number of runs before an expression is compiled.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/**
+	 * The expression as postfix code for the machine.
+	 */
+	private final CompiledExpression program;
+	/**
+	 * The number of runs before the expression is compiled, or negative never to compile it.
+	 */
+	private final int threshold;
+	/**
+	 * The compiled expression, or null if it hasn't been compiled.
+	 */
+	private HandleExpression compiled;
+	/**
+	 * Set once an attempt to compile the expression has failed, so that it isn't tried again.
+	 */
+	private boolean uncompilable;
+	/**
+	 * The number of runs so far.
+	 */
+	private long runs;
+	/**
+	 * The number of runs of the compiled expression that fell back to the machine.
+	 */
+	private long fallbacks;
+	/**
+	 * The variables the compiled expression looks up by name, filled by bind().
+	 */
+	private final Bindings.Variable[] variables;
+	/**
+	 * Set once the variables have been filled.
+	 */
+	private boolean filled;
+	/**
+	 * Whether every variable was found with the type the expression was compiled for when they were last filled.
+	 */
+	private boolean bound;
+	/**
+	 * The security state the variables were last looked up in, or null.
+	 */
+	private Bindings boundState;
+	/**
+	 * The parameters the variables were last looked up in, or null.
+	 */
+	private Bindings boundParameters;
+	/**
+	 * The number of definitions of the security state when the variables were last looked up.
+	 */
+	private int stateDefinitions;
+	/**
+	 * The number of definitions of the parameters when the variables were last looked up.
+	 */
+	private int parameterDefinitions;
+
+	/**
+	 * Create a tiered expression with the default threshold.
+	 * @param program The expression as postfix code.
+	 */
+	public TieredExpression (CompiledExpression program) {
+		this(program, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Create a tiered expression.
+	 * @param program The expression as postfix code.
+	 * @param threshold The number of runs before the expression is compiled, or negative never to compile it.
+	 */
+	public TieredExpression (CompiledExpression program, int threshold) {
+		this.program = program;
+		this.threshold = threshold;
+		this.variables = new Bindings.Variable[program.names.length];
+		filled = false;
+		compiled = null;
+		uncompilable = (threshold < 0);
+		runs = 0;
+		fallbacks = 0;
+	}
+
+	/**
+	 * Run a guard.
+	 * @param machine The machine used until the guard's compiled, and whenever the compiled guard can't be used.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the guard.
+	 */
+	public boolean evaluateGuard (ExpressionMachine machine, Bindings state, Bindings parameters) {
+		boolean result;
+		HandleExpression handles = select(machine, state, null, parameters);
+		if ((handles != null) && (handles.getType() == ValueType.BOOL)) {
+			result = handles.evaluateBool(null, variables);
+		}
+		else {
+			result = machine.evaluateGuard(program, state, parameters);
+		}
+		return result;
+	}
+
+	/**
+	 * Run a guard against a security state held in slots.
+	 * @param machine The machine used until the guard's compiled, and whenever the compiled guard can't be used.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The result of the guard.
+	 */
+	public boolean evaluateGuard (ExpressionMachine machine, SlotState state, Bindings parameters) {
+		boolean result;
+		HandleExpression handles = select(machine, null, state, parameters);
+		if ((handles != null) && (handles.getType() == ValueType.BOOL)) {
+			result = handles.evaluateBool(state, variables);
+		}
+		else {
+			result = machine.evaluateGuard(program, state, parameters);
+		}
+		return result;
+	}
+
+	/**
+	 * Run an assignment value and assign the result to a variable in the security state.
+	 * @param identifier The name of the variable to assign to, which must already be defined in the security state.
+	 * @param machine The machine used until the value's compiled, and whenever the compiled value can't be used.
+	 * @param state The security state.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	public void assign (String identifier, ExpressionMachine machine, Bindings state, Bindings parameters) {
+		HandleExpression handles = select(machine, state, null, parameters);
+		Bindings.Variable variable = state.lookup(identifier);
+		if ((handles != null) && (variable != null) && (variable.getType() == handles.getType())) {
+			switch (variable.getType()) {
+			case INT:
+				variable.setInt(handles.evaluateInt(null, variables));
+				break;
+			case BOOL:
+				variable.setBool(handles.evaluateBool(null, variables));
+				break;
+			default:
+				variable.setString(handles.evaluateString(null, variables));
+				break;
+			}
+		}
+		else {
+			// The machine reports any problem with the variable
+			machine.assign(identifier, program, state, parameters);
+		}
+	}
+
+	/**
+	 * Count a run, compiling the expression if it's reached the threshold, and fill the variables if
+	 * the compiled expression can be used.
+	 * @param machine The machine, whose arithmetic the expression is compiled for.
+	 * @param state The security state held in bindings, or null if it's held in slots.
+	 * @param slots The security state held in slots, or null if it's held in bindings.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return The compiled expression, ready to run, or null if the machine should be used.
+	 */
+	private HandleExpression select (ExpressionMachine machine, Bindings state, SlotState slots, Bindings parameters) {
+		HandleExpression result = null;
+		runs++;
+		if ((compiled == null) && !uncompilable && (runs > threshold)) {
+			compile(machine.getArithmetic(), state, parameters);
+		}
+		if (compiled != null) {
+			if ((compiled.getArithmetic() == machine.getArithmetic()) && compiled.reads(slots) && bind(state, parameters)) {
+				result = compiled;
+			}
+			else {
+				fallbacks++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Fill the variables the compiled expression looks up by name, unless they were last filled from the
+	 * same bindings and neither has defined a variable since, in which case lookups would find the same ones.
+	 * @param state The security state held in bindings, or null if it's held in slots.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 * @return true if every variable was found with the type the expression was compiled for.
+	 */
+	private boolean bind (Bindings state, Bindings parameters) {
+		if (!filled || (state != boundState) || (parameters != boundParameters)
+				|| (definitions(state) != stateDefinitions) || (definitions(parameters) != parameterDefinitions)) {
+			bound = compiled.bind(variables, state, parameters);
+			boundState = state;
+			boundParameters = parameters;
+			stateDefinitions = definitions(state);
+			parameterDefinitions = definitions(parameters);
+			filled = true;
+		}
+		return bound;
+	}
+
+	/**
+	 * Return the number of definitions of a set of bindings.
+	 * @param bindings The bindings, may be null.
+	 * @return The number of variables they've defined, or zero for null.
+	 */
+	private static int definitions (Bindings bindings) {
+		return (bindings == null) ? 0 : bindings.getDefinitions();
+	}
+
+	/**
+	 * Compile the expression for the types of the variables it currently refers to.
+	 * @param arithmetic Carries out the integer and string operations.
+	 * @param state The security state held in bindings, or null if it's held in slots.
+	 * @param parameters The parameters of the method call, or null if there are none.
+	 */
+	private void compile (BoundedArithmetic arithmetic, Bindings state, Bindings parameters) {
+		ValueType[] slotTypes = new ValueType[variables.length];
+		boolean found = true;
+		for (int slot = 0; found && (slot < variables.length); slot++) {
+			Bindings.Variable variable = ExpressionEvaluator.find(program.names[slot], state, parameters);
+			found = (variable != null);
+			slotTypes[slot] = found ? variable.getType() : null;
+		}
+		// An unbound variable may be bound on a later run, so only give up if the expression doesn't type check
+		if (found) {
+			compiled = HandleCompiler.compile(program, slotTypes, arithmetic);
+			uncompilable = (compiled == null);
+		}
+	}
+
+	/**
+	 * Check whether the expression has been compiled into a method handle tree.
+	 * @return true if the expression has been compiled.
+	 */
+	public boolean isCompiled () {
+		return (compiled != null);
+	}
+
+	/**
+	 * Return the number of times the expression has been run.
+	 * @return The number of runs.
+	 */
+	public long getRuns () {
+		return runs;
+	}
+
+	/**
+	 * Return the number of runs after compilation that used the machine because a variable was
+	 * missing or of a different type, because the machine's arithmetic had changed, or because the
+	 * state had a different layout.
+	 * @return The number of fallbacks.
+	 */
+	public long getFallbacks () {
+		return fallbacks;
+	}
+}
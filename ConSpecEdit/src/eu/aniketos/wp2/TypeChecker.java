@@ -0,0 +1,492 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.AssignType;
+import eu.aniketos.DeclType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.UpdateType;
+
+/**
+ * Works out the type of every subexpression of a policy without evaluating it, so that type errors
+ * can be reported while the policy is being edited, and so that expressions known to be well typed
+ * can be compiled into code that doesn't check types as it runs.
+ * The rules are the same as those ExpressionEvaluator applies as it evaluates, and problems are
+ * described with the same messages. Once a subexpression's type is wrong or unknown, the operations
+ * using it aren't checked further, so each mistake is only reported once.
+ * The checker keeps a SymbolTable for each policy, and the results for each expression of the policy,
+ * both held weakly, so that the checker doesn't keep policies alive once nothing else is using them.
+ * Results stay valid until the checker is told that the declarations or the rule they depend on have
+ * changed; the expressions themselves are keyed by their JAXB elements, along with the type they're
+ * expected to have and the problem reported if they don't, since an interned element can be shared by
+ * expressions checked against different types. An edited expression should be given a new element,
+ * as the editor does.
+ * A checker can be given an ExpressionInterner, so that identical subexpressions of the policy's
+ * declaration values, guards and assignment values are shared by the typed expressions it returns,
+ * and by anything compiled from them. The interner's table grows with every expression checked, so
+ * this suits a checker used once to compile a policy, rather than one kept while the policy is edited.
+ * Invocations are resolved with an InvocationResolver, so a checker isn't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class TypeChecker {
+	/**
+	 * Used to work out the types of invocations.
+	 */
+	private final InvocationResolver resolver;
+	/**
+	 * Shares the identical subexpressions of the expressions checked, or null if they aren't shared.
+	 */
+	private final ExpressionInterner interner;
+	/**
+	 * The symbol table of each policy that's been checked.
+	 */
+	private final WeakHashMap<Specification, SymbolTable> tables = new WeakHashMap<Specification, SymbolTable>();
+	/**
+	 * The results for each expression that's been checked as part of a policy, keyed by the expected
+	 * type and the problem reported for a mismatch.
+	 */
+	private final WeakHashMap<JAXBElement<?>, HashMap<List<Object>, TypedExpression>> checked = new WeakHashMap<JAXBElement<?>, HashMap<List<Object>, TypedExpression>>();
+
+	/**
+	 * Create a checker that resolves invocations against the default allowlist.
+	 */
+	public TypeChecker () {
+		this(new InvocationResolver());
+	}
+
+	/**
+	 * Create a checker.
+	 * @param resolver Used to work out the types of invocations.
+	 */
+	public TypeChecker (InvocationResolver resolver) {
+		this(resolver, null);
+	}
+
+	/**
+	 * Create a checker that interns the expressions of the policies it checks before working out their types.
+	 * @param resolver Used to work out the types of invocations.
+	 * @param interner Shares identical subexpressions between the expressions checked, or null not to share them.
+	 */
+	public TypeChecker (InvocationResolver resolver, ExpressionInterner interner) {
+		this.resolver = resolver;
+		this.interner = interner;
+	}
+
+	/**
+	 * Return the symbol table for a policy, creating it if there isn't one yet.
+	 * @param spec The policy.
+	 * @return The table.
+	 */
+	public SymbolTable getSymbols (Specification spec) {
+		SymbolTable result = tables.get(spec);
+		if (result == null) {
+			result = new SymbolTable(spec);
+			tables.put(spec, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Forget the types of a policy's security state, after a declaration has been added, removed or changed.
+	 * Every result worked out for the policy will be worked out again when it's next needed.
+	 * @param spec The policy.
+	 */
+	public void declarationsChanged (Specification spec) {
+		getSymbols(spec).declarationsChanged();
+	}
+
+	/**
+	 * Forget the types of a rule's parameters, after the rule has been changed.
+	 * Only the results for expressions within the rule will be worked out again.
+	 * @param spec The policy the rule is part of.
+	 * @param rule The rule.
+	 */
+	public void ruleChanged (Specification spec, RuleType rule) {
+		getSymbols(spec).ruleChanged(rule);
+	}
+
+	/**
+	 * Check the guard of a reaction, which must be of type bool.
+	 * @param spec The policy.
+	 * @param rule The rule the reaction is part of.
+	 * @param reaction The reaction.
+	 * @return The typed guard, or null if the reaction has no guard.
+	 */
+	public TypedExpression checkGuard (Specification spec, RuleType rule, ReactionType reaction) {
+		TypedExpression result = null;
+		if ((reaction.getGuard() != null) && (reaction.getGuard().getExpType() != null)) {
+			result = cached(reaction.getGuard().getExpType(), getSymbols(spec), rule, ValueType.BOOL, "The guard is of type %s, not %s");
+		}
+		return result;
+	}
+
+	/**
+	 * Check the value of an assignment, which must be of the type of the variable it's assigned to.
+	 * @param spec The policy.
+	 * @param rule The rule the assignment is part of.
+	 * @param assign The assignment.
+	 * @return The typed value, or null if the assignment has no value.
+	 */
+	public TypedExpression checkValue (Specification spec, RuleType rule, AssignType assign) {
+		TypedExpression result = null;
+		if ((assign.getValue() != null) && (assign.getValue().getExpType() != null)) {
+			SymbolTable symbols = getSymbols(spec);
+			Bindings.Variable target = (assign.getIdentifier() == null) ? null : symbols.getState().lookup(assign.getIdentifier());
+			if (target == null) {
+				result = cached(assign.getValue().getExpType(), symbols, rule, null, "There's no variable '" + assign.getIdentifier() + "' in the security state to assign to");
+			}
+			else {
+				result = cached(assign.getValue().getExpType(), symbols, rule, target.getType(), "Can't assign a value of type %s to '" + assign.getIdentifier() + "', which is of type %s");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check the initial value of a declaration, which must be of the declared type.
+	 * Declarations are checked against the whole of the security state.
+	 * @param spec The policy.
+	 * @param declaration The declaration.
+	 * @return The typed value, or null if the declaration has no value.
+	 */
+	public TypedExpression checkDeclaration (Specification spec, DeclType declaration) {
+		TypedExpression result = null;
+		if ((declaration.getValue() != null) && (declaration.getValue().getExpType() != null)) {
+			ValueType type = ValueType.forName(declaration.getType());
+			if (type == null) {
+				result = cached(declaration.getValue().getExpType(), getSymbols(spec), null, null, "Declaration '" + declaration.getIdentifier() + "' has unknown type '" + declaration.getType() + "'");
+			}
+			else {
+				result = cached(declaration.getValue().getExpType(), getSymbols(spec), null, type, "Can't assign a value of type %s to '" + declaration.getIdentifier() + "', which is of type %s");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check every expression in a policy: the initial values of the declarations, and the guards and
+	 * assignments of every reaction.
+	 * @param spec The policy.
+	 * @return A description of each type error, saying where it is, or an empty list if there were none.
+	 */
+	public List<String> check (Specification spec) {
+		ArrayList<String> problems = new ArrayList<String>();
+		if (spec.getSecuritystate() != null) {
+			for (DeclType declaration : spec.getSecuritystate().getDeclaration()) {
+				report(checkDeclaration(spec, declaration), "Declaration '" + declaration.getIdentifier() + "': ", problems);
+			}
+		}
+
+		int ruleNumber = 0;
+		for (RuleType rule : spec.getRule()) {
+			ruleNumber++;
+			if (rule.getPerform() != null) {
+				int reactionNumber = 0;
+				for (ReactionType reaction : rule.getPerform().getReaction()) {
+					reactionNumber++;
+					String location = "Rule " + ruleNumber + ", reaction " + reactionNumber;
+					report(checkGuard(spec, rule, reaction), location + " guard: ", problems);
+					check(spec, rule, reaction.getUpdate(), location + " update: ", problems);
+				}
+				check(spec, rule, rule.getPerform().getElse(), "Rule " + ruleNumber + " else: ", problems);
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * Check the values assigned by an update block.
+	 * @param spec The policy.
+	 * @param rule The rule the update block is part of.
+	 * @param update The update block, may be null.
+	 * @param location Where the update is, added to the start of each problem.
+	 * @param problems A description of each type error is added to this.
+	 */
+	private void check (Specification spec, RuleType rule, UpdateType update, String location, List<String> problems) {
+		if (update != null) {
+			for (AssignType assign : update.getAssign()) {
+				report(checkValue(spec, rule, assign), location, problems);
+			}
+		}
+	}
+
+	/**
+	 * Add the problems found with an expression to a list.
+	 * @param typed The typed expression, may be null.
+	 * @param location Where the expression is, added to the start of each problem.
+	 * @param problems The list to add to.
+	 */
+	private static void report (TypedExpression typed, String location, List<String> problems) {
+		if (typed != null) {
+			for (String problem : typed.getProblems()) {
+				problems.add(location + problem);
+			}
+		}
+	}
+
+	/**
+	 * Return the result for an expression of a policy, checking it again only if the result held is out of date.
+	 * @param element The expression.
+	 * @param symbols The symbol table of the policy.
+	 * @param rule The rule the expression is in, or null if it's outside any rule.
+	 * @param expected The type the expression must have, or null if it can't have a valid type.
+	 * @param mismatch The problem reported if the expression isn't of the expected type, formatted with
+	 * the type it has and the type expected; or reported as it is if there's no expected type.
+	 * @return The typed expression.
+	 */
+	private TypedExpression cached (JAXBElement<?> element, SymbolTable symbols, RuleType rule, ValueType expected, String mismatch) {
+		HashMap<List<Object>, TypedExpression> uses = checked.get(element);
+		if (uses == null) {
+			uses = new HashMap<List<Object>, TypedExpression>();
+			checked.put(element, uses);
+		}
+		List<Object> key = Arrays.asList((Object)expected, mismatch);
+		TypedExpression result = uses.get(key);
+		if ((result == null) || !result.isCurrent(symbols, rule)) {
+			ExprNode root = ExprNode.fromElement(element);
+			if (interner != null) {
+				root = interner.intern(root);
+			}
+			result = check(root, symbols, rule, expected, mismatch);
+			uses.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Check an expression.
+	 * @param root The root of the expression.
+	 * @param symbols The symbol table of the policy the expression is part of.
+	 * @param rule The rule the expression is in, or null if it's outside any rule.
+	 * @return The typed expression.
+	 */
+	public TypedExpression check (ExprNode root, SymbolTable symbols, RuleType rule) {
+		return check(root, symbols, rule, null, null);
+	}
+
+	/**
+	 * Check an expression, which must be of the type given.
+	 * @param root The root of the expression.
+	 * @param symbols The symbol table of the policy the expression is part of.
+	 * @param rule The rule the expression is in, or null if it's outside any rule.
+	 * @param expected The type the expression must have, or null if it can't have a valid type.
+	 * @param mismatch The problem reported if the expression isn't of the expected type, as for cached();
+	 * or null if it can have any type.
+	 * @return The typed expression.
+	 */
+	private TypedExpression check (ExprNode root, SymbolTable symbols, RuleType rule, ValueType expected, String mismatch) {
+		IdentityHashMap<ExprNode, ValueType> types = new IdentityHashMap<ExprNode, ValueType>();
+		ArrayList<String> problems = new ArrayList<String>();
+		ValueType type = infer(root, symbols.getState(), symbols.getParameters(rule), types, problems);
+
+		// Check the expression as a whole against the type it has to have
+		if ((mismatch != null) && (expected == null)) {
+			problems.add(mismatch);
+		}
+		else if ((mismatch != null) && (type != null) && (type != expected)) {
+			problems.add(String.format(mismatch, type.getTypeName(), expected.getTypeName()));
+		}
+		return new TypedExpression(root, this, symbols, rule, types, problems);
+	}
+
+	/**
+	 * Work out the type of every subexpression of an expression, resolving its invocations as it goes.
+	 * This is also how InvocationResolver finds the types of the arguments of the invocations it resolves.
+	 * @param root The root of the expression.
+	 * @param state The types of the variables of the security state.
+	 * @param parameters The types of the parameters, or null if there are none.
+	 * @param types The type of each subexpression whose type is known is added to this; may be null.
+	 * @param problems A description of each type error is added to this.
+	 * @return The type of the expression, or null if it isn't known.
+	 */
+	ValueType infer (ExprNode root, Bindings state, Bindings parameters, IdentityHashMap<ExprNode, ValueType> types, List<String> problems) {
+		// Each node is visited twice: first to queue up its subexpressions, and then, once their
+		// types are known, to work out its own type. Unknown types are held as null.
+		ArrayList<Object> pending = new ArrayList<Object>();
+		ArrayList<ValueType> typed = new ArrayList<ValueType>();
+		pending.add(root);
+		pending.add(Boolean.FALSE);
+		while (!pending.isEmpty()) {
+			boolean expanded = (Boolean)pending.remove(pending.size() - 1);
+			ExprNode node = (ExprNode)pending.remove(pending.size() - 1);
+			int count = (node == null) ? 0 : node.getChildCount();
+			if (!expanded && (count > 0)) {
+				pending.add(node);
+				pending.add(Boolean.TRUE);
+				for (int index = count - 1; index >= 0; index--) {
+					pending.add(node.getChild(index));
+					pending.add(Boolean.FALSE);
+				}
+			}
+			else {
+				ValueType[] operands = new ValueType[count];
+				for (int index = count - 1; index >= 0; index--) {
+					operands[index] = typed.remove(typed.size() - 1);
+				}
+				ValueType type = typeOf(node, operands, state, parameters, problems);
+				if ((type != null) && (types != null)) {
+					types.put(node, type);
+				}
+				typed.add(type);
+			}
+		}
+		return typed.get(0);
+	}
+
+	/**
+	 * Work out the type of a node from the types of its subexpressions.
+	 * @param node The node, may be null.
+	 * @param operands The types of its subexpressions, with null for those that aren't known.
+	 * @param state The types of the variables of the security state.
+	 * @param parameters The types of the parameters, or null if there are none.
+	 * @param problems A description of any type error is added to this.
+	 * @return The type of the node, or null if it isn't known.
+	 */
+	private ValueType typeOf (ExprNode node, ValueType[] operands, Bindings state, Bindings parameters, List<String> problems) {
+		ValueType result = null;
+		boolean known = true;
+		for (ValueType operand : operands) {
+			known = known && (operand != null);
+		}
+		if (node == null) {
+			problems.add("An operation is missing one of its subexpressions");
+		}
+		else if (node.getKind() == NodeKind.IDENTIFIER) {
+			String name = ((ExprNode.Identifier)node).getName();
+			Bindings.Variable variable = ExpressionEvaluator.find(name, state, parameters);
+			if (variable == null) {
+				problems.add(ExpressionEvaluator.unbound(name).getMessage());
+			}
+			else {
+				result = variable.getType();
+			}
+		}
+		else if (node.getKind() == NodeKind.INVOCATION) {
+			ExprNode.Invocation invocation = (ExprNode.Invocation)node;
+			ValueType receiver = null;
+			if (invocation.getIdentifierCount() > 1) {
+				Bindings.Variable variable = ExpressionEvaluator.find(invocation.getIdentifier(1), state, parameters);
+				if (variable == null) {
+					problems.add(ExpressionEvaluator.unbound(invocation.getIdentifier(1)).getMessage());
+					known = false;
+				}
+				else {
+					receiver = variable.getType();
+				}
+			}
+			if (known) {
+				try {
+					result = resolver.lookup(invocation, receiver, operands, 0).type;
+				}
+				catch (EvaluationException e) {
+					problems.add(e.getMessage());
+				}
+			}
+		}
+		else if (known) {
+			result = typeOf(node.getKind(), operands, problems);
+		}
+		return result;
+	}
+
+	/**
+	 * Work out the type of a constant or operation whose operand types are all known.
+	 * @param kind The kind of node.
+	 * @param operands The types of its operands.
+	 * @param problems A description of any type error is added to this.
+	 * @return The type of the node, or null if its operands are of the wrong types.
+	 */
+	private static ValueType typeOf (NodeKind kind, ValueType[] operands, List<String> problems) {
+		ValueType result = null;
+		ValueType needed = null;
+		switch (kind) {
+		case ICONST:
+			result = ValueType.INT;
+			break;
+		case BCONST:
+			result = ValueType.BOOL;
+			break;
+		case SCONST:
+			result = ValueType.STRING;
+			break;
+		case SUM:
+		case DIF:
+		case MUL:
+		case MOD:
+			needed = ValueType.INT;
+			result = ValueType.INT;
+			break;
+		case MORETHAN:
+		case LESSTHAN:
+		case MOREQUALTHAN:
+		case LESSEQUALTHAN:
+			needed = ValueType.INT;
+			result = ValueType.BOOL;
+			break;
+		case AND:
+		case OR:
+		case NOT:
+			needed = ValueType.BOOL;
+			result = ValueType.BOOL;
+			break;
+		case APPEND:
+			needed = ValueType.STRING;
+			result = ValueType.STRING;
+			break;
+		case EQUAL:
+		case NOTEQUAL:
+			// Either side can be of any type, as long as they're the same
+			if (operands[0] != operands[1]) {
+				problems.add("'" + kind.getSymbol() + "' can't compare a " + operands[0].getTypeName() + " with a " + operands[1].getTypeName());
+			}
+			else {
+				result = ValueType.BOOL;
+			}
+			break;
+		default:
+			break;
+		}
+
+		// Every operand has to be of the type the operation needs
+		if (needed != null) {
+			for (int index = 0; (index < operands.length) && (result != null); index++) {
+				if (operands[index] != needed) {
+					problems.add("'" + kind.getSymbol() + "' needs " + (needed == ValueType.INT ? "integer" : (needed == ValueType.BOOL ? "boolean" : "string"))
+							+ " operands, but was given a " + operands[index].getTypeName());
+					result = null;
+				}
+			}
+		}
+		return result;
+	}
+}
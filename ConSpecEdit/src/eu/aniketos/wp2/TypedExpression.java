@@ -0,0 +1,175 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import eu.aniketos.RuleType;
+
+/**
+ * An expression annotated by a TypeChecker with the static type of each of its nodes, along with
+ * any type errors found. An expression that's well typed can be compiled by ExpressionCompiler into
+ * code that doesn't check types as it runs.
+ * The annotations are held against the node instances of the expression, so they only apply to the
+ * expression they were worked out for, in the rule they were worked out for.
+ * A typed expression can be simplified, giving a typed expression for the simplified tree, so that
+ * simplifying an expression never loses its types.
+ * Typed expressions are immutable.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public final class TypedExpression {
+	/**
+	 * The root of the expression.
+	 */
+	private final ExprNode root;
+	/**
+	 * The type checker that worked out the types.
+	 */
+	private final TypeChecker checker;
+	/**
+	 * The symbol table the types were worked out from.
+	 */
+	private final SymbolTable symbols;
+	/**
+	 * The rule the expression is in, or null if it's outside any rule.
+	 */
+	private final RuleType rule;
+	/**
+	 * The type of each node, or nothing for nodes whose type isn't known.
+	 */
+	private final IdentityHashMap<ExprNode, ValueType> types;
+	/**
+	 * A description of each type error.
+	 */
+	private final List<String> problems;
+	/**
+	 * The version of the security state's types when the expression was checked.
+	 */
+	final long stateVersion;
+	/**
+	 * The version of the rule's parameter types when the expression was checked.
+	 */
+	final long ruleVersion;
+
+	/**
+	 * Create a typed expression.
+	 * @param root The root of the expression.
+	 * @param checker The type checker that worked out the types.
+	 * @param symbols The symbol table the types were worked out from.
+	 * @param rule The rule the expression is in, or null if it's outside any rule.
+	 * @param types The type of each node whose type is known; used as it is, rather than copied.
+	 * @param problems A description of each type error; used as it is, rather than copied.
+	 */
+	TypedExpression (ExprNode root, TypeChecker checker, SymbolTable symbols, RuleType rule, IdentityHashMap<ExprNode, ValueType> types, List<String> problems) {
+		this.root = root;
+		this.checker = checker;
+		this.symbols = symbols;
+		this.rule = rule;
+		this.types = types;
+		this.problems = Collections.unmodifiableList(problems);
+		stateVersion = symbols.getStateVersion();
+		ruleVersion = symbols.getRuleVersion(rule);
+	}
+
+	/**
+	 * Return the root of the expression.
+	 * @return The root.
+	 */
+	public ExprNode getRoot () {
+		return root;
+	}
+
+	/**
+	 * Return the type of the whole expression.
+	 * @return The type, or null if it isn't known.
+	 */
+	public ValueType getType () {
+		return types.get(root);
+	}
+
+	/**
+	 * Return the type of a node of the expression.
+	 * @param node The node, which must be one of the instances making up the expression.
+	 * @return The type, or null if it isn't known.
+	 */
+	public ValueType getType (ExprNode node) {
+		return types.get(node);
+	}
+
+	/**
+	 * Return the type errors found.
+	 * @return A description of each error, or an empty list if there were none.
+	 */
+	public List<String> getProblems () {
+		return problems;
+	}
+
+	/**
+	 * Check whether the expression is free of type errors and has a known type.
+	 * @return true if the expression can't fail a type check when it's evaluated.
+	 */
+	public boolean isWellTyped () {
+		return problems.isEmpty() && (getType() != null);
+	}
+
+	/**
+	 * Return the types of the parameters the expression can refer to.
+	 * @return The parameters of the rule, or null if the expression is outside any rule.
+	 */
+	public Bindings getParameters () {
+		return symbols.getParameters(rule);
+	}
+
+	/**
+	 * Check whether the types are still current.
+	 * @param table The symbol table the expression would be checked against now.
+	 * @param context The rule the expression would be checked in now.
+	 * @return true if the expression was checked against the same table and rule, and neither has been invalidated since.
+	 */
+	boolean isCurrent (SymbolTable table, RuleType context) {
+		return (table == symbols) && (context == rule) && (stateVersion == symbols.getStateVersion()) && (ruleVersion == symbols.getRuleVersion(rule));
+	}
+
+	/**
+	 * Simplify the expression, and work out the types of the simplified tree.
+	 * Only a well typed expression is simplified, and the simplified tree is only used if it's well
+	 * typed too, and of the same type; otherwise the expression is kept as it is, so that it fails in
+	 * the same way when it's evaluated.
+	 * @param simplifier The simplifier, may be null.
+	 * @return The simplified expression, or this one if it couldn't be simplified.
+	 */
+	public TypedExpression simplify (ExpressionSimplifier simplifier) {
+		TypedExpression result = this;
+		if ((simplifier != null) && isWellTyped()) {
+			ExprNode simplified = simplifier.simplifyTyped(root);
+			if (simplified != root) {
+				TypedExpression typed = checker.check(simplified, symbols, rule);
+				if (typed.isWellTyped() && (typed.getType() == getType())) {
+					result = typed;
+				}
+			}
+		}
+		return result;
+	}
+}
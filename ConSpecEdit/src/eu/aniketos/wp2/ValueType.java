@@ -0,0 +1,70 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package eu.aniketos.wp2;
+
+/**
+ * The types of value a ConSpec expression can have, matching the types that can be given to
+ * declarations and parameters.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public enum ValueType {
+	INT ("int"),
+	BOOL ("bool"),
+	STRING ("string");
+
+	/**
+	 * The name used for the type in ConSpec documents.
+	 */
+	private final String typeName;
+
+	/**
+	 * Enum initialiser.
+	 * @param typeName The name used for the type in ConSpec documents.
+	 */
+	private ValueType (String typeName) {
+		this.typeName = typeName;
+	}
+
+	/**
+	 * Return the name used for this type in ConSpec documents.
+	 * @return The type name, for example "int".
+	 */
+	public String getTypeName () {
+		return typeName;
+	}
+
+	/**
+	 * Find the type with the given ConSpec name.
+	 * @param typeName The name used for the type in a ConSpec document.
+	 * @return The type, or null if the name isn't recognised.
+	 */
+	public static ValueType forName (String typeName) {
+		ValueType result = null;
+		for (ValueType type : values()) {
+			if (type.typeName.equals(typeName)) {
+				result = type;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue that any number of threads can add to, but only one thread takes from.
+ * The items are held in a ring of slots, each with a sequence number saying whether it's free for
+ * the item at a given position or holds it. A thread adding an item claims the next position with a
+ * compare-and-set on the tail, so threads adding items only contend with each other, and never with
+ * the thread taking them, which moves the head without any atomic operation. Nothing is allocated
+ * once the queue's been created.
+ * The thread taking items can park until one is added; a thread adding an item only unparks it if
+ * it's said it's parking, so adding to a queue whose consumer is busy doesn't cost a system call.
+ * The number of slots is the capacity asked for rounded up to a power of two, and is at least two,
+ * since with a single slot the sequence of an item waiting to be taken would also say the slot was
+ * free for the next position.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ * @param <T> The type of the items.
+ */
+final class CallQueue<T> {
+	/**
+	 * The largest number of slots a queue can have.
+	 */
+	static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	/**
+	 * The items, by position modulo the number of slots.
+	 */
+	private final Object[] items;
+	/**
+	 * The sequence number of each slot. A slot is free for the item at a position when its sequence
+	 * is the position, and holds it when its sequence is one more.
+	 */
+	private final AtomicLongArray sequences;
+	/**
+	 * One less than the number of slots, to turn a position into a slot.
+	 */
+	private final int mask;
+	/**
+	 * The next position to be claimed by a thread adding an item.
+	 */
+	private final AtomicLong tail = new AtomicLong(0);
+	/**
+	 * The next position to be taken, only ever read or written by the thread taking items.
+	 */
+	private long head = 0;
+	/**
+	 * The head as it was when the thread taking items last called release(), for other threads to read.
+	 */
+	private volatile long taken = 0;
+	/**
+	 * Whether the thread taking items may be about to park.
+	 */
+	private volatile boolean sleeping = false;
+	/**
+	 * The thread taking items.
+	 */
+	private volatile Thread consumer = null;
+
+	/**
+	 * Create an empty queue.
+	 * @param capacity The least number of items the queue must be able to hold.
+	 */
+	CallQueue (int capacity) {
+		if ((capacity < 1) || (capacity > MAXIMUM_CAPACITY)) {
+			throw new IllegalArgumentException("A queue must hold from 1 to " + MAXIMUM_CAPACITY + " items, not " + capacity);
+		}
+
+		// Round up to a power of two of at least two, and mark each slot as free for the first position that uses it
+		int size = Integer.highestOneBit(Math.max(2, capacity));
+		if (size < capacity) {
+			size <<= 1;
+		}
+		items = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int slot = 0; slot < size; slot++) {
+			sequences.set(slot, slot);
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Set the thread that takes items, which is the one unparked when an item's added.
+	 * @param consumer The thread.
+	 */
+	void setConsumer (Thread consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Return the number of slots.
+	 * @return The number of items the queue can hold.
+	 */
+	int getCapacity () {
+		return items.length;
+	}
+
+	/**
+	 * Add an item, unless the queue is full. Can be called by any thread.
+	 * @param item The item.
+	 * @return true if the item was added, or false if the queue was full.
+	 */
+	boolean offer (T item) {
+		boolean added = false;
+		boolean full = false;
+		long position = tail.get();
+		while (!added && !full) {
+			long difference = sequences.get((int)position & mask) - position;
+			if (difference == 0) {
+				// The slot is free for this position, so try to claim it
+				if (tail.compareAndSet(position, position + 1)) {
+					added = true;
+				}
+				else {
+					position = tail.get();
+				}
+			}
+			else if (difference < 0) {
+				// The slot still holds the item from the last time round the ring
+				full = true;
+			}
+			else {
+				// Another thread claimed the position first
+				position = tail.get();
+			}
+		}
+		if (added) {
+			// Writing the sequence publishes the item; reading sleeping after it means either the
+			// consumer sees the item before it parks, or this thread sees that it has to unpark it
+			int slot = (int)position & mask;
+			items[slot] = item;
+			sequences.set(slot, position + 1);
+			if (sleeping) {
+				LockSupport.unpark(consumer);
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Take the item at the head of the queue, if it's been added. Only called by the thread taking items.
+	 * @return The item, or null if there isn't one.
+	 */
+	@SuppressWarnings("unchecked")
+	T poll () {
+		T result = null;
+		int slot = (int)head & mask;
+		if (sequences.get(slot) == head + 1) {
+			// Free the slot for the position one time further round the ring
+			result = (T)items[slot];
+			items[slot] = null;
+			sequences.lazySet(slot, head + items.length);
+			head++;
+		}
+		return result;
+	}
+
+	/**
+	 * Return whether the item at the head of the queue has yet to be added. Only called by the thread
+	 * taking items.
+	 * @return true if there's nothing to take.
+	 */
+	boolean isEmpty () {
+		return sequences.get((int)head & mask) != head + 1;
+	}
+
+	/**
+	 * Park until an item's added, unless there's one already, or until the thread's unparked or
+	 * interrupted. Only called by the thread taking items.
+	 */
+	void await () {
+		sleeping = true;
+		if (isEmpty()) {
+			LockSupport.park(this);
+		}
+		sleeping = false;
+	}
+
+	/**
+	 * Let other threads see how many items have been taken. Only called by the thread taking items.
+	 */
+	void release () {
+		taken = head;
+	}
+
+	/**
+	 * Return the number of items claimed by threads adding them but not yet taken, as of the last
+	 * call to release(). Can be called by any thread.
+	 * @return The number of items.
+	 */
+	int size () {
+		return (int)Math.max(0, tail.get() - taken);
+	}
+
+	/**
+	 * Return the number of items claimed by threads adding them but not yet taken. Only called by the
+	 * thread taking items.
+	 * @return The number of items.
+	 */
+	int waiting () {
+		return (int)(tail.get() - head);
+	}
+}
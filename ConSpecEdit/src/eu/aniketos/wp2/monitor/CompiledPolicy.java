@@ -0,0 +1,314 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.wp2.BoundedArithmetic;
+import eu.aniketos.wp2.EvaluationException;
+import eu.aniketos.wp2.ExpressionCompiler;
+import eu.aniketos.wp2.ExpressionInterner;
+import eu.aniketos.wp2.ExpressionMachine;
+import eu.aniketos.wp2.ExpressionSimplifier;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+import eu.aniketos.wp2.TieredExpression;
+import eu.aniketos.wp2.TypeChecker;
+
+/**
+ * The rules of a policy compiled for a single thread, along with the machine that executes them and
+ * counts of the calls checked. The security state isn't part of the compiled policy, but is passed in
+ * with each call, so one compiled policy can check the calls of any number of sessions, one at a time.
+ * The machine, the parameters of the rules and the undo log aren't thread safe, so code checking calls
+ * from several threads at once needs a compiled policy for each thread, or must only use each one while
+ * holding a lock. The compiled rules themselves are never changed, so a policy for another thread can be
+ * made by sharing them, without compiling or type checking the policy again.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class CompiledPolicy {
+	/**
+	 * Used in place of the arguments of calls passed without any.
+	 */
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	/**
+	 * The layout of the security state the policy's expressions are compiled against.
+	 */
+	private final StateLayout layout;
+	/**
+	 * The rules of the policy, in the order they appear in it.
+	 */
+	private final CompiledRule[] rules;
+	/**
+	 * The rules for each kind of call to each method named by the policy.
+	 */
+	private final DispatchIndex index;
+	/**
+	 * The frame of each rule, holding the parameters it's fired with, indexed by the rule's number.
+	 */
+	private final CompiledRule.Frame[] frames;
+	/**
+	 * The number of times a guard is evaluated before it's compiled into a method handle tree, or
+	 * negative never to compile guards.
+	 */
+	private final int threshold;
+	/**
+	 * The arithmetic the policy's expressions are executed with, which is shared by policies sharing its rules.
+	 */
+	private final BoundedArithmetic arithmetic;
+	/**
+	 * Executes the expressions of the policy.
+	 */
+	private final ExpressionMachine machine = new ExpressionMachine();
+	/**
+	 * The type errors found in the policy.
+	 */
+	private final List<String> problems;
+	/**
+	 * The values the variables written while checking the current call had before it.
+	 */
+	private final UndoLog log;
+	/**
+	 * The number of calls checked.
+	 */
+	long events = 0;
+	/**
+	 * The number of calls denied.
+	 */
+	long denials = 0;
+	/**
+	 * The number of calls denied because they couldn't be checked.
+	 */
+	long failures = 0;
+	/**
+	 * The problem with the last call that couldn't be checked, or null if there hasn't been one.
+	 */
+	String lastFailure = null;
+	/**
+	 * The problem with the call fired last, or null if it was checked.
+	 */
+	private String failure = null;
+
+	/**
+	 * Compile a policy, type checking its expressions first.
+	 * @param spec The policy.
+	 * @param layout The layout of the security state the policy's expressions are compiled against.
+	 * @param overflow What happens to the results of operations that fall outside the policy's bounds.
+	 * @param resolver Finds the methods invoked by the policy's expressions.
+	 * @param memoise true to remember the results of guards that only invoke pure methods, for a
+	 * policy that's always used with the same state.
+	 */
+	CompiledPolicy (Specification spec, StateLayout layout, BoundedArithmetic.Overflow overflow, InvocationResolver resolver, boolean memoise) {
+		this(spec, layout, overflow, resolver, memoise, TieredExpression.DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Compile a policy, type checking its expressions first, with guards compiled into method handle
+	 * trees after a given number of evaluations.
+	 * @param spec The policy.
+	 * @param layout The layout of the security state the policy's expressions are compiled against.
+	 * @param overflow What happens to the results of operations that fall outside the policy's bounds.
+	 * @param resolver Finds the methods invoked by the policy's expressions.
+	 * @param memoise true to remember the results of guards that only invoke pure methods, for a
+	 * policy that's always used with the same state.
+	 * @param threshold The number of times a guard is evaluated before it's compiled, or negative
+	 * never to compile guards; policies sharing the rules use the same threshold.
+	 */
+	CompiledPolicy (Specification spec, StateLayout layout, BoundedArithmetic.Overflow overflow, InvocationResolver resolver, boolean memoise, int threshold) {
+		this.layout = layout;
+		this.threshold = threshold;
+		arithmetic = BoundedArithmetic.forSpecification(spec, overflow);
+		machine.setArithmetic(arithmetic);
+		machine.setResolver(resolver);
+
+		// Compile the rules, type checking their expressions first; the checker interns the expressions,
+		// so that the subexpressions they have in common are shared by the typed expressions compiled
+		TypeChecker checker = new TypeChecker(resolver, new ExpressionInterner());
+		problems = checker.check(spec);
+		ExpressionCompiler compiler = new ExpressionCompiler(ExpressionSimplifier.forSpecification(spec, overflow), layout);
+		ArrayList<CompiledRule> compiled = new ArrayList<CompiledRule>();
+		for (RuleType rule : spec.getRule()) {
+			if (rule.getBeforeOrAfterOrExceptional() != null) {
+				compiled.add(new CompiledRule(compiled.size(), spec, rule, checker, compiler, layout));
+			}
+		}
+		rules = compiled.toArray(new CompiledRule[compiled.size()]);
+		index = new DispatchIndex(rules);
+		frames = createFrames(rules, resolver, memoise, threshold);
+		log = new UndoLog(layout);
+	}
+
+	/**
+	 * Create a policy that shares the compiled rules of another, but has its own machine, parameters
+	 * and undo log, so that it can be used by another thread at the same time. Nothing is compiled or
+	 * type checked again.
+	 * @param compiled The policy whose rules are shared.
+	 * @param resolver Finds the methods invoked by the policy's expressions, which should be a copy of the
+	 * one the rules were compiled with.
+	 * @param memoise true to remember the results of guards that only invoke pure methods, for a
+	 * policy that's always used with the same state.
+	 */
+	CompiledPolicy (CompiledPolicy compiled, InvocationResolver resolver, boolean memoise) {
+		layout = compiled.layout;
+		arithmetic = compiled.arithmetic;
+		machine.setArithmetic(arithmetic);
+		machine.setResolver(resolver);
+		problems = compiled.problems;
+		rules = compiled.rules;
+		index = compiled.index;
+		threshold = compiled.threshold;
+		frames = createFrames(rules, resolver, memoise, threshold);
+		log = new UndoLog(layout);
+	}
+
+	/**
+	 * Create the frame of each rule.
+	 * @param rules The rules, in the order they appear in the policy.
+	 * @param resolver Says which of the methods invoked by the guards are pure.
+	 * @param memoise true to remember the results of guards that only invoke pure methods.
+	 * @param threshold The number of times a guard is evaluated before it's compiled, or negative never to compile it.
+	 * @return The frames, indexed by the number of their rule.
+	 */
+	private static CompiledRule.Frame[] createFrames (CompiledRule[] rules, InvocationResolver resolver, boolean memoise, int threshold) {
+		CompiledRule.Frame[] result = new CompiledRule.Frame[rules.length];
+		for (int index = 0; index < rules.length; index++) {
+			result[index] = rules[index].createFrame(resolver, memoise, threshold);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the id of a method.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @return The id, or -1 if no rule names the method.
+	 */
+	int getMethodId (String method) {
+		return index.getId(method);
+	}
+
+	/**
+	 * Return the type errors found in the policy when it was compiled.
+	 * @return A description of each type error, or an empty list if there were none.
+	 */
+	List<String> getProblems () {
+		return problems;
+	}
+
+	/**
+	 * Check whether any rules apply to a kind of call to a method.
+	 * @param kind When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+	 * @param method The id of the method called, or -1 if no rule names it.
+	 * @return true if firing the rules for the call could change the state or deny the call.
+	 */
+	boolean applies (int kind, int method) {
+		return (index.lookup(kind, method).length > 0);
+	}
+
+	/**
+	 * Fire the rules that apply to a call, and count the call.
+	 * @param kind When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+	 * @param method The id of the method called, or -1 if no rule names it.
+	 * @param state The security state the call is checked against, which is updated.
+	 * @param args The arguments of the call, may be null if there are none.
+	 * @param result The value returned, for an after call.
+	 * @return PERMIT unless a rule denied the call or it couldn't be checked.
+	 */
+	Decision dispatch (int kind, int method, SlotState state, Object[] args, Object result) {
+		Decision decision = fire(kind, method, state, args, result);
+		count(decision);
+		return decision;
+	}
+
+	/**
+	 * Fire the rules that apply to a call without counting it, so that the call can be fired again,
+	 * against another state, if the updates to this one are thrown away. If the call is denied, or
+	 * can't be checked, every update made to the state while checking it is undone, so a denied call
+	 * never changes the state. A call can't be checked if evaluating the policy fails, or if anything
+	 * else goes wrong while firing its rules, such as an argument's toString() throwing an exception.
+	 * @param kind When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+	 * @param method The id of the method called, or -1 if no rule names it.
+	 * @param state The security state the call is checked against, which is updated.
+	 * @param args The arguments of the call, may be null if there are none.
+	 * @param result The value returned, for an after call.
+	 * @return PERMIT unless a rule denied the call or it couldn't be checked.
+	 */
+	Decision fire (int kind, int method, SlotState state, Object[] args, Object result) {
+		Decision decision = Decision.PERMIT;
+		failure = null;
+		if (args == null) {
+			args = NO_ARGUMENTS;
+		}
+		try {
+			CompiledRule[] rules = index.lookup(kind, method);
+			for (int position = 0; (position < rules.length) && (decision == Decision.PERMIT); position++) {
+				if (rules[position].accepts(args)) {
+					decision = rules[position].fire(machine, frames[rules[position].number], state, args, result, log);
+				}
+			}
+		}
+		catch (EvaluationException e) {
+			// Fail closed: a call that can't be checked isn't allowed
+			decision = Decision.DENY;
+			failure = e.getMessage();
+		}
+		catch (RuntimeException e) {
+			// Anything else going wrong, including in code belonging to the arguments, fails closed too
+			decision = Decision.DENY;
+			failure = "Checking a call threw " + e;
+		}
+		if (decision == Decision.DENY) {
+			log.rollback(state);
+		}
+		else {
+			log.clear();
+		}
+		return decision;
+	}
+
+	/**
+	 * Count a call that couldn't be fired at all, as a denial that couldn't be checked.
+	 * @param problem What went wrong.
+	 */
+	void countFailure (String problem) {
+		failure = problem;
+		count(Decision.DENY);
+	}
+
+	/**
+	 * Count the call fired last.
+	 * @param decision The decision fire() returned for the call.
+	 */
+	void count (Decision decision) {
+		events++;
+		if (failure != null) {
+			failures++;
+			lastFailure = failure;
+		}
+		if (decision == Decision.DENY) {
+			denials++;
+		}
+	}
+}
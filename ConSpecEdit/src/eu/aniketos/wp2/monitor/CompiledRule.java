@@ -0,0 +1,408 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.List;
+
+import eu.aniketos.AssignType;
+import eu.aniketos.ParameterType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.UpdateType;
+import eu.aniketos.wp2.Bindings;
+import eu.aniketos.wp2.CompiledExpression;
+import eu.aniketos.wp2.EvaluationException;
+import eu.aniketos.wp2.ExpressionCompiler;
+import eu.aniketos.wp2.ExpressionMachine;
+import eu.aniketos.wp2.GuardMemo;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+import eu.aniketos.wp2.TieredExpression;
+import eu.aniketos.wp2.TypeChecker;
+import eu.aniketos.wp2.TypedExpression;
+import eu.aniketos.wp2.ValueType;
+import eu.aniketos.wp2.When;
+
+/**
+ * A rule of a policy, compiled so that it can be fired by a Monitor without looking anything up by
+ * name: its guards and assigned values are compiled against the layout of the security state, each
+ * assignment knows the slot it writes to, and the arguments of a call are copied straight into the
+ * variables the rule's expressions read them from. A guard is run by the ExpressionMachine until it's
+ * been evaluated TieredExpression.DEFAULT_THRESHOLD times, and is then compiled into a method handle
+ * tree, falling back to the machine whenever the tree can't be used.
+ * The rule isn't changed once it's compiled, so it can be shared between threads. The values of the
+ * parameters of the call being fired, and the memos and tiers of the guards, are held in a Frame
+ * instead, which belongs to a single CompiledPolicy and so is only used by one thread at a time.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class CompiledRule {
+	/**
+	 * The kind of rule applying before a method is called.
+	 */
+	static final int BEFORE = 0;
+	/**
+	 * The kind of rule applying after a method returns.
+	 */
+	static final int AFTER = 1;
+	/**
+	 * The kind of rule applying when a method throws an exception.
+	 */
+	static final int EXCEPTIONAL = 2;
+
+	/**
+	 * The position of the rule among the rules of its policy, which its frame is found by.
+	 */
+	final int number;
+	/**
+	 * When the rule applies: BEFORE, AFTER or EXCEPTIONAL.
+	 */
+	final int kind;
+	/**
+	 * The method the rule applies to.
+	 */
+	final String identifier;
+	/**
+	 * The number of arguments the method takes.
+	 */
+	final int arity;
+	/**
+	 * The name of the variable holding the value returned by the method, followed by the name of the
+	 * variable holding each argument; null for values the rule doesn't use or of types expressions
+	 * can't hold.
+	 */
+	private final String[] names;
+	/**
+	 * The type of the variable holding the value returned by the method, followed by the type of each argument.
+	 */
+	private final ValueType[] types;
+	/**
+	 * The guard of each reaction, or null for a reaction that always applies.
+	 */
+	private final CompiledExpression[] guards;
+	/**
+	 * The updates of each reaction.
+	 */
+	private final Update[] updates;
+	/**
+	 * The update applied if no reaction applies, or null if the call should then be denied.
+	 */
+	private final Update otherwise;
+
+	/**
+	 * Compile a rule.
+	 * @param number The position of the rule among the rules of its policy.
+	 * @param spec The policy the rule is part of.
+	 * @param rule The rule, which must say when it applies.
+	 * @param checker Used to find the expressions that can be compiled without type checks.
+	 * @param compiler Compiles the expressions against the layout of the security state.
+	 * @param layout The layout of the security state.
+	 */
+	CompiledRule (int number, Specification spec, RuleType rule, TypeChecker checker, ExpressionCompiler compiler, StateLayout layout) {
+		When when = new When(rule);
+		this.number = number;
+		kind = kindOf(when.getType());
+		identifier = when.getIdentifier();
+
+		// Note the variables of the return value, if an after rule names one, and of the parameters
+		List<ParameterType> declared = when.getParameters();
+		arity = declared.size();
+		names = new String[arity + 1];
+		types = new ValueType[arity + 1];
+		ParameterType returned = when.getReturn();
+		if ((returned != null) && (returned.getIdentifier() != null) && !returned.getIdentifier().isEmpty()) {
+			declare(0, returned);
+		}
+		for (int index = 0; index < arity; index++) {
+			declare(index + 1, declared.get(index));
+		}
+
+		// Compile the reactions
+		List<ReactionType> reactions = (rule.getPerform() == null) ? null : rule.getPerform().getReaction();
+		int count = (reactions == null) ? 0 : reactions.size();
+		guards = new CompiledExpression[count];
+		updates = new Update[count];
+		for (int index = 0; index < count; index++) {
+			ReactionType reaction = reactions.get(index);
+			TypedExpression guard = checker.checkGuard(spec, rule, reaction);
+			guards[index] = (guard == null) ? null : compiler.compile(guard);
+			updates[index] = new Update(spec, rule, reaction.getUpdate(), checker, compiler, layout);
+		}
+		UpdateType update = (rule.getPerform() == null) ? null : rule.getPerform().getElse();
+		otherwise = (update == null) ? null : new Update(spec, rule, update, checker, compiler, layout);
+	}
+
+	/**
+	 * Return the kind of rule for the name of the element saying when it applies.
+	 * @param type The element name: "before", "after" or "exceptional".
+	 * @return BEFORE, AFTER or EXCEPTIONAL.
+	 */
+	static int kindOf (String type) {
+		int result;
+		if ("before".equals(type)) {
+			result = BEFORE;
+		}
+		else if ("after".equals(type)) {
+			result = AFTER;
+		}
+		else if ("exceptional".equals(type)) {
+			result = EXCEPTIONAL;
+		}
+		else {
+			throw new IllegalArgumentException("Unknown kind of rule '" + type + "'");
+		}
+		return result;
+	}
+
+	/**
+	 * Note the variable for a parameter, unless expressions can't hold values of the parameter's type.
+	 * @param position The position of the parameter, counting from one, or zero for the return value.
+	 * @param parameter The parameter.
+	 */
+	private void declare (int position, ParameterType parameter) {
+		ValueType type = ValueType.forName(parameter.getType());
+		if ((type != null) && (parameter.getIdentifier() != null)) {
+			names[position] = parameter.getIdentifier();
+			types[position] = type;
+		}
+	}
+
+	/**
+	 * Create the parameters, memos and tiers needed to fire the rule, for use by a single CompiledPolicy.
+	 * @param resolver Says which of the methods invoked by the guards are pure.
+	 * @param memoise true to remember the results of guards that only invoke pure methods, which only
+	 * pays if the rule is always fired against the same state.
+	 * @param threshold The number of times a guard is evaluated before it's compiled into a method
+	 * handle tree, or negative never to compile it.
+	 * @return The frame.
+	 */
+	Frame createFrame (InvocationResolver resolver, boolean memoise, int threshold) {
+		Frame frame = new Frame(names.length, guards.length);
+		// Define the parameters in turn and then the return value, so that a later variable replaces an
+		// earlier one of the same name and another type, as the type checker does
+		for (int position = 1; position <= names.length; position++) {
+			int slot = position % names.length;
+			if (names[slot] != null) {
+				frame.variables[slot] = frame.parameters.define(names[slot], types[slot]);
+			}
+		}
+		for (int index = 0; index < guards.length; index++) {
+			if (guards[index] != null) {
+				frame.tiers[index] = new TieredExpression(guards[index], threshold);
+			}
+			if (memoise && (guards[index] != null)) {
+				GuardMemo memo = new GuardMemo(guards[index], resolver, GuardMemo.DEFAULT_CAPACITY);
+				frame.memos[index] = memo.isWorthwhile() ? memo : null;
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Check whether the rule applies to a call of the method it's for, at the point it's for.
+	 * @param args The arguments of the call.
+	 * @return true if the call has the number of arguments the rule declares.
+	 */
+	boolean accepts (Object[] args) {
+		return (args.length == arity);
+	}
+
+	/**
+	 * Fire the rule for a call: apply the updates of the first reaction whose guard holds, or of the
+	 * else block if none does.
+	 * @param machine Executes the rule's expressions.
+	 * @param frame The rule's frame, created by createFrame() for the policy firing it.
+	 * @param state The security state, which is updated.
+	 * @param args The arguments of the call, one for each parameter of the rule.
+	 * @param returned The value returned by the method, for an after rule; otherwise ignored.
+	 * @param log Records the value of each variable before it's first updated, so the updates can be undone.
+	 * @return PERMIT if a reaction or the else block applied, or DENY if nothing did.
+	 */
+	Decision fire (ExpressionMachine machine, Frame frame, SlotState state, Object[] args, Object returned, UndoLog log) {
+		// Copy the arguments into the parameters
+		Bindings parameters = frame.parameters;
+		for (int index = 0; index < arity; index++) {
+			if (frame.variables[index + 1] != null) {
+				set(frame.variables[index + 1], args[index], index + 1);
+			}
+		}
+		if (frame.variables[0] != null) {
+			set(frame.variables[0], returned, 0);
+		}
+		GuardMemo[] memos = frame.memos;
+		TieredExpression[] tiers = frame.tiers;
+
+		// Find the first reaction that applies, falling back to the else block
+		Update applied = null;
+		for (int index = 0; (index < guards.length) && (applied == null); index++) {
+			if ((guards[index] == null) || ((memos[index] == null) ? tiers[index].evaluateGuard(machine, state, parameters) : memos[index].evaluateGuard(machine, state, parameters))) {
+				applied = updates[index];
+			}
+		}
+		if (applied == null) {
+			applied = otherwise;
+		}
+		if (applied != null) {
+			applied.apply(machine, state, parameters, log);
+		}
+		return (applied == null) ? Decision.DENY : Decision.PERMIT;
+	}
+
+	/**
+	 * Set a parameter to the value passed in a call.
+	 * @param variable The parameter.
+	 * @param value The value: a number for an int, a Boolean for a bool, or any object for a string, which is converted using toString().
+	 * @param position The position of the argument, counting from one, or zero for the return value.
+	 */
+	private void set (Bindings.Variable variable, Object value, int position) {
+		if (value == null) {
+			throw new EvaluationException(describe(position) + " of '" + identifier + "' is null");
+		}
+		switch (variable.getType()) {
+		case INT:
+			if (!(value instanceof Number)) {
+				throw new EvaluationException(describe(position) + " of '" + identifier + "' should be an int, but is a " + value.getClass().getName());
+			}
+			variable.setInt(((Number)value).longValue());
+			break;
+		case BOOL:
+			if (!(value instanceof Boolean)) {
+				throw new EvaluationException(describe(position) + " of '" + identifier + "' should be a bool, but is a " + value.getClass().getName());
+			}
+			variable.setBool(((Boolean)value).booleanValue());
+			break;
+		default:
+			variable.setString(value.toString());
+			break;
+		}
+	}
+
+	/**
+	 * Describe a value passed in a call, for use in a message.
+	 * @param position The position of the argument, counting from one, or zero for the return value.
+	 * @return The description.
+	 */
+	private static String describe (int position) {
+		return (position == 0) ? "The return value" : ("Argument " + position);
+	}
+
+	/**
+	 * The values of the parameters of the call a rule is being fired for, along with the memos and
+	 * tiers of its guards: everything about a rule that changes as it's fired. A frame isn't thread safe.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	static final class Frame {
+		/**
+		 * The values of the parameters of the current call.
+		 */
+		final Bindings parameters = new Bindings();
+		/**
+		 * The variable holding the value returned by the method, followed by the variable holding each
+		 * argument; null for values the rule doesn't use or of types expressions can't hold.
+		 */
+		final Bindings.Variable[] variables;
+		/**
+		 * The memo used to evaluate the guard of each reaction, or null for guards evaluated every time.
+		 */
+		final GuardMemo[] memos;
+		/**
+		 * The tier used to evaluate the guard of each reaction that has no memo, or null for a reaction with no guard.
+		 */
+		final TieredExpression[] tiers;
+
+		/**
+		 * Create a frame with no variables or memos.
+		 * @param variables The number of variables: one more than the number of parameters.
+		 * @param reactions The number of reactions.
+		 */
+		Frame (int variables, int reactions) {
+			this.variables = new Bindings.Variable[variables];
+			memos = new GuardMemo[reactions];
+			tiers = new TieredExpression[reactions];
+		}
+	}
+
+	/**
+	 * The assignments of an update block, compiled.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Update {
+		/**
+		 * The name of the variable each assignment writes to.
+		 */
+		private final String[] names;
+		/**
+		 * The slot of the variable each assignment writes to, or -1 if it isn't declared.
+		 */
+		private final int[] slots;
+		/**
+		 * The value of each assignment.
+		 */
+		private final CompiledExpression[] values;
+
+		/**
+		 * Compile an update block.
+		 * @param spec The policy.
+		 * @param rule The rule the block is part of.
+		 * @param update The block, may be null.
+		 * @param checker Used to find the values that can be compiled without type checks.
+		 * @param compiler Compiles the values.
+		 * @param layout The layout of the security state.
+		 */
+		Update (Specification spec, RuleType rule, UpdateType update, TypeChecker checker, ExpressionCompiler compiler, StateLayout layout) {
+			int count = (update == null) ? 0 : update.getAssign().size();
+			names = new String[count];
+			slots = new int[count];
+			values = new CompiledExpression[count];
+			for (int index = 0; index < count; index++) {
+				AssignType assign = update.getAssign().get(index);
+				TypedExpression value = checker.checkValue(spec, rule, assign);
+				if (value == null) {
+					throw new EvaluationException("The assignment to '" + assign.getIdentifier() + "' has no value");
+				}
+				names[index] = assign.getIdentifier();
+				slots[index] = (assign.getIdentifier() == null) ? -1 : layout.getSlot(assign.getIdentifier());
+				values[index] = compiler.compile(value);
+			}
+		}
+
+		/**
+		 * Carry out the assignments in order, so that each sees the results of those before it.
+		 * @param machine Executes the values.
+		 * @param state The security state, which is updated.
+		 * @param parameters The parameters of the call.
+		 * @param log Records the value of each variable before it's first updated.
+		 */
+		void apply (ExpressionMachine machine, SlotState state, Bindings parameters, UndoLog log) {
+			for (int index = 0; index < values.length; index++) {
+				if (slots[index] < 0) {
+					throw new EvaluationException("There's no variable '" + names[index] + "' in the security state to assign to");
+				}
+				log.record(state, slots[index]);
+				machine.assign(slots[index], values[index], state, parameters);
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Finds the rules of a policy that apply to a call without comparing any strings. Each method named
+ * by a rule is given a dense id when the index is built, and the rules for each kind of call to each
+ * method are gathered into an array, in the order they appear in the policy, so that the rules for
+ * a call are found by indexing a single table with the method's id and the kind of call.
+ * The index can't be changed once it's built, so it can be shared between threads.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class DispatchIndex {
+	/**
+	 * The number of kinds of call: before, after and exceptional.
+	 */
+	private static final int KINDS = 3;
+	/**
+	 * The rules returned for calls that no rule applies to.
+	 */
+	private static final CompiledRule[] NONE = new CompiledRule[0];
+
+	/**
+	 * The id of each method named by a rule.
+	 */
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	/**
+	 * The name of the method with each id.
+	 */
+	private final String[] methods;
+	/**
+	 * The rules for each kind of call to each method, at the method's id times KINDS plus the kind.
+	 */
+	private final CompiledRule[][] table;
+
+	/**
+	 * Build the index.
+	 * @param rules The rules of the policy, in the order they appear in it.
+	 */
+	DispatchIndex (CompiledRule[] rules) {
+		// Give each method an id in the order it's first named
+		ArrayList<String> named = new ArrayList<String>();
+		for (CompiledRule rule : rules) {
+			if (!ids.containsKey(rule.identifier)) {
+				ids.put(rule.identifier, Integer.valueOf(named.size()));
+				named.add(rule.identifier);
+			}
+		}
+		methods = named.toArray(new String[named.size()]);
+
+		// Gather the rules for each kind of call to each method
+		ArrayList<ArrayList<CompiledRule>> gathered = new ArrayList<ArrayList<CompiledRule>>();
+		for (int entry = 0; entry < methods.length * KINDS; entry++) {
+			gathered.add(new ArrayList<CompiledRule>());
+		}
+		for (CompiledRule rule : rules) {
+			gathered.get((ids.get(rule.identifier).intValue() * KINDS) + rule.kind).add(rule);
+		}
+		table = new CompiledRule[gathered.size()][];
+		for (int entry = 0; entry < table.length; entry++) {
+			table[entry] = gathered.get(entry).isEmpty() ? NONE : gathered.get(entry).toArray(new CompiledRule[gathered.get(entry).size()]);
+		}
+	}
+
+	/**
+	 * Return the id of a method.
+	 * @param method The fully qualified name of the method.
+	 * @return The id, or -1 if no rule names the method.
+	 */
+	int getId (String method) {
+		Integer result = ids.get(method);
+		return (result == null) ? -1 : result.intValue();
+	}
+
+	/**
+	 * Return the name of the method with an id.
+	 * @param id The id.
+	 * @return The fully qualified name of the method.
+	 */
+	String getMethod (int id) {
+		return methods[id];
+	}
+
+	/**
+	 * Return the number of methods named by rules, which is one more than the largest id.
+	 * @return The number of methods.
+	 */
+	int getSize () {
+		return methods.length;
+	}
+
+	/**
+	 * Return the rules for a kind of call to a method.
+	 * @param kind When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+	 * @param id The id of the method, or -1 for a method no rule names.
+	 * @return The rules, in the order they appear in the policy; an empty array if there are none.
+	 */
+	CompiledRule[] lookup (int kind, int id) {
+		return ((id < 0) || (id >= methods.length)) ? NONE : table[(id * KINDS) + kind];
+	}
+}
@@ -0,0 +1,470 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.aniketos.Specification;
+import eu.aniketos.wp2.BoundedArithmetic;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+
+/**
+ * Enforces a policy whose scope is global on the method calls of every thread, with all of them
+ * sharing a single security state, without any thread holding a lock while it checks a call.
+ * The current state is a snapshot that's never changed once it's been published. A call is checked
+ * by firing its rules against a copy of the snapshot, as a Monitor would, and the copy is then
+ * published in place of the snapshot using a compare-and-set. If another thread published a new state
+ * in the meantime, the compare-and-set fails, and the call is checked again against the new state;
+ * the decision returned is always the one made against the state the call's updates were published
+ * on. A call whose rules don't write to the state doesn't need publishing, so calls that only read the
+ * state never conflict with each other, and calls that no rule applies to don't copy it at all.
+ * A call that's denied, or that can't be checked, has its copy thrown away rather than published, so
+ * the state only ever changes by the complete updates of calls that are permitted.
+ * Conflicts and the checks repeated because of them are counted, to show how contended the state is.
+ * The policy is type checked and compiled once, when the monitor is created. Each thread is given its
+ * own machine, rule parameters, undo log and copy of the InvocationResolver the first time it checks a
+ * call, sharing the compiled rules, which are never changed; resolvers can't be shared between threads,
+ * since they record the methods they resolve. The policy made for a thread is dropped once the thread
+ * has ended, with its counts added to those kept for threads that have ended.
+ * The monitor is thread safe. The counts it returns are totals over the threads, and may not yet
+ * include calls being checked at the time.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class GlobalMonitor {
+	/**
+	 * Finds the methods invoked by the policy's expressions. This copy is never used to resolve
+	 * anything itself; each thread is given a copy of it, made while holding its lock.
+	 */
+	private final InvocationResolver resolver;
+	/**
+	 * The layout of the security state.
+	 */
+	private final StateLayout layout;
+	/**
+	 * The policy compiled for the thread that created the monitor, used for anything that doesn't
+	 * depend on the thread. The policies of the other threads share its compiled rules.
+	 */
+	private final CompiledPolicy first;
+	/**
+	 * The security state last published, which is never changed.
+	 */
+	private final AtomicReference<SlotState> current;
+	/**
+	 * The worker for each thread that has checked a call.
+	 */
+	private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>();
+	/**
+	 * The worker of every thread that may still be running, so that their counts can be added up.
+	 * All access is synchronized on the list.
+	 */
+	private final ArrayList<Worker> workers = new ArrayList<Worker>();
+	/**
+	 * The counts of the workers of threads that have ended, indexed by Worker.EVENTS and so on.
+	 * All access is synchronized on the list of workers.
+	 */
+	private final long[] retired = new long[Worker.COUNTS];
+
+	/**
+	 * Create a monitor that treats operations overflowing the policy's bounds as violations, and
+	 * allows invocations of the methods on the default allowlist.
+	 * @param spec The policy.
+	 */
+	public GlobalMonitor (Specification spec) {
+		this(spec, BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver());
+	}
+
+	/**
+	 * Create a monitor.
+	 * @param spec The policy.
+	 * @param overflow What happens to the results of operations that fall outside the policy's bounds.
+	 * @param resolver Finds the methods invoked by the policy's expressions; each thread is given its own
+	 * copy, so later changes to it aren't seen by the monitor.
+	 */
+	public GlobalMonitor (Specification spec, BoundedArithmetic.Overflow overflow, InvocationResolver resolver) {
+		this.resolver = resolver.copy();
+		layout = StateLayout.forSpecification(spec);
+		current = new AtomicReference<SlotState>(layout.createState());
+
+		// The policy compiled here is used by this thread to check its own calls; guards aren't memoised,
+		// since each call is checked against a fresh copy of the state
+		first = new CompiledPolicy(spec, layout, overflow, this.resolver.copy(), false);
+		Worker created = new Worker(first, Thread.currentThread());
+		workers.add(created);
+		worker.set(created);
+	}
+
+	/**
+	 * Return the worker for the current thread, creating it if the thread hasn't checked a call before.
+	 * @return The worker.
+	 */
+	private Worker getWorker () {
+		Worker result = worker.get();
+		if (result == null) {
+			// The new policy shares the rules compiled for the first, which are never changed, so only the
+			// resolver, whose copies are made one at a time, needs a lock
+			InvocationResolver copy;
+			synchronized (resolver) {
+				copy = resolver.copy();
+			}
+			result = new Worker(new CompiledPolicy(first, copy, false), Thread.currentThread());
+
+			// Drop the workers of threads that have ended while the lock's held to add this one
+			synchronized (workers) {
+				retire();
+				workers.add(result);
+			}
+			worker.set(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Drop the workers of threads that have ended, adding their counts to the retired totals. The lock
+	 * on the list of workers must be held. A thread that has ended won't write to its counts again, and
+	 * finding that it has ended guarantees that everything it wrote can be read.
+	 */
+	private void retire () {
+		int index = 0;
+		while (index < workers.size()) {
+			Worker checked = workers.get(index);
+			if (checked.owner.isAlive()) {
+				index++;
+			}
+			else {
+				// Fold the counts in and drop the worker, along with its compiled policy and resolver
+				for (int count = 0; count < Worker.COUNTS; count++) {
+					retired[count] += checked.get(count);
+				}
+				workers.remove(index);
+			}
+		}
+	}
+
+	/**
+	 * Return one of the counts, added up over every thread.
+	 * @param count Which count: Worker.EVENTS, DENIALS, FAILURES, CONFLICTS or RETRIES.
+	 * @return The total.
+	 */
+	private long total (int count) {
+		long result;
+		synchronized (workers) {
+			retire();
+			result = retired[count];
+			for (Worker counted : workers) {
+				result += counted.get(count);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the id of a method, which can be passed in place of its name to check calls without looking the name up.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @return The id, or -1 if no rule names the method, so no calls to it will ever be denied.
+	 */
+	public int getMethodId (String method) {
+		// The index isn't changed once it's built, and each thread's copy gives a method the same id
+		return first.getMethodId(method);
+	}
+
+	/**
+	 * Check a call that's about to be made.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (String method, Object... args) {
+		return dispatch(CompiledRule.BEFORE, getMethodId(method), args, null);
+	}
+
+	/**
+	 * Check a call that's about to be made.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (int method, Object... args) {
+		return dispatch(CompiledRule.BEFORE, method, args, null);
+	}
+
+	/**
+	 * Check a call that has just returned.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (String method, Object[] args, Object result) {
+		return dispatch(CompiledRule.AFTER, getMethodId(method), args, result);
+	}
+
+	/**
+	 * Check a call that has just returned.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (int method, Object[] args, Object result) {
+		return dispatch(CompiledRule.AFTER, method, args, result);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (String method, Object... args) {
+		return dispatch(CompiledRule.EXCEPTIONAL, getMethodId(method), args, null);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (int method, Object... args) {
+		return dispatch(CompiledRule.EXCEPTIONAL, method, args, null);
+	}
+
+	/**
+	 * Fire the rules that apply to a call against a copy of the current state, and publish the copy
+	 * if it was written to, starting again if another thread published a state first.
+	 * @param kind When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+	 * @param method The id of the method called, or -1 if no rule names it.
+	 * @param args The arguments of the call, may be null if there are none.
+	 * @param result The value returned, for an after call.
+	 * @return PERMIT unless a rule denied the call or it couldn't be checked.
+	 */
+	private Decision dispatch (int kind, int method, Object[] args, Object result) {
+		Worker self = getWorker();
+		Decision decision = null;
+		if (!self.policy.applies(kind, method)) {
+			// Nothing can change, so there's nothing to publish
+			decision = self.policy.fire(kind, method, null, args, result);
+		}
+		int conflicts = 0;
+		while (decision == null) {
+			SlotState snapshot = current.get();
+			SlotState updated = snapshot.copy();
+			Decision attempt = self.policy.fire(kind, method, updated, args, result);
+			// A denied call's copy may hold some of its updates, or all of them rolled back, so it's
+			// thrown away; only the copy left by a call that was permitted is published
+			if ((attempt == Decision.DENY) || (updated.getVersion() == snapshot.getVersion())
+				|| current.compareAndSet(snapshot, updated)) {
+				decision = attempt;
+			}
+			else {
+				conflicts++;
+			}
+		}
+		self.policy.count(decision);
+		self.publish(conflicts);
+		return decision;
+	}
+
+	/**
+	 * Return the type errors found in the policy when the monitor was created. Expressions with type
+	 * errors are still enforced, but fail when they're evaluated, denying the calls they're checked for.
+	 * @return A description of each type error, saying where it is, or an empty list if there were none.
+	 */
+	public List<String> getProblems () {
+		return first.getProblems();
+	}
+
+	/**
+	 * Return a copy of the security state as it was last published. Changing the copy doesn't affect the monitor.
+	 * @return The copy.
+	 */
+	public SlotState getState () {
+		return current.get().copy();
+	}
+
+	/**
+	 * Put the security state back to the initial values of its declarations. Calls being checked at
+	 * the time are checked again against the new state.
+	 */
+	public void reset () {
+		current.set(layout.createState());
+	}
+
+	/**
+	 * Return the number of calls checked.
+	 * @return The number of calls.
+	 */
+	public long getEvents () {
+		return total(Worker.EVENTS);
+	}
+
+	/**
+	 * Return the number of calls denied, including those that couldn't be checked.
+	 * @return The number of denials.
+	 */
+	public long getDenials () {
+		return total(Worker.DENIALS);
+	}
+
+	/**
+	 * Return the number of calls denied because they couldn't be checked.
+	 * @return The number of failures.
+	 */
+	public long getFailures () {
+		return total(Worker.FAILURES);
+	}
+
+	/**
+	 * Return the number of calls that had to be checked more than once, because another thread
+	 * published a new state while they were being checked.
+	 * @return The number of calls.
+	 */
+	public long getConflicts () {
+		return total(Worker.CONFLICTS);
+	}
+
+	/**
+	 * Return the number of times calls were checked again after a conflict. This is at least the number
+	 * of conflicts, and the difference shows how often a call conflicted more than once.
+	 * @return The number of checks repeated.
+	 */
+	public long getRetries () {
+		return total(Worker.RETRIES);
+	}
+
+	/**
+	 * The policy compiled for a thread, along with copies of its counts and the counts of the conflicts
+	 * the thread has had. The counts are only written by the worker's thread, and are volatile so that
+	 * other threads adding them up see every call the worker has finished counting.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Worker {
+		/**
+		 * The index of the number of calls checked, as passed to get().
+		 */
+		static final int EVENTS = 0;
+		/**
+		 * The index of the number of calls denied.
+		 */
+		static final int DENIALS = 1;
+		/**
+		 * The index of the number of calls that couldn't be checked.
+		 */
+		static final int FAILURES = 2;
+		/**
+		 * The index of the number of calls that had to be checked more than once.
+		 */
+		static final int CONFLICTS = 3;
+		/**
+		 * The index of the number of times calls were checked again.
+		 */
+		static final int RETRIES = 4;
+		/**
+		 * The number of counts kept.
+		 */
+		static final int COUNTS = 5;
+		/**
+		 * The policy compiled for the thread.
+		 */
+		final CompiledPolicy policy;
+		/**
+		 * The thread the worker belongs to.
+		 */
+		final Thread owner;
+		/**
+		 * The number of calls checked, copied from the policy after each call.
+		 */
+		volatile long events = 0;
+		/**
+		 * The number of calls denied, copied from the policy after each call.
+		 */
+		volatile long denials = 0;
+		/**
+		 * The number of calls that couldn't be checked, copied from the policy after each call.
+		 */
+		volatile long failures = 0;
+		/**
+		 * The number of calls that had to be checked more than once.
+		 */
+		volatile long conflicts = 0;
+		/**
+		 * The number of times calls were checked again.
+		 */
+		volatile long retries = 0;
+
+		/**
+		 * Create a worker.
+		 * @param policy The policy compiled for the thread.
+		 * @param owner The thread the worker belongs to.
+		 */
+		Worker (CompiledPolicy policy, Thread owner) {
+			this.policy = policy;
+			this.owner = owner;
+		}
+
+		/**
+		 * Publish the counts after a call has been checked. Only the worker's thread may call this.
+		 * @param repeats The number of times the call was checked again after a conflict.
+		 */
+		void publish (int repeats) {
+			events = policy.events;
+			denials = policy.denials;
+			failures = policy.failures;
+			if (repeats > 0) {
+				conflicts = conflicts + 1;
+				retries = retries + repeats;
+			}
+		}
+
+		/**
+		 * Return one of the worker's counts.
+		 * @param count Which count: EVENTS, DENIALS, FAILURES, CONFLICTS or RETRIES.
+		 * @return The count.
+		 */
+		long get (int count) {
+			long result;
+			switch (count) {
+			case EVENTS:
+				result = events;
+				break;
+			case DENIALS:
+				result = denials;
+				break;
+			case FAILURES:
+				result = failures;
+				break;
+			case CONFLICTS:
+				result = conflicts;
+				break;
+			default:
+				result = retries;
+				break;
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.List;
+
+import eu.aniketos.Specification;
+import eu.aniketos.wp2.BoundedArithmetic;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+
+/**
+ * Enforces a policy on the method calls of a running program. The program reports each call to the
+ * monitor before it's made, after it returns, or when it throws an exception, and the monitor says
+ * whether the policy permits it.
+ * Each rule that applies to a call is fired in turn, in the order the rules appear in the policy:
+ * the updates of the first reaction whose guard holds are applied to the security state, or those
+ * of the else block if no guard holds. If a rule has neither a reaction that applies nor an else
+ * block, the call is denied and no further rules are fired. A rule applies to a call of the method it
+ * names, with the number of arguments it declares. A call that can't be checked, for example because
+ * an argument is of the wrong type or an operation overflows the policy's bounds under
+ * Overflow.VIOLATION, is denied. When a call is denied, the updates already made by the rules fired
+ * for it are undone, so a denied call never changes the security state.
+ * The policy is compiled when the monitor is created, with the expressions that type check compiled
+ * so that they don't check types as they run, and the security state is held in slots, so checking a
+ * call doesn't look anything up by name. Later changes to the policy aren't seen by the monitor.
+ * Guards that invoke methods, all of which the resolver says are pure, are evaluated through a
+ * GuardMemo, so that they're only evaluated again once the variables or parameters they read change.
+ * The rules for a call are found through a DispatchIndex. Each method named by the policy is given an
+ * id, which callers can look up once with getMethodId() and then pass in place of the method's name,
+ * so that finding the rules for a call is a single array access.
+ * A monitor holds a single security state and isn't thread safe; SessionMonitor checks the calls of
+ * many sessions at once.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class Monitor {
+	/**
+	 * The compiled rules of the policy.
+	 */
+	private final CompiledPolicy policy;
+	/**
+	 * The layout of the security state.
+	 */
+	private final StateLayout layout;
+	/**
+	 * The security state.
+	 */
+	private SlotState state;
+
+	/**
+	 * Create a monitor that treats operations overflowing the policy's bounds as violations, and
+	 * allows invocations of the methods on the default allowlist.
+	 * @param spec The policy.
+	 */
+	public Monitor (Specification spec) {
+		this(spec, BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver());
+	}
+
+	/**
+	 * Create a monitor.
+	 * @param spec The policy.
+	 * @param overflow What happens to the results of operations that fall outside the policy's bounds.
+	 * @param resolver Finds the methods invoked by the policy's expressions.
+	 */
+	public Monitor (Specification spec, BoundedArithmetic.Overflow overflow, InvocationResolver resolver) {
+		// Set up the security state and compile the rules against it
+		layout = StateLayout.forSpecification(spec);
+		state = layout.createState();
+		policy = new CompiledPolicy(spec, layout, overflow, resolver, true);
+	}
+
+	/**
+	 * Return the id of a method, which can be passed in place of its name to check calls without looking the name up.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @return The id, or -1 if no rule names the method, so no calls to it will ever be denied.
+	 */
+	public int getMethodId (String method) {
+		return policy.getMethodId(method);
+	}
+
+	/**
+	 * Check a call that's about to be made.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call: numbers for ints, Booleans for bools and any object for a
+	 * string; arguments of other types the policy declares are ignored.
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (String method, Object... args) {
+		return policy.dispatch(CompiledRule.BEFORE, policy.getMethodId(method), state, args, null);
+	}
+
+	/**
+	 * Check a call that's about to be made.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for before(String, Object...).
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (int method, Object... args) {
+		return policy.dispatch(CompiledRule.BEFORE, method, state, args, null);
+	}
+
+	/**
+	 * Check a call that has just returned.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for before().
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (String method, Object[] args, Object result) {
+		return policy.dispatch(CompiledRule.AFTER, policy.getMethodId(method), state, args, result);
+	}
+
+	/**
+	 * Check a call that has just returned.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for before(String, Object...).
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (int method, Object[] args, Object result) {
+		return policy.dispatch(CompiledRule.AFTER, method, state, args, result);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for before().
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (String method, Object... args) {
+		return policy.dispatch(CompiledRule.EXCEPTIONAL, policy.getMethodId(method), state, args, null);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for before(String, Object...).
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (int method, Object... args) {
+		return policy.dispatch(CompiledRule.EXCEPTIONAL, method, state, args, null);
+	}
+
+	/**
+	 * Return the type errors found in the policy when the monitor was created. Expressions with type
+	 * errors are still enforced, but fail when they're evaluated, denying the calls they're checked for.
+	 * @return A description of each type error, saying where it is, or an empty list if there were none.
+	 */
+	public List<String> getProblems () {
+		return policy.getProblems();
+	}
+
+	/**
+	 * Return the security state. Changes made to it affect the calls checked afterwards.
+	 * @return The state.
+	 */
+	public SlotState getState () {
+		return state;
+	}
+
+	/**
+	 * Put the security state back to the initial values of its declarations.
+	 */
+	public void reset () {
+		state = layout.createState();
+	}
+
+	/**
+	 * Return the number of calls checked.
+	 * @return The number of calls.
+	 */
+	public long getEvents () {
+		return policy.events;
+	}
+
+	/**
+	 * Return the number of calls denied, including those that couldn't be checked.
+	 * @return The number of denials.
+	 */
+	public long getDenials () {
+		return policy.denials;
+	}
+
+	/**
+	 * Return the number of calls denied because they couldn't be checked.
+	 * @return The number of failures.
+	 */
+	public long getFailures () {
+		return policy.failures;
+	}
+
+	/**
+	 * Return the problem with the last call that couldn't be checked.
+	 * @return The description of the problem, or null if every call has been checked.
+	 */
+	public String getLastFailure () {
+		return policy.lastFailure;
+	}
+}
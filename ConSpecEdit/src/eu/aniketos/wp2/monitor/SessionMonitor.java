@@ -0,0 +1,354 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.HashMap;
+import java.util.List;
+
+import eu.aniketos.Specification;
+import eu.aniketos.wp2.BoundedArithmetic;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+import eu.aniketos.wp2.TieredExpression;
+
+/**
+ * Enforces a policy whose scope is a session on the method calls of many sessions at once, with each
+ * session having its own security state. Calls are checked as they are by a Monitor, against the
+ * state of the session they're made in.
+ * The policy is compiled and type checked once, and its compiled rules are shared by every stripe.
+ * The sessions are spread over a number of stripes by the hash of their ids. Each stripe has its own
+ * lock, its own machine, rule parameters and undo log, its own copy of the InvocationResolver (which
+ * records the methods it resolves as calls are checked) and the states of its sessions, so calls from
+ * sessions in different stripes can be checked at the same time without sharing anything that's
+ * written. A stripe costs little more than its sessions, but there's no point having many more
+ * stripes than threads checking calls, so by default there's one for each processor.
+ * A session's state is created the first time one of its calls is checked, by copying the initial
+ * values of the declarations worked out when the monitor was created, and is thrown away by
+ * endSession(). A session that's ended and then used again starts afresh.
+ * The monitor is thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class SessionMonitor {
+	/**
+	 * The layout of the security state of every session.
+	 */
+	private final StateLayout layout;
+	/**
+	 * The stripes, of which there's a power of two.
+	 */
+	private final Stripe[] stripes;
+
+	/**
+	 * Create a monitor that treats operations overflowing the policy's bounds as violations, allows
+	 * invocations of the methods on the default allowlist, and has a stripe for each processor.
+	 * @param spec The policy.
+	 */
+	public SessionMonitor (Specification spec) {
+		this(spec, BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a monitor.
+	 * @param spec The policy.
+	 * @param overflow What happens to the results of operations that fall outside the policy's bounds.
+	 * @param resolver Finds the methods invoked by the policy's expressions; each stripe is given its own
+	 * copy, so later changes to it aren't seen by the monitor.
+	 * @param stripes The smallest number of stripes to spread the sessions over, which is rounded up to a power of two.
+	 */
+	public SessionMonitor (Specification spec, BoundedArithmetic.Overflow overflow, InvocationResolver resolver, int stripes) {
+		this(spec, overflow, resolver, stripes, TieredExpression.DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Create a monitor whose guards are compiled into method handle trees after a given number of
+	 * evaluations, so that the compiled guards can be compared with the machine.
+	 * @param spec The policy.
+	 * @param overflow What happens to the results of operations that fall outside the policy's bounds.
+	 * @param resolver Finds the methods invoked by the policy's expressions; each stripe is given its own copy.
+	 * @param stripes The smallest number of stripes to spread the sessions over, which is rounded up to a power of two.
+	 * @param threshold The number of times each stripe evaluates a guard before compiling it, or negative never to compile guards.
+	 */
+	SessionMonitor (Specification spec, BoundedArithmetic.Overflow overflow, InvocationResolver resolver, int stripes, int threshold) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("A session monitor needs at least one stripe, not " + stripes);
+		}
+		layout = StateLayout.forSpecification(spec);
+
+		// Compile the policy once, and give each other stripe a policy sharing its rules, so the methods have
+		// the same ids in each; guards aren't memoised, since each stripe checks the calls of many sessions
+		int count = 1;
+		while (count < stripes) {
+			count <<= 1;
+		}
+		this.stripes = new Stripe[count];
+		CompiledPolicy compiled = new CompiledPolicy(spec, layout, overflow, resolver.copy(), false, threshold);
+		this.stripes[0] = new Stripe(compiled);
+		for (int index = 1; index < count; index++) {
+			this.stripes[index] = new Stripe(new CompiledPolicy(compiled, resolver.copy(), false));
+		}
+	}
+
+	/**
+	 * Return the id of a method, which can be passed in place of its name to check calls without looking the name up.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @return The id, or -1 if no rule names the method, so no calls to it will ever be denied.
+	 */
+	public int getMethodId (String method) {
+		// The index isn't changed once it's built, so can be read without holding the lock
+		return stripes[0].policy.getMethodId(method);
+	}
+
+	/**
+	 * Check a call that's about to be made.
+	 * @param session The id of the session the call is made in.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (String session, String method, Object... args) {
+		return dispatch(session, CompiledRule.BEFORE, getMethodId(method), args, null);
+	}
+
+	/**
+	 * Check a call that's about to be made.
+	 * @param session The id of the session the call is made in.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (String session, int method, Object... args) {
+		return dispatch(session, CompiledRule.BEFORE, method, args, null);
+	}
+
+	/**
+	 * Check a call that has just returned.
+	 * @param session The id of the session the call was made in.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (String session, String method, Object[] args, Object result) {
+		return dispatch(session, CompiledRule.AFTER, getMethodId(method), args, result);
+	}
+
+	/**
+	 * Check a call that has just returned.
+	 * @param session The id of the session the call was made in.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (String session, int method, Object[] args, Object result) {
+		return dispatch(session, CompiledRule.AFTER, method, args, result);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception.
+	 * @param session The id of the session the call was made in.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (String session, String method, Object... args) {
+		return dispatch(session, CompiledRule.EXCEPTIONAL, getMethodId(method), args, null);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception.
+	 * @param session The id of the session the call was made in.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (String session, int method, Object... args) {
+		return dispatch(session, CompiledRule.EXCEPTIONAL, method, args, null);
+	}
+
+	/**
+	 * Fire the rules that apply to a call against the state of its session, creating the state if
+	 * this is the session's first call.
+	 * @param session The id of the session.
+	 * @param kind When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+	 * @param method The id of the method called, or -1 if no rule names it.
+	 * @param args The arguments of the call, may be null if there are none.
+	 * @param result The value returned, for an after call.
+	 * @return PERMIT unless a rule denied the call or it couldn't be checked.
+	 */
+	private Decision dispatch (String session, int kind, int method, Object[] args, Object result) {
+		Decision decision;
+		Stripe stripe = stripeOf(session);
+		synchronized (stripe) {
+			SlotState state = stripe.sessions.get(session);
+			if (state == null) {
+				state = layout.createState();
+				stripe.sessions.put(session, state);
+			}
+			decision = stripe.policy.dispatch(kind, method, state, args, result);
+		}
+		return decision;
+	}
+
+	/**
+	 * Return the stripe a session belongs to.
+	 * @param session The id of the session.
+	 * @return The stripe.
+	 */
+	private Stripe stripeOf (String session) {
+		if (session == null) {
+			throw new IllegalArgumentException("A session id can't be null");
+		}
+		// Mix the high bits of the hash into the low bits used to pick the stripe
+		int hash = session.hashCode();
+		hash ^= (hash >>> 16);
+		return stripes[hash & (stripes.length - 1)];
+	}
+
+	/**
+	 * End a session, throwing away its security state.
+	 * @param session The id of the session.
+	 * @return true if the session had a state, or false if none of its calls had been checked.
+	 */
+	public boolean endSession (String session) {
+		Stripe stripe = stripeOf(session);
+		boolean result;
+		synchronized (stripe) {
+			result = (stripe.sessions.remove(session) != null);
+		}
+		return result;
+	}
+
+	/**
+	 * Return a copy of the security state of a session. Changing the copy doesn't affect the session.
+	 * @param session The id of the session.
+	 * @return The copy, or null if none of the session's calls have been checked since it started.
+	 */
+	public SlotState getState (String session) {
+		Stripe stripe = stripeOf(session);
+		SlotState result;
+		synchronized (stripe) {
+			SlotState state = stripe.sessions.get(session);
+			result = (state == null) ? null : state.copy();
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of sessions with a security state.
+	 * @return The number of sessions.
+	 */
+	public int getSessionCount () {
+		int result = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				result += stripe.sessions.size();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of stripes the sessions are spread over.
+	 * @return The number of stripes, which is a power of two.
+	 */
+	public int getStripeCount () {
+		return stripes.length;
+	}
+
+	/**
+	 * Return the type errors found in the policy when the monitor was created. Expressions with type
+	 * errors are still enforced, but fail when they're evaluated, denying the calls they're checked for.
+	 * @return A description of each type error, saying where it is, or an empty list if there were none.
+	 */
+	public List<String> getProblems () {
+		return stripes[0].policy.getProblems();
+	}
+
+	/**
+	 * Return the number of calls checked, across every session.
+	 * @return The number of calls.
+	 */
+	public long getEvents () {
+		long result = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				result += stripe.policy.events;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of calls denied across every session, including those that couldn't be checked.
+	 * @return The number of denials.
+	 */
+	public long getDenials () {
+		long result = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				result += stripe.policy.denials;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of calls denied across every session because they couldn't be checked.
+	 * @return The number of failures.
+	 */
+	public long getFailures () {
+		long result = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				result += stripe.policy.failures;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A share of the sessions, along with the policy used to check their calls. All access is
+	 * synchronized on the stripe.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Stripe {
+		/**
+		 * The copy of the policy used to check the calls of the stripe's sessions.
+		 */
+		final CompiledPolicy policy;
+		/**
+		 * The security state of each session in the stripe, by session id.
+		 */
+		final HashMap<String, SlotState> sessions = new HashMap<String, SlotState>();
+
+		/**
+		 * Create an empty stripe.
+		 * @param policy The copy of the policy used to check the calls of the stripe's sessions.
+		 */
+		Stripe (CompiledPolicy policy) {
+			this.policy = policy;
+		}
+	}
+}
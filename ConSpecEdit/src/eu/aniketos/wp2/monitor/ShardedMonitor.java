@@ -0,0 +1,695 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import eu.aniketos.Specification;
+import eu.aniketos.wp2.BoundedArithmetic;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+
+/**
+ * Enforces a policy whose scope is a session on the method calls of many sessions, by splitting the
+ * sessions between a number of shards, usually one for each processor. Each shard has a thread of its
+ * own, which is the only thread that ever touches the shard's machine, rule parameters and undo log, its
+ * copy of the InvocationResolver or the states of its sessions, so nothing written while checking a call
+ * is shared between threads. The policy is type checked and compiled once, when the monitor is created,
+ * and the shards share its layout and compiled rules, which are never changed.
+ * A session belongs to the shard picked by the hash of its id, and stays there. Calls are passed to a
+ * session's shard through a bounded queue, which any number of threads can add to without taking a
+ * lock; a thread adding a call to a full queue waits until there's room. The shard checks the calls in
+ * the order they were added, as a Monitor would, creating a session's state on its first call, and the
+ * thread that passed the call waits for the decision. Each thread passes its calls in a slot of its own
+ * that's used again for every call it makes, so checking a call doesn't allocate anything.
+ * Each shard counts the calls it checks and keeps track of how long its queue gets, so the load on the
+ * shards can be compared.
+ * The monitor is thread safe. Its threads run until shutdown() is called; calls passed to it while it's
+ * shutting down may be denied rather than checked.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ShardedMonitor {
+	/**
+	 * The number of calls each shard's queue holds by default.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+	/**
+	 * How long a thread waits, in nanoseconds, before checking again whether there's room in a queue,
+	 * or whether the shard it's waiting on has stopped.
+	 */
+	private static final long WAIT = 1000000L;
+	/**
+	 * How many times a thread finding a queue full yields to other threads before it starts waiting.
+	 */
+	private static final int YIELDS = 64;
+
+	/**
+	 * The shards.
+	 */
+	private final Shard[] shards;
+	/**
+	 * Whether the shards are still accepting calls.
+	 */
+	private volatile boolean running = true;
+	/**
+	 * The slot each thread passes its calls in.
+	 */
+	private final ThreadLocal<Completion> completion = new ThreadLocal<Completion>();
+
+	/**
+	 * Create a monitor that treats operations overflowing the policy's bounds as violations, allows
+	 * invocations of the methods on the default allowlist, and has a shard for each processor.
+	 * @param spec The policy.
+	 */
+	public ShardedMonitor (Specification spec) {
+		this(spec, BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a monitor and start its shards.
+	 * @param spec The policy.
+	 * @param overflow What happens to the results of operations that fall outside the policy's bounds.
+	 * @param resolver Finds the methods invoked by the policy's expressions; each shard is given its own
+	 * copy, so later changes to it aren't seen by the monitor.
+	 * @param shards The number of shards.
+	 * @param capacity The number of calls each shard's queue can hold, which is rounded up to a power of two of at least two.
+	 */
+	public ShardedMonitor (Specification spec, BoundedArithmetic.Overflow overflow, InvocationResolver resolver, int shards, int capacity) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("A sharded monitor needs at least one shard, not " + shards);
+		}
+		if ((capacity < 1) || (capacity > CallQueue.MAXIMUM_CAPACITY)) {
+			throw new IllegalArgumentException("A shard's queue must hold from 1 to " + CallQueue.MAXIMUM_CAPACITY + " calls, not " + capacity);
+		}
+
+		// Compile the policy once and give each shard a policy of its own sharing the compiled rules;
+		// guards aren't memoised, since each shard's policy is used with the states of many sessions in turn
+		this.shards = new Shard[shards];
+		StateLayout layout = StateLayout.forSpecification(spec);
+		CompiledPolicy compiled = new CompiledPolicy(spec, layout, overflow, resolver.copy(), false);
+		for (int index = 0; index < shards; index++) {
+			CompiledPolicy policy = (index == 0) ? compiled : new CompiledPolicy(compiled, resolver.copy(), false);
+			this.shards[index] = new Shard(layout, policy, capacity);
+		}
+		for (int index = 0; index < shards; index++) {
+			Thread thread = new Thread(this.shards[index], "ShardedMonitor shard " + index);
+			thread.setDaemon(true);
+			this.shards[index].thread = thread;
+			this.shards[index].queue.setConsumer(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Return the id of a method, which can be passed in place of its name to check calls without looking the name up.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @return The id, or -1 if no rule names the method, so no calls to it will ever be denied.
+	 */
+	public int getMethodId (String method) {
+		// The index isn't changed once it's built, and each shard's copy gives a method the same id
+		return shards[0].policy.getMethodId(method);
+	}
+
+	/**
+	 * Check a call that's about to be made, waiting for its shard to check it.
+	 * @param session The id of the session the call is made in.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (String session, String method, Object... args) {
+		return check(session, CompiledRule.BEFORE, getMethodId(method), args, null);
+	}
+
+	/**
+	 * Check a call that's about to be made, waiting for its shard to check it.
+	 * @param session The id of the session the call is made in.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the call may be made.
+	 */
+	public Decision before (String session, int method, Object... args) {
+		return check(session, CompiledRule.BEFORE, method, args, null);
+	}
+
+	/**
+	 * Check a call that has just returned, waiting for its shard to check it.
+	 * @param session The id of the session the call was made in.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (String session, String method, Object[] args, Object result) {
+		return check(session, CompiledRule.AFTER, getMethodId(method), args, result);
+	}
+
+	/**
+	 * Check a call that has just returned, waiting for its shard to check it.
+	 * @param session The id of the session the call was made in.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @param result The value returned, which may be null if the method is void or the policy doesn't use it.
+	 * @return Whether the call's result may be used.
+	 */
+	public Decision after (String session, int method, Object[] args, Object result) {
+		return check(session, CompiledRule.AFTER, method, args, result);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception, waiting for its shard to check it.
+	 * @param session The id of the session the call was made in.
+	 * @param method The fully qualified name of the method, as used by the policy's rules.
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (String session, String method, Object... args) {
+		return check(session, CompiledRule.EXCEPTIONAL, getMethodId(method), args, null);
+	}
+
+	/**
+	 * Check a call that has just thrown an exception, waiting for its shard to check it.
+	 * @param session The id of the session the call was made in.
+	 * @param method The id of the method, as returned by getMethodId().
+	 * @param args The arguments of the call, as for Monitor.before().
+	 * @return Whether the exception may be passed on.
+	 */
+	public Decision exceptional (String session, int method, Object... args) {
+		return check(session, CompiledRule.EXCEPTIONAL, method, args, null);
+	}
+
+	/**
+	 * Pass a call to the shard its session belongs to, and wait for the decision.
+	 * @param session The id of the session.
+	 * @param kind When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+	 * @param method The id of the method called, or -1 if no rule names it.
+	 * @param args The arguments of the call, may be null if there are none.
+	 * @param result The value returned, for an after call.
+	 * @return The decision, or DENY if the monitor stopped before the call was checked.
+	 */
+	private Decision check (String session, int kind, int method, Object[] args, Object result) {
+		Completion work = prepare(session, Completion.CALL);
+		work.kind = kind;
+		work.method = method;
+		work.args = args;
+		work.result = result;
+		submit(work);
+		return work.decision;
+	}
+
+	/**
+	 * End a session, throwing away its security state once the calls already passed to its shard have been checked.
+	 * @param session The id of the session.
+	 * @return true if the session had a state, or false if none of its calls had been checked.
+	 */
+	public boolean endSession (String session) {
+		Completion work = prepare(session, Completion.END);
+		submit(work);
+		return work.ended;
+	}
+
+	/**
+	 * Return a copy of the security state of a session, once the calls already passed to its shard have
+	 * been checked. Changing the copy doesn't affect the session.
+	 * @param session The id of the session.
+	 * @return The copy, or null if none of the session's calls have been checked since it started.
+	 */
+	public SlotState getState (String session) {
+		Completion work = prepare(session, Completion.STATE);
+		submit(work);
+		SlotState result = work.copy;
+		work.copy = null;
+		return result;
+	}
+
+	/**
+	 * Return the current thread's slot, set up for a piece of work for a session.
+	 * @param session The id of the session.
+	 * @param operation What's to be done: Completion.CALL, END or STATE.
+	 * @return The slot.
+	 */
+	private Completion prepare (String session, int operation) {
+		if (session == null) {
+			throw new IllegalArgumentException("A session id can't be null");
+		}
+		if (!running) {
+			throw new IllegalStateException("The monitor has been shut down");
+		}
+		Completion result = completion.get();
+		if (result == null) {
+			result = new Completion(Thread.currentThread());
+			completion.set(result);
+		}
+		result.shard = shards[getShard(session)];
+		result.session = session;
+		result.operation = operation;
+		result.decision = Decision.DENY;
+		result.ended = false;
+		result.copy = null;
+		result.done = false;
+		return result;
+	}
+
+	/**
+	 * Add a piece of work to its shard's queue, waiting for room if it's full, and then wait for the
+	 * shard to do it. If the shard stops first, the work is left with the results it was prepared with.
+	 * @param work The current thread's slot, holding the work.
+	 */
+	private void submit (Completion work) {
+		Shard shard = work.shard;
+		int attempts = 0;
+		while (!shard.queue.offer(work)) {
+			if (!running) {
+				throw new IllegalStateException("The monitor has been shut down");
+			}
+			if (!shard.thread.isAlive()) {
+				throw new IllegalStateException(shard.thread.getName() + " has stopped after an error");
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				throw new IllegalStateException("Interrupted while waiting for room in the queue of " + shard.thread.getName());
+			}
+
+			// The shard's busy while its queue's full, so let it run; nothing wakes a thread waiting
+			// for room, so only wait once it's been full for a while
+			if (attempts < YIELDS) {
+				Thread.yield();
+				attempts++;
+			}
+			else {
+				LockSupport.parkNanos(this, WAIT);
+			}
+		}
+
+		// Once the work's in the queue the slot belongs to the shard until it's done, so an interrupt
+		// can't stop the wait; it's put back afterwards. If the shard's thread has stopped, whether
+		// because the monitor was shut down or because it failed, the work is never going to be done
+		boolean interrupted = false;
+		boolean stopped = false;
+		while (!work.done && !stopped) {
+			LockSupport.parkNanos(this, WAIT);
+			interrupted |= Thread.interrupted();
+			stopped = !shard.thread.isAlive() && !work.done;
+		}
+		work.session = null;
+		work.args = null;
+		work.result = null;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Return the index of the shard a session belongs to.
+	 * @param session The id of the session.
+	 * @return The index of the shard, from zero to one less than the number of shards.
+	 */
+	public int getShard (String session) {
+		// Mix the high bits of the hash into the low bits, and clear the sign bit
+		int hash = session.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % shards.length;
+	}
+
+	/**
+	 * Stop accepting calls, and wait for the shards to finish checking those already passed to them.
+	 * Any calls passed to a shard after it finished are denied.
+	 * @throws InterruptedException If the current thread is interrupted while waiting.
+	 */
+	public void shutdown () throws InterruptedException {
+		running = false;
+		for (Shard shard : shards) {
+			LockSupport.unpark(shard.thread);
+		}
+		for (Shard shard : shards) {
+			shard.thread.join();
+			shard.deny();
+		}
+	}
+
+	/**
+	 * Return the number of shards.
+	 * @return The number of shards.
+	 */
+	public int getShardCount () {
+		return shards.length;
+	}
+
+	/**
+	 * Return the type errors found in the policy when the monitor was created. Expressions with type
+	 * errors are still enforced, but fail when they're evaluated, denying the calls they're checked for.
+	 * @return A description of each type error, saying where it is, or an empty list if there were none.
+	 */
+	public List<String> getProblems () {
+		return shards[0].policy.getProblems();
+	}
+
+	/**
+	 * Return the number of calls a shard has checked. The count is brought up to date each time the
+	 * shard finishes the calls it took from its queue together.
+	 * @param shard The index of the shard.
+	 * @return The number of calls.
+	 */
+	public long getEvents (int shard) {
+		return shards[shard].events;
+	}
+
+	/**
+	 * Return the number of calls a shard has denied, including those that couldn't be checked.
+	 * @param shard The index of the shard.
+	 * @return The number of denials.
+	 */
+	public long getDenials (int shard) {
+		return shards[shard].denials;
+	}
+
+	/**
+	 * Return the number of calls a shard has denied because they couldn't be checked.
+	 * @param shard The index of the shard.
+	 * @return The number of failures.
+	 */
+	public long getFailures (int shard) {
+		return shards[shard].failures;
+	}
+
+	/**
+	 * Return the number of calls a shard has checked for each second since it started.
+	 * @param shard The index of the shard.
+	 * @return The number of calls per second.
+	 */
+	public double getThroughput (int shard) {
+		long elapsed = System.nanoTime() - shards[shard].started;
+		return (elapsed <= 0) ? 0.0 : (shards[shard].events * 1.0e9) / elapsed;
+	}
+
+	/**
+	 * Return the number of pieces of work waiting in a shard's queue, including those the shard has
+	 * taken but not yet finished with the rest of their batch.
+	 * @param shard The index of the shard.
+	 * @return The number of pieces of work waiting.
+	 */
+	public int getQueueDepth (int shard) {
+		return shards[shard].queue.size();
+	}
+
+	/**
+	 * Return the largest number of pieces of work a shard has found waiting for it when starting a
+	 * batch. This is never more than the capacity of its queue.
+	 * @param shard The index of the shard.
+	 * @return The number of pieces of work.
+	 */
+	public int getPeakQueueDepth (int shard) {
+		return shards[shard].peak;
+	}
+
+	/**
+	 * Return the number of sessions with a security state in a shard.
+	 * @param shard The index of the shard.
+	 * @return The number of sessions.
+	 */
+	public int getSessionCount (int shard) {
+		return shards[shard].count;
+	}
+
+	/**
+	 * Return the number of calls checked by every shard.
+	 * @return The number of calls.
+	 */
+	public long getEvents () {
+		long result = 0;
+		for (int shard = 0; shard < shards.length; shard++) {
+			result += getEvents(shard);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of calls denied by every shard, including those that couldn't be checked.
+	 * @return The number of denials.
+	 */
+	public long getDenials () {
+		long result = 0;
+		for (int shard = 0; shard < shards.length; shard++) {
+			result += getDenials(shard);
+		}
+		return result;
+	}
+
+	/**
+	 * The slot a thread passes its work to a shard in, which it uses again for each piece of work once
+	 * the last has been done. The thread fills in the work and adds the slot to the shard's queue; the
+	 * shard does the work, fills in the results and marks the slot as done, which hands it back.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Completion {
+		/**
+		 * The operation for checking a call.
+		 */
+		static final int CALL = 0;
+		/**
+		 * The operation for ending a session.
+		 */
+		static final int END = 1;
+		/**
+		 * The operation for copying a session's state.
+		 */
+		static final int STATE = 2;
+
+		/**
+		 * The thread the slot belongs to, which waits for the work to be done.
+		 */
+		final Thread waiter;
+		/**
+		 * The shard the session belongs to.
+		 */
+		Shard shard;
+		/**
+		 * The id of the session.
+		 */
+		String session;
+		/**
+		 * What's to be done: CALL, END or STATE.
+		 */
+		int operation;
+		/**
+		 * When the call is being checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+		 */
+		int kind;
+		/**
+		 * The id of the method called, or -1 if no rule names it.
+		 */
+		int method;
+		/**
+		 * The arguments of the call, may be null if there are none.
+		 */
+		Object[] args;
+		/**
+		 * The value returned, for an after call.
+		 */
+		Object result;
+		/**
+		 * The decision made on a call.
+		 */
+		Decision decision;
+		/**
+		 * Whether ending a session found a state to throw away.
+		 */
+		boolean ended;
+		/**
+		 * The copy of a session's state.
+		 */
+		SlotState copy;
+		/**
+		 * Whether the work has been done; writing it publishes the results to the waiting thread.
+		 */
+		volatile boolean done;
+
+		/**
+		 * Create a slot.
+		 * @param waiter The thread the slot belongs to.
+		 */
+		Completion (Thread waiter) {
+			this.waiter = waiter;
+		}
+
+		/**
+		 * Hand the slot back to the waiting thread, with whatever results have been filled in.
+		 */
+		void finish () {
+			done = true;
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * A share of the sessions, along with the thread that checks their calls and everything it uses to
+	 * do so. Only the counts are read by other threads.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private final class Shard implements Runnable {
+		/**
+		 * The layout of the security state of the shard's sessions.
+		 */
+		final StateLayout layout;
+		/**
+		 * The copy of the policy used to check the calls of the shard's sessions.
+		 */
+		final CompiledPolicy policy;
+		/**
+		 * The security state of each session in the shard, by session id.
+		 */
+		final HashMap<String, SlotState> sessions = new HashMap<String, SlotState>();
+		/**
+		 * The work waiting to be done by the shard.
+		 */
+		final CallQueue<Completion> queue;
+		/**
+		 * The thread doing the shard's work.
+		 */
+		Thread thread;
+		/**
+		 * When the shard was created, as given by System.nanoTime().
+		 */
+		final long started = System.nanoTime();
+		/**
+		 * The number of calls checked.
+		 */
+		volatile long events = 0;
+		/**
+		 * The number of calls denied.
+		 */
+		volatile long denials = 0;
+		/**
+		 * The number of calls denied because they couldn't be checked.
+		 */
+		volatile long failures = 0;
+		/**
+		 * The largest number of pieces of work found waiting in the queue.
+		 */
+		volatile int peak = 0;
+		/**
+		 * The number of sessions with a security state.
+		 */
+		volatile int count = 0;
+
+		/**
+		 * Create a shard with no sessions.
+		 * @param layout The layout of the security state of the shard's sessions.
+		 * @param policy The copy of the policy used to check the calls of the shard's sessions.
+		 * @param capacity The number of pieces of work the queue can hold.
+		 */
+		Shard (StateLayout layout, CompiledPolicy policy, int capacity) {
+			this.layout = layout;
+			this.policy = policy;
+			queue = new CallQueue<Completion>(capacity);
+		}
+
+		/**
+		 * Do a piece of work and hand its slot back. If the work throws an exception, that piece of work
+		 * alone fails closed, leaving a call denied and counted as a failure, and the shard carries on
+		 * with the rest of its queue, so one bad call can't cost it its sessions.
+		 * @param work The slot holding the work.
+		 */
+		void perform (Completion work) {
+			try {
+				SlotState state = sessions.get(work.session);
+				switch (work.operation) {
+				case Completion.CALL:
+					if (state == null) {
+						state = layout.createState();
+						sessions.put(work.session, state);
+					}
+					work.decision = policy.dispatch(work.kind, work.method, state, work.args, work.result);
+					break;
+				case Completion.END:
+					work.ended = (sessions.remove(work.session) != null);
+					break;
+				default:
+					work.copy = (state == null) ? null : state.copy();
+					break;
+				}
+			}
+			catch (RuntimeException e) {
+				work.decision = Decision.DENY;
+				work.ended = false;
+				work.copy = null;
+				if (work.operation == Completion.CALL) {
+					policy.countFailure("Checking a call threw " + e);
+				}
+			}
+			finally {
+				// Always hand the slot back, even if an error is about to stop the thread
+				work.finish();
+			}
+		}
+
+		/**
+		 * Deny any work left in the queue once the shard's thread has stopped. Called by the thread that
+		 * stopped the monitor, which takes over as the only thread taking from the queue.
+		 */
+		void deny () {
+			Completion work = queue.poll();
+			while (work != null) {
+				work.finish();
+				work = queue.poll();
+			}
+			queue.release();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run () {
+			while (running || !queue.isEmpty()) {
+				// Take what's waiting, up to a queue's worth, so the counts are published regularly
+				int waiting = queue.waiting();
+				if (waiting > peak) {
+					peak = waiting;
+				}
+				int batch = 0;
+				Completion work = queue.poll();
+				while (work != null) {
+					perform(work);
+					batch++;
+					work = (batch < queue.getCapacity()) ? queue.poll() : null;
+				}
+
+				if (batch > 0) {
+					// Publish the counts once for the whole batch
+					queue.release();
+					events = policy.events;
+					denials = policy.denials;
+					failures = policy.failures;
+					count = sessions.size();
+				}
+				else if (running) {
+					// Park until there's work, or until shutdown() wakes the thread
+					queue.await();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.util.Arrays;
+
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.StateLayout;
+
+/**
+ * Remembers the values the variables of a security state had before a call was checked, so that the
+ * updates made while checking it can be undone if the call is denied. Each variable is saved the
+ * first time it's written, so undoing the updates puts it back to its value from before the call
+ * however many times it was written.
+ * A log isn't thread safe.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+final class UndoLog {
+	/**
+	 * Holds the saved values, in the same slots as the state they were saved from.
+	 */
+	private final SlotState saved;
+	/**
+	 * The slots saved since the log was last cleared.
+	 */
+	private int[] slots = new int[8];
+	/**
+	 * The number of slots saved.
+	 */
+	private int size = 0;
+
+	/**
+	 * Create an empty log.
+	 * @param layout The layout of the states whose updates are logged.
+	 */
+	UndoLog (StateLayout layout) {
+		saved = layout.createState();
+	}
+
+	/**
+	 * Save the value of a variable that's about to be written, unless it's already been saved.
+	 * @param state The state about to be written.
+	 * @param slot The slot of the variable.
+	 */
+	void record (SlotState state, int slot) {
+		boolean found = false;
+		for (int index = 0; (index < size) && !found; index++) {
+			found = (slots[index] == slot);
+		}
+		if (!found) {
+			if (size == slots.length) {
+				slots = Arrays.copyOf(slots, size * 2);
+			}
+			slots[size++] = slot;
+			saved.copySlot(slot, state);
+		}
+	}
+
+	/**
+	 * Put every variable saved back to the value it had when it was saved, and clear the log.
+	 * @param state The state the values were saved from.
+	 */
+	void rollback (SlotState state) {
+		for (int index = 0; index < size; index++) {
+			state.copySlot(slots[index], saved);
+		}
+		clear();
+	}
+
+	/**
+	 * Forget the values saved, keeping the updates made.
+	 */
+	void clear () {
+		size = 0;
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that BoundedArithmetic takes remainders as the other operations are bounded: when wrapping
+ * within a maxint both operands are wrapped first, so the result is in range and a right hand operand
+ * that wraps to zero is a modulus by zero, while saturating, reporting violations or wrapping as Java
+ * longs leave the operands as they are. Also checks that the simplifier keeps a remainder by one
+ * that wraps to zero.
+ * Each check prints whether it passed; the program exits with a status of 1 if any failed.
+ * Run using the test target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class BoundedArithmeticTests {
+	/**
+	 * The names of the checks that failed.
+	 */
+	private final ArrayList<String> failed = new ArrayList<String>();
+	/**
+	 * The number of checks made.
+	 */
+	private int checked = 0;
+
+	/**
+	 * Run every check and report the results.
+	 * @param args Command line arguments, which are ignored.
+	 */
+	public static void main (String[] args) {
+		BoundedArithmeticTests tests = new BoundedArithmeticTests();
+		tests.remaindersWrapTheirOperands();
+		tests.remaindersByZeroFail();
+
+		System.out.println(tests.checked + " checks, " + tests.failed.size() + " failed");
+		if (!tests.failed.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Record the result of a check, printing it.
+	 * @param name What was checked.
+	 * @param passed Whether it passed.
+	 */
+	private void check (String name, boolean passed) {
+		checked++;
+		System.out.println((passed ? "passed  " : "FAILED  ") + name);
+		if (!passed) {
+			failed.add(name);
+		}
+	}
+
+	/**
+	 * Check the remainders taken with each kind of overflow.
+	 */
+	private void remaindersWrapTheirOperands () {
+		BoundedArithmetic wrap = new BoundedArithmetic(9, -1, BoundedArithmetic.Overflow.WRAP);
+		BoundedArithmetic saturate = new BoundedArithmetic(9, -1, BoundedArithmetic.Overflow.SATURATE);
+		BoundedArithmetic violation = new BoundedArithmetic(9, -1, BoundedArithmetic.Overflow.VIOLATION);
+
+		check("15 % 4 is 1 when wrapping with a maxint of 9", wrap.mod(15, 4) == 1);
+		check("15 % 14 is 1 when wrapping with a maxint of 9", wrap.mod(15, 14) == 1);
+		check("A remainder of -1 by 4 is 1 when wrapping with a maxint of 9", wrap.mod(-1, 4) == 1);
+		check("7 % 4 is 3 when wrapping with a maxint of 9", wrap.mod(7, 4) == 3);
+		check("15 % 4 is 3 when saturating with a maxint of 9", saturate.mod(15, 4) == 3);
+		check("15 % 4 is 3 when reporting violations with a maxint of 9", violation.mod(15, 4) == 3);
+		check("A remainder of -7 by 4 is -3 with unchecked arithmetic", BoundedArithmetic.UNCHECKED.mod(-7, 4) == -3);
+	}
+
+	/**
+	 * Check that a right hand operand of zero, or one that wraps to zero, fails.
+	 */
+	private void remaindersByZeroFail () {
+		BoundedArithmetic wrap = new BoundedArithmetic(9, -1, BoundedArithmetic.Overflow.WRAP);
+		BoundedArithmetic saturate = new BoundedArithmetic(9, -1, BoundedArithmetic.Overflow.SATURATE);
+
+		check("15 % 0 fails when wrapping", failsByZero(wrap, 15, 0));
+		check("15 % 10 fails when wrapping with a maxint of 9, since 10 wraps to 0", failsByZero(wrap, 15, 10));
+		check("15 % 20 fails when wrapping with a maxint of 9, since 20 wraps to 0", failsByZero(wrap, 15, 20));
+		check("15 % 10 is 5 when saturating with a maxint of 9", !failsByZero(saturate, 15, 10) && (saturate.mod(15, 10) == 5));
+		check("15 % 0 fails with unchecked arithmetic", failsByZero(BoundedArithmetic.UNCHECKED, 15, 0));
+
+		// With a maxint of zero, every right hand operand wraps to zero, so x % 1 can't be simplified to 0
+		BoundedArithmetic zero = new BoundedArithmetic(0, -1, BoundedArithmetic.Overflow.WRAP);
+		ExprNode remainder = new Expression("x % 1").toNode();
+		check("0 % 1 fails when wrapping with a maxint of 0", failsByZero(zero, 0, 1));
+		check("A well typed 'x % 1' isn't simplified when wrapping with a maxint of 0",
+				new ExpressionSimplifier(zero).simplifyTyped(remainder).equals(remainder));
+	}
+
+	/**
+	 * Take a remainder, and work out whether it fails as a modulus by zero.
+	 * @param arithmetic Takes the remainder.
+	 * @param left The left hand operand.
+	 * @param right The right hand operand.
+	 * @return true if the remainder failed as a modulus by zero.
+	 */
+	private static boolean failsByZero (BoundedArithmetic arithmetic, long left, long right) {
+		boolean result = false;
+		try {
+			arithmetic.mod(left, right);
+		}
+		catch (EvaluationException e) {
+			result = "Modulus by zero".equals(e.getMessage());
+		}
+		return result;
+	}
+}
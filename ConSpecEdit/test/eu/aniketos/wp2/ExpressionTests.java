@@ -0,0 +1,292 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that Expression parses text into the same hierarchies as the original recursive parser,
+ * which are held here as golden results: the precedence and associativity of every operator,
+ * unary operators, brackets, constants, and the values given for malformed expressions, along with
+ * the problems reported for them. Also checks that expressions nested far more deeply than the
+ * original parser could manage are parsed, and that ExpressionPrinter's output of them parses back
+ * into the same hierarchies.
+ * The original parser threw exceptions for some malformed expressions and lost operands of '|';
+ * for those, the results here are those of the current parser.
+ * Each check prints whether it passed; the program exits with a status of 1 if any failed.
+ * Run using the test target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class ExpressionTests {
+	/**
+	 * Expressions and the hierarchies the original parser gave for them, written with every binary operation in brackets.
+	 */
+	private static final String[][] PARSED = {
+		{"a + b * c", "(a + (b * c))"},
+		{"a * b + c", "((a * b) + c)"},
+		{"a - b - c", "((a - b) - c)"},
+		{"a + b - c + d", "(((a + b) - c) + d)"},
+		{"a % b * c", "((a % b) * c)"},
+		{"a+b*c-d%e", "((a + (b * c)) - (d % e))"},
+		{"a == b + 1", "(a == (b + 1))"},
+		{"a < b == c", "(a < (b == c))"},
+		{"a > b && c < d", "((a > b) && (c < d))"},
+		{"a >= b || c <= d", "((a >= b) || (c <= d))"},
+		{"a && b || c", "((a && b) || c)"},
+		{"a || b && c", "((a || b) && c)"},
+		{"a != b && !c", "((a != b) && !c)"},
+		{"a | b && c", "(a | (b && c))"},
+		{"\"x\" | \"y\" | \"z\"", "((\"x\" | \"y\") | \"z\")"},
+		{"!a", "!a"},
+		{"!!a", "!!a"},
+		{"!a == b", "(!a == b)"},
+		{"!a && b", "(!a && b)"},
+		{"!(a && b)", "!(a && b)"},
+		{"a * (b + c)", "(a * (b + c))"},
+		{"(a + b) * c", "((a + b) * c)"},
+		{"( a + b ) * ( c - d )", "((a + b) * (c - d))"},
+		{"((a))", "a"},
+		{"x == \"hello\"", "(x == \"hello\")"},
+		{"count > 10", "(count > 10)"},
+		{"flag == true", "(flag == true)"},
+		{"flag != false", "(flag != false)"},
+		{"a.b.c == 1", "(a.b.c == 1)"},
+		{"0 - 1", "(0 - 1)"},
+		{"2147483647", "2147483647"},
+		{"", "0"}
+	};
+	/**
+	 * Malformed expressions, the hierarchies the original parser gave for them, and whether the problem is an error rather than a warning.
+	 * There's no unary minus, so a negative number has to be written as a difference such as <code>0 - 5</code>.
+	 */
+	private static final String[][] MALFORMED = {
+		{"a +", "(a + )", "error"},
+		{"!", "!", "error"},
+		{"(a", "a", "error"},
+		{"a)", "a", "error"},
+		{"a == (b", "(a == b)", "error"},
+		{"()", "", "error"},
+		{"a && && b", "((a && ) && b)", "error"},
+		{"a +* b", "(a + ( * b))", "error"},
+		{"a & b", "a", "error"},
+		{"a = b", "a", "error"},
+		{"\"abc", "\"abc", "error"},
+		{"-5", "( - 5)", "error"},
+		{"a - -5", "((a - ) - 5)", "error"},
+		{"3000000000", "3000000000", "error"},
+		{"a b", "ab", "warning"}
+	};
+	/**
+	 * How deeply the expressions checked for deep nesting are nested.
+	 */
+	private static final int DEPTH = 100000;
+
+	/**
+	 * The names of the checks that failed.
+	 */
+	private final ArrayList<String> failed = new ArrayList<String>();
+	/**
+	 * The number of checks made.
+	 */
+	private int checked = 0;
+
+	/**
+	 * Run every check and report the results.
+	 * @param args Command line arguments, which are ignored.
+	 */
+	public static void main (String[] args) {
+		ExpressionTests tests = new ExpressionTests();
+		tests.parsesLikeTheOriginal();
+		tests.malformedLikeTheOriginal();
+		tests.deepNestingIsParsed();
+		tests.printedExpressionsParseBack();
+
+		System.out.println(tests.checked + " checks, " + tests.failed.size() + " failed");
+		if (!tests.failed.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Record the result of a check, printing it.
+	 * @param name What was checked.
+	 * @param passed Whether it passed.
+	 */
+	private void check (String name, boolean passed) {
+		checked++;
+		System.out.println((passed ? "passed  " : "FAILED  ") + name);
+		if (!passed) {
+			failed.add(name);
+		}
+	}
+
+	/**
+	 * Write out an expression with every binary operation in brackets, so that its structure can be compared.
+	 * Identifiers are written as their names, so an empty identifier is written as nothing.
+	 * @param root The expression.
+	 * @return The expression as text.
+	 */
+	static String bracketed (ExprNode root) {
+		StringBuilder result = new StringBuilder();
+		ArrayList<Object> pending = new ArrayList<Object>();
+		pending.add(root);
+		while (!pending.isEmpty()) {
+			Object item = pending.remove(pending.size() - 1);
+			if (item instanceof String) {
+				result.append((String)item);
+			}
+			else if (item instanceof ExprNode.BinaryOperation) {
+				ExprNode.BinaryOperation binary = (ExprNode.BinaryOperation)item;
+				pending.add(")");
+				pending.add(binary.getRight());
+				pending.add(" " + binary.getKind().getSymbol() + " ");
+				pending.add(binary.getLeft());
+				pending.add("(");
+			}
+			else if (item instanceof ExprNode.UnaryOperation) {
+				pending.add(((ExprNode.UnaryOperation)item).getOperand());
+				pending.add("!");
+			}
+			else if (item instanceof ExprNode.StringConstant) {
+				result.append('"').append(((ExprNode.StringConstant)item).getValue()).append('"');
+			}
+			else if (item instanceof ExprNode.Identifier) {
+				result.append(((ExprNode.Identifier)item).getName());
+			}
+			else if (item instanceof ExprNode.IntConstant) {
+				result.append(((ExprNode.IntConstant)item).getValue());
+			}
+			else if (item instanceof ExprNode.BoolConstant) {
+				result.append(((ExprNode.BoolConstant)item).getValue());
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Check that well formed expressions are parsed into the same hierarchies as the original parser gave,
+	 * without any problems being reported.
+	 */
+	private void parsesLikeTheOriginal () {
+		for (String[] test : PARSED) {
+			ExpressionParseResult result = Expression.check(test[0]);
+			check("'" + test[0] + "' parses as " + test[1], bracketed(new Expression(test[0]).toNode()).equals(test[1])
+					&& result.getDiagnostics().isEmpty() && bracketed(ExprNode.fromElement(result.getValue())).equals(test[1]));
+		}
+	}
+
+	/**
+	 * Check that malformed expressions are given the same values as the original parser gave, and that
+	 * a problem is reported for each of them.
+	 */
+	private void malformedLikeTheOriginal () {
+		for (String[] test : MALFORMED) {
+			ExpressionParseResult result = Expression.check(test[0]);
+			boolean error = test[2].equals("error");
+			check("'" + test[0] + "' parses as '" + test[1] + "' with " + (error ? "an error" : "a warning"),
+					bracketed(new Expression(test[0]).toNode()).equals(test[1]) && !result.getDiagnostics().isEmpty() && (result.hasErrors() == error));
+		}
+	}
+
+	/**
+	 * Check that deeply nested brackets, unary operators and chains of operators are parsed, and
+	 * into the right hierarchies.
+	 */
+	private void deepNestingIsParsed () {
+		StringBuilder brackets = new StringBuilder();
+		StringBuilder nots = new StringBuilder();
+		StringBuilder right = new StringBuilder();
+		StringBuilder left = new StringBuilder();
+		for (int index = 0; index < DEPTH; index++) {
+			brackets.append('(');
+			nots.append('!');
+			right.append("a-(");
+			left.append("a-");
+		}
+		brackets.append('a');
+		nots.append('a');
+		right.append('a');
+		left.append('a');
+		for (int index = 0; index < DEPTH; index++) {
+			brackets.append(')');
+			right.append(')');
+		}
+
+		check(DEPTH + " nested brackets parse", !Expression.check(brackets.toString()).hasErrors()
+				&& bracketed(new Expression(brackets.toString()).toNode()).equals("a"));
+		check(DEPTH + " nested '!' operators parse", !Expression.check(nots.toString()).hasErrors()
+				&& (depth(new Expression(nots.toString()).toNode()) == DEPTH + 1));
+		check(DEPTH + " nested bracketed differences parse", !Expression.check(right.toString()).hasErrors()
+				&& (depth(new Expression(right.toString()).toNode()) == DEPTH + 1)
+				&& (((ExprNode.BinaryOperation)new Expression(right.toString()).toNode()).getRight() instanceof ExprNode.BinaryOperation));
+		check("A chain of " + DEPTH + " differences parses", !Expression.check(left.toString()).hasErrors()
+				&& (depth(new Expression(left.toString()).toNode()) == DEPTH + 1)
+				&& (((ExprNode.BinaryOperation)new Expression(left.toString()).toNode()).getLeft() instanceof ExprNode.BinaryOperation));
+	}
+
+	/**
+	 * Check that the printed form of each well formed expression, with its brackets reduced to those
+	 * the precedence of its operators needs, parses back into the same hierarchy.
+	 */
+	private void printedExpressionsParseBack () {
+		for (String[] test : PARSED) {
+			String printed = new Expression(test[0]).toString();
+			ExpressionParseResult result = Expression.check(printed);
+			check("'" + test[0] + "' is printed as '" + printed + "', which parses back", !result.hasErrors()
+					&& bracketed(ExprNode.fromElement(result.getValue())).equals(test[1]));
+		}
+		// Alternate the operators so that the printer has to keep every bracket
+		StringBuilder brackets = new StringBuilder();
+		for (int index = 0; index < DEPTH; index++) {
+			brackets.append((index % 2 == 0) ? "b*(" : "c-(");
+		}
+		brackets.append('a');
+		for (int index = 0; index < DEPTH; index++) {
+			brackets.append(')');
+		}
+		Expression nested = new Expression(brackets.toString());
+		check(DEPTH + " nested brackets are printed and parse back", bracketed(new Expression(nested.toString()).toNode()).equals(bracketed(nested.toNode())));
+	}
+
+	/**
+	 * Work out the depth of an expression.
+	 * @param root The expression.
+	 * @return The number of nodes on the longest path from the root to a leaf.
+	 */
+	private static int depth (ExprNode root) {
+		int result = 0;
+		ArrayList<ExprNode> nodes = new ArrayList<ExprNode>();
+		ArrayList<Integer> depths = new ArrayList<Integer>();
+		nodes.add(root);
+		depths.add(1);
+		while (!nodes.isEmpty()) {
+			ExprNode node = nodes.remove(nodes.size() - 1);
+			int level = depths.remove(depths.size() - 1);
+			result = Math.max(result, level);
+			for (int index = 0; index < node.getChildCount(); index++) {
+				nodes.add(node.getChild(index));
+				depths.add(level + 1);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a GuardProfile can be saved and loaded again, including guards that invoke methods and
+ * compare against strings holding spaces, quotes and escapes, and that lines of a saved profile that
+ * can't be read are reported and skipped without losing the rest of the profile.
+ * Each check prints whether it passed; the program exits with a status of 1 if any failed.
+ * Run using the test target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class GuardProfileTests {
+	/**
+	 * The names of the checks that failed.
+	 */
+	private final ArrayList<String> failed = new ArrayList<String>();
+	/**
+	 * The number of checks made.
+	 */
+	private int checked = 0;
+
+	/**
+	 * Run every check and report the results.
+	 * @param args Command line arguments, which are ignored.
+	 * @throws IOException If a profile can't be written or read.
+	 */
+	public static void main (String[] args) throws IOException {
+		GuardProfileTests tests = new GuardProfileTests();
+		tests.profileSurvivesSaveAndLoad();
+		tests.unreadableLinesAreSkipped();
+
+		System.out.println(tests.checked + " checks, " + tests.failed.size() + " failed");
+		if (!tests.failed.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Record the result of a check, printing it.
+	 * @param name What was checked.
+	 * @param passed Whether it passed.
+	 */
+	private void check (String name, boolean passed) {
+		checked++;
+		System.out.println((passed ? "passed  " : "FAILED  ") + name);
+		if (!passed) {
+			failed.add(name);
+		}
+	}
+
+	/**
+	 * Create the guard <code>host != "a \"b\"\\\tc" &amp;&amp; java.lang.String.equals(host, last) &amp;&amp; (count &gt; -3 || !debug)</code>.
+	 * @return The guard.
+	 */
+	private static ExprNode createGuard () {
+		ExprNode host = new ExprNode.BinaryOperation(NodeKind.NOTEQUAL, new ExprNode.Identifier("host"), new ExprNode.StringConstant("a \"b\"\\\tc"));
+		ExprNode invocation = new ExprNode.Invocation(new String[] {"java.lang.String.equals", "host"}, new ExprNode[] {new ExprNode.Identifier("last")});
+		ExprNode count = new ExprNode.BinaryOperation(NodeKind.MORETHAN, new ExprNode.Identifier("count"), new ExprNode.IntConstant(-3));
+		ExprNode either = new ExprNode.BinaryOperation(NodeKind.OR, count, new ExprNode.UnaryOperation(NodeKind.NOT, new ExprNode.Identifier("debug")));
+		ExprNode first = new ExprNode.BinaryOperation(NodeKind.AND, host, invocation);
+		return new ExprNode.BinaryOperation(NodeKind.AND, first, either);
+	}
+
+	/**
+	 * Create a profile of the guard, evaluated for a few different states.
+	 * @param guard The guard.
+	 * @return The profile.
+	 */
+	private static GuardProfile createProfile (ExprNode guard) {
+		ExpressionEvaluator evaluator = new ExpressionEvaluator();
+		GuardProfile profile = new GuardProfile();
+		String[] hosts = {"a", "b", "a \"b\"\\\tc", "c", "a", "a"};
+		for (int index = 0; index < hosts.length; index++) {
+			Bindings state = new Bindings();
+			state.define("last", ValueType.STRING).setString("a");
+			state.define("count", ValueType.INT).setInt(index - 4);
+			state.define("debug", ValueType.BOOL).setBool(index == 3);
+			Bindings parameters = new Bindings();
+			parameters.define("host", ValueType.STRING).setString(hosts[index]);
+			profile.evaluateGuard(evaluator, guard, state, parameters);
+		}
+		return profile;
+	}
+
+	/**
+	 * Check whether two sets of statistics are the same.
+	 * @param first The first statistics, may be null.
+	 * @param second The second statistics, may be null.
+	 * @return true if both are present and hold the same counts.
+	 */
+	private static boolean same (GuardProfile.Stats first, GuardProfile.Stats second) {
+		return (first != null) && (second != null) && (first.getRuns() == second.getRuns()) && (first.getHolds() == second.getHolds())
+				&& (first.getFailures() == second.getFailures()) && (first.getNanos() == second.getNanos());
+	}
+
+	/**
+	 * Check that every subexpression of a profiled guard, including an invocation, keeps its statistics
+	 * when the profile is saved and loaded again.
+	 * @throws IOException If the profile can't be written or read.
+	 */
+	private void profileSurvivesSaveAndLoad () throws IOException {
+		ExprNode guard = createGuard();
+		GuardProfile profile = createProfile(guard);
+		StringWriter out = new StringWriter();
+		profile.save(out);
+		GuardProfile loaded = new GuardProfile();
+		List<String> problems = loaded.load(new StringReader(out.toString()));
+		check("A saved profile loads without problems", problems.isEmpty());
+		check("A loaded profile has every subexpression", loaded.getSize() == profile.getSize());
+
+		// Walk the guard, since its subexpressions are the ones with statistics
+		boolean matched = true;
+		ArrayList<ExprNode> pending = new ArrayList<ExprNode>();
+		pending.add(guard);
+		while (!pending.isEmpty()) {
+			ExprNode node = pending.remove(pending.size() - 1);
+			if (profile.getStats(node) != null) {
+				matched = matched && same(profile.getStats(node), loaded.getStats(node));
+			}
+			for (int index = 0; index < node.getChildCount(); index++) {
+				pending.add(node.getChild(index));
+			}
+		}
+		ExprNode invocation = ((ExprNode.BinaryOperation)((ExprNode.BinaryOperation)guard).getLeft()).getRight();
+		check("A loaded profile has the same statistics", matched);
+		check("A loaded profile has the statistics of an invocation", same(profile.getStats(invocation), loaded.getStats(invocation)));
+	}
+
+	/**
+	 * Check that lines of a profile that can't be read are each reported, and that the other lines are still loaded.
+	 * @throws IOException If the profile can't be written or read.
+	 */
+	private void unreadableLinesAreSkipped () throws IOException {
+		ExprNode guard = createGuard();
+		StringWriter out = new StringWriter();
+		createProfile(guard).save(out);
+		String text = "# A comment\n"
+				+ "1 2 3\tidentifier:\"x\"\n"
+				+ "1 2 3 x\tidentifier:\"x\"\n"
+				+ "1 1 0 5\tidentifier:\"x\" identifier:\"y\"\n"
+				+ "1 1 0 5\tidentifier:\"x\" and\n"
+				+ "1 1 0 5\tsconst:\"unclosed\n"
+				+ "1 1 0 5\tinvocation:2:\"java.lang.String.equals\" identifier:\"x\"\n"
+				+ "1 1 0 5\tjava.lang.String.equals(host, last)\n"
+				+ "\n"
+				+ out.toString();
+		GuardProfile loaded = new GuardProfile();
+		List<String> problems = loaded.load(new StringReader(text));
+		check("Each unreadable line of a profile is reported", problems.size() == 7);
+		check("The rest of a profile is loaded past unreadable lines", (loaded.getStats(guard) != null) && (loaded.getStats(guard).getRuns() == 6));
+	}
+}
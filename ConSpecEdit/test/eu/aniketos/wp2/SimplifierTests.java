@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that ExpressionSimplifier folds integer arithmetic within the policy's bounds, or anywhere in
+ * the range of a long when there's no maxint, and joins strings within maxlen, or of any length when
+ * there's no maxlen. Also checks that expressions that haven't been type checked keep the operations
+ * that would fail when they're evaluated, while well typed expressions lose their identities.
+ * Each check prints whether it passed; the program exits with a status of 1 if any failed.
+ * Run using the test target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class SimplifierTests {
+	/**
+	 * The names of the checks that failed.
+	 */
+	private final ArrayList<String> failed = new ArrayList<String>();
+	/**
+	 * The number of checks made.
+	 */
+	private int checked = 0;
+
+	/**
+	 * Run every check and report the results.
+	 * @param args Command line arguments, which are ignored.
+	 */
+	public static void main (String[] args) {
+		SimplifierTests tests = new SimplifierTests();
+		tests.foldsWithinBounds();
+		tests.keepsFailures();
+
+		System.out.println(tests.checked + " checks, " + tests.failed.size() + " failed");
+		if (!tests.failed.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Record the result of a check, printing it.
+	 * @param name What was checked.
+	 * @param passed Whether it passed.
+	 */
+	private void check (String name, boolean passed) {
+		checked++;
+		System.out.println((passed ? "passed  " : "FAILED  ") + name);
+		if (!passed) {
+			failed.add(name);
+		}
+	}
+
+	/**
+	 * Check the folding of integers and strings with and without bounds.
+	 */
+	private void foldsWithinBounds () {
+		ExprNode sum = parse("7 * 4 + 10");
+		ExprNode joined = parse("\"a\" | \"b\"");
+		ExpressionSimplifier unbounded = new ExpressionSimplifier(-1, -1);
+		ExpressionSimplifier unchecked = new ExpressionSimplifier(BoundedArithmetic.UNCHECKED);
+		ExpressionSimplifier bounded = new ExpressionSimplifier(1024, 1);
+		ExpressionSimplifier tight = new ExpressionSimplifier(30, 0);
+
+		check("'7 * 4 + 10' is folded without a maxint", unbounded.simplify(sum).equals(new ExprNode.IntConstant(38)));
+		check("'7 * 4 + 10' is folded with unchecked arithmetic", unchecked.simplify(sum).equals(new ExprNode.IntConstant(38)));
+		check("'7 * 4 + 10' is folded with a maxint of 1024", bounded.simplify(sum).equals(new ExprNode.IntConstant(38)));
+		check("'7 * 4 + 10' is only folded as far as a maxint of 30 allows", tight.simplify(sum).equals(parse("28 + 10")));
+
+		// The parser doesn't read constants this large, so the expressions are built as trees
+		ExprNode large = new ExprNode.BinaryOperation(NodeKind.SUM, new ExprNode.IntConstant(Long.MAX_VALUE - 1), new ExprNode.IntConstant(1));
+		ExprNode overflowing = new ExprNode.BinaryOperation(NodeKind.SUM, new ExprNode.IntConstant(Long.MAX_VALUE), new ExprNode.IntConstant(1));
+		check("Sums up to the largest long are folded without a maxint", unbounded.simplify(large).equals(new ExprNode.IntConstant(Long.MAX_VALUE)));
+		check("Sums that don't fit in a long are left alone", unbounded.simplify(overflowing) == overflowing);
+		check("Constants above maxint are left alone", bounded.simplify(large) == large);
+
+		check("Strings are joined without a maxlen", unbounded.simplify(joined).equals(new ExprNode.StringConstant("ab")));
+		check("Strings are joined with unchecked arithmetic", unchecked.simplify(joined).equals(new ExprNode.StringConstant("ab")));
+		check("Strings longer than maxlen aren't joined", bounded.simplify(joined) == joined);
+	}
+
+	/**
+	 * Check that operations that may fail are only removed from expressions known to be well typed,
+	 * and that an evaluator simplifying a guard with an unbound variable still fails.
+	 */
+	private void keepsFailures () {
+		ExpressionSimplifier simplifier = new ExpressionSimplifier(BoundedArithmetic.UNCHECKED);
+		String[] kept = {"x && false", "x || true", "true && x", "false || x", "x && true", "!!x", "x + 0", "x * 0", "x % 1", "s | \"\""};
+		for (String text : kept) {
+			ExprNode node = parse(text);
+			check("'" + text + "' is kept unless it's type checked", simplifier.simplify(node) == node);
+		}
+		check("'false && x' loses the unevaluated x", simplifier.simplify(parse("false && x")).equals(ExprNode.BoolConstant.FALSE));
+		check("'true || x' loses the unevaluated x", simplifier.simplify(parse("true || x")).equals(ExprNode.BoolConstant.TRUE));
+
+		check("A well typed 'x && false' is simplified", simplifier.simplifyTyped(parse("x && false")).equals(ExprNode.BoolConstant.FALSE));
+		check("A well typed 'true && x' is simplified", simplifier.simplifyTyped(parse("true && x")).equals(parse("x")));
+		check("A well typed 'x + 0' is simplified", simplifier.simplifyTyped(parse("x + 0")).equals(parse("x")));
+		check("A well typed 'x % 1' is simplified", simplifier.simplifyTyped(parse("x % 1")).equals(new ExprNode.IntConstant(0)));
+		check("A well typed '(x % y) * 0' keeps its '%'", simplifier.simplifyTyped(parse("(x % y) * 0")).equals(parse("(x % y) * 0")));
+
+		ExpressionEvaluator evaluator = new ExpressionEvaluator(new ExpressionSimplifier(BoundedArithmetic.UNCHECKED));
+		boolean failed = false;
+		try {
+			evaluator.evaluateGuard(evaluator.prepare(new Expression("x && false").getValue()), new Bindings(), null);
+		}
+		catch (EvaluationException e) {
+			failed = true;
+		}
+		check("An evaluator simplifying 'x && false' still fails when x isn't bound", failed);
+	}
+
+	/**
+	 * Parse an expression.
+	 * @param text The expression.
+	 * @return The root of the expression.
+	 */
+	private static ExprNode parse (String text) {
+		return new Expression(text).toNode();
+	}
+}
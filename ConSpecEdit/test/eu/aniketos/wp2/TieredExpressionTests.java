@@ -0,0 +1,282 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package eu.aniketos.wp2;
+
+import java.util.ArrayList;
+
+import eu.aniketos.DeclType;
+import eu.aniketos.Specification;
+import eu.aniketos.StateType;
+
+/**
+ * Checks that a TieredExpression compiled into a method handle tree on first use gives the same
+ * results, and fails in the same way, as the ExpressionMachine running the same program: for
+ * operations that overflow when overflows are violations, remainders by zero, comparisons of bools
+ * and strings, and the short circuits of && and ||, both against bindings and against a state held in
+ * slots whose expressions read the parameters of a call by name.
+ * Each check prints whether it passed; the program exits with a status of 1 if any failed.
+ * Run using the test target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class TieredExpressionTests {
+	/**
+	 * The names of the checks that failed.
+	 */
+	private final ArrayList<String> failed = new ArrayList<String>();
+	/**
+	 * The number of checks made.
+	 */
+	private int checked = 0;
+
+	/**
+	 * Run every check and report the results.
+	 * @param args Command line arguments, which are ignored.
+	 */
+	public static void main (String[] args) {
+		TieredExpressionTests tests = new TieredExpressionTests();
+		tests.arithmeticMatches();
+		tests.comparisonsMatch();
+		tests.shortCircuitsMatch();
+		tests.slotsMatch();
+
+		System.out.println(tests.checked + " checks, " + tests.failed.size() + " failed");
+		if (!tests.failed.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Record the result of a check, printing it.
+	 * @param name What was checked.
+	 * @param passed Whether it passed.
+	 */
+	private void check (String name, boolean passed) {
+		checked++;
+		System.out.println((passed ? "passed  " : "FAILED  ") + name);
+		if (!passed) {
+			failed.add(name);
+		}
+	}
+
+	/**
+	 * Check integer and string values that overflow, saturate, wrap or take a remainder by zero.
+	 */
+	private void arithmeticMatches () {
+		BoundedArithmetic violation = new BoundedArithmetic(1000, 4, BoundedArithmetic.Overflow.VIOLATION);
+		BoundedArithmetic saturate = new BoundedArithmetic(1000, 4, BoundedArithmetic.Overflow.SATURATE);
+		BoundedArithmetic wrap = new BoundedArithmetic(1000, 4, BoundedArithmetic.Overflow.WRAP);
+		BoundedArithmetic unbounded = new BoundedArithmetic(-1, -1, BoundedArithmetic.Overflow.VIOLATION);
+		Bindings state = new Bindings();
+		state.define("result", ValueType.INT);
+		state.define("text", ValueType.STRING);
+		Bindings parameters = new Bindings();
+		parameters.setInt("x", 600);
+		parameters.setInt("zero", 0);
+		parameters.setInt("big", 1L << 40);
+		parameters.setString("name", "abc");
+
+		String[] values = {"x + 1", "x + x", "x * 2 - x", "x - 700", "x % 7", "x % zero", "(x + x) % zero"};
+		for (String value : values) {
+			compareValue(value, "result", violation, state, parameters);
+			compareValue(value, "result", saturate, state, parameters);
+			compareValue(value, "result", wrap, state, parameters);
+		}
+		compareValue("big * big", "result", unbounded, state, parameters);
+		compareValue("big * 2", "result", unbounded, state, parameters);
+		compareValue("name | name", "text", violation, state, parameters);
+		compareValue("name | name", "text", saturate, state, parameters);
+	}
+
+	/**
+	 * Check comparisons of bools and strings, including strings that are equal but aren't the same object.
+	 */
+	private void comparisonsMatch () {
+		Bindings state = new Bindings();
+		state.setBool("flag", true);
+		state.setString("last", new String("abc"));
+		Bindings parameters = new Bindings();
+		parameters.setBool("other", false);
+		parameters.setString("name", new String("abc"));
+		parameters.setString("host", "www.aniketos.eu");
+
+		String[] guards = {"flag == true", "flag != other", "flag == other", "!flag != other", "name == last", "name != last",
+				"host == last", "host != last", "name == \"abc\"", "\"abc\" != last", "(flag == other) == (name == host)"};
+		for (String guard : guards) {
+			compareGuard(guard, BoundedArithmetic.UNCHECKED, state, parameters);
+		}
+	}
+
+	/**
+	 * Check that the right hand side of && and || is only evaluated when it decides the result, so
+	 * that an operation on it that would fail only fails when it's reached.
+	 */
+	private void shortCircuitsMatch () {
+		BoundedArithmetic violation = new BoundedArithmetic(1000, 4, BoundedArithmetic.Overflow.VIOLATION);
+		Bindings state = new Bindings();
+		state.setInt("x", 600);
+		Bindings parameters = new Bindings();
+		parameters.setInt("zero", 0);
+		parameters.setBool("yes", true);
+
+		String[] guards = {"x > 1000 && x % zero == 0", "x < 1000 && x % zero == 0", "x < 1000 || x + x > 0", "x > 1000 || x + x > 0",
+				"!yes && x * x > 0", "yes || x * x > 0", "(yes && x > 0) || x % zero == 0", "(x > 0 && !yes) || x + 1 > 0"};
+		for (String guard : guards) {
+			compareGuard(guard, violation, state, parameters);
+		}
+	}
+
+	/**
+	 * Check guards compiled against a layout, which read the security state from slots and the
+	 * parameters by name, including a parameter hiding a state variable of the same name. Each guard
+	 * is run against two states, so that the variables the compiled guard holds on to are used again.
+	 */
+	private void slotsMatch () {
+		Specification spec = new Specification();
+		spec.setSecuritystate(new StateType());
+		declare(spec, "int", "buffer_size");
+		declare(spec, "string", "last");
+		declare(spec, "int", "moves");
+		declare(spec, "bool", "open");
+		StateLayout layout = StateLayout.forSpecification(spec);
+		BoundedArithmetic violation = new BoundedArithmetic(1000, 8, BoundedArithmetic.Overflow.VIOLATION);
+		SlotState first = layout.createState();
+		first.setInt("buffer_size", 600);
+		first.setString("last", new String("www.aniketos.eu"));
+		SlotState second = layout.createState();
+		second.setInt("buffer_size", 100);
+		second.setBool("open", true);
+		Bindings parameters = new Bindings();
+		parameters.setInt("len", 5);
+		parameters.setString("host", "www.aniketos.eu");
+		parameters.setInt("port", 443);
+		parameters.setInt("moves", 3);
+		parameters.setInt("zero", 0);
+
+		String[] guards = {"buffer_size + len <= 1000", "host == last && port == 443", "last == \"\"", "moves == 3", "open || buffer_size > 500",
+				"buffer_size * len > 0", "len % zero == 0", "open && len % zero == 0", "(last | host) != host"};
+		for (String guard : guards) {
+			ExpressionMachine machine = new ExpressionMachine();
+			machine.setArithmetic(violation);
+			CompiledExpression program = new ExpressionCompiler(null, layout).compile(new Expression(guard).toNode(), parameters);
+			TieredExpression tier = new TieredExpression(program, 0);
+			boolean same = true;
+			for (SlotState state : new SlotState[] {first, second}) {
+				String expected;
+				try {
+					expected = String.valueOf(machine.evaluateGuard(program, state, parameters));
+				}
+				catch (EvaluationException e) {
+					expected = "failed: " + e.getMessage();
+				}
+				String result;
+				try {
+					result = String.valueOf(tier.evaluateGuard(machine, state, parameters));
+				}
+				catch (EvaluationException e) {
+					result = "failed: " + e.getMessage();
+				}
+				same = same && result.equals(expected);
+			}
+			check("'" + guard + "' against slots gives the same results when compiled",
+					same && tier.isCompiled() && (tier.getFallbacks() == 0));
+		}
+	}
+
+	/**
+	 * Run a guard on the machine, and as a tiered expression compiled on first use, and check that
+	 * both give the same result or fail with the same message.
+	 * @param guard The guard.
+	 * @param arithmetic Carries out the integer and string operations.
+	 * @param state The security state.
+	 * @param parameters The parameters of the call.
+	 */
+	private void compareGuard (String guard, BoundedArithmetic arithmetic, Bindings state, Bindings parameters) {
+		ExpressionMachine machine = new ExpressionMachine();
+		machine.setArithmetic(arithmetic);
+		CompiledExpression program = new ExpressionCompiler().compile(new Expression(guard).toNode(), parameters);
+		TieredExpression tier = new TieredExpression(program, 0);
+		String expected;
+		try {
+			expected = String.valueOf(machine.evaluateGuard(program, state, parameters));
+		}
+		catch (EvaluationException e) {
+			expected = "failed: " + e.getMessage();
+		}
+		String result;
+		try {
+			result = String.valueOf(tier.evaluateGuard(machine, state, parameters));
+		}
+		catch (EvaluationException e) {
+			result = "failed: " + e.getMessage();
+		}
+		check("'" + guard + "' with " + arithmetic.getOverflow() + " gives " + expected + " when compiled",
+				result.equals(expected) && tier.isCompiled() && (tier.getFallbacks() == 0));
+	}
+
+	/**
+	 * Assign a value using the machine, and using a tiered expression compiled on first use, each to
+	 * its own copy of the state, and check that both assign the same value or fail with the same message.
+	 * @param value The value.
+	 * @param identifier The variable of the state to assign to.
+	 * @param arithmetic Carries out the integer and string operations.
+	 * @param state The security state, which isn't changed.
+	 * @param parameters The parameters of the call.
+	 */
+	private void compareValue (String value, String identifier, BoundedArithmetic arithmetic, Bindings state, Bindings parameters) {
+		ExpressionMachine machine = new ExpressionMachine();
+		machine.setArithmetic(arithmetic);
+		CompiledExpression program = new ExpressionCompiler().compile(new Expression(value).toNode(), parameters);
+		TieredExpression tier = new TieredExpression(program, 0);
+		Bindings machineState = state.copy();
+		Bindings tierState = state.copy();
+		String expected;
+		try {
+			machine.assign(identifier, program, machineState, parameters);
+			expected = String.valueOf(machineState.lookup(identifier));
+		}
+		catch (EvaluationException e) {
+			expected = "failed: " + e.getMessage();
+		}
+		String result;
+		try {
+			tier.assign(identifier, machine, tierState, parameters);
+			result = String.valueOf(tierState.lookup(identifier));
+		}
+		catch (EvaluationException e) {
+			result = "failed: " + e.getMessage();
+		}
+		check("'" + value + "' with " + arithmetic.getOverflow() + " gives " + expected + " when compiled",
+				result.equals(expected) && tier.isCompiled() && (tier.getFallbacks() == 0));
+	}
+
+	/**
+	 * Declare a variable of the security state.
+	 * @param spec The policy.
+	 * @param type The type of the variable.
+	 * @param identifier The name of the variable.
+	 */
+	private static void declare (Specification spec, String type, String identifier) {
+		DeclType declaration = new DeclType();
+		declaration.setType(type);
+		declaration.setIdentifier(identifier);
+		spec.getSecuritystate().getDeclaration().add(declaration);
+	}
+}
@@ -0,0 +1,1126 @@
+/**
+ * Copyright 2012  David Llewellyn-Jones <D.Llewellyn-Jones@ljmu.ac.uk>
+ * Liverpool John Moores University <http://www.ljmu.ac.uk/cmp/>
+ * Aniketos Project <http://www.aniketos.eu>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.aniketos.wp2.monitor;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.aniketos.AfterType;
+import eu.aniketos.AssignType;
+import eu.aniketos.DeclType;
+import eu.aniketos.ObjectFactory;
+import eu.aniketos.ParameterType;
+import eu.aniketos.PerformType;
+import eu.aniketos.ReactionType;
+import eu.aniketos.RuleType;
+import eu.aniketos.Specification;
+import eu.aniketos.StateType;
+import eu.aniketos.UpdateType;
+import eu.aniketos.WhenType;
+import eu.aniketos.wp2.BoundedArithmetic;
+import eu.aniketos.wp2.ExprNode;
+import eu.aniketos.wp2.Expression;
+import eu.aniketos.wp2.ExpressionInterner;
+import eu.aniketos.wp2.InvocationResolver;
+import eu.aniketos.wp2.NodeKind;
+import eu.aniketos.wp2.SlotState;
+import eu.aniketos.wp2.TieredExpression;
+import eu.aniketos.wp2.TypeChecker;
+
+/**
+ * Checks that SessionMonitor, GlobalMonitor and ShardedMonitor make the same decisions and leave the
+ * same security states as a Monitor given the same calls, when the calls of each session are made
+ * from many threads at once. Also checks that calls that can't be checked are denied, that a denied
+ * call leaves no updates behind, that GlobalMonitor checks a call again when another thread publishes
+ * a state first, that sessions are kept apart whichever stripe or shard they're routed to, and that
+ * the expressions of a compiled policy share their common subexpressions.
+ * Each check prints whether it passed; the program exits with a status of 1 if any failed.
+ * Run using the test target of the ant build file.
+ * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+ *
+ */
+public class MonitorTests {
+	/**
+	 * The method whose calls add to the buffer.
+	 */
+	private static final String WRITE = "java.io.OutputStream.write";
+	/**
+	 * The method whose results empty the buffer.
+	 */
+	private static final String FLUSH = "java.io.OutputStream.flush";
+	/**
+	 * The method only the first host connected to may be passed again.
+	 */
+	private static final String CONNECT = "java.net.Socket.<init>";
+	/**
+	 * The method whose rule writes two variables, the second of which can overflow.
+	 */
+	private static final String MOVE = "example.Buffer.move";
+	/**
+	 * The method with two rules, the second of which reads its argument as a string.
+	 */
+	private static final String RECORD = "example.Log.record";
+	/**
+	 * The method whose rule invokes interleave(), for checking conflicts.
+	 */
+	private static final String COUNT = "example.Counter.count";
+	/**
+	 * The method invoked by the guard of the count rule.
+	 */
+	private static final String INTERLEAVE = "eu.aniketos.wp2.monitor.MonitorTests.interleave";
+	/**
+	 * The largest integer the policy allows.
+	 */
+	private static final int MAXINT = 1024;
+	/**
+	 * The number of sessions in the traces.
+	 */
+	private static final int SESSIONS = 64;
+	/**
+	 * The number of calls in the traces.
+	 */
+	private static final int CALLS = 20000;
+	/**
+	 * The number of threads the calls are made from.
+	 */
+	private static final int THREADS = 4;
+
+	/**
+	 * The thread whose next call to interleave() waits for another thread to publish a state.
+	 */
+	private static volatile Thread paused = null;
+	/**
+	 * Counted down by the paused thread once it's started checking its call.
+	 */
+	private static CountDownLatch started;
+	/**
+	 * Counted down once another thread has published a state.
+	 */
+	private static CountDownLatch published;
+
+	/**
+	 * The names of the checks that failed.
+	 */
+	private final ArrayList<String> failed = new ArrayList<String>();
+	/**
+	 * The number of checks made.
+	 */
+	private int checked = 0;
+
+	/**
+	 * Run every check and report the results.
+	 * @param args Command line arguments, which are ignored.
+	 * @throws InterruptedException If the program is interrupted while waiting for a thread.
+	 */
+	public static void main (String[] args) throws InterruptedException {
+		MonitorTests tests = new MonitorTests();
+		tests.sessionMonitorMatchesMonitor();
+		tests.compiledGuardsMatchTheMachine();
+		tests.shardedMonitorMatchesMonitor();
+		tests.globalMonitorMatchesMonitor();
+		tests.failuresAreDenied();
+		tests.deniedUpdatesAreUndone();
+		tests.exceptionsAreDenied();
+		tests.simplifiedGuardsStillFail();
+		tests.policySubexpressionsAreShared();
+		tests.globalMonitorRetriesConflicts();
+		tests.globalMonitorCountsEveryThread();
+		tests.sessionsAreKeptApart();
+		tests.shardsCountTheirSessions();
+		tests.queueLosesNothing();
+
+		System.out.println(tests.checked + " checks, " + tests.failed.size() + " failed");
+		if (!tests.failed.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Record the result of a check, printing it.
+	 * @param name What was checked.
+	 * @param passed Whether it passed.
+	 */
+	private void check (String name, boolean passed) {
+		checked++;
+		System.out.println((passed ? "passed  " : "FAILED  ") + name);
+		if (!passed) {
+			failed.add(name);
+		}
+	}
+
+	/**
+	 * Check that a SessionMonitor makes the same decisions as a Monitor for each session, and leaves
+	 * the same states, with any number of stripes.
+	 * @throws InterruptedException If interrupted while waiting for the threads.
+	 */
+	private void sessionMonitorMatchesMonitor () throws InterruptedException {
+		List<Call> trace = createTrace(1, SESSIONS, CALLS);
+		Expected expected = expect(trace);
+		for (int stripes : new int[] {1, 3, 16}) {
+			final SessionMonitor monitor = new SessionMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), stripes);
+			Decision[] decisions = replay(trace, new Target() {
+				public Decision check (Call call) {
+					return call.on(monitor);
+				}
+			});
+			boolean same = matches(decisions, expected.decisions);
+			for (String session : expected.states.keySet()) {
+				same = same && expected.states.get(session).equals(String.valueOf(monitor.getState(session)));
+			}
+			check("SessionMonitor with " + stripes + " stripes matches Monitor", same);
+			check("SessionMonitor with " + stripes + " stripes counts every call",
+					(monitor.getEvents() == trace.size()) && (monitor.getDenials() == expected.denials) && (monitor.getFailures() == expected.failures));
+		}
+	}
+
+	/**
+	 * Check that a SessionMonitor whose guards are compiled into method handle trees, on first use or
+	 * once they've been evaluated TieredExpression.DEFAULT_THRESHOLD times, makes the same decisions
+	 * and leaves the same states as one whose guards are always run by the machine. With a single
+	 * stripe, the guard of each write is evaluated several times more often than the threshold.
+	 * @throws InterruptedException If interrupted while waiting for the threads.
+	 */
+	private void compiledGuardsMatchTheMachine () throws InterruptedException {
+		List<Call> trace = createTrace(4, SESSIONS, CALLS);
+		Decision[] expected = null;
+		String[] states = new String[SESSIONS];
+		String[] expectedStates = null;
+		long[] counts = null;
+		for (int threshold : new int[] {-1, 0, TieredExpression.DEFAULT_THRESHOLD}) {
+			final SessionMonitor monitor = new SessionMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), 1, threshold);
+			Decision[] decisions = replay(trace, new Target() {
+				public Decision check (Call call) {
+					return call.on(monitor);
+				}
+			});
+			for (int session = 0; session < SESSIONS; session++) {
+				states[session] = String.valueOf(monitor.getState("session" + session));
+			}
+			long[] totals = {monitor.getEvents(), monitor.getDenials(), monitor.getFailures()};
+			if (expected == null) {
+				expected = decisions;
+				expectedStates = states.clone();
+				counts = totals;
+			}
+			else {
+				check("SessionMonitor compiling guards after " + threshold + " evaluations matches the machine",
+						matches(decisions, expected) && Arrays.equals(states, expectedStates) && Arrays.equals(totals, counts));
+			}
+		}
+	}
+
+	/**
+	 * Check that a ShardedMonitor makes the same decisions as a Monitor for each session, and leaves
+	 * the same states, with small queues so that threads wait for room.
+	 * @throws InterruptedException If interrupted while waiting for the threads.
+	 */
+	private void shardedMonitorMatchesMonitor () throws InterruptedException {
+		List<Call> trace = createTrace(2, SESSIONS, CALLS);
+		Expected expected = expect(trace);
+		for (int capacity : new int[] {1, 16}) {
+			final ShardedMonitor monitor = new ShardedMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), 3, capacity);
+			Decision[] decisions = replay(trace, new Target() {
+				public Decision check (Call call) {
+					return call.on(monitor);
+				}
+			});
+			boolean same = matches(decisions, expected.decisions);
+			for (String session : expected.states.keySet()) {
+				same = same && expected.states.get(session).equals(String.valueOf(monitor.getState(session)));
+			}
+			monitor.shutdown();
+			check("ShardedMonitor with queues of " + capacity + " matches Monitor", same);
+			check("ShardedMonitor with queues of " + capacity + " counts every call",
+					(monitor.getEvents() == trace.size()) && (monitor.getDenials() == expected.denials));
+		}
+	}
+
+	/**
+	 * Check that a GlobalMonitor makes the same decisions as a Monitor, and leaves the same state,
+	 * when every call is made from one thread.
+	 */
+	private void globalMonitorMatchesMonitor () {
+		List<Call> trace = createTrace(3, 1, CALLS);
+		Expected expected = expect(trace);
+		GlobalMonitor monitor = new GlobalMonitor(createPolicy());
+		Decision[] decisions = new Decision[trace.size()];
+		for (int index = 0; index < trace.size(); index++) {
+			decisions[index] = trace.get(index).on(monitor);
+		}
+		check("GlobalMonitor matches Monitor", matches(decisions, expected.decisions)
+				&& expected.states.get(trace.get(0).session).equals(monitor.getState().toString()));
+		check("GlobalMonitor counts every call", (monitor.getEvents() == trace.size()) && (monitor.getDenials() == expected.denials)
+				&& (monitor.getFailures() == expected.failures) && (monitor.getConflicts() == 0));
+	}
+
+	/**
+	 * Check that each monitor denies a call whose arguments don't match the parameters of its rule,
+	 * and a call that can't be checked because an operation overflows, and counts them as failures.
+	 * @throws InterruptedException If interrupted while shutting down the sharded monitor.
+	 */
+	private void failuresAreDenied () throws InterruptedException {
+		Object[] wrong = {"data", Integer.valueOf(0), "long"};
+		Object[] overflowing = {"data", Integer.valueOf(0), Integer.valueOf(MAXINT + 1)};
+
+		Monitor single = new Monitor(createPolicy());
+		check("Monitor denies calls that can't be checked", (single.before(WRITE, wrong) == Decision.DENY)
+				&& (single.before(WRITE, overflowing) == Decision.DENY) && (single.getFailures() == 2));
+
+		SessionMonitor sessions = new SessionMonitor(createPolicy());
+		check("SessionMonitor denies calls that can't be checked", (sessions.before("a", WRITE, wrong) == Decision.DENY)
+				&& (sessions.before("a", WRITE, overflowing) == Decision.DENY) && (sessions.getFailures() == 2));
+
+		GlobalMonitor global = new GlobalMonitor(createPolicy());
+		check("GlobalMonitor denies calls that can't be checked", (global.before(WRITE, wrong) == Decision.DENY)
+				&& (global.before(WRITE, overflowing) == Decision.DENY) && (global.getFailures() == 2));
+
+		ShardedMonitor sharded = new ShardedMonitor(createPolicy());
+		boolean denied = (sharded.before("a", WRITE, wrong) == Decision.DENY) && (sharded.before("a", WRITE, overflowing) == Decision.DENY);
+		sharded.shutdown();
+		check("ShardedMonitor denies calls that can't be checked", denied && (sharded.getFailures(sharded.getShard("a")) == 2));
+
+		boolean refused = false;
+		try {
+			sharded.before("a", WRITE, overflowing);
+		}
+		catch (IllegalStateException e) {
+			refused = true;
+		}
+		check("ShardedMonitor refuses calls once it's been shut down", refused);
+	}
+
+	/**
+	 * Check that a call denied part way through its updates leaves the state as it was before the
+	 * call, in every monitor, whether it was denied because an update overflowed or because no
+	 * reaction's guard held.
+	 * @throws InterruptedException If interrupted while shutting down the sharded monitor.
+	 */
+	private void deniedUpdatesAreUndone () throws InterruptedException {
+		Object[] small = {Integer.valueOf(1)};
+		Object[] large = {Integer.valueOf(MAXINT)};
+
+		// The first move writes both variables; the second increments moves and then overflows buffer_size
+		Monitor single = new Monitor(createPolicy());
+		single.before(MOVE, small);
+		String before = single.getState().toString();
+		check("Monitor undoes the updates of a denied call", (single.before(MOVE, large) == Decision.DENY)
+				&& before.equals(single.getState().toString()) && (single.getState().getInt("moves") == 1));
+
+		SessionMonitor sessions = new SessionMonitor(createPolicy());
+		sessions.before("a", MOVE, small);
+		check("SessionMonitor undoes the updates of a denied call", (sessions.before("a", MOVE, large) == Decision.DENY)
+				&& before.equals(sessions.getState("a").toString()));
+
+		GlobalMonitor global = new GlobalMonitor(createPolicy());
+		global.before(MOVE, small);
+		check("GlobalMonitor doesn't publish the updates of a denied call", (global.before(MOVE, large) == Decision.DENY)
+				&& before.equals(global.getState().toString()));
+
+		ShardedMonitor sharded = new ShardedMonitor(createPolicy());
+		sharded.before("a", MOVE, small);
+		boolean undone = (sharded.before("a", MOVE, large) == Decision.DENY) && before.equals(sharded.getState("a").toString());
+		sharded.shutdown();
+		check("ShardedMonitor undoes the updates of a denied call", undone);
+
+		// Connecting to a second host is denied by the rule itself, and mustn't change last
+		single.before(CONNECT, "www.aniketos.eu", Integer.valueOf(443));
+		before = single.getState().toString();
+		check("Monitor leaves the state alone when no reaction applies", (single.before(CONNECT, "www.example.com", Integer.valueOf(443)) == Decision.DENY)
+				&& before.equals(single.getState().toString()));
+	}
+
+	/**
+	 * Check that the monitors don't simplify away the parts of a guard that can't be evaluated, so
+	 * that a guard which overflows, or takes a remainder by zero, before reaching a constant true is
+	 * still denied as a failure, while the same guard is permitted once its arithmetic wraps.
+	 */
+	private void simplifiedGuardsStillFail () {
+		Object[] large = {Integer.valueOf(MAXINT)};
+
+		Monitor single = new Monitor(createFailingPolicy());
+		check("Monitor denies a guard that overflows before a constant", (single.before(MOVE, large) == Decision.DENY)
+				&& (single.getFailures() == 1) && (single.getState().getInt("moves") == 0));
+		check("Monitor denies a guard that divides by zero before a constant", (single.before(RECORD, large) == Decision.DENY)
+				&& (single.getFailures() == 2) && (single.getState().getInt("recorded") == 0));
+
+		SessionMonitor sessions = new SessionMonitor(createFailingPolicy());
+		check("SessionMonitor denies guards that fail before a constant", (sessions.before("a", MOVE, large) == Decision.DENY)
+				&& (sessions.before("a", RECORD, large) == Decision.DENY) && (sessions.getFailures() == 2)
+				&& (sessions.getState("a").getInt("moves") == 0));
+
+		Monitor wrapping = new Monitor(createFailingPolicy(), BoundedArithmetic.Overflow.WRAP, new InvocationResolver());
+		check("Monitor permits a guard whose arithmetic wraps", (wrapping.before(MOVE, large) == Decision.PERMIT)
+				&& (wrapping.getFailures() == 0) && (wrapping.getState().getInt("moves") == 1));
+	}
+
+	/**
+	 * Check that a type checker given an interner, as the monitors' compiled policies use, shares the
+	 * subexpressions that the guards and assigned values of a policy have in common, within a rule and
+	 * between rules, and that one without an interner doesn't.
+	 */
+	private void policySubexpressionsAreShared () {
+		Specification spec = createPolicy();
+		RuleType write = spec.getRule().get(0);
+		RuleType move = spec.getRule().get(4);
+		RuleType count = spec.getRule().get(7);
+		ReactionType writes = write.getPerform().getReaction().get(0);
+		AssignType moves = move.getPerform().getReaction().get(0).getUpdate().getAssign().get(0);
+		AssignType counts = count.getPerform().getReaction().get(0).getUpdate().getAssign().get(0);
+
+		TypeChecker interning = new TypeChecker(new InvocationResolver(), new ExpressionInterner());
+		interning.check(spec);
+		check("A guard shares 'buffer_size + len' with the value its reaction assigns",
+				interning.checkGuard(spec, write, writes).getRoot().getChild(0) == interning.checkValue(spec, write, writes.getUpdate().getAssign().get(0)).getRoot());
+		check("The values assigned by different rules share the constant 1",
+				interning.checkValue(spec, move, moves).getRoot().getChild(1) == interning.checkValue(spec, count, counts).getRoot().getChild(1));
+
+		TypeChecker separate = new TypeChecker(new InvocationResolver());
+		check("Expressions aren't shared without an interner",
+				separate.checkGuard(spec, write, writes).getRoot().getChild(0) != separate.checkValue(spec, write, writes.getUpdate().getAssign().get(0)).getRoot());
+	}
+
+	/**
+	 * Check that a call whose rules throw something other than an EvaluationException while they're
+	 * fired, here because an argument's toString() throws, is denied and counted as a failure in every
+	 * monitor, with the updates of the rules fired before it undone, and that the monitor carries on
+	 * checking calls afterwards.
+	 * @throws InterruptedException If interrupted while shutting down the sharded monitor.
+	 */
+	private void exceptionsAreDenied () throws InterruptedException {
+		Object[] hostile = {new Hostile(5)};
+		Object[] plain = {Integer.valueOf(7)};
+
+		Monitor single = new Monitor(createPolicy());
+		check("Monitor denies a call whose argument throws", (single.before(RECORD, hostile) == Decision.DENY)
+				&& (single.getState().getInt("recorded") == 0) && (single.getFailures() == 1) && (single.getLastFailure() != null));
+		check("Monitor carries on after a call whose argument throws", (single.before(RECORD, plain) == Decision.PERMIT)
+				&& (single.getState().getInt("recorded") == 7) && "7".equals(single.getState().getString("last")));
+
+		SessionMonitor sessions = new SessionMonitor(createPolicy());
+		check("SessionMonitor denies a call whose argument throws", (sessions.before("a", RECORD, hostile) == Decision.DENY)
+				&& (sessions.getState("a").getInt("recorded") == 0) && (sessions.getFailures() == 1)
+				&& (sessions.before("a", RECORD, plain) == Decision.PERMIT) && (sessions.getState("a").getInt("recorded") == 7));
+
+		GlobalMonitor global = new GlobalMonitor(createPolicy());
+		check("GlobalMonitor denies a call whose argument throws", (global.before(RECORD, hostile) == Decision.DENY)
+				&& (global.getState().getInt("recorded") == 0) && (global.getFailures() == 1)
+				&& (global.before(RECORD, plain) == Decision.PERMIT) && (global.getState().getInt("recorded") == 7));
+
+		ShardedMonitor sharded = new ShardedMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), 1, 4);
+		boolean denied = (sharded.before("a", RECORD, hostile) == Decision.DENY) && (sharded.getState("a").getInt("recorded") == 0);
+		boolean serving = (sharded.before("a", RECORD, plain) == Decision.PERMIT) && (sharded.getState("a").getInt("recorded") == 7)
+				&& (sharded.before("b", RECORD, hostile) == Decision.DENY) && (sharded.getState("a").getInt("recorded") == 7);
+		sharded.shutdown();
+		check("ShardedMonitor denies a call whose argument throws and keeps its shard running", denied && serving && (sharded.getFailures(0) == 2));
+	}
+
+	/**
+	 * Check that when another thread publishes a state while a call to a GlobalMonitor is being
+	 * checked, the call is checked again against the new state, rather than overwriting it.
+	 * @throws InterruptedException If interrupted while waiting for the paused thread.
+	 */
+	private void globalMonitorRetriesConflicts () throws InterruptedException {
+		InvocationResolver resolver = new InvocationResolver();
+		resolver.allow(INTERLEAVE);
+		final GlobalMonitor monitor = new GlobalMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, resolver);
+		final Decision[] decision = new Decision[1];
+		started = new CountDownLatch(1);
+		published = new CountDownLatch(1);
+		Thread slow = new Thread() {
+			public void run () {
+				decision[0] = monitor.before(COUNT);
+			}
+		};
+		paused = slow;
+		slow.start();
+
+		// Publish a state while the slow thread is part way through checking its call
+		started.await();
+		Decision fast = monitor.before(COUNT);
+		published.countDown();
+		slow.join();
+
+		check("GlobalMonitor checks a call again after a conflict", (fast == Decision.PERMIT) && (decision[0] == Decision.PERMIT)
+				&& (monitor.getState().getInt("counted") == 2) && (monitor.getConflicts() == 1) && (monitor.getRetries() == 1));
+		check("GlobalMonitor keeps the counts of threads that have ended", (monitor.getEvents() == 2) && (monitor.getDenials() == 0));
+	}
+
+	/**
+	 * Check that a GlobalMonitor loses no updates when many threads write to the state at once.
+	 * @throws InterruptedException If interrupted while waiting for the threads.
+	 */
+	private void globalMonitorCountsEveryThread () throws InterruptedException {
+		final GlobalMonitor monitor = new GlobalMonitor(createPolicy());
+		final int calls = 2000;
+		Thread[] threads = new Thread[THREADS];
+		for (int index = 0; index < threads.length; index++) {
+			threads[index] = new Thread() {
+				public void run () {
+					for (int call = 0; call < calls; call++) {
+						monitor.after(FLUSH, null, Integer.valueOf(0));
+					}
+				}
+			};
+			threads[index].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// The count wraps round at the policy's bound, as the rule says
+		check("GlobalMonitor loses no updates made from many threads", (monitor.getState().getInt("flushed") == (THREADS * calls) % MAXINT)
+				&& (monitor.getEvents() == THREADS * calls) && (monitor.getDenials() == 0) && (monitor.getRetries() >= monitor.getConflicts()));
+	}
+
+	/**
+	 * Check that sessions whose ids have the same hash, and so are routed to the same stripe or shard,
+	 * still have states of their own, and that ending a session only throws away its own state.
+	 * @throws InterruptedException If interrupted while shutting down the sharded monitor.
+	 */
+	private void sessionsAreKeptApart () throws InterruptedException {
+		// "Aa" and "BB" have the same hash
+		SessionMonitor sessions = new SessionMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), 8);
+		sessions.before("Aa", CONNECT, "www.aniketos.eu", Integer.valueOf(443));
+		sessions.before("BB", CONNECT, "www.example.com", Integer.valueOf(443));
+		boolean apart = (sessions.before("Aa", CONNECT, "www.aniketos.eu", Integer.valueOf(443)) == Decision.PERMIT)
+				&& (sessions.before("BB", CONNECT, "www.aniketos.eu", Integer.valueOf(443)) == Decision.DENY);
+		boolean ended = sessions.endSession("Aa") && !sessions.endSession("Aa") && (sessions.getState("Aa") == null)
+				&& "www.example.com".equals(sessions.getState("BB").getString("last")) && (sessions.getSessionCount() == 1);
+		check("SessionMonitor keeps sessions in the same stripe apart", apart && ended);
+
+		ShardedMonitor sharded = new ShardedMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), 4, 8);
+		sharded.before("Aa", CONNECT, "www.aniketos.eu", Integer.valueOf(443));
+		sharded.before("BB", CONNECT, "www.example.com", Integer.valueOf(443));
+		apart = (sharded.getShard("Aa") == sharded.getShard("BB"))
+				&& (sharded.before("Aa", CONNECT, "www.aniketos.eu", Integer.valueOf(443)) == Decision.PERMIT)
+				&& (sharded.before("BB", CONNECT, "www.aniketos.eu", Integer.valueOf(443)) == Decision.DENY);
+		ended = sharded.endSession("Aa") && !sharded.endSession("Aa") && (sharded.getState("Aa") == null)
+				&& "www.example.com".equals(sharded.getState("BB").getString("last"));
+		sharded.shutdown();
+		check("ShardedMonitor keeps sessions in the same shard apart", apart && ended);
+	}
+
+	/**
+	 * Check that each session's calls are checked by the shard getShard() gives for it, by comparing the
+	 * number of sessions and calls each shard counted with those routed to it.
+	 * @throws InterruptedException If interrupted while shutting down the monitor.
+	 */
+	private void shardsCountTheirSessions () throws InterruptedException {
+		ShardedMonitor monitor = new ShardedMonitor(createPolicy(), BoundedArithmetic.Overflow.VIOLATION, new InvocationResolver(), 5, 4);
+		int[] sessions = new int[monitor.getShardCount()];
+		long[] calls = new long[monitor.getShardCount()];
+		for (int session = 0; session < SESSIONS; session++) {
+			String id = "session" + session;
+			sessions[monitor.getShard(id)]++;
+			for (int call = 0; call <= session % 3; call++) {
+				monitor.after(id, FLUSH, null, Integer.valueOf(1));
+				calls[monitor.getShard(id)]++;
+			}
+		}
+		monitor.shutdown();
+
+		// The counts are published when each batch is finished, so they're complete once the shards have stopped
+		boolean routed = true;
+		for (int shard = 0; shard < monitor.getShardCount(); shard++) {
+			routed = routed && (monitor.getSessionCount(shard) == sessions[shard]) && (monitor.getEvents(shard) == calls[shard])
+					&& (monitor.getQueueDepth(shard) == 0) && (monitor.getPeakQueueDepth(shard) <= 4);
+		}
+		check("ShardedMonitor checks each session's calls on its own shard", routed);
+	}
+
+	/**
+	 * Check that a CallQueue delivers every item added by many threads once each, in the order each
+	 * thread added them, whatever its capacity.
+	 * @throws InterruptedException If interrupted while waiting for the threads.
+	 */
+	private void queueLosesNothing () throws InterruptedException {
+		for (int capacity : new int[] {1, 3, 64}) {
+			final CallQueue<long[]> queue = new CallQueue<long[]>(capacity);
+			final int items = 20000;
+			Thread[] producers = new Thread[THREADS];
+			for (int index = 0; index < producers.length; index++) {
+				final int producer = index;
+				producers[index] = new Thread() {
+					public void run () {
+						for (int item = 0; item < items; item++) {
+							long[] value = {producer, item};
+							while (!queue.offer(value)) {
+								Thread.yield();
+							}
+						}
+					}
+				};
+			}
+
+			// Take the items on this thread, checking that each producer's arrive in order
+			queue.setConsumer(Thread.currentThread());
+			for (Thread producer : producers) {
+				producer.start();
+			}
+			long[] next = new long[THREADS];
+			int taken = 0;
+			boolean ordered = true;
+			while (taken < THREADS * items) {
+				long[] value = queue.poll();
+				if (value == null) {
+					queue.release();
+					queue.await();
+				}
+				else {
+					ordered = ordered && (value[1] == next[(int)value[0]]);
+					next[(int)value[0]]++;
+					taken++;
+				}
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			queue.release();
+			check("CallQueue of " + queue.getCapacity() + " delivers every item in order",
+					ordered && (queue.poll() == null) && (queue.size() == 0) && (queue.getCapacity() >= Math.max(2, capacity)));
+		}
+	}
+
+	/**
+	 * Called by the guard of the count rule. The first call made by the paused thread waits until
+	 * another thread has published a state.
+	 * @param value The number of calls counted, which is ignored.
+	 * @return true.
+	 */
+	public static boolean interleave (long value) {
+		if (Thread.currentThread() == paused) {
+			paused = null;
+			started.countDown();
+			try {
+				published.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Create the policy the monitors enforce. Writes are allowed until the buffer is full, flushes
+	 * empty it and are counted, only the first host connected to may be connected to again, moves
+	 * write two variables and can overflow on the second, records fire two rules, the second of which
+	 * reads the argument as a string, and counts invoke interleave().
+	 * @return The policy.
+	 */
+	private static Specification createPolicy () {
+		Specification spec = new Specification();
+		spec.setSecuritystate(new StateType());
+		spec.setMaxint(BigInteger.valueOf(MAXINT));
+		declare(spec, "int", "buffer_size");
+		declare(spec, "int", "flushed");
+		declare(spec, "int", "moves");
+		declare(spec, "int", "counted");
+		declare(spec, "int", "recorded");
+		declare(spec, "string", "last");
+
+		ObjectFactory factory = new ObjectFactory();
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), WRITE, "string", "b", "int", "off", "int", "len")),
+				null, reaction("buffer_size + len <= 1000", "buffer_size", "buffer_size + len")));
+		AfterType returns = (AfterType)when(new AfterType(), FLUSH);
+		returns.setReturn(parameter("int", "count"));
+		spec.getRule().add(rule(factory.createRuleTypeAfter(returns), null,
+				reaction("count >= 0", "flushed", "(flushed + 1) % " + MAXINT, "buffer_size", "0")));
+		spec.getRule().add(rule(factory.createRuleTypeExceptional(when(new WhenType(), FLUSH)), update(), reaction("buffer_size > 500")));
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), CONNECT, "string", "host", "int", "port")), null,
+				reaction("host == last && port == 443"), reaction("last == \"\"", "last", "host")));
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), MOVE, "int", "k")), null,
+				reaction("k >= 0", "moves", "moves + 1", "buffer_size", "buffer_size + k")));
+
+		// The first rule for record reads its argument as an int, the second as a string
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), RECORD, "int", "n")), null,
+				reaction("n >= 0", "recorded", "n")));
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), RECORD, "string", "text")), null,
+				reaction("true", "last", "text")));
+
+		// The parser doesn't read invocations, so the guard counted >= 0 && interleave(counted) is built as a tree
+		ExprNode guard = new ExprNode.BinaryOperation(NodeKind.AND, new Expression("counted >= 0").toNode(),
+				new ExprNode.Invocation(new String[] {INTERLEAVE}, new ExprNode[] {new ExprNode.Identifier("counted")}));
+		ReactionType count = reaction("true", "counted", "counted + 1");
+		count.getGuard().setExpType(guard.toElement());
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), COUNT)), null, count));
+		return spec;
+	}
+
+	/**
+	 * Create a policy whose guards fail part way through before reaching a constant true, which a
+	 * simplifier could otherwise discard them for: moves overflow and records take a remainder by zero.
+	 * @return The policy.
+	 */
+	private static Specification createFailingPolicy () {
+		Specification spec = new Specification();
+		spec.setSecuritystate(new StateType());
+		spec.setMaxint(BigInteger.valueOf(MAXINT));
+		declare(spec, "int", "moves");
+		declare(spec, "int", "recorded");
+
+		ObjectFactory factory = new ObjectFactory();
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), MOVE, "int", "k")), null,
+				reaction("k + k >= 0 || true", "moves", "moves + 1")));
+		spec.getRule().add(rule(factory.createRuleTypeBefore(when(new WhenType(), RECORD, "int", "n")), null,
+				reaction("n % 0 == 0 || true", "recorded", "n")));
+		return spec;
+	}
+
+	/**
+	 * Create a trace of calls, picked at random but the same each time for a given seed. Some calls
+	 * are denied by the rules, some can't be checked, and some aren't named by any rule.
+	 * @param seed The seed for the random choices.
+	 * @param sessions The number of sessions the calls are made in.
+	 * @param calls The number of calls.
+	 * @return The calls, in the order they're made.
+	 */
+	private static List<Call> createTrace (long seed, int sessions, int calls) {
+		Random random = new Random(seed);
+		String[] hosts = {"www.aniketos.eu", "www.ljmu.ac.uk"};
+		ArrayList<Call> result = new ArrayList<Call>(calls);
+		for (int index = 0; index < calls; index++) {
+			String session = "session" + random.nextInt(sessions);
+			Call call;
+			switch (random.nextInt(8)) {
+			case 0:
+			case 1:
+				call = new Call(session, CompiledRule.BEFORE, WRITE, new Object[] {"data", Integer.valueOf(0), Integer.valueOf(random.nextInt(200))}, null);
+				break;
+			case 2:
+				call = new Call(session, CompiledRule.AFTER, FLUSH, new Object[0], Integer.valueOf(random.nextInt(3) - 1));
+				break;
+			case 3:
+				call = new Call(session, CompiledRule.EXCEPTIONAL, FLUSH, new Object[0], null);
+				break;
+			case 4:
+				call = new Call(session, CompiledRule.BEFORE, CONNECT, new Object[] {hosts[random.nextInt(hosts.length)], Integer.valueOf(443)}, null);
+				break;
+			case 5:
+				call = new Call(session, CompiledRule.BEFORE, MOVE, new Object[] {Integer.valueOf(random.nextInt(600))}, null);
+				break;
+			case 6:
+				// The length isn't an integer, so the call can't be checked
+				call = new Call(session, CompiledRule.BEFORE, WRITE, new Object[] {"data", Integer.valueOf(0), "long"}, null);
+				break;
+			default:
+				call = new Call(session, CompiledRule.BEFORE, "java.lang.Object.toString", new Object[0], null);
+				break;
+			}
+			result.add(call);
+		}
+		return result;
+	}
+
+	/**
+	 * Work out the decisions a Monitor for each session makes on a trace, and the states it leaves.
+	 * @param trace The calls.
+	 * @return The decisions and states.
+	 */
+	private static Expected expect (List<Call> trace) {
+		Expected result = new Expected(trace.size());
+		HashMap<String, Monitor> monitors = new HashMap<String, Monitor>();
+		for (int index = 0; index < trace.size(); index++) {
+			Call call = trace.get(index);
+			Monitor monitor = monitors.get(call.session);
+			if (monitor == null) {
+				monitor = new Monitor(createPolicy());
+				monitors.put(call.session, monitor);
+			}
+			result.decisions[index] = call.on(monitor);
+		}
+		for (String session : monitors.keySet()) {
+			Monitor monitor = monitors.get(session);
+			result.states.put(session, monitor.getState().toString());
+			result.denials += monitor.getDenials();
+			result.failures += monitor.getFailures();
+		}
+		return result;
+	}
+
+	/**
+	 * Make the calls of a trace from a number of threads, with all the calls of a session made from
+	 * the same thread in the order they appear in the trace.
+	 * @param trace The calls.
+	 * @param target Checks each call.
+	 * @return The decision on each call.
+	 * @throws InterruptedException If interrupted while waiting for the threads.
+	 */
+	private static Decision[] replay (final List<Call> trace, final Target target) throws InterruptedException {
+		final Decision[] result = new Decision[trace.size()];
+		Thread[] threads = new Thread[THREADS];
+		for (int index = 0; index < threads.length; index++) {
+			final int thread = index;
+			threads[index] = new Thread() {
+				public void run () {
+					for (int call = 0; call < trace.size(); call++) {
+						if ((trace.get(call).session.hashCode() & Integer.MAX_VALUE) % THREADS == thread) {
+							result[call] = target.check(trace.get(call));
+						}
+					}
+				}
+			};
+			threads[index].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return result;
+	}
+
+	/**
+	 * Return whether two sets of decisions are the same.
+	 * @param decisions The decisions made.
+	 * @param expected The decisions expected.
+	 * @return true if each decision is the one expected.
+	 */
+	private static boolean matches (Decision[] decisions, Decision[] expected) {
+		boolean result = (decisions.length == expected.length);
+		for (int index = 0; (index < decisions.length) && result; index++) {
+			result = (decisions[index] == expected[index]);
+		}
+		return result;
+	}
+
+	/**
+	 * Add a variable declaration to the security state of a policy.
+	 * @param spec The policy.
+	 * @param type The type of the variable.
+	 * @param identifier The name of the variable.
+	 */
+	private static void declare (Specification spec, String type, String identifier) {
+		DeclType declaration = new DeclType();
+		declaration.setType(type);
+		declaration.setIdentifier(identifier);
+		spec.getSecuritystate().getDeclaration().add(declaration);
+	}
+
+	/**
+	 * Fill in the method and parameters of a rule.
+	 * @param when The element to fill in.
+	 * @param identifier The method the rule applies to.
+	 * @param parameters The type and name of each parameter, in turn.
+	 * @return The element.
+	 */
+	private static WhenType when (WhenType when, String identifier, String... parameters) {
+		when.setIdentifier(identifier);
+		for (int index = 0; index < parameters.length; index += 2) {
+			when.getParameter().add(parameter(parameters[index], parameters[index + 1]));
+		}
+		return when;
+	}
+
+	/**
+	 * Create a parameter.
+	 * @param type The type of the parameter.
+	 * @param identifier The name of the parameter.
+	 * @return The parameter.
+	 */
+	private static ParameterType parameter (String type, String identifier) {
+		ParameterType parameter = new ParameterType();
+		parameter.setType(type);
+		parameter.setIdentifier(identifier);
+		return parameter;
+	}
+
+	/**
+	 * Create a rule.
+	 * @param when Says when the rule applies.
+	 * @param otherwise The update applied if no reaction applies, or null to deny the call.
+	 * @param reactions The reactions.
+	 * @return The rule.
+	 */
+	private static RuleType rule (JAXBElement<? extends WhenType> when, UpdateType otherwise, ReactionType... reactions) {
+		RuleType rule = new RuleType();
+		rule.setBeforeOrAfterOrExceptional(when);
+		PerformType perform = new PerformType();
+		for (ReactionType reaction : reactions) {
+			perform.getReaction().add(reaction);
+		}
+		perform.setElse(otherwise);
+		rule.setPerform(perform);
+		return rule;
+	}
+
+	/**
+	 * Create a reaction.
+	 * @param guard The guard, as it would be typed into the editor.
+	 * @param assignments The name of each variable assigned to and the value assigned, in turn.
+	 * @return The reaction.
+	 */
+	private static ReactionType reaction (String guard, String... assignments) {
+		ReactionType reaction = new ReactionType();
+		reaction.setGuard(new ReactionType.Guard());
+		reaction.getGuard().setExpType(new Expression(guard).getValue());
+		reaction.setUpdate(update(assignments));
+		return reaction;
+	}
+
+	/**
+	 * Create an update block.
+	 * @param assignments The name of each variable assigned to and the value assigned, in turn.
+	 * @return The update block.
+	 */
+	private static UpdateType update (String... assignments) {
+		UpdateType update = new UpdateType();
+		for (int index = 0; index < assignments.length; index += 2) {
+			AssignType assign = new AssignType();
+			assign.setIdentifier(assignments[index]);
+			assign.setValue(new AssignType.Value());
+			assign.getValue().setExpType(new Expression(assignments[index + 1]).getValue());
+			update.getAssign().add(assign);
+		}
+		return update;
+	}
+
+	/**
+	 * A number whose text can't be found, standing in for an argument whose code throws an exception
+	 * when the monitor reads it.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Hostile extends Number {
+		/**
+		 * For serialization, which Number supports.
+		 */
+		private static final long serialVersionUID = 1L;
+		/**
+		 * The value of the number.
+		 */
+		private final long value;
+
+		/**
+		 * Create a number.
+		 * @param value The value of the number.
+		 */
+		Hostile (long value) {
+			this.value = value;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Number#intValue()
+		 */
+		public int intValue () {
+			return (int)value;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Number#longValue()
+		 */
+		public long longValue () {
+			return value;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Number#floatValue()
+		 */
+		public float floatValue () {
+			return value;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Number#doubleValue()
+		 */
+		public double doubleValue () {
+			return value;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString () {
+			throw new UnsupportedOperationException("The number can't be shown");
+		}
+	}
+
+	/**
+	 * Checks calls with one of the monitors.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private interface Target {
+		/**
+		 * Check a call.
+		 * @param call The call.
+		 * @return The decision.
+		 */
+		Decision check (Call call);
+	}
+
+	/**
+	 * The decisions a Monitor made on a trace, the states it left each session in, and its counts.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Expected {
+		/**
+		 * The decision on each call.
+		 */
+		final Decision[] decisions;
+		/**
+		 * The final state of each session, as text.
+		 */
+		final HashMap<String, String> states = new HashMap<String, String>();
+		/**
+		 * The number of calls denied.
+		 */
+		long denials = 0;
+		/**
+		 * The number of calls that couldn't be checked.
+		 */
+		long failures = 0;
+
+		/**
+		 * Create an empty set of results.
+		 * @param calls The number of calls in the trace.
+		 */
+		Expected (int calls) {
+			decisions = new Decision[calls];
+		}
+	}
+
+	/**
+	 * A call made in a session.
+	 * @author Aniketos Project; David Llewellyn-Jones, Liverpool John Moores University
+	 *
+	 */
+	private static final class Call {
+		/**
+		 * The id of the session.
+		 */
+		final String session;
+		/**
+		 * When the call is checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+		 */
+		final int kind;
+		/**
+		 * The fully qualified name of the method.
+		 */
+		final String method;
+		/**
+		 * The arguments of the call.
+		 */
+		final Object[] args;
+		/**
+		 * The value returned, for an after call.
+		 */
+		final Object result;
+
+		/**
+		 * Create a call.
+		 * @param session The id of the session.
+		 * @param kind When the call is checked: CompiledRule.BEFORE, AFTER or EXCEPTIONAL.
+		 * @param method The fully qualified name of the method.
+		 * @param args The arguments of the call.
+		 * @param result The value returned, for an after call.
+		 */
+		Call (String session, int kind, String method, Object[] args, Object result) {
+			this.session = session;
+			this.kind = kind;
+			this.method = method;
+			this.args = args;
+			this.result = result;
+		}
+
+		/**
+		 * Check the call with a Monitor, ignoring its session.
+		 * @param monitor The monitor.
+		 * @return The decision.
+		 */
+		Decision on (Monitor monitor) {
+			Decision decision;
+			if (kind == CompiledRule.BEFORE) {
+				decision = monitor.before(method, args);
+			}
+			else if (kind == CompiledRule.AFTER) {
+				decision = monitor.after(method, args, result);
+			}
+			else {
+				decision = monitor.exceptional(method, args);
+			}
+			return decision;
+		}
+
+		/**
+		 * Check the call with a GlobalMonitor, ignoring its session.
+		 * @param monitor The monitor.
+		 * @return The decision.
+		 */
+		Decision on (GlobalMonitor monitor) {
+			Decision decision;
+			if (kind == CompiledRule.BEFORE) {
+				decision = monitor.before(method, args);
+			}
+			else if (kind == CompiledRule.AFTER) {
+				decision = monitor.after(method, args, result);
+			}
+			else {
+				decision = monitor.exceptional(method, args);
+			}
+			return decision;
+		}
+
+		/**
+		 * Check the call with a SessionMonitor.
+		 * @param monitor The monitor.
+		 * @return The decision.
+		 */
+		Decision on (SessionMonitor monitor) {
+			Decision decision;
+			if (kind == CompiledRule.BEFORE) {
+				decision = monitor.before(session, method, args);
+			}
+			else if (kind == CompiledRule.AFTER) {
+				decision = monitor.after(session, method, args, result);
+			}
+			else {
+				decision = monitor.exceptional(session, method, args);
+			}
+			return decision;
+		}
+
+		/**
+		 * Check the call with a ShardedMonitor.
+		 * @param monitor The monitor.
+		 * @return The decision.
+		 */
+		Decision on (ShardedMonitor monitor) {
+			Decision decision;
+			if (kind == CompiledRule.BEFORE) {
+				decision = monitor.before(session, method, args);
+			}
+			else if (kind == CompiledRule.AFTER) {
+				decision = monitor.after(session, method, args, result);
+			}
+			else {
+				decision = monitor.exceptional(session, method, args);
+			}
+			return decision;
+		}
+	}
+}